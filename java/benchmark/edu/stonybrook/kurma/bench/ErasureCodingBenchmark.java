@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.bench;
+
+import java.nio.ByteBuffer;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.caliper.api.VmOptions;
+
+import edu.stonybrook.kurma.cloud.EcManager;
+import edu.stonybrook.kurma.cloud.ErasureCodec;
+import edu.stonybrook.kurma.util.RandomBuffer;
+
+/**
+ * Throughput of encoding a block and decoding it with m data chunks missing, using EcManager or
+ * the pooled ErasureCodec.
+ */
+@VmOptions("-XX:-TieredCompilation")
+public class ErasureCodingBenchmark {
+  static final int RANDOM_SEED = 8839;
+
+  @Param({"2", "4", "6"})
+  int k;
+
+  @Param({"1", "2"})
+  int m;
+
+  @Param({"65536", "1048576"})
+  int blockSize;
+
+  EcManager ecManager;
+  ErasureCodec codec;
+  ByteBuffer data;
+
+  @BeforeExperiment
+  public void startExp() {
+    ecManager = new EcManager();
+    codec = new ErasureCodec(k, m);
+    data = ByteBuffer.wrap(new RandomBuffer(RANDOM_SEED).genRandomBytes(blockSize));
+  }
+
+  @Benchmark
+  public int ecManagerEncode(int reps) {
+    int sum = 0;
+    for (int i = 0; i < reps; ++i) {
+      byte[][] chunks = ecManager.encode(data.duplicate(), k, m);
+      sum += chunks[k][0];
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public int codecEncode(int reps) {
+    int sum = 0;
+    for (int i = 0; i < reps; ++i) {
+      byte[][] chunks = codec.encode(data);
+      sum += chunks[k][0];
+      codec.release(chunks);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public int ecManagerEncodeDecode(int reps) throws Exception {
+    int sum = 0;
+    int[] erasures = new int[m + 1];
+    for (int i = 0; i < m; ++i) {
+      erasures[i] = i;
+    }
+    erasures[m] = -1;
+    for (int i = 0; i < reps; ++i) {
+      byte[][] chunks = ecManager.encode(data.duplicate(), k, m);
+      byte[][] dataChunks = new byte[k][];
+      byte[][] codingChunks = new byte[m][];
+      System.arraycopy(chunks, 0, dataChunks, 0, k);
+      System.arraycopy(chunks, k, codingChunks, 0, m);
+      for (int j = 0; j < m; ++j) {
+        dataChunks[j] = new byte[chunks[j].length];
+      }
+      sum += ecManager.decode(dataChunks, codingChunks, erasures, k, m, blockSize).get(0);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public int codecEncodeDecode(int reps) throws Exception {
+    int sum = 0;
+    for (int i = 0; i < reps; ++i) {
+      byte[][] chunks = codec.encode(data);
+      byte[][] lost = new byte[m][];
+      for (int j = 0; j < m; ++j) {
+        lost[j] = chunks[j];
+        chunks[j] = null;
+      }
+      codec.release(lost);
+      sum += codec.decode(chunks, blockSize).get(0);
+    }
+    return sum;
+  }
+
+  public static void main(String[] args) {
+    String[] myargs = new String[5];
+    myargs[0] = ErasureCodingBenchmark.class.getName();
+    myargs[1] = "-i";
+    myargs[2] = "runtime";
+    myargs[3] = "-t";
+    myargs[4] = "20";
+    com.google.caliper.runner.CaliperMain.main(myargs);
+  }
+}
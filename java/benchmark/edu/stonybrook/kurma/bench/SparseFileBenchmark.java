@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.caliper.api.VmOptions;
+
+import edu.stonybrook.kurma.config.GatewayConfig;
+import edu.stonybrook.kurma.config.IGatewayConfig;
+import edu.stonybrook.kurma.gc.DefaultCollector;
+import edu.stonybrook.kurma.helpers.AttributesHelper;
+import edu.stonybrook.kurma.helpers.VolumeInfoHelper;
+import edu.stonybrook.kurma.replicator.ConflictResolver;
+import edu.stonybrook.kurma.server.FileHandler;
+import edu.stonybrook.kurma.server.KurmaHandler;
+import edu.stonybrook.kurma.server.VolumeHandler;
+import edu.stonybrook.kurma.util.RandomBuffer;
+
+/**
+ * Random block I/O over huge sparse files, whose block versions span many BlockMaps.
+ */
+@VmOptions("-XX:-TieredCompilation")
+public class SparseFileBenchmark {
+  static final int RANDOM_SEED = 8839;
+
+  @Param({"1", "4"})
+  int terabytes;
+
+  TestingServer server;
+  CuratorFramework client;
+  VolumeHandler vh;
+  FileHandler fh;
+  Random random;
+  byte[] data;
+  long nblocks;
+  int blockSize;
+
+  @BeforeExperiment
+  public void startExp() throws Exception {
+    server = new TestingServer();
+    server.start();
+    client = CuratorFrameworkFactory.newClient(
+        String.format("localhost:%d", server.getPort()), new ExponentialBackoffRetry(1000, 3));
+    client.start();
+    IGatewayConfig config = new GatewayConfig(GatewayConfig.KURMA_TEST_CONFIG_FILE);
+    KurmaHandler kh = new KurmaHandler(client, new DefaultCollector(client, config), config,
+        new ConflictResolver(config));
+    vh = kh.createVolume(VolumeInfoHelper.newVolumeInfo("SparseFileBenchmark"));
+    fh = vh.getRootDirectory().createChildFile("sparse", AttributesHelper.newFileAttributes());
+    long filesize = ((long) terabytes) << 40;
+    fh.truncate(filesize);
+    blockSize = fh.getBlockSize();
+    nblocks = filesize / blockSize;
+    random = new Random(RANDOM_SEED);
+    data = new RandomBuffer(RANDOM_SEED).genRandomBytes(blockSize);
+  }
+
+  @AfterExperiment
+  public void endExp() throws Exception {
+    client.close();
+    server.close();
+  }
+
+  private long randomOffset() {
+    return (long) (random.nextDouble() * nblocks) * blockSize;
+  }
+
+  @Benchmark
+  public void randomWrite(int reps) throws Exception {
+    for (int i = 0; i < reps; ++i) {
+      fh.write(randomOffset(), ByteBuffer.wrap(data));
+    }
+  }
+
+  @Benchmark
+  public void randomRead(int reps) throws Exception {
+    for (int i = 0; i < reps; ++i) {
+      fh.read(randomOffset(), blockSize);
+    }
+  }
+
+  public static void main(String[] args) {
+    String[] myargs = new String[5];
+    myargs[0] = SparseFileBenchmark.class.getName();
+    myargs[1] = "-i";
+    myargs[2] = "runtime";
+    myargs[3] = "-t";
+    myargs[4] = "20";
+    com.google.caliper.runner.CaliperMain.main(myargs);
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.math3.stat.descriptive.rank.Percentile;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+import edu.stonybrook.kurma.fs.KurmaResult;
+import edu.stonybrook.kurma.fs.KurmaService;
+import edu.stonybrook.kurma.fs.VolumeFormatFlags;
+import edu.stonybrook.kurma.helpers.AttributesHelper;
+import edu.stonybrook.kurma.helpers.Int128Helper;
+import edu.stonybrook.kurma.helpers.ObjectIdHelper;
+import edu.stonybrook.kurma.helpers.StatusHelper;
+import edu.stonybrook.kurma.meta.ObjectID;
+import edu.stonybrook.kurma.server.KurmaServer;
+
+/**
+ * A load test of a running KurmaServer: an increasing number of clients, each with its own
+ * connection and session, call getattrs in a closed loop. Reports ops/sec and latency percentiles
+ * of each client count, so that the "threadpool" and "selector" server modes can be compared.
+ */
+public class ThriftServerLoadBench {
+  private static final String VOLUME = "thrift-load-bench";
+
+  private static TTransport openTransport(String host, int port, boolean framed)
+      throws Exception {
+    TTransport transport = new TSocket(host, port);
+    if (framed) {
+      transport = new TFramedTransport(transport);
+    }
+    transport.open();
+    return transport;
+  }
+
+  private static ObjectID getImplicitRootOid() {
+    return ObjectIdHelper.newDirectoryOid(Int128Helper.newId(0, 0), (short) 0);
+  }
+
+  /**
+   * Run a client in a closed loop until the deadline.
+   *
+   * @return latencies in milliseconds of all calls
+   */
+  private static double[] runClient(String host, int port, boolean framed, int id,
+      CountDownLatch ready, long durationMs) throws Exception {
+    TTransport transport = openTransport(host, port, framed);
+    try {
+      KurmaService.Client client = new KurmaService.Client(new TBinaryProtocol(transport));
+      ByteBuffer clientId = ByteBuffer.wrap(String.format("load-bench-%d", id).getBytes());
+      KurmaResult kr = client.create_session(clientId, VOLUME);
+      ByteBuffer sessionId = kr.sessionid;
+      String name = String.format("load-bench-file-%d", id);
+      kr = client.lookup(sessionId, getImplicitRootOid(), name);
+      if (!StatusHelper.isOk(kr.getStatus())) {
+        kr = client.create(sessionId, getImplicitRootOid(), name,
+            AttributesHelper.newFileAttributes());
+      }
+      ObjectID oid = kr.getOid();
+
+      ready.countDown();
+      ready.await();
+      List<Double> latencies = new ArrayList<>();
+      long deadline = System.currentTimeMillis() + durationMs;
+      while (System.currentTimeMillis() < deadline) {
+        long start = System.nanoTime();
+        kr = client.getattrs(sessionId, oid);
+        latencies.add((System.nanoTime() - start) / 1000000.0);
+        if (!StatusHelper.isOk(kr.getStatus())) {
+          throw new IllegalStateException("getattrs failed: " + kr.getStatus());
+        }
+      }
+      double[] res = new double[latencies.size()];
+      for (int i = 0; i < res.length; ++i) {
+        res[i] = latencies.get(i);
+      }
+      return res;
+    } finally {
+      transport.close();
+    }
+  }
+
+  @SuppressWarnings("static-access")
+  public static void main(String[] args) throws Exception {
+    CommandLineParser parser = new PosixParser();
+
+    Options options = new Options();
+    options.addOption("h", "help", false, "print this help message");
+    options.addOption("f", "framed", false, "use framed transport (for the selector mode)");
+    options.addOption(OptionBuilder.withLongOpt("host").withDescription("server host").hasArg()
+        .withArgName("HOST").create('a'));
+    options.addOption(OptionBuilder.withLongOpt("port").withDescription("server port").hasArg()
+        .withArgName("PORT").create('p'));
+    options.addOption(OptionBuilder.withLongOpt("seconds")
+        .withDescription("seconds to run each client count").hasArg().withArgName("SECONDS")
+        .create('t'));
+    options.addOption(OptionBuilder.withLongOpt("clients").withValueSeparator(',')
+        .withDescription("comma-separated client counts").hasArgs().withArgName("COUNTS")
+        .create('c'));
+
+    HelpFormatter formatter = new HelpFormatter();
+    CommandLine cmd = null;
+    try {
+      cmd = parser.parse(options, args);
+    } catch (ParseException e) {
+      e.printStackTrace(System.err);
+      formatter.printHelp("ThriftServerLoadBench", options);
+      System.exit(1);
+    }
+    if (cmd.hasOption('h')) {
+      formatter.printHelp("ThriftServerLoadBench", options);
+      System.exit(0);
+    }
+
+    final String host = cmd.getOptionValue('a', "localhost");
+    final int port =
+        Integer.parseInt(cmd.getOptionValue('p', String.valueOf(KurmaServer.SERVER_PORT)));
+    final boolean framed = cmd.hasOption('f');
+    final long durationMs = Long.parseLong(cmd.getOptionValue('t', "10")) * 1000;
+    int[] clientCounts = new int[] {1, 4, 16, 64, 256};
+    if (cmd.hasOption('c')) {
+      String[] counts = cmd.getOptionValues('c');
+      clientCounts = new int[counts.length];
+      for (int i = 0; i < counts.length; ++i) {
+        clientCounts[i] = Integer.parseInt(counts[i]);
+      }
+    }
+
+    TTransport transport = openTransport(host, port, framed);
+    KurmaService.Client admin = new KurmaService.Client(new TBinaryProtocol(transport));
+    // fails harmlessly if the volume exists
+    admin.format_volume(VOLUME, VolumeFormatFlags.CREATE.getValue());
+    transport.close();
+
+    System.out.printf("Benchmark getattrs of %s:%d with %s transport\n", host, port,
+        framed ? "framed" : "buffered");
+    System.out.printf(BenchmarkUtils.getContextString());
+    System.out.println("clients\tops/sec\tp50\tp90\tp99\tmax");
+    for (final int nclients : clientCounts) {
+      ExecutorService executor = Executors.newFixedThreadPool(nclients);
+      final CountDownLatch ready = new CountDownLatch(nclients);
+      List<Future<double[]>> futures = new ArrayList<>(nclients);
+      for (int i = 0; i < nclients; ++i) {
+        final int id = i;
+        futures.add(executor.submit(new Callable<double[]>() {
+          @Override
+          public double[] call() throws Exception {
+            return runClient(host, port, framed, id, ready, durationMs);
+          }
+        }));
+      }
+      double[] all = new double[0];
+      for (Future<double[]> f : futures) {
+        double[] latencies = f.get();
+        int n = all.length;
+        all = Arrays.copyOf(all, n + latencies.length);
+        System.arraycopy(latencies, 0, all, n, latencies.length);
+      }
+      executor.shutdown();
+
+      Arrays.sort(all);
+      Percentile percentile = new Percentile();
+      System.out.printf("%d\t%.1f\t%.2f\t%.2f\t%.2f\t%.2f\n", nclients,
+          all.length * 1000.0 / durationMs, percentile.evaluate(all, 50),
+          percentile.evaluate(all, 90), percentile.evaluate(all, 99),
+          all.length == 0 ? 0 : all[all.length - 1]);
+    }
+  }
+}
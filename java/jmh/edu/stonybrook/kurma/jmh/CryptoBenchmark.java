@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.jmh;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stonybrook.kurma.helpers.GatewayHelper;
+import edu.stonybrook.kurma.helpers.Int128Helper;
+import edu.stonybrook.kurma.helpers.ObjectIdHelper;
+import edu.stonybrook.kurma.server.BlockKeyGenerator;
+import edu.stonybrook.kurma.util.EncryptThenAuthenticate;
+import edu.stonybrook.kurma.util.RandomBuffer;
+
+/**
+ * Per-block crypto of the gateway: block key derivation and encrypt-then-authenticate of block
+ * data with its additional data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CryptoBenchmark {
+  static final int RANDOM_SEED = 8839;
+  static final int AD_LENGTH = 64;
+
+  @Param({"65536", "1048576"})
+  int blockSize;
+
+  short gateway;
+  long offset = 0;
+  BlockKeyGenerator keyGenerator;
+  EncryptThenAuthenticate aeCipher;
+  byte[] iv;
+  ByteBuffer plain;
+  ByteBuffer ad;
+  ByteBuffer cipherText;
+  ByteBuffer decrypted;
+  ByteBuffer decryptedAd;
+
+  @Setup
+  public void setUp() throws Exception {
+    RandomBuffer rand = new RandomBuffer(RANDOM_SEED);
+    gateway = GatewayHelper.valueOf("ny");
+    keyGenerator = new BlockKeyGenerator(
+        ObjectIdHelper.newFileOid(Int128Helper.newId(12, 34), gateway), rand.genRandomBytes(16));
+    KeyGenerator kg = KeyGenerator.getInstance(EncryptThenAuthenticate.ENCRYPT_ALGORITHM);
+    kg.init(128);
+    aeCipher = new EncryptThenAuthenticate(kg.generateKey());
+    iv = rand.genRandomBytes(16);
+    plain = rand.genRandomBuffer(blockSize);
+    ad = rand.genRandomBuffer(AD_LENGTH);
+    cipherText = ByteBuffer.allocate(aeCipher.getEncryptOutputLength(blockSize + AD_LENGTH));
+    decrypted = ByteBuffer.allocate(blockSize);
+    decryptedAd = ByteBuffer.allocate(AD_LENGTH);
+    encrypt();
+  }
+
+  @Benchmark
+  public byte[] blockKey() {
+    offset += blockSize;
+    return keyGenerator.getBlockKey(offset, 1, gateway);
+  }
+
+  @Benchmark
+  public ByteBuffer encrypt() throws Exception {
+    cipherText.clear();
+    aeCipher.authenticatedEncrypt(plain.duplicate(), ad.duplicate(), iv, cipherText);
+    cipherText.flip();
+    return cipherText;
+  }
+
+  @Benchmark
+  public ByteBuffer decrypt() throws Exception {
+    decrypted.clear();
+    decryptedAd.clear();
+    aeCipher.authenticatedDecrypt(cipherText.duplicate(), iv, decrypted, decryptedAd);
+    return decrypted;
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.jmh;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stonybrook.kurma.cloud.Kvs;
+import edu.stonybrook.kurma.cloud.KvsFacade;
+import edu.stonybrook.kurma.cloud.drivers.TransientKvs;
+import edu.stonybrook.kurma.config.GatewayConfig;
+import edu.stonybrook.kurma.config.IGatewayConfig;
+import edu.stonybrook.kurma.gc.DefaultCollector;
+import edu.stonybrook.kurma.helpers.AttributesHelper;
+import edu.stonybrook.kurma.helpers.VolumeInfoHelper;
+import edu.stonybrook.kurma.replicator.ConflictResolver;
+import edu.stonybrook.kurma.server.FileHandler;
+import edu.stonybrook.kurma.server.KurmaHandler;
+import edu.stonybrook.kurma.server.VolumeHandler;
+import edu.stonybrook.kurma.util.RandomBuffer;
+
+/**
+ * Block-aligned reads and writes of a file whose blocks are kept in TransientKvs, so that the
+ * gateway-side costs (locking, metadata, encryption, and erasure coding) dominate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FileHandlerBenchmark {
+  static final int RANDOM_SEED = 8839;
+  static final int FILE_BLOCKS = 64;
+
+  @Param({"r-1", "e-2-1"})
+  String kvsType;
+
+  @Param({"65536", "1048576"})
+  int ioSize;
+
+  TestingServer server;
+  CuratorFramework client;
+  FileHandler fh;
+  byte[] data;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    server = new TestingServer();
+    server.start();
+    client = CuratorFrameworkFactory.newClient(
+        String.format("localhost:%d", server.getPort()), new ExponentialBackoffRetry(1000, 3));
+    client.start();
+
+    String[] parts = kvsType.split("-");
+    int n = parts.length == 2 ? Integer.parseInt(parts[1])
+        : Integer.parseInt(parts[1]) + Integer.parseInt(parts[2]);
+    List<Kvs> kvsList = new ArrayList<>();
+    for (int i = 0; i < n; ++i) {
+      kvsList.add(new TransientKvs("jmh" + i));
+    }
+    KvsFacade facade = KvsFacade.newFacade(kvsType, kvsList, Integer.MAX_VALUE);
+    IGatewayConfig config = new GatewayConfig(GatewayConfig.KURMA_TEST_CONFIG_FILE) {
+      @Override
+      public KvsFacade getDefaultKvsFacade() {
+        return facade;
+      }
+    };
+
+    KurmaHandler kh = new KurmaHandler(client, new DefaultCollector(client, config), config,
+        new ConflictResolver(config));
+    VolumeHandler vh = kh.createVolume(VolumeInfoHelper.newVolumeInfo("FileHandlerBenchmark"));
+    fh = vh.getRootDirectory().createChildFile("jmh", AttributesHelper.newFileAttributes());
+    data = new RandomBuffer(RANDOM_SEED).genRandomBytes(ioSize);
+    for (int i = 0; i < FILE_BLOCKS; ++i) {
+      fh.write((long) i * ioSize, ByteBuffer.wrap(data));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    client.close();
+    server.close();
+  }
+
+  private long randomOffset() {
+    return (long) ThreadLocalRandom.current().nextInt(FILE_BLOCKS) * ioSize;
+  }
+
+  @Benchmark
+  public ByteBuffer read() {
+    return fh.read(randomOffset(), ioSize).getKey();
+  }
+
+  @Benchmark
+  public boolean write() {
+    return fh.write(randomOffset(), ByteBuffer.wrap(data));
+  }
+}
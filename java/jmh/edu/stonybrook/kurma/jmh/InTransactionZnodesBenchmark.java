@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.jmh;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stonybrook.kurma.transaction.InTransactionZnodes;
+
+/**
+ * Concurrent reads and writes of the in-transaction znodes that ZkClient consults on every read,
+ * comparing the ConcurrentHashMap overlay with the former monitor-guarded HashMap and HashSet.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(8)
+public class InTransactionZnodesBenchmark {
+  static final int ZNODES = 4096;
+
+  @Param({"0", "20"})
+  int writePercent;
+
+  String[] zpaths;
+  byte[] data = new byte[256];
+  InTransactionZnodes overlay;
+  MonitorZnodes monitor;
+
+  /**
+   * The synchronized design InTransactionZnodes had before.
+   */
+  static class MonitorZnodes {
+    private HashMap<String, byte[]> znodes = new HashMap<>();
+    private HashSet<String> deleted = new HashSet<>();
+
+    synchronized byte[] put(String zpath, byte[] data) {
+      deleted.remove(zpath);
+      return znodes.put(zpath, data);
+    }
+
+    synchronized byte[] get(String zpath) {
+      return deleted.contains(zpath) ? null : znodes.get(zpath);
+    }
+
+    synchronized byte[] delete(String zpath) {
+      deleted.add(zpath);
+      return znodes.remove(zpath);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Ops {
+    Random random = new Random();
+    int index;
+    int action; // 0: read, 1: put, 2: delete
+
+    void next(int writePercent) {
+      index = random.nextInt(ZNODES);
+      int r = random.nextInt(100);
+      action = r >= writePercent ? 0 : (r % 4 == 0 ? 2 : 1);
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    zpaths = new String[ZNODES];
+    overlay = new InTransactionZnodes();
+    monitor = new MonitorZnodes();
+    for (int i = 0; i < ZNODES; ++i) {
+      zpaths[i] = String.format("/volume/objects/%08x", i);
+      overlay.put(zpaths[i], data);
+      monitor.put(zpaths[i], data);
+    }
+  }
+
+  @Benchmark
+  public byte[] concurrentOverlay(Ops ops) {
+    ops.next(writePercent);
+    String zpath = zpaths[ops.index];
+    switch (ops.action) {
+      case 1:
+        return overlay.put(zpath, data, ops);
+      case 2:
+        return overlay.delete(zpath, ops);
+      default:
+        return overlay.get(zpath);
+    }
+  }
+
+  @Benchmark
+  public byte[] monitorOverlay(Ops ops) {
+    ops.next(writePercent);
+    String zpath = zpaths[ops.index];
+    switch (ops.action) {
+      case 1:
+        return monitor.put(zpath, data);
+      case 2:
+        return monitor.delete(zpath);
+      default:
+        return monitor.get(zpath);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.jmh;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stonybrook.kurma.cloud.Kvs;
+import edu.stonybrook.kurma.cloud.KvsFacade;
+import edu.stonybrook.kurma.cloud.drivers.TransientKvs;
+import edu.stonybrook.kurma.server.BlockWriter;
+import edu.stonybrook.kurma.util.RandomBuffer;
+
+/**
+ * Put and get of every KvsFacade type over in-memory TransientKvs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class KvsFacadeBenchmark {
+  static final int RANDOM_SEED = 8839;
+  static final String KEY = "KvsFacadeBenchmark";
+
+  @Param({"r-1", "r-3", "e-2-1", "e-4-2", "s-4-1-2"})
+  String kvsType;
+
+  @Param({"65536", "1048576"})
+  int valueSize;
+
+  KvsFacade facade;
+  ByteBuffer value;
+
+  static int getKvsCount(String kvsType) {
+    String[] parts = kvsType.split("-");
+    if ("e".equals(parts[0])) {
+      return Integer.parseInt(parts[1]) + Integer.parseInt(parts[2]);
+    }
+    return Integer.parseInt(parts[1]);
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    List<Kvs> kvsList = new ArrayList<>();
+    for (int i = 0; i < getKvsCount(kvsType); ++i) {
+      kvsList.add(new TransientKvs("jmh" + i));
+    }
+    facade = KvsFacade.newFacade(kvsType, kvsList, Integer.MAX_VALUE);
+    value = BlockWriter.allocateCipherBuffer(facade, valueSize);
+    value.put(new RandomBuffer(RANDOM_SEED).genRandomBytes(valueSize));
+    value.flip();
+    facade.put(KEY, value.duplicate());
+  }
+
+  @Benchmark
+  public boolean put() throws Exception {
+    return facade.put(KEY, value.duplicate());
+  }
+
+  @Benchmark
+  public int get() throws Exception {
+    ByteBuffer v = facade.get(KEY, null);
+    int size = v.remaining();
+    KvsFacade.getBufferPool().release(v);
+    return size;
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.jmh;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stonybrook.kurma.helpers.BlockMapWrapper;
+import edu.stonybrook.kurma.helpers.DirectoryHelper;
+import edu.stonybrook.kurma.helpers.Int128Helper;
+import edu.stonybrook.kurma.helpers.ObjectIdHelper;
+import edu.stonybrook.kurma.meta.Directory;
+import edu.stonybrook.kurma.util.MetadataCodec;
+
+/**
+ * Compression of compact-encoded metadata by each MetadataCodec. "unpooled" is the deflate path
+ * used before the codecs, which creates a Deflater and grows a ByteArrayOutputStream per call.
+ * Run with "-prof gc" to compare allocation rates as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MetadataCodecBenchmark {
+  @Param({"LEGACY", "DEFLATE", "LZ4", "RAW"})
+  String codec;
+
+  // a small directory, and BlockMaps of 1024 and 65536 blocks
+  @Param({"dir", "1024", "65536"})
+  String object;
+
+  MetadataCodec metadataCodec;
+  byte[] raw;
+  byte[] encoded;
+
+  @Setup
+  public void setUp() throws TException {
+    TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
+    metadataCodec = MetadataCodec.valueOf(codec);
+    if (object.equals("dir")) {
+      short gwid = 1;
+      Directory dir = new Directory();
+      dir.setOid(ObjectIdHelper.newDirectoryOid(Int128Helper.newId(1, 1), gwid));
+      for (int i = 0; i < 16; ++i) {
+        dir.addToEntries(DirectoryHelper.newDirEntry(
+            ObjectIdHelper.newFileOid(Int128Helper.newId(2, i), gwid), "file" + i));
+      }
+      raw = serializer.serialize(dir);
+    } else {
+      int blocks = Integer.parseInt(object);
+      BlockMapWrapper bm = new BlockMapWrapper("/jmh", 0);
+      for (int i = 0; i < blocks; ++i) {
+        bm.addBlock(i % 16 == 0 ? i + 7 : 1, (short) 1);
+      }
+      raw = serializer.serialize(bm.toBlockMap());
+    }
+    encoded = MetadataCodec.encode(metadataCodec, raw, raw.length);
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    return MetadataCodec.encode(metadataCodec, raw, raw.length);
+  }
+
+  @Benchmark
+  public byte[] decode() throws Exception {
+    return MetadataCodec.decode(encoded);
+  }
+
+  @Benchmark
+  public byte[] unpooled() {
+    Deflater dfl = new Deflater(Deflater.BEST_SPEED, true);
+    dfl.setInput(raw);
+    dfl.finish();
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    byte[] tmp = new byte[4 * 1024];
+    while (!dfl.finished()) {
+      baos.write(tmp, 0, dfl.deflate(tmp));
+    }
+    dfl.end();
+    return baos.toByteArray();
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stonybrook.kurma.util.RangeLock;
+import edu.stonybrook.kurma.util.StripedRangeLock;
+
+/**
+ * Concurrent lock/unlock of random block ranges of a file, using either the monitor-guarded
+ * RangeLock or the StripedRangeLock that FileHandler uses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(4)
+public class RangeLockBenchmark {
+  static final int BLOCK_SHIFT = 16;
+  static final int FILE_BLOCKS = 1024;
+  static final int MAX_RANGE_BLOCKS = 16;
+
+  @Param({"0", "10"})
+  int writePercent;
+
+  RangeLock monitorLock;
+  StripedRangeLock stripedLock;
+
+  @State(Scope.Thread)
+  public static class Ranges {
+    Random random = new Random();
+    long begin;
+    long end;
+    boolean forRead;
+
+    void next(int writePercent) {
+      begin = (long) random.nextInt(FILE_BLOCKS) << BLOCK_SHIFT;
+      end = begin + ((long) (1 + random.nextInt(MAX_RANGE_BLOCKS)) << BLOCK_SHIFT);
+      forRead = random.nextInt(100) >= writePercent;
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    monitorLock = new RangeLock();
+    stripedLock = new StripedRangeLock(BLOCK_SHIFT, 64);
+  }
+
+  @Benchmark
+  public long monitorRangeLock(Ranges r) throws InterruptedException {
+    r.next(writePercent);
+    synchronized (monitorLock) {
+      while (!(r.forRead ? monitorLock.lockRead(r.begin, r.end)
+          : monitorLock.lockWrite(r.begin, r.end))) {
+        monitorLock.wait();
+      }
+    }
+    long sum = r.begin + r.end;
+    synchronized (monitorLock) {
+      if (r.forRead) {
+        monitorLock.unlockRead(r.begin, r.end);
+      } else {
+        monitorLock.unlockWrite(r.begin, r.end);
+      }
+      monitorLock.notifyAll();
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public long stripedRangeLock(Ranges r) {
+    r.next(writePercent);
+    if (r.forRead) {
+      stripedLock.lockRead(r.begin, r.end);
+    } else {
+      stripedLock.lockWrite(r.begin, r.end);
+    }
+    long sum = r.begin + r.end;
+    if (r.forRead) {
+      stripedLock.unlockRead(r.begin, r.end);
+    } else {
+      stripedLock.unlockWrite(r.begin, r.end);
+    }
+    return sum;
+  }
+}
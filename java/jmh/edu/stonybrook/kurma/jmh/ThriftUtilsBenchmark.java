@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stonybrook.kurma.helpers.BlockMapWrapper;
+import edu.stonybrook.kurma.meta.BlockMap;
+import edu.stonybrook.kurma.util.ThriftUtils;
+
+/**
+ * Encoding and decoding of BlockMaps, the largest metadata objects saved in ZooKeeper.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ThriftUtilsBenchmark {
+  @Param({"false", "true"})
+  boolean compress;
+
+  @Param({"1024", "65536"})
+  int blocks;
+
+  BlockMap blockMap;
+  byte[] encoded;
+
+  @Setup
+  public void setUp() {
+    BlockMapWrapper bm = new BlockMapWrapper("/jmh", 0);
+    for (int i = 0; i < blocks; ++i) {
+      // mostly sequential versions with a few rewritten blocks
+      bm.addBlock(i % 16 == 0 ? i + 7 : 1, (short) 1);
+    }
+    blockMap = bm.toBlockMap();
+    encoded = ThriftUtils.encode(blockMap, compress);
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    return ThriftUtils.encode(blockMap, compress);
+  }
+
+  @Benchmark
+  public BlockMap decode() throws Exception {
+    BlockMap decoded = new BlockMap();
+    ThriftUtils.decode(encoded, decoded, compress);
+    return decoded;
+  }
+}
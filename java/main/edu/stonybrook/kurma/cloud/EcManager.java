@@ -39,12 +39,21 @@ public class EcManager {
   private static final Logger logger = LoggerFactory.getLogger(EcManager.class);
 
   private static String EC_LIB_NAME = "Jerasure.jni";
-  private static int PACKET_SIZE = 8; // 256 B minimum encoded block size
-  private static int WORD_SIZE = 8;
+  static final int PACKET_SIZE = 8; // 256 B minimum encoded block size
+  static final int WORD_SIZE = 8;
+
+  private static boolean libraryLoaded = false;
 
   static {
-    System.loadLibrary(EC_LIB_NAME);
-    logger.debug("Correctly loaded libJerasure.jni");
+    loadLibrary();
+  }
+
+  static synchronized void loadLibrary() {
+    if (!libraryLoaded) {
+      System.loadLibrary(EC_LIB_NAME);
+      libraryLoaded = true;
+      logger.debug("Correctly loaded libJerasure.jni");
+    }
   }
 
   public EcManager() {}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.cloud;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Preconditions;
+
+import edu.stonybrook.kurma.KurmaException.ErasureException;
+import eu.vandertil.jerasure.jni.Jerasure;
+import eu.vandertil.jerasure.jni.ReedSolomon;
+
+/**
+ * Allocation-light Reed-Solomon encoder/decoder of a fixed (k, m).
+ *
+ * Chunks are laid out exactly as EcManager does, so the two are interchangeable on the clouds.
+ * Unlike EcManager, coding matrices are computed once per (k, m), the input is copied straight into
+ * the chunks without padding streams, and chunk arrays are recycled through a pool.
+ *
+ * Chunks returned by {@link #encode(ByteBuffer)} or {@link #allocateChunk(int)} are owned by the
+ * caller until they are given back with {@link #release(byte[][])} or passed to
+ * {@link #decode(byte[][], int)}. Never release a chunk that may still be in use (e.g., by an
+ * upload that timed out).
+ */
+public class ErasureCodec {
+  /**
+   * Max number of free chunks pooled for each chunk size.
+   */
+  static final int MAX_POOLED_CHUNKS = 256;
+
+  private static final ConcurrentMap<Long, int[]> MATRICES = new ConcurrentHashMap<>();
+
+  private static final ConcurrentMap<Integer, ChunkPool> POOLS = new ConcurrentHashMap<>();
+
+  static {
+    EcManager.loadLibrary();
+  }
+
+  private final int k;
+  private final int m;
+  private final int[] matrix;
+
+  private static final class ChunkPool {
+    private final Queue<byte[]> chunks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    byte[] poll() {
+      byte[] chunk = chunks.poll();
+      if (chunk != null) {
+        size.decrementAndGet();
+      }
+      return chunk;
+    }
+
+    void offer(byte[] chunk) {
+      if (size.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+        chunks.offer(chunk);
+      } else {
+        size.decrementAndGet();
+      }
+    }
+  }
+
+  public ErasureCodec(int k, int m) {
+    Preconditions.checkArgument(k > 0 && m >= 0);
+    this.k = k;
+    this.m = m;
+    this.matrix = MATRICES.computeIfAbsent(((long) k << 32) | m,
+        km -> ReedSolomon.reed_sol_vandermonde_coding_matrix(k, m, EcManager.WORD_SIZE));
+  }
+
+  public int getK() {
+    return k;
+  }
+
+  public int getM() {
+    return m;
+  }
+
+  /**
+   * Same as EcManager.getBlockSize() but without the padding loop.
+   */
+  public int getChunkSize(int originalSize) {
+    int alignment = k * EcManager.WORD_SIZE * EcManager.PACKET_SIZE * 4;
+    return (originalSize + alignment - 1) / alignment * alignment / k;
+  }
+
+  /**
+   * Get a chunk of the given size from the pool. The content of the chunk is undefined.
+   */
+  public byte[] allocateChunk(int chunkSize) {
+    ChunkPool pool = POOLS.get(chunkSize);
+    byte[] chunk = pool == null ? null : pool.poll();
+    return chunk == null ? new byte[chunkSize] : chunk;
+  }
+
+  /**
+   * Give chunks back to the pool; null chunks are ignored.
+   */
+  public void release(byte[][] chunks) {
+    for (byte[] chunk : chunks) {
+      if (chunk != null) {
+        POOLS.computeIfAbsent(chunk.length, len -> new ChunkPool()).offer(chunk);
+      }
+    }
+  }
+
+  /**
+   * Encode the remaining bytes of data into k data chunks followed by m coding chunks. The position
+   * of data is not changed.
+   */
+  public byte[][] encode(ByteBuffer data) {
+    int size = data.remaining();
+    int chunkSize = getChunkSize(size);
+    byte[][] dataChunks = new byte[k][];
+    byte[][] codingChunks = new byte[m][];
+    ByteBuffer src = data.duplicate();
+    for (int i = 0; i < k; ++i) {
+      byte[] chunk = allocateChunk(chunkSize);
+      int len = Math.min(chunkSize, src.remaining());
+      src.get(chunk, 0, len);
+      if (len < chunkSize) {
+        // zero padding
+        Arrays.fill(chunk, len, chunkSize, (byte) 0);
+      }
+      dataChunks[i] = chunk;
+    }
+    for (int i = 0; i < m; ++i) {
+      codingChunks[i] = allocateChunk(chunkSize);
+    }
+    Jerasure.jerasure_matrix_encode(k, m, EcManager.WORD_SIZE, matrix, dataChunks, codingChunks,
+        chunkSize);
+
+    byte[][] chunks = new byte[k + m][];
+    System.arraycopy(dataChunks, 0, chunks, 0, k);
+    System.arraycopy(codingChunks, 0, chunks, k, m);
+    return chunks;
+  }
+
+  /**
+   * Decode the original data from at least k available chunks. All chunks are released to the pool
+   * on return, whether the decoding succeeds or not.
+   *
+   * @param chunks k data chunks followed by m coding chunks; null for missing chunks
+   * @param originalSize size of the original data
+   * @return the decoded data in a buffer allocated from the pool of KvsFacade
+   */
+  public ByteBuffer decode(byte[][] chunks, int originalSize) throws ErasureException {
+    Preconditions.checkArgument(chunks.length == k + m);
+    int chunkSize = getChunkSize(originalSize);
+    byte[][] dataChunks = new byte[k][];
+    byte[][] codingChunks = new byte[m][];
+    int[] erasures = new int[k + m + 1];
+    int erased = 0;
+    boolean dataErased = false;
+    try {
+      for (int i = 0; i < k + m; ++i) {
+        byte[] chunk = chunks[i];
+        if (chunk == null) {
+          erasures[erased++] = i;
+          dataErased |= i < k;
+          chunk = allocateChunk(chunkSize);
+          chunks[i] = chunk;
+        } else if (chunk.length != chunkSize) {
+          throw new ErasureException(String.format("chunk-%d has %d bytes but %d is expected", i,
+              chunk.length, chunkSize));
+        }
+        if (i < k) {
+          dataChunks[i] = chunk;
+        } else {
+          codingChunks[i - k] = chunk;
+        }
+      }
+      erasures[erased] = -1;
+      if (erased > m) {
+        throw new ErasureException(
+            String.format("%d chunks missing; at most %d allowed", erased, m));
+      }
+      // missing coding chunks do not matter
+      if (dataErased && !Jerasure.jerasure_matrix_decode(k, m, EcManager.WORD_SIZE, matrix, true,
+          erasures, dataChunks, codingChunks, chunkSize)) {
+        throw new ErasureException("Error while decoding");
+      }
+
+      ByteBuffer out = KvsFacade.getBufferPool().allocate(originalSize);
+      for (int i = 0; i < k && out.hasRemaining(); ++i) {
+        out.put(dataChunks[i], 0, Math.min(chunkSize, out.remaining()));
+      }
+      out.flip();
+      return out;
+    } finally {
+      release(chunks);
+    }
+  }
+}
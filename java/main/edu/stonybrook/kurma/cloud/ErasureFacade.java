@@ -17,9 +17,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.AbstractMap;
-import java.util.BitSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 
 import org.slf4j.Logger;
@@ -44,21 +52,29 @@ import edu.stonybrook.kurma.util.ByteBufferSource;
 public class ErasureFacade extends KvsFacade {
   private static final Logger LOGGER = LoggerFactory.getLogger(ErasureFacade.class);
   /* erasure coding */
-  private EcManager ec;
+  private ErasureCodec codec;
   private int n;
   private int k;
   private int m;
   private List<Kvs> kvsList;
   private KvsSorter kvsSorter;
 
+  /**
+   * A read is hedged to one more provider if no chunk arrives within this percentile of the recent
+   * read latencies of the slowest provider being waited on.
+   */
+  static final double HEDGE_LATENCY_PERCENTILE = 95;
+  static final long MIN_HEDGE_DELAY_MS = 50;
+
   public ErasureFacade(int k, int m, List<Kvs> kvsList, int sortPeriod) {
-    ec = new EcManager();
     this.k = k;
     this.m = m;
     this.n = m + k;
     this.kvsList = kvsList;
     if (k <= 0) {
       LOGGER.error("Wrong value for k (<=0), disabling erasure coding.");
+    } else {
+      codec = new ErasureCodec(k, m);
     }
     this.kvsSorter = new KvsSorter(kvsList, k, sortPeriod);
   }
@@ -73,7 +89,7 @@ public class ErasureFacade extends KvsFacade {
     assert (value.hasArray());
 
     int valueSize = value.remaining();
-    byte[][] dataBlocks = ec.encode(value, k, m);
+    byte[][] dataBlocks = codec.encode(value);
     assert (n == dataBlocks.length);
     ByteSource[] dataSources = new ByteSource[n];
     int[] sizes = new int[n];
@@ -83,19 +99,22 @@ public class ErasureFacade extends KvsFacade {
       dataSources[i] = bs;
       sizes[i] = (int) bs.size();
     }
-    return put(kvsList, key, dataSources, sizes) >= k;
+    int written = put(kvsList, key, dataSources, sizes);
+    if (written == n) {
+      // Chunks of timed-out uploads may still be read by their workers, so they are not recycled.
+      codec.release(dataBlocks);
+    }
+    return written >= k;
   }
 
+  /**
+   * Read a size-prefixed chunk into a pooled chunk array.
+   */
   private Entry<Integer, byte[]> getBlock(InputStream stream) throws IOException {
-    byte[] sizeBuf = new byte[4];
-    int ret = ByteStreams.read(stream, sizeBuf, 0, 4);
-    assert (ret == 4);
-    int size = ByteBuffer.wrap(sizeBuf).getInt();
-    int chunkLen = EcManager.getBlockSize(size, k);
-    ByteBuffer data = KvsFacade.readValue(stream, chunkLen);
-    assert (data.hasArray());
-    assert (chunkLen == data.array().length);
-    return new AbstractMap.SimpleEntry<Integer, byte[]>(size, data.array());
+    int size = ByteBufferSource.readPrefix(stream);
+    byte[] chunk = codec.allocateChunk(codec.getChunkSize(size));
+    ByteStreams.readFully(stream, chunk);
+    return new AbstractMap.SimpleEntry<Integer, byte[]>(size, chunk);
   }
 
   private ByteBuffer pessimisticGet(String key, BiFunction<String, ByteBuffer, Boolean> validator)
@@ -113,46 +132,37 @@ public class ErasureFacade extends KvsFacade {
       return null;
     }
 
-    byte[][] dataBlocks = new byte[k][];
-    byte[][] codingBlocks = new byte[m][];
-    int originalSize = 0;
-
-    int[] erased = new int[m + 1];
-    int idxEr = 0;
-
-    for (int j = 0; j < k + m; j++) {
-      if (values[j] == null) {
-        erased[idxEr++] = j; // invalid
-        continue;
-      }
-      Entry<Integer, byte[]> entry = getBlock(values[j]);
-      if (originalSize == 0) {
-        originalSize = entry.getKey();
-      } else {
-        assert (originalSize == entry.getKey());
-      }
-      if (j < k) {
-        dataBlocks[j] = entry.getValue();
-      } else {
-        codingBlocks[j - k] = entry.getValue();
-      }
-    }
+    return decode(key, values, validator);
+  }
 
-    // Last index should have '-1' as its value to denote end of erasure
-    erased[idxEr] = -1;
-    int chunkLen = EcManager.getBlockSize(originalSize, k);
-    for (int i = 0; i < idxEr; ++i) {
-      int j = erased[i];
-      if (j < k) {
-        dataBlocks[j] = new byte[chunkLen];
-      } else {
-        codingBlocks[j - k] = new byte[chunkLen];
+  /**
+   * Decode the value from the chunks that are available.
+   *
+   * @param values chunk streams indexed by block index; null for missing chunks. At least k of them
+   *        should be non-null. All of them are closed on return.
+   */
+  private ByteBuffer decode(String key, InputStream[] values,
+      BiFunction<String, ByteBuffer, Boolean> validator) throws IOException {
+    byte[][] chunks = new byte[n][];
+    boolean decoding = false;
+    try {
+      int originalSize = -1;
+      for (int j = 0; j < n; j++) {
+        if (values[j] == null) {
+          continue;
+        }
+        Entry<Integer, byte[]> entry = getBlock(values[j]);
+        if (originalSize < 0) {
+          originalSize = entry.getKey();
+        } else {
+          assert (originalSize == entry.getKey());
+        }
+        chunks[j] = entry.getValue();
       }
-    }
 
-    try {
-      ByteBuffer buf = ec.decode(dataBlocks, codingBlocks, erased, k, m, originalSize);
-      if (buf != null && validator != null) {
+      decoding = true;
+      ByteBuffer buf = codec.decode(chunks, originalSize);
+      if (validator != null) {
         buf.mark();
         if (validator.apply(key, buf)) {
           buf.reset();
@@ -164,6 +174,9 @@ public class ErasureFacade extends KvsFacade {
       e.printStackTrace();
       throw new RuntimeException("unknown HybrisException", e);
     } finally {
+      if (!decoding) {
+        codec.release(chunks);
+      }
       for (InputStream is : values) {
         if (is != null) {
           is.close();
@@ -172,89 +185,111 @@ public class ErasureFacade extends KvsFacade {
     }
   }
 
-  @Override
-  public ByteBuffer get(String key, BiFunction<String, ByteBuffer, Boolean> validator)
-      throws IOException {
-    Entry<List<Kvs>, int[]> kvsAndErasures = kvsSorter.getKvsListAndErasures();
-    InputStream[] values = null;
-    try {
-      Entry<Integer, InputStream[]> res = get(kvsAndErasures.getKey(), key, k);
-      if (res == null) {
-        LOGGER.warn("failed to read key {}", key);
-        return null;
-      }
-      if (res.getKey() < k) {
-        return pessimisticGet(key, validator);
-      }
-      values = res.getValue();
-    } catch (Exception e) {
-      LOGGER.error(String.format("unexpected excpetion when reading key '%s'", key), e);
-      return null;
+  /**
+   * Get the expected time to wait for a read from any of the given providers before hedging it.
+   */
+  static long getHedgeDelayMs(Collection<Kvs> waiting) {
+    long latency = 0;
+    for (Kvs kvs : waiting) {
+      latency = Math.max(latency, kvs.getReadStats().getPercentile(HEDGE_LATENCY_PERCENTILE));
     }
+    return Math.max(MIN_HEDGE_DELAY_MS, latency);
+  }
 
-    int[] blockIndices = kvsAndErasures.getValue();
-    byte[][] dataBlocks = new byte[k][];
-    byte[][] codingBlocks = new byte[m][];
-    int originalSize = 0;
-
-    BitSet blocks = new BitSet(k + m);
-    assert (k == blockIndices.length);
-    assert (k == values.length);
-    for (int i = 0; i < values.length; ++i) {
-      Entry<Integer, byte[]> entry = getBlock(values[i]);
-      if (originalSize == 0) {
-        originalSize = entry.getKey();
-      } else {
-        assert (originalSize == entry.getKey());
-      }
-
-      int bi = blockIndices[i];
-      if (bi < k) {
-        dataBlocks[bi] = entry.getValue();
-      } else {
-        codingBlocks[bi - k] = entry.getValue();
-      }
-
-      if (!blocks.get(bi)) {
-        blocks.set(bi);
-      } else {
-        assert (!blocks.get(bi));
+  /**
+   * Read chunks from the k fastest providers, and hedge the read to the next fastest provider
+   * whenever a provider fails or no chunk arrives within the hedge delay. Reading stops as soon as
+   * k chunks arrive; the stragglers are cancelled.
+   *
+   * @return chunk streams indexed by block index with exactly k non-null streams, or null if fewer
+   *         than k chunks can be read.
+   */
+  private InputStream[] hedgedGet(String key) {
+    List<Kvs> candidates = new ArrayList<>(n);
+    for (Kvs kvs : kvsSorter.getKvsListAndErasures().getKey()) {
+      if (kvs != null && !kvs.getId().startsWith(KvsManager.FAIL_PREFIX)) {
+        candidates.add(kvs);
       }
     }
+    if (candidates.size() < k) {
+      return null;
+    }
 
-    int[] erased = new int[m + 1];
-    int j = 0;
-    int chunkLen = EcManager.getBlockSize(originalSize, k);
-    for (int i = 0; i < k + m; ++i) {
-      if (!blocks.get(i)) {
-        erased[j++] = i;
-        if (i < k) {
-          dataBlocks[i] = new byte[chunkLen];
-        } else {
-          codingBlocks[i - k] = new byte[chunkLen];
-        }
-      }
+    InputStream[] values = new InputStream[n];
+    int received = 0;
+    int next = 0;
+    CompletionService<Entry<Kvs, InputStream>> compServ =
+        new ExecutorCompletionService<Entry<Kvs, InputStream>>(executor);
+    Map<Future<Entry<Kvs, InputStream>>, Kvs> inflight = new HashMap<>();
+    Map<Kvs, Long> startTimes = new HashMap<>();
+    for (; next < k; ++next) {
+      Kvs kvs = candidates.get(next);
+      startTimes.put(kvs, System.nanoTime());
+      inflight.put(compServ.submit(new KvsGetWorker(kvs, key)), kvs);
     }
-    assert (j == m);
-    erased[m] = -1;
 
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(Kvs.ReadTimeOutSeconds);
     try {
-      ByteBuffer buf = ec.decode(dataBlocks, codingBlocks, erased, k, m, originalSize);
-      if (buf != null && validator != null) {
-        buf.mark();
-        if (validator.apply(key, buf)) {
-          buf.reset();
-          return buf;
+      while (received < k && !inflight.isEmpty()) {
+        long now = System.nanoTime();
+        if (now >= deadline) {
+          LOGGER.warn("retriving of key {} timed out", key);
+          break;
+        }
+        boolean canHedge = next < candidates.size();
+        long waitNs = deadline - now;
+        if (canHedge) {
+          long hedgeNs = TimeUnit.MILLISECONDS.toNanos(getHedgeDelayMs(inflight.values()));
+          waitNs = Math.min(waitNs, hedgeNs);
+        }
+        Future<Entry<Kvs, InputStream>> future = compServ.poll(waitNs, TimeUnit.NANOSECONDS);
+        if (future == null) {
+          if (canHedge) {
+            Kvs kvs = candidates.get(next++);
+            LOGGER.debug("hedging read of {} to {}", key, kvs);
+            startTimes.put(kvs, System.nanoTime());
+            inflight.put(compServ.submit(new KvsGetWorker(kvs, key)), kvs);
+          }
+          continue;
+        }
+        Kvs kvs = inflight.remove(future);
+        Entry<Kvs, InputStream> chunk = future.get();
+        if (chunk == null) {
+          // The failure has been logged by the worker; replace the failed provider right away.
+          if (canHedge) {
+            Kvs hedge = candidates.get(next++);
+            startTimes.put(hedge, System.nanoTime());
+            inflight.put(compServ.submit(new KvsGetWorker(hedge, key)), hedge);
+          }
+          continue;
         }
+        // The read is logged once the chunk stream is read to the end or closed.
+        values[kvsList.indexOf(kvs)] = chunk.getValue();
+        ++received;
       }
-      return buf;
-    } catch (ErasureException e) {
-      e.printStackTrace();
-      throw new RuntimeException("unknown HybrisException", e);
+    } catch (InterruptedException | ExecutionException e) {
+      LOGGER.error(String.format("failed to get key-value pair from clouds for key %s", key), e);
     } finally {
-      for (InputStream is : values)
-        is.close();
+      cancelStragglers(inflight, startTimes);
+    }
+
+    if (received < k) {
+      for (InputStream is : values) {
+        closeQuietly(is);
+      }
+      return null;
+    }
+    return values;
+  }
+
+  @Override
+  public ByteBuffer get(String key, BiFunction<String, ByteBuffer, Boolean> validator)
+      throws IOException {
+    InputStream[] values = hedgedGet(key);
+    if (values == null) {
+      return pessimisticGet(key, validator);
     }
+    return decode(key, values, validator);
   }
 
   @Override
@@ -21,6 +21,7 @@ import java.util.List;
 
 import edu.stonybrook.kurma.util.SynchronizedMovingAverage;
 import edu.stonybrook.kurma.util.TimeWindowSum;
+import edu.stonybrook.kurma.util.TransferStats;
 
 /**
  * Abstract base implementation of key-value store.
@@ -39,6 +40,8 @@ public abstract class Kvs implements KvInterface {
   /* measures to compare the providers */
   protected SynchronizedMovingAverage writeLatency;
   protected SynchronizedMovingAverage readLatency;
+  protected TransferStats writeStats;
+  protected TransferStats readStats;
   protected int cost; // $ cents per GB
 
   public static final int ReadTimeOutSeconds = 60;
@@ -81,6 +84,8 @@ public abstract class Kvs implements KvInterface {
 
     this.readLatency = new SynchronizedMovingAverage();
     this.writeLatency = new SynchronizedMovingAverage();
+    this.readStats = new TransferStats();
+    this.writeStats = new TransferStats();
     this.failures = new TimeWindowSum();
   }
 
@@ -117,9 +122,41 @@ public abstract class Kvs implements KvInterface {
     return failures.get();
   }
 
+  public TransferStats getReadStats() {
+    return readStats;
+  }
+
+  public TransferStats getWriteStats() {
+    return writeStats;
+  }
+
+  /**
+   * @return predicted time in milliseconds of reading the given number of bytes.
+   */
+  public double predictReadTime(long bytes) {
+    return readStats.predict(bytes);
+  }
+
+  /**
+   * @return predicted time in milliseconds of writing the given number of bytes.
+   */
+  public double predictWriteTime(long bytes) {
+    return writeStats.predict(bytes);
+  }
+
+  /**
+   * @return the last time (in milliseconds since epoch) a read or write to this provider
+   *         succeeded; 0 if none has.
+   */
+  public long getLastActiveTime() {
+    return Math.max(readStats.getLastActiveTime(), writeStats.getLastActiveTime());
+  }
+
   public long logFailure() {
     readLatency.add(ReadTimeOutSeconds * 1000);
     writeLatency.add(WriteTimeOutSeconds * 1000);
+    readStats.recordFailure(ReadTimeOutSeconds * 1000);
+    writeStats.recordFailure(WriteTimeOutSeconds * 1000);
     return failures.increment();
   }
 
@@ -135,6 +172,30 @@ public abstract class Kvs implements KvInterface {
     writeLatency.add(ms);
   }
 
+  /**
+   * Log a read abandoned after the given time, e.g., a straggler of a hedged read, as a slow one.
+   */
+  public void logAbandonedRead(long ms) {
+    readLatency.add(ms);
+    readStats.recordFailure(ms);
+  }
+
+  /**
+   * Log a successful read of the given number of bytes that took the given time.
+   */
+  public void logRead(long bytes, long ms) {
+    readLatency.add(ms);
+    readStats.record(bytes, ms);
+  }
+
+  /**
+   * Log a successful write of the given number of bytes that took the given time.
+   */
+  public void logWrite(long bytes, long ms) {
+    writeLatency.add(ms);
+    writeStats.record(bytes, ms);
+  }
+
   public void shutdown() throws IOException {};
 
   @Override
@@ -161,7 +222,8 @@ public abstract class Kvs implements KvInterface {
 
   public String toVerboseString() {
     return "Kvs (" + this.id + ") [enabled=" + this.enabled + ", writeLatency=" + this.writeLatency
-        + ", readLatency=" + this.readLatency + ", cost=" + this.cost + "]";
+        + ", readLatency=" + this.readLatency + ", writes={" + this.writeStats + "}, reads={"
+        + this.readStats + "}, cost=" + this.cost + "]";
   }
 
   /**
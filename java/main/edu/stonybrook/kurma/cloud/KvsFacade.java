@@ -20,7 +20,9 @@ import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
@@ -40,6 +42,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
 
+import edu.stonybrook.kurma.util.BufferPool;
 import edu.stonybrook.kurma.util.ByteBufferBackedInputStream;
 import edu.stonybrook.kurma.util.ByteBufferOutputStream;
 
@@ -51,6 +54,14 @@ public abstract class KvsFacade {
 
   public static final int RETRIES = 3;
 
+  public static final long DEFAULT_BUFFER_POOL_SIZE = 64L << 20;
+
+  /**
+   * Pool of the value buffers returned by get(). Callers may release a value back to the pool once
+   * they are done with it.
+   */
+  private static volatile BufferPool bufferPool = new BufferPool(DEFAULT_BUFFER_POOL_SIZE);
+
   /**
    * Put a key-value pair into the KvsFacade
    *
@@ -61,6 +72,14 @@ public abstract class KvsFacade {
    */
   public abstract boolean put(String key, ByteBuffer value) throws IOException;
 
+  public static BufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  public static void setBufferPool(BufferPool pool) {
+    bufferPool = pool;
+  }
+
   public static void shutdownWorkers() {
     executor.shutdown();
   }
@@ -70,7 +89,8 @@ public abstract class KvsFacade {
    *
    * @param key Key of the block data
    * @param validator A function that validates whether the key-value block is valid.
-   * @return The value associated with the key.
+   * @return The value associated with the key. The value may be allocated from the buffer pool,
+   *         and the caller can release it with {@link #getBufferPool()} once it is done with it.
    * @throws IOException
    */
   public abstract ByteBuffer get(String key, BiFunction<String, ByteBuffer, Boolean> validator)
@@ -204,6 +224,51 @@ public abstract class KvsFacade {
     return bytes;
   }
 
+  /**
+   * Cancel the reads that are still in flight, and penalize their providers by the time they have
+   * kept us waiting. Value streams of reads that completed before they could be cancelled are
+   * closed.
+   *
+   * @param inflight the pending reads and the providers they read from
+   * @param startTimes the time, in nanoseconds, when the read of each provider was started
+   */
+  protected static void cancelStragglers(Map<Future<Entry<Kvs, InputStream>>, Kvs> inflight,
+      Map<Kvs, Long> startTimes) {
+    long now = System.nanoTime();
+    for (Entry<Future<Entry<Kvs, InputStream>>, Kvs> e : inflight.entrySet()) {
+      Kvs kvs = e.getValue();
+      kvs.logAbandonedRead(TimeUnit.NANOSECONDS.toMillis(now - startTimes.get(kvs)));
+      if (!e.getKey().cancel(true)) {
+        closeQuietly(e.getKey());
+      }
+    }
+    inflight.clear();
+  }
+
+  protected static void closeQuietly(InputStream is) {
+    if (is != null) {
+      try {
+        is.close();
+      } catch (IOException e) {
+        LOGGER.warn("failed to close value stream", e);
+      }
+    }
+  }
+
+  /**
+   * Close the value stream of a straggler that completed before it could be cancelled.
+   */
+  private static void closeQuietly(Future<Entry<Kvs, InputStream>> future) {
+    try {
+      Entry<Kvs, InputStream> value = future.get();
+      if (value != null) {
+        closeQuietly(value.getValue());
+      }
+    } catch (InterruptedException | ExecutionException | CancellationException e) {
+      // ignore
+    }
+  }
+
   /**
    * Write the given values to a list of cloud providers.
    *
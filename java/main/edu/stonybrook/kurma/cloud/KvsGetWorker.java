@@ -15,7 +15,11 @@
  */
 package edu.stonybrook.kurma.cloud;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
 import java.util.AbstractMap;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
@@ -26,6 +30,9 @@ import org.slf4j.LoggerFactory;
 /**
  * Worker thread class in charge of asynchronously performing read operations on cloud stores.
  *
+ * The value is not buffered: the returned stream logs the time and size of the read to the store
+ * once it is read to the end or closed, as a passive measure of its latency and bandwidth.
+ *
  * @author p.viotti
  */
 public class KvsGetWorker implements Callable<Entry<Kvs, InputStream>> {
@@ -42,14 +49,103 @@ public class KvsGetWorker implements Callable<Entry<Kvs, InputStream>> {
   @Override
   public Entry<Kvs, InputStream> call() {
     try {
+      long start = System.currentTimeMillis();
       InputStream result = kvStore.get(key);
       if (result == null)
         throw new Exception();
-      return new AbstractMap.SimpleEntry<Kvs, InputStream>(kvStore, result);
+      return new AbstractMap.SimpleEntry<Kvs, InputStream>(kvStore,
+          new LoggedInputStream(result, kvStore, start));
     } catch (Exception e) {
+      if (isInterrupted(e)) {
+        // cancelled by a hedged read; the caller accounts for the time spent
+        LOGGER.debug("reading {} from {} is cancelled", key, kvStore);
+        return null;
+      }
       kvStore.logFailure();
       LOGGER.error("failed to read {} from {}: {}", key, kvStore, e.getMessage());
       return null;
     }
   }
+
+  /**
+   * A stream that logs the read to the store once it reaches the end or is closed. Streams closed
+   * without being read, such as those of abandoned hedged reads, are not logged.
+   */
+  private static final class LoggedInputStream extends FilterInputStream {
+    private final Kvs kvs;
+    private final long start;
+    private long bytes = 0;
+    private boolean logged = false;
+
+    LoggedInputStream(InputStream in, Kvs kvs, long start) {
+      super(in);
+      this.kvs = kvs;
+      this.start = start;
+    }
+
+    private void logRead() {
+      if (!logged) {
+        logged = true;
+        kvs.logRead(bytes, System.currentTimeMillis() - start);
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b < 0) {
+        logRead();
+      } else {
+        ++bytes;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n < 0) {
+        logRead();
+      } else {
+        bytes += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      bytes += skipped;
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (bytes > 0) {
+          logRead();
+        }
+      }
+    }
+  }
+
+  private static boolean isInterrupted(Throwable e) {
+    if (Thread.currentThread().isInterrupted()) {
+      return true;
+    }
+    for (; e != null; e = e.getCause()) {
+      if (e instanceof InterruptedException || e instanceof InterruptedIOException
+          || e instanceof ClosedByInterruptException) {
+        return true;
+      }
+    }
+    return false;
+  }
 }
@@ -20,7 +20,6 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.LongSummaryStatistics;
 import java.util.Random;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -186,8 +185,13 @@ public class KvsManager {
               continue;
             }
 
+            // Latencies are measured passively from real traffic; only probe idle providers.
+            long idleSince = System.currentTimeMillis() - kvsSortPeriodSec * 1000L;
             List<FutureTask<Object>> futureLst = new ArrayList<FutureTask<Object>>(kvsLst.size());
             for (Kvs kvStore : kvsLst) {
+              if (kvStore.getLastActiveTime() > idleSince) {
+                continue;
+              }
               FutureTask<Object> f =
                   new FutureTask<Object>(new LatencyTester(kvStore, latencyTestDataSize), null);
               futureLst.add(f);
@@ -242,13 +246,12 @@ public class KvsManager {
   }
 
   /**
-   * Worker thread class in charge of testing read and write latencies of a KvStore.
+   * Worker thread class in charge of probing read and write latencies of an idle KvStore.
    *
    * @author p.viotti
    */
   public class LatencyTester implements Runnable {
-    private static final String TEST_KEY = "latency_test-";
-    private static final int TEST_ITERATIONS = 3;
+    private static final String TEST_KEY = "latency_test";
     private final Kvs kvStore;
     private int size;
 
@@ -260,24 +263,15 @@ public class KvsManager {
     @Override
     public void run() {
       byte[] testData = new byte[size];
-      long start, end = 0;
-      Random random = new Random();
+      new Random().nextBytes(testData);
+      long start;
 
       // Write
       try {
-        LongSummaryStatistics stat = new LongSummaryStatistics();
-        for (int i = 0; i < TEST_ITERATIONS; ++i) {
-          String testKey = TEST_KEY + i;
-          start = System.currentTimeMillis();
-          random.nextBytes(testData);
-          KvsFacade.putValue(kvStore, testKey, ByteBuffer.wrap(testData));
-          end = System.currentTimeMillis();
-          stat.accept(end - start);
-          // this.kvStore.logWriteLatency(end - start);
-        }
-        this.kvStore.logWriteLatency((long) stat.getAverage());
-        LOGGER.info("log write latency {} of {}, result: {}", stat.getAverage(), kvStore.getId(),
-            kvStore.getWriteLatency());
+        start = System.currentTimeMillis();
+        KvsFacade.putValue(kvStore, TEST_KEY, ByteBuffer.wrap(testData));
+        this.kvStore.logWrite(size, System.currentTimeMillis() - start);
+        LOGGER.info("probed write of {}: {}", kvStore.getId(), kvStore.getWriteStats());
       } catch (Exception e) {
         this.kvStore.logFailure();
         if (e instanceof AuthorizationException) {
@@ -287,35 +281,19 @@ public class KvsManager {
       }
 
       // Read
-      byte[] retrieved = null;
       try {
-        LongSummaryStatistics stat = new LongSummaryStatistics();
-        for (int i = 0; i < TEST_ITERATIONS; ++i) {
-          String testKey = TEST_KEY + i;
-          start = System.currentTimeMillis();
-          retrieved = KvsFacade.getValue(kvStore, testKey).array();
-          if (retrieved == null) {
-            --i;
-            continue;
-          }
-          end = System.currentTimeMillis();
-          stat.accept(end - start);
-          // this.kvStore.logReadLatency(end - start);
+        start = System.currentTimeMillis();
+        ByteBuffer retrieved = KvsFacade.getValue(kvStore, TEST_KEY);
+        if (retrieved == null) {
+          throw new IOException("probe value not found");
         }
-        this.kvStore.logReadLatency((long) stat.getAverage());
-        LOGGER.info("log read latency {} of {}, result: {}", stat.getAverage(), kvStore.getId(),
-            kvStore.getReadLatency());
+        this.kvStore.logRead(size, System.currentTimeMillis() - start);
+        LOGGER.info("probed read of {}: {}", kvStore.getId(), kvStore.getReadStats());
       } catch (Exception e) {
         this.kvStore.logFailure();
         if (e instanceof AuthorizationException)
           this.kvStore.setEnabled(false);
       }
-
-      // Clean up
-      /*
-       * try { for (int i = 0; i < TEST_ITERATIONS; ++i) { String testKey = TEST_KEY + i;
-       * this.kvStore.delete(testKey); } } catch (IOException e) { }
-       */
     }
   }
 
@@ -44,7 +44,9 @@ public class KvsPutWorker implements Callable<Kvs> {
     InputStream vs = null;
     try {
       vs = value.openStream();
+      long start = System.currentTimeMillis();
       kvStore.put(key, vs, size);
+      kvStore.logWrite(size, System.currentTimeMillis() - start);
       return kvStore;
     } catch (Exception e) {
       LOGGER.warn("KvsPutWorker failed", e);
@@ -13,13 +13,19 @@ package edu.stonybrook.kurma.cloud;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Ranks providers by the predicted time of reading a value of the typical size, which is estimated
+ * passively from the real traffic to each provider. The ranking is refreshed every refreshSeconds.
+ */
 public class KvsSorter {
   private static final Logger LOGGER = LoggerFactory.getLogger(KvsSorter.class);
 
@@ -27,41 +33,100 @@ public class KvsSorter {
   private final List<Kvs> originalKvsList;
   private final int refreshSeconds;
 
-  private long lastUpdateTime;
-  private AtomicReference<Entry<List<Kvs>, int[]>> kvsListAndErasures;
+  private final long createTime;
+  private final Entry<List<Kvs>, int[]> originalKvsListAndErasures;
+  private volatile Ranking ranking = null;
 
   public static int kvsSortPeriodSec = 5;
 
+  private static final class Ranking {
+    private final long time;
+    private final Entry<List<Kvs>, int[]> kvsListAndErasures;
+
+    Ranking(long time, Entry<List<Kvs>, int[]> kvsListAndErasures) {
+      this.time = time;
+      this.kvsListAndErasures = kvsListAndErasures;
+    }
+  }
+
   public KvsSorter(final List<Kvs> kvsList, int k, int refreshSeconds) {
     this.originalKvsList = kvsList;
     this.k = k;
     this.refreshSeconds = refreshSeconds;
-    this.lastUpdateTime = System.currentTimeMillis();
+    this.createTime = System.currentTimeMillis();
     int[] erasures = new int[k];
     for (int i = 0; i < k; ++i) {
       erasures[i] = i;
     }
-    kvsListAndErasures = new AtomicReference<>(new AbstractMap.SimpleEntry<>(kvsList, erasures));
+    originalKvsListAndErasures = new AbstractMap.SimpleEntry<>(kvsList, erasures);
   }
 
+  /**
+   * @return the mean size of recent reads from the providers, or 0 if there is none.
+   */
+  long getTypicalReadSize() {
+    double total = 0;
+    int n = 0;
+    for (Kvs kvs : originalKvsList) {
+      if (kvs != null && kvs.getReadStats().getCount() > 0) {
+        total += kvs.getReadStats().getMeanBytes();
+        ++n;
+      }
+    }
+    return n == 0 ? 0 : (long) (total / n);
+  }
+
+  /**
+   * Rank providers for reading a value of the typical size.
+   *
+   * @return a pair of providers sorted by predicted read time, and the indices of the fastest k
+   *         providers in the original list.
+   */
   public Entry<List<Kvs>, int[]> getKvsListAndErasures() {
-    LOGGER.info("KvsSorted Used");
     long now = System.currentTimeMillis();
-    if (now - lastUpdateTime <= refreshSeconds * 1000L) {
-      return kvsListAndErasures.get();
+    if (now - createTime <= refreshSeconds * 1000L) {
+      return originalKvsListAndErasures;
+    }
+    Ranking last = ranking;
+    if (last != null && now - last.time <= refreshSeconds * 1000L) {
+      return last.kvsListAndErasures;
     }
+    Entry<List<Kvs>, int[]> kvsListAndErasures = rank(getTypicalReadSize());
+    ranking = new Ranking(now, kvsListAndErasures);
+    return kvsListAndErasures;
+  }
+
+  /**
+   * Rank providers for reading a value of the given size.
+   */
+  Entry<List<Kvs>, int[]> rank(long size) {
     int[] erasures = new int[k];
     List<Kvs> sortedKvsList = new ArrayList<Kvs>(originalKvsList);
-    Collections.sort(sortedKvsList, Kvs.COMPARATOR_BY_READS);
-    LOGGER.info("kvs sorted {}", sortedKvsList);
+    // Snapshot the predictions because they keep changing with ongoing traffic.
+    Map<Kvs, Double> predictions = new HashMap<>();
+    List<Double> known = new ArrayList<>();
+    for (Kvs kvs : originalKvsList) {
+      if (!kvs.isEnabled()) {
+        predictions.put(kvs, Double.MAX_VALUE);
+      } else if (kvs.getReadStats().getCount() > 0) {
+        double prediction = kvs.predictReadTime(size);
+        predictions.put(kvs, prediction);
+        known.add(prediction);
+      }
+    }
+    // A provider without any read is predicted to be as fast as the median provider, instead of
+    // being ranked first.
+    Collections.sort(known);
+    double median = known.isEmpty() ? 0 : known.get(known.size() / 2);
+    for (Kvs kvs : originalKvsList) {
+      predictions.putIfAbsent(kvs, median);
+    }
+    Collections.sort(sortedKvsList, Comparator.comparing(predictions::get));
+    LOGGER.info("kvs sorted for {}-byte reads: {}", size, sortedKvsList);
     for (int i = 0; i < k; ++i) {
       erasures[i] = originalKvsList.indexOf(sortedKvsList.get(i));
     }
-    Entry<List<Kvs>, int[]> newKvsListAndErasures =
-        new AbstractMap.SimpleEntry<>(sortedKvsList, erasures);
-    kvsListAndErasures.set(newKvsListAndErasures);
-    lastUpdateTime = now;
-    return newKvsListAndErasures;
+    return new AbstractMap.SimpleEntry<>(sortedKvsList, erasures);
   }
 
 }
@@ -16,9 +16,16 @@ package edu.stonybrook.kurma.cloud;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 
 import org.slf4j.Logger;
@@ -34,6 +41,13 @@ public class ReplicationFacade extends KvsFacade {
   private List<Kvs> kvsList;
   private KvsSorter kvsSorter;
 
+  /**
+   * A read is hedged to the next replica if the last replica being read has not responded within
+   * this percentile of its recent read latencies.
+   */
+  static final double HEDGE_LATENCY_PERCENTILE = 95;
+  static final long MIN_HEDGE_DELAY_MS = 50;
+
   public ReplicationFacade(List<Kvs> list, int sortPeriod) {
     kvsList = list;
     kvsSorter = new KvsSorter(kvsList, list.size(), sortPeriod);
@@ -59,34 +73,95 @@ public class ReplicationFacade extends KvsFacade {
     return result > 0;
   }
 
+  /**
+   * Get the time to wait for a read from the given provider before hedging it.
+   */
+  static long getHedgeDelayMs(Kvs kvs) {
+    return Math.max(MIN_HEDGE_DELAY_MS,
+        kvs.getReadStats().getPercentile(HEDGE_LATENCY_PERCENTILE));
+  }
+
+  /**
+   * Read the value from the fastest replica, and speculatively read it from the next fastest
+   * replica whenever a replica fails, returns an invalid value, or does not respond within its
+   * hedge delay. The first valid value wins; the stragglers are then cancelled and their providers
+   * penalized by the time they have kept us waiting.
+   */
   @Override
   public ByteBuffer get(String key, BiFunction<String, ByteBuffer, Boolean> validator)
       throws IOException {
     LOGGER.debug("retriving key {} {}", Hashing.murmur3_32().hashBytes(key.getBytes()),
         key.hashCode());
-    ByteBuffer data = null;
-    List<Kvs> sortedKvsList = kvsSorter.getKvsListAndErasures().getKey();
-    Entry<Integer, InputStream[]> res = null;
-    for (int i = 0; i < sortedKvsList.size(); ++i) {
-      res = get(Arrays.asList(sortedKvsList.get(i)), key, 1);
-      if (res == null || res.getValue() == null || res.getValue()[0] == null) {
-        continue;  // retry
-      }
-      data = ByteBufferSource.readPrefixedBuffer(res.getValue()[0]);
-      if (data == null) {
-        continue;
+    List<Kvs> candidates = new ArrayList<>(kvsList.size());
+    for (Kvs kvs : kvsSorter.getKvsListAndErasures().getKey()) {
+      if (kvs != null && !kvs.getId().startsWith(KvsManager.FAIL_PREFIX)) {
+        candidates.add(kvs);
       }
-      for (InputStream ins : res.getValue()) {
-        ins.close();
-      }
-      data.mark();
-      if (validator == null || validator.apply(key, data)) {
-        data.reset();
-        break;
-      } else {
-        LOGGER.debug("failed to verify block {} from cloud {}", key, sortedKvsList.get(i));
-        res = null;
+    }
+
+    ByteBuffer data = null;
+    int next = 0;
+    long hedgeTime = 0;
+    CompletionService<Entry<Kvs, InputStream>> compServ =
+        new ExecutorCompletionService<Entry<Kvs, InputStream>>(executor);
+    Map<Future<Entry<Kvs, InputStream>>, Kvs> inflight = new HashMap<>();
+    Map<Kvs, Long> startTimes = new HashMap<>();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(Kvs.ReadTimeOutSeconds);
+    try {
+      while (data == null && (next < candidates.size() || !inflight.isEmpty())) {
+        long now = System.nanoTime();
+        if (now >= deadline) {
+          LOGGER.warn("retriving of key {} timed out", key);
+          break;
+        }
+        boolean canHedge = next < candidates.size();
+        if (canHedge && (inflight.isEmpty() || now >= hedgeTime)) {
+          Kvs kvs = candidates.get(next++);
+          if (!inflight.isEmpty()) {
+            LOGGER.debug("hedging read of {} to {}", key, kvs);
+          }
+          hedgeTime = now + TimeUnit.MILLISECONDS.toNanos(getHedgeDelayMs(kvs));
+          startTimes.put(kvs, now);
+          inflight.put(compServ.submit(new KvsGetWorker(kvs, key)), kvs);
+          continue;
+        }
+        long waitNs = (canHedge ? Math.min(deadline, hedgeTime) : deadline) - now;
+        Future<Entry<Kvs, InputStream>> future = compServ.poll(waitNs, TimeUnit.NANOSECONDS);
+        if (future == null) {
+          continue;
+        }
+        Kvs kvs = inflight.remove(future);
+        Entry<Kvs, InputStream> res = future.get();
+        if (res == null) {
+          // The failure has been logged by the worker; replace the failed replica right away.
+          hedgeTime = now;
+          continue;
+        }
+        try {
+          data = ByteBufferSource.readPrefixedBuffer(res.getValue(), getBufferPool());
+        } catch (IOException e) {
+          LOGGER.warn(String.format("failed to read block %s from cloud %s", key, kvs), e);
+        } finally {
+          res.getValue().close();
+        }
+        if (data == null) {
+          hedgeTime = now;
+          continue;
+        }
+        data.mark();
+        if (validator == null || validator.apply(key, data)) {
+          data.reset();
+        } else {
+          LOGGER.debug("failed to verify block {} from cloud {}", key, kvs);
+          getBufferPool().release(data);
+          data = null;
+          hedgeTime = now;
+        }
       }
+    } catch (InterruptedException | ExecutionException e) {
+      LOGGER.error(String.format("failed to get key-value pair from clouds for key %s", key), e);
+    } finally {
+      cancelStragglers(inflight, startTimes);
     }
     return data;
   }
@@ -297,6 +297,47 @@ public class GatewayConfig implements IGatewayConfig {
     return config.getInt("kurma.volume.negative.cache.size", 1024);
   }
 
+  @Override
+  public int getDentryCacheSize() {
+    return config.getInt("kurma.volume.dentry.cache.size", 65536);
+  }
+
+  @Override
+  public long getBlockCacheSize() {
+    return config.getLong("kurma.block.cache.size.mb", 64) << 20;
+  }
+
+  @Override
+  public int getReadAheadMaxBlocks() {
+    return config.getInt("kurma.readahead.max.blocks", 8);
+  }
+
+  @Override
+  public long getWriteBackBufferSize() {
+    return config.getLong("kurma.writeback.buffer.size.mb", 0) << 20;
+  }
+
+  @Override
+  public long getBlockMapCacheSize() {
+    return config.getLong("kurma.blockmap.cache.size", 8 * 65536);
+  }
+
+  @Override
+  public int getDirectoryShardThreshold() {
+    return config.getInt("kurma.directory.shard.threshold", 4096);
+  }
+
+  @Override
+  public int getDirectoryShards() {
+    return config.getInt("kurma.directory.shards", 64);
+  }
+
+  @Override
+  public long getBufferPoolSize() {
+    return config.getLong("kurma.buffer.pool.size.mb", KvsFacade.DEFAULT_BUFFER_POOL_SIZE >> 20)
+        << 20;
+  }
+
   @Override
   public String getJournalDirectory() {
     return config.getString("kurma.gateway.journal.dir", "/tmp/Journals/");
@@ -312,6 +353,21 @@ public class GatewayConfig implements IGatewayConfig {
     return config.getInt("kurma.gateway.transaction.commit.count", 50);
   }
 
+  @Override
+  public long getTransactionCommitBytes() {
+    return config.getLong("kurma.gateway.transaction.commit.bytes", 512 * 1024);
+  }
+
+  @Override
+  public long getTransactionCommitDelayUs() {
+    return config.getLong("kurma.gateway.transaction.commit.delay.us", 500);
+  }
+
+  @Override
+  public int getTransactionCommitters() {
+    return config.getInt("kurma.gateway.transaction.commit.committers", 4);
+  }
+
   @Override
   public int getTransactionCommitInterval() {
     return config.getInt("kurma.gateway.transaction.commit.interval", 1);
@@ -375,6 +431,16 @@ public class GatewayConfig implements IGatewayConfig {
     return config.getInt("kurma.request.timeout.seconds", 120);
   }
 
+  @Override
+  public String getServerMode() {
+    return config.getString("kurma.server.mode", "threadpool");
+  }
+
+  @Override
+  public int getSelectorThreads() {
+    return config.getInt("kurma.server.selector.threads", 2);
+  }
+
   @Override
   public int getKvsSortPeriod() {
     return this.kvsSortPeriodSec;
@@ -390,6 +456,16 @@ public class GatewayConfig implements IGatewayConfig {
     return config.getInt("kurma.replication.threads", 8);
   }
 
+  @Override
+  public int getReplicationBatchDelay() {
+    return config.getInt("kurma.replication.batch.delay.ms", 0);
+  }
+
+  @Override
+  public int getReplicationBatchSize() {
+    return config.getInt("kurma.replication.batch.size", 4096);
+  }
+
   @Override
   public boolean useKeyMap() {
     return config.getBoolean("kurma.replication.use.keymap", true);
@@ -400,6 +476,16 @@ public class GatewayConfig implements IGatewayConfig {
     return config.getBoolean("kurma.metadata.compress", true);
   }
 
+  @Override
+  public String getMetadataCodec() {
+    return config.getString("kurma.metadata.codec", "legacy");
+  }
+
+  @Override
+  public int getMetadataRawThreshold() {
+    return config.getInt("kurma.metadata.codec.raw.threshold", 64);
+  }
+
   @Override
   public String getTimeStatsFile() {
     return config.getString("kurma.stats.time.file", "/tmp/kurma-time-stats.txt");
@@ -38,14 +38,82 @@ public interface IGatewayConfig {
 
   public int getNegativeCacheSize();
 
+  /**
+   * Get the max number of (directory, name) to DirEntry mappings cached per volume for path walks.
+   */
+  public int getDentryCacheSize();
+
+  /**
+   * Get the max number of bytes of decrypted block data to be cached per volume.
+   *
+   * @return size of the block cache in bytes; zero disables the cache.
+   */
+  public long getBlockCacheSize();
+
+  /**
+   * Get the max number of blocks to read ahead of a sequential reader. Prefetched blocks are
+   * staged in the block cache.
+   *
+   * @return max read-ahead window in blocks; zero disables read-ahead.
+   */
+  public int getReadAheadMaxBlocks();
+
+  /**
+   * Get the max number of bytes of written blocks that can be staged in the local write-back
+   * journal while waiting to be uploaded to the clouds.
+   *
+   * @return size of the write-back buffer in bytes; zero disables write-back.
+   */
+  public long getWriteBackBufferSize();
+
+  /**
+   * Get the max number of block versions in the cached BlockMaps of each open file.
+   *
+   * @return total length of cached BlockMaps per file
+   */
+  public long getBlockMapCacheSize();
+
+  /**
+   * Get the max number of bytes of free block data buffers kept for reuse.
+   *
+   * @return size of the buffer pool in bytes; zero disables pooling.
+   */
+  public long getBufferPoolSize();
+
+  /**
+   * Get the number of entries above which a directory splits its entries into shards.
+   */
+  public int getDirectoryShardThreshold();
+
+  /**
+   * @return number of shards of a sharded directory.
+   */
+  public int getDirectoryShards();
+
   public KvsFacade getDefaultKvsFacade();
 
   public int getSessionTimeout();
 
+  /**
+   * Get the max number of threads that execute KurmaService calls. It is only enforced in the
+   * "selector" server mode, where the threads are not pinned to connections.
+   */
   public int getMaxServerThreads();
 
   public int getRequestTimeoutSeconds();
 
+  /**
+   * Get the Thrift server mode: "threadpool" runs a thread per connection over blocking sockets;
+   * "selector" multiplexes framed connections over a few selector threads and hands calls to a
+   * bounded pool of worker threads.
+   */
+  public String getServerMode();
+
+  /**
+   * @return number of selector threads in the "selector" server mode.
+   */
+  public int getSelectorThreads();
+
   public boolean getAutoSnapshotBeforeRestore();
 
   public boolean isFileHoleSupported();
@@ -58,6 +126,23 @@ public interface IGatewayConfig {
   
   public int getTransactionCommitCount();
 
+  /**
+   * Get the number of bytes of metadata that triggers a group commit. ZooKeeper rejects requests
+   * larger than its jute.maxbuffer (1MB by default).
+   */
+  public long getTransactionCommitBytes();
+
+  /**
+   * Get the max microseconds a metadata change waits to be committed into ZooKeeper while the
+   * commit pipeline is not full; zero means no limit other than the commit interval.
+   */
+  public long getTransactionCommitDelayUs();
+
+  /**
+   * Get the max number of transaction groups being committed into ZooKeeper concurrently.
+   */
+  public int getTransactionCommitters();
+
   /**
    * Get the shift of the block size. It can be zero, which means the block size is dynamically
    * determined.
@@ -84,9 +169,34 @@ public interface IGatewayConfig {
 
   public int getReplicationThreads();
 
+  /**
+   * Get the max milliseconds an outgoing gateway message waits for others to be published together
+   * in one batch. Zero, the default, disables batching, which must stay disabled till all gateways
+   * can decode batched messages.
+   */
+  public int getReplicationBatchDelay();
+
+  /**
+   * Get the cap of a batch of outgoing gateway messages, counting one for each message and one for
+   * each block version it carries.
+   */
+  public int getReplicationBatchSize();
+
   public boolean useKeyMap();
 
   public boolean compressMetadata();
 
+  /**
+   * Get the name of the MetadataCodec used to compress metadata: "legacy", "raw", "deflate", or
+   * "lz4". Gateways older than the codec tags can read only "legacy", which also keeps BlockMaps
+   * without run lengths whether or not metadata is compressed. Defaults to "legacy".
+   */
+  public String getMetadataCodec();
+
+  /**
+   * Get the size in bytes under which compressed metadata is saved uncompressed.
+   */
+  public int getMetadataRawThreshold();
+
   public String getTimeStatsFile();
 }
@@ -13,8 +13,6 @@ package edu.stonybrook.kurma.helpers;
 import java.util.AbstractMap;
 import java.util.Map.Entry;
 
-import edu.stonybrook.kurma.meta.BlockMap;
-
 public class BlockMapHelper {
 
   /**
@@ -25,16 +23,39 @@ public class BlockMapHelper {
    * @param gwid ID of the modifying gateway
    * @return the old entry
    */
-  public static Entry<Long, Short> incrementVersion(BlockMap blockMap, int i, short gwid) {
-    Entry<Long, Short> blockEntry = getBlockEntry(blockMap, i);
-    long v = blockEntry.getKey();
+  public static Entry<Long, Short> incrementVersion(BlockMapWrapper blockMap, int i, short gwid) {
+    return incrementVersions(blockMap, i, i + 1, gwid);
+  }
+
+  /**
+   * Increment version number of a range of blocks that have the same version and modifier (see
+   * BlockMapWrapper.getRunEnd), and change their modifier gateway.
+   *
+   * @param blockMap the BlockMap to be updated
+   * @param begin index of the first block
+   * @param end exclusive index of the last block
+   * @param gwid ID of the modifying gateway
+   * @return the old entry shared by the blocks
+   */
+  public static Entry<Long, Short> incrementVersions(BlockMapWrapper blockMap, int begin,
+      int end, short gwid) {
+    return incrementVersions(blockMap, begin, end, gwid, 0);
+  }
+
+  /**
+   * Same as above, but also set the write timestamp of the blocks.
+   *
+   * @param timestamp write timestamp of the new versions of the blocks
+   */
+  public static Entry<Long, Short> incrementVersions(BlockMapWrapper blockMap, int begin,
+      int end, short gwid, long timestamp) {
+    long v = blockMap.getVersion(begin);
+    short gw = blockMap.getModifier(begin);
     if (v < 0) {
       v ^= (1L << 63);
     }
-    final long nv = v + 1;
-    blockMap.versions.set(i, nv);
-    blockMap.last_modifier.set(i, gwid);
-    return new AbstractMap.SimpleEntry<Long, Short>(v, blockEntry.getValue());
+    blockMap.setBlocks(begin, end, v + 1, gwid, timestamp);
+    return new AbstractMap.SimpleEntry<Long, Short>(v, gw);
   }
 
   /**
@@ -46,11 +67,20 @@ public class BlockMapHelper {
    * @param newVersion new version of block
    * @return the old entry
    */
-  public static Entry<Long, Short> updateBlock(BlockMap blockMap, int i, short gwid,
-      Long newVersion) {
+  public static Entry<Long, Short> updateBlock(BlockMapWrapper blockMap, int i, short gwid,
+      long newVersion) {
+    return updateBlock(blockMap, i, gwid, newVersion, 0);
+  }
+
+  /**
+   * Same as above, but also set the write timestamp of the block.
+   *
+   * @param timestamp write timestamp of the new version, or zero if unknown
+   */
+  public static Entry<Long, Short> updateBlock(BlockMapWrapper blockMap, int i, short gwid,
+      long newVersion, long timestamp) {
     Entry<Long, Short> blockEntry = getBlockEntry(blockMap, i);
-    blockMap.versions.set(i, newVersion);
-    blockMap.last_modifier.set(i, gwid);
+    blockMap.setBlock(i, newVersion, gwid, timestamp);
     return blockEntry;
   }
 
@@ -61,9 +91,8 @@ public class BlockMapHelper {
    * @param i index of the interesting entry
    * @return block map entry
    */
-  public static Entry<Long, Short> getBlockEntry(BlockMap blockMap, int i) {
-    Long blockVersion = blockMap.versions.get(i);
-    Short blockModifier = blockMap.last_modifier.get(i);
-    return new AbstractMap.SimpleEntry<Long, Short>(blockVersion, blockModifier);
+  public static Entry<Long, Short> getBlockEntry(BlockMapWrapper blockMap, int i) {
+    return new AbstractMap.SimpleEntry<Long, Short>(blockMap.getVersion(i),
+        blockMap.getModifier(i));
   }
 }
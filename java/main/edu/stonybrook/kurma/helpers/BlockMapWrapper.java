@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.helpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+import edu.stonybrook.kurma.KurmaException.CuratorException;
+import edu.stonybrook.kurma.meta.BlockMap;
+import edu.stonybrook.kurma.transaction.ZkClient;
+import edu.stonybrook.kurma.util.MetadataCodec;
+import edu.stonybrook.kurma.util.ThriftUtils;
+
+/**
+ * A TWrapper of BlockMap that keeps block versions, last modifiers, and write timestamps as runs of
+ * consecutive blocks with the same (version, modifier, timestamp).
+ *
+ * Files are mostly written sequentially, so a large BlockMap usually has a handful of runs. A
+ * BlockMap fragmented into more than MAX_RUNS runs switches to primitive arrays of one entry per
+ * block, which bounds the cost of splitting runs. Either way the boxed thrift lists of BlockMap
+ * are built only when the BlockMap is encoded for Zookeeper, and are dropped right after the
+ * BlockMap is decoded; get() returns a BlockMap without the lists.
+ *
+ * A block's timestamp is the one saved in the additional data of the block in the clouds, so
+ * conflicts can be resolved without reading the block. All blocks of one write share the same
+ * timestamp. A zero timestamp means unknown, e.g., for blocks written by older gateways.
+ */
+public class BlockMapWrapper extends TWrapper<BlockMap> {
+  private static final int INITIAL_CAPACITY = 16;
+
+  public static final int MAX_RUNS = 1024;
+
+  // Run i covers blocks [runEnds[i - 1], runEnds[i]); null once fragmented.
+  private int[] runEnds;
+  private long[] runVersions;
+  private short[] runModifiers;
+  private long[] runTimestamps;
+  private int runs = 0;
+
+  // One entry per block; null unless fragmented.
+  private long[] versions;
+  private short[] modifiers;
+  private long[] timestamps;
+
+  private int size = 0;
+
+  /**
+   * Wrap an existing BlockMap znode, which should be loaded by read().
+   */
+  public BlockMapWrapper(String zpath) {
+    super(zpath, new BlockMap());
+    allocateRuns(0);
+  }
+
+  /**
+   * Wrap a new and empty BlockMap whose znode does not exist yet.
+   */
+  public BlockMapWrapper(String zpath, long offset) {
+    super(zpath, new BlockMap(), true, false);
+    get().setOffset(offset);
+    allocateRuns(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Wrap a copy of the given BlockMap, for example, one saved in a snapshot.
+   */
+  public BlockMapWrapper(String zpath, BlockMap bm) {
+    super(zpath, new BlockMap());
+    unpack(bm);
+  }
+
+  private void allocateRuns(int capacity) {
+    runEnds = new int[capacity];
+    runVersions = new long[capacity];
+    runModifiers = new short[capacity];
+    runTimestamps = new long[capacity];
+    runs = 0;
+    versions = null;
+    modifiers = null;
+    timestamps = null;
+  }
+
+  private void unpack(BlockMap bm) {
+    size = 0;
+    Iterator<Long> vit = bm.getVersionsIterator();
+    Iterator<Short> mit = bm.getLast_modifierIterator();
+    Iterator<Long> tit = bm.isSetTimestamps() ? bm.getTimestampsIterator() : null;
+    if (bm.isSetRun_lengths()) {
+      allocateRuns(bm.getRun_lengthsSize());
+      for (int length : bm.getRun_lengths()) {
+        long version = vit.next();
+        short gwid = mit.next();
+        long ts = tit == null ? 0 : tit.next();
+        if (length > 0) {
+          appendRun(length, version, gwid, ts);
+        }
+      }
+      if (runs > MAX_RUNS) {
+        fragment(size);
+      }
+    } else {
+      int n = bm.getVersionsSize();
+      allocateRuns(INITIAL_CAPACITY);
+      for (int i = 0; i < n; ++i) {
+        appendRun(1, vit.next(), mit.next(), tit == null ? 0 : tit.next());
+        if (runs > MAX_RUNS) {
+          fragment(n);
+          for (++i; i < n; ++i) {
+            versions[i] = vit.next();
+            modifiers[i] = mit.next();
+            timestamps[i] = tit == null ? 0 : tit.next();
+          }
+          size = n;
+        }
+      }
+    }
+    BlockMap meta = get();
+    meta.setOffset(bm.getOffset());
+    meta.setLength(bm.getLength());
+    meta.setCrc(bm.getCrc());
+    meta.setVersions(null);
+    meta.setLast_modifier(null);
+    meta.setRun_lengths(null);
+    meta.setTimestamps(null);
+  }
+
+  @Override
+  public boolean read(ZkClient client) throws CuratorException {
+    if (!super.read(client)) {
+      return false;
+    }
+    unpack(get());
+    return true;
+  }
+
+  /**
+   * Build a thrift BlockMap with all the block versions, last modifiers, and timestamps. The
+   * versions are run-length encoded unless that does not save space or the metadata should be
+   * readable by gateways that predate run lengths (see MetadataCodec.isLegacyCompatible()), even
+   * if the metadata is saved uncompressed. The timestamps are left out if none of them is known.
+   */
+  public BlockMap toBlockMap() {
+    BlockMap bm = get().deepCopy();
+    int n = getRunCount();
+    boolean encodeRuns = n < size && !MetadataCodec.isLegacyCompatible();
+    List<Long> vlist = new ArrayList<>(encodeRuns ? n : size);
+    List<Short> mlist = new ArrayList<>(encodeRuns ? n : size);
+    List<Integer> llist = encodeRuns ? new ArrayList<>(n) : null;
+    List<Long> tlist = new ArrayList<>(encodeRuns ? n : size);
+    boolean hasTimestamps = false;
+    for (int i = 0; i < size;) {
+      int end = encodeRuns ? getRunEnd(i) : i + 1;
+      long ts = getTimestamp(i);
+      vlist.add(getVersion(i));
+      mlist.add(getModifier(i));
+      tlist.add(ts);
+      hasTimestamps |= ts != 0;
+      if (encodeRuns) {
+        llist.add(end - i);
+      }
+      i = end;
+    }
+    bm.setVersions(vlist);
+    bm.setLast_modifier(mlist);
+    bm.setRun_lengths(llist);
+    bm.setTimestamps(hasTimestamps ? tlist : null);
+    return bm;
+  }
+
+  @Override
+  public byte[] getData() {
+    return ThriftUtils.encode(toBlockMap(), isCompress());
+  }
+
+  /**
+   * @return number of blocks in this BlockMap
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isFragmented() {
+    return versions != null;
+  }
+
+  /**
+   * @return number of runs of blocks with the same version, modifier, and timestamp
+   */
+  public int getRunCount() {
+    if (!isFragmented()) {
+      return runs;
+    }
+    int n = 0;
+    for (int i = 0; i < size; i = getRunEnd(i)) {
+      ++n;
+    }
+    return n;
+  }
+
+  /**
+   * @return number of entries kept in memory, which is the number of runs, or the number of
+   *         blocks once the BlockMap is fragmented.
+   */
+  public int getFootprint() {
+    return isFragmented() ? size : runs;
+  }
+
+  // index of the run that contains block i
+  private int findRun(int i) {
+    int lo = 0;
+    int hi = runs - 1;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (runEnds[mid] <= i) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private int runStart(int r) {
+    return r == 0 ? 0 : runEnds[r - 1];
+  }
+
+  public long getVersion(int i) {
+    Preconditions.checkElementIndex(i, size);
+    return isFragmented() ? versions[i] : runVersions[findRun(i)];
+  }
+
+  public short getModifier(int i) {
+    Preconditions.checkElementIndex(i, size);
+    return isFragmented() ? modifiers[i] : runModifiers[findRun(i)];
+  }
+
+  /**
+   * @return the write timestamp of block i, or zero if it is unknown.
+   */
+  public long getTimestamp(int i) {
+    Preconditions.checkElementIndex(i, size);
+    return isFragmented() ? timestamps[i] : runTimestamps[findRun(i)];
+  }
+
+  /**
+   * Get the end of the run that contains block i.
+   *
+   * @return the exclusive index of the last block of all consecutive blocks starting at block i
+   *         that have the same version, modifier, and timestamp as block i.
+   */
+  public int getRunEnd(int i) {
+    Preconditions.checkElementIndex(i, size);
+    if (!isFragmented()) {
+      return runEnds[findRun(i)];
+    }
+    int end = i + 1;
+    while (end < size && versions[end] == versions[i] && modifiers[end] == modifiers[i]
+        && timestamps[end] == timestamps[i]) {
+      ++end;
+    }
+    return end;
+  }
+
+  public void setBlock(int i, long version, short gwid) {
+    setBlocks(i, i + 1, version, gwid, 0);
+  }
+
+  public void setBlock(int i, long version, short gwid, long timestamp) {
+    setBlocks(i, i + 1, version, gwid, timestamp);
+  }
+
+  /**
+   * Set the version and modifier of blocks [begin, end), whose timestamps become unknown.
+   */
+  public void setBlocks(int begin, int end, long version, short gwid) {
+    setBlocks(begin, end, version, gwid, 0);
+  }
+
+  /**
+   * Set the version, modifier, and timestamp of blocks [begin, end).
+   */
+  public void setBlocks(int begin, int end, long version, short gwid, long timestamp) {
+    Preconditions.checkPositionIndexes(begin, end, size);
+    if (begin == end) {
+      return;
+    }
+    setDirty(true);
+    if (isFragmented()) {
+      Arrays.fill(versions, begin, end, version);
+      Arrays.fill(modifiers, begin, end, gwid);
+      Arrays.fill(timestamps, begin, end, timestamp);
+      return;
+    }
+    int first = findRun(begin);
+    int last = findRun(end - 1);
+    long leftVersion = runVersions[first];
+    short leftModifier = runModifiers[first];
+    long leftTimestamp = runTimestamps[first];
+    boolean keepLeft = runStart(first) < begin;
+    int rightEnd = runEnds[last];
+    long rightVersion = runVersions[last];
+    short rightModifier = runModifiers[last];
+    long rightTimestamp = runTimestamps[last];
+    boolean keepRight = end < rightEnd;
+
+    // replace runs [first, last] with up to three runs
+    int r = first;
+    splice(first, last + 1, (keepLeft ? 1 : 0) + 1 + (keepRight ? 1 : 0));
+    if (keepLeft) {
+      setRun(r++, begin, leftVersion, leftModifier, leftTimestamp);
+    }
+    setRun(r++, end, version, gwid, timestamp);
+    if (keepRight) {
+      setRun(r++, rightEnd, rightVersion, rightModifier, rightTimestamp);
+    }
+    coalesce(first - 1, r);
+    if (runs > MAX_RUNS) {
+      fragment(size);
+    }
+  }
+
+  /**
+   * Append a block, whose timestamp is unknown, to the end of the BlockMap.
+   */
+  public void addBlock(long version, short gwid) {
+    if (isFragmented()) {
+      if (size == versions.length) {
+        int capacity = Integer.max(INITIAL_CAPACITY, size * 2);
+        versions = Arrays.copyOf(versions, capacity);
+        modifiers = Arrays.copyOf(modifiers, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+      }
+      versions[size] = version;
+      modifiers[size] = gwid;
+      timestamps[size] = 0;
+      ++size;
+    } else {
+      appendRun(1, version, gwid, 0);
+      if (runs > MAX_RUNS) {
+        fragment(size);
+      }
+    }
+    get().setLength(size);
+    setDirty(true);
+  }
+
+  /**
+   * Mark blocks whose version and modifier are the same in this and the other BlockMap.
+   *
+   * @param limit only blocks before this index are compared
+   * @param bits the bits of the same blocks are set to value
+   */
+  public void markSameBlocks(BlockMapWrapper other, int limit, BitSet bits, boolean value) {
+    limit = Integer.min(limit, Integer.min(size, other.size));
+    for (int i = 0; i < limit;) {
+      int end = Integer.min(limit, Integer.min(getRunEnd(i), other.getRunEnd(i)));
+      if (getVersion(i) == other.getVersion(i) && getModifier(i) == other.getModifier(i)) {
+        bits.set(i, end, value);
+      }
+      i = end;
+    }
+  }
+
+  private void appendRun(int length, long version, short gwid, long timestamp) {
+    size += length;
+    if (runs > 0 && runVersions[runs - 1] == version && runModifiers[runs - 1] == gwid
+        && runTimestamps[runs - 1] == timestamp) {
+      runEnds[runs - 1] = size;
+      return;
+    }
+    splice(runs, runs, 1);
+    setRun(runs - 1, size, version, gwid, timestamp);
+  }
+
+  private void setRun(int r, int end, long version, short gwid, long timestamp) {
+    runEnds[r] = end;
+    runVersions[r] = version;
+    runModifiers[r] = gwid;
+    runTimestamps[r] = timestamp;
+  }
+
+  /**
+   * Resize runs [from, to) into count runs, whose values are left for the caller to set.
+   */
+  private void splice(int from, int to, int count) {
+    int delta = count - (to - from);
+    if (runs + delta > runEnds.length) {
+      int capacity = Integer.max(INITIAL_CAPACITY, Integer.max(runs + delta, runs * 2));
+      runEnds = Arrays.copyOf(runEnds, capacity);
+      runVersions = Arrays.copyOf(runVersions, capacity);
+      runModifiers = Arrays.copyOf(runModifiers, capacity);
+      runTimestamps = Arrays.copyOf(runTimestamps, capacity);
+    }
+    System.arraycopy(runEnds, to, runEnds, from + count, runs - to);
+    System.arraycopy(runVersions, to, runVersions, from + count, runs - to);
+    System.arraycopy(runModifiers, to, runModifiers, from + count, runs - to);
+    System.arraycopy(runTimestamps, to, runTimestamps, from + count, runs - to);
+    runs += delta;
+  }
+
+  /**
+   * Merge neighboring runs with the same version, modifier, and timestamp among runs [from, to].
+   */
+  private void coalesce(int from, int to) {
+    int r = Integer.max(from, 0);
+    to = Integer.min(to, runs - 1);
+    while (r < to) {
+      if (runVersions[r] == runVersions[r + 1] && runModifiers[r] == runModifiers[r + 1]
+          && runTimestamps[r] == runTimestamps[r + 1]) {
+        runEnds[r] = runEnds[r + 1];
+        splice(r + 1, r + 2, 0);
+        --to;
+      } else {
+        ++r;
+      }
+    }
+  }
+
+  /**
+   * Switch to one entry per block.
+   *
+   * @param capacity the expected number of blocks
+   */
+  private void fragment(int capacity) {
+    long[] vs = new long[Integer.max(INITIAL_CAPACITY, Integer.max(capacity, size))];
+    short[] ms = new short[vs.length];
+    long[] ts = new long[vs.length];
+    for (int r = 0; r < runs; ++r) {
+      Arrays.fill(vs, runStart(r), runEnds[r], runVersions[r]);
+      Arrays.fill(ms, runStart(r), runEnds[r], runModifiers[r]);
+      Arrays.fill(ts, runStart(r), runEnds[r], runTimestamps[r]);
+    }
+    runEnds = null;
+    runVersions = null;
+    runModifiers = null;
+    runTimestamps = null;
+    runs = 0;
+    versions = vs;
+    modifiers = ms;
+    timestamps = ts;
+  }
+}
@@ -11,6 +11,8 @@
 package edu.stonybrook.kurma.helpers;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import com.google.protobuf.ByteString;
@@ -21,22 +23,57 @@ import org.apache.hedwig.protocol.PubSubProtocol.MessageHeader;
 import org.apache.hedwig.protoextensions.MapUtils;
 
 import edu.stonybrook.kurma.message.GatewayMessage;
+import edu.stonybrook.kurma.message.GatewayMessageBatch;
 import edu.stonybrook.kurma.util.ThriftUtils;
 
 public class HedwigMessageHelper {
   public final static String HEADER_SOURCE_GATEWAY = "SOURCE_GATEWAY";
 
+  public final static String HEADER_BATCH = "BATCH";
+
   public static Message toHedwigMessage(GatewayMessage gm) {
-    byte[] data = ThriftUtils.encode(gm, true);
-    ByteString gwid = ByteString.copyFrom(ByteBuffer.allocate(2).putShort(gm.getGwid()).array());
+    return buildMessage(gm.getGwid(), ThriftUtils.encode(gm, true), false);
+  }
+
+  /**
+   * Pack consecutive messages of one gateway into one Hedwig message, whose body is compressed as a
+   * whole. A single message is packed as it is so that it can be read by gateways that do not
+   * understand batches.
+   */
+  public static Message toHedwigMessage(List<GatewayMessage> gms) {
+    if (gms.size() == 1) {
+      return toHedwigMessage(gms.get(0));
+    }
+    byte[] data = ThriftUtils.encode(new GatewayMessageBatch(gms), true);
+    return buildMessage(gms.get(0).getGwid(), data, true);
+  }
+
+  private static Message buildMessage(short gwid, byte[] data, boolean batch) {
+    ByteString source = ByteString.copyFrom(ByteBuffer.allocate(2).putShort(gwid).array());
     PubSubProtocol.Map.Builder propsBuilder = PubSubProtocol.Map.newBuilder().addEntries(
-        PubSubProtocol.Map.Entry.newBuilder().setKey(HEADER_SOURCE_GATEWAY).setValue(gwid));
+        PubSubProtocol.Map.Entry.newBuilder().setKey(HEADER_SOURCE_GATEWAY).setValue(source));
+    if (batch) {
+      propsBuilder.addEntries(
+          PubSubProtocol.Map.Entry.newBuilder().setKey(HEADER_BATCH).setValue(ByteString.EMPTY));
+    }
     MessageHeader.Builder headerBuilder = MessageHeader.newBuilder().setProperties(propsBuilder);
     final ByteString body = ByteString.copyFrom(data);
     Message msg = Message.newBuilder().setBody(body).setHeader(headerBuilder).build();
     return msg;
   }
 
+  public static boolean isBatch(Message msg) {
+    if (!msg.hasHeader() || !msg.getHeader().hasProperties()) {
+      return false;
+    }
+    for (PubSubProtocol.Map.Entry entry : msg.getHeader().getProperties().getEntriesList()) {
+      if (HEADER_BATCH.equals(entry.getKey())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public static short readSourceGateway(Message msg) {
     if (!msg.hasHeader())
       return 0;
@@ -58,4 +95,19 @@ public class HedwigMessageHelper {
     ThriftUtils.decode(msg.getBody().toByteArray(), gm, true);
     return gm;
   }
+
+  /**
+   * Unpack all GatewayMessages in a Hedwig message, which can be either a batch or a single
+   * GatewayMessage.
+   *
+   * @return the messages in the order they were published
+   */
+  public static List<GatewayMessage> fromHedwigBatch(Message msg) throws Exception {
+    if (!isBatch(msg)) {
+      return Collections.singletonList(fromHedwigMessage(msg));
+    }
+    GatewayMessageBatch batch = new GatewayMessageBatch();
+    ThriftUtils.decode(msg.getBody().toByteArray(), batch, true);
+    return batch.isSetMessages() ? batch.getMessages() : Collections.emptyList();
+  }
 }
@@ -12,6 +12,8 @@ package edu.stonybrook.kurma.helpers;
 
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.apache.curator.framework.api.transaction.CuratorTransaction;
 import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
@@ -78,26 +80,55 @@ public class TWrapper<T extends TBase> {
   public boolean read(ZkClient client) throws CuratorException {
     Preconditions.checkState(!dirty, "read will overwrite dirty metadata");
     try {
-      byte[] data = client.read(zpath, zkStat);
-      if (data == null || data.length == 0) {
-        return false;
-      }
-      ThriftUtils.decode(data, meta, compress);
+      return _decode(client.read(zpath, zkStat));
     } catch (Exception e) {
-      LOGGER.trace(String.format("failed to read %s", zpath), e);
-      if (e instanceof KeeperException.NoNodeException) {
-        exist = false;
-        throw new NoZNodeException(zpath, e);
-      } else {
-        throw new CuratorException(String.format("could not read Znode %s", zpath), e);
+      throw _readFailure(e);
+    }
+  }
+
+  /**
+   * Read the znode without blocking. The future completes with what read() would return, or
+   * exceptionally with the CuratorException read() would throw.
+   */
+  public CompletableFuture<Boolean> readAsync(ZkClient client) {
+    Preconditions.checkState(!dirty, "read will overwrite dirty metadata");
+    CompletableFuture<Boolean> future = new CompletableFuture<>();
+    client.readAsync(zpath, zkStat).whenComplete((data, error) -> {
+      try {
+        if (error != null) {
+          throw error instanceof CompletionException ? error.getCause() : error;
+        }
+        future.complete(_decode(data));
+      } catch (Throwable e) {
+        future.completeExceptionally(_readFailure(e));
       }
+    });
+    return future;
+  }
+
+  private boolean _decode(byte[] data) throws Exception {
+    if (data == null || data.length == 0) {
+      return false;
     }
+    ThriftUtils.decode(data, meta, compress);
     dirty = false;
     return true;
   }
 
+  private CuratorException _readFailure(Throwable e) {
+    LOGGER.trace(String.format("failed to read %s", zpath), e);
+    if (e instanceof CuratorException) {
+      return (CuratorException) e;
+    } else if (e instanceof KeeperException.NoNodeException) {
+      exist = false;
+      return new NoZNodeException(zpath, e);
+    } else {
+      return new CuratorException(String.format("could not read Znode %s", zpath), e);
+    }
+  }
+
   public boolean create(ZkClient client, boolean sync) throws CuratorException {
-    byte[] data = ThriftUtils.encode(meta, compress);
+    byte[] data = getData();
     try {
       if (sync) {
         client.flush();
@@ -142,7 +173,7 @@ public class TWrapper<T extends TBase> {
   }
 
   public boolean write(ZkClient client, boolean ignoreVersion) throws CuratorException {
-    byte[] data = ThriftUtils.encode(meta, compress);
+    byte[] data = getData();
     int version = ignoreVersion ? -1 : zkStat.getVersion();
     Stat newStat = null;
     try {
@@ -216,7 +247,7 @@ public class TWrapper<T extends TBase> {
    */
   public CuratorTransactionFinal create(CuratorTransaction txn,
       Collection<TransactionResultProcessor> processors) throws CuratorException {
-    byte[] data = ThriftUtils.encode(meta, compress);
+    byte[] data = getData();
 
     processors.add(new TransactionResultProcessor() {
       @Override
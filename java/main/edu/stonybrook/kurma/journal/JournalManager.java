@@ -17,6 +17,7 @@ public class JournalManager {
 
   private MetaJournal metaJournal;
   private GarbageBlockJournal gbJournal;
+  private WriteBackJournal wbJournal;
 
   public JournalManager(String journalDirPath, int cleanupFrequency) throws IOException {
     File journalDir = new File(journalDirPath);
@@ -33,9 +34,14 @@ public class JournalManager {
     if (!gbJournalDir.exists()) {
       gbJournalDir.mkdirs();
     }
+    File wbJournalDir = new File(journalDir + "WriteBackJournal/");
+    if (!wbJournalDir.exists()) {
+      wbJournalDir.mkdirs();
+    }
 
     metaJournal = new MetaJournal(metaJournalDir, cleanupFrequency);
     gbJournal = new GarbageBlockJournal(gbJournalDir, cleanupFrequency);
+    wbJournal = new WriteBackJournal(wbJournalDir, cleanupFrequency);
 
   }
 
@@ -47,9 +53,14 @@ public class JournalManager {
     return gbJournal;
   }
 
+  public WriteBackJournal getWriteBackJournal() {
+    return wbJournal;
+  }
+
   public void closeAll() throws IOException {
     metaJournal.close();
     gbJournal.close();
+    wbJournal.close();
   }
 
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import journal.io.api.Journal;
+import journal.io.api.JournalBuilder;
+import journal.io.api.Location;
+import journal.io.api.Journal.ReadType;
+import journal.io.api.Journal.WriteType;
+import edu.stonybrook.kurma.cloud.KvsFacade;
+import edu.stonybrook.kurma.records.WriteBackJournalRecord;
+import edu.stonybrook.kurma.server.BlockWriter;
+import edu.stonybrook.kurma.server.VolumeHandler;
+import edu.stonybrook.kurma.util.ThriftUtils;
+
+/**
+ * Journal of encrypted blocks that have been acknowledged to clients but not yet uploaded to the
+ * clouds. A record is deleted once its block is uploaded.
+ */
+public class WriteBackJournal {
+  private static final Logger LOGGER = LoggerFactory.getLogger(WriteBackJournal.class);
+  Journal journal;
+  JournalCleaner jc;
+
+  public WriteBackJournal(File journal_dir, int clean_frequency) {
+    try {
+      this.journal = JournalBuilder.of(journal_dir).open();
+      jc = new JournalCleaner(journal, clean_frequency);
+      jc.startCleaner();
+    } catch (Exception e) {
+      LOGGER.error("could not open journal", e);
+    }
+  }
+
+  /**
+   * Upload blocks left in the journal by a previous run. The block versions have already been
+   * saved in the metadata journal, so only the block data needs to be uploaded. Records that cannot
+   * be uploaded are skipped and stay in the journal till the next start.
+   *
+   * @return number of uploaded blocks, or -1 if the journal cannot be read
+   */
+  public int redoOldRecords(VolumeHandler vh) {
+    int old_records = 0;
+    LOGGER.info("Redo write-back blocks");
+    try {
+      journal.sync();
+      for (Location location : journal.redo()) {
+        if (location.isDeletedRecord())
+          continue;
+        try {
+          WriteBackJournalRecord jObj = read(location);
+          LOGGER.info("Uploading block {} of {} at {}", jObj.getBlock_version(), jObj.getOid(),
+              jObj.getOffset());
+          KvsFacade kvs =
+              vh.getFacadeManager().findOrBuild(jObj.getKvs_type(), jObj.getKvs_ids());
+          if (!upload(jObj, kvs)) {
+            LOGGER.error("could not upload block {}", jObj.getBlock_key());
+            continue;
+          }
+          old_records++;
+          journal.delete(location);
+        } catch (Exception e) {
+          LOGGER.error("could not redo old record at " + location, e);
+        }
+      }
+      journal.compact();
+    } catch (Exception e) {
+      LOGGER.error("could not redo old records", e);
+      return -1;
+    }
+    return old_records;
+  }
+
+  /**
+   * Read a record.
+   */
+  public WriteBackJournalRecord read(Location location) throws Exception {
+    byte[] record = journal.read(location, ReadType.ASYNC);
+    WriteBackJournalRecord jObj = new WriteBackJournalRecord();
+    ThriftUtils.decodeBinary(record, jObj);
+    return jObj;
+  }
+
+  /**
+   * Upload the encrypted block of a record to the given facade.
+   *
+   * @return whether the block is uploaded
+   */
+  public static boolean upload(WriteBackJournalRecord jObj, KvsFacade kvs) throws IOException {
+    ByteBuffer encrypted = BlockWriter.allocateCipherBuffer(kvs, jObj.getData().length);
+    encrypted.put(jObj.getData());
+    encrypted.rewind();
+    return kvs.put(jObj.getBlock_key(), encrypted);
+  }
+
+  /**
+   * Append a record.
+   *
+   * @param sync whether to wait until the record, and all records before it, are on disk
+   * @return location of the record, or null on error
+   */
+  public Location write(WriteBackJournalRecord jObj, boolean sync) {
+    Location location = null;
+    try {
+      byte[] record = ThriftUtils.encodeBinary(jObj);
+      location = journal.write(record, sync ? WriteType.SYNC : WriteType.ASYNC);
+    } catch (Exception e) {
+      LOGGER.error("could not write into journal", e);
+    }
+    return location;
+  }
+
+  public void delete(Location location) {
+    if (location != null) {
+      try {
+        journal.delete(location);
+      } catch (Exception e) {
+        LOGGER.error("could not delete from journal", e);
+      }
+    }
+  }
+
+  public void close() {
+    try {
+      jc.stopCleaner();
+      journal.close();
+    } catch (IOException e) {
+      LOGGER.error("could not close journal", e);
+    }
+  }
+}
@@ -10,8 +10,9 @@
  */
 package edu.stonybrook.kurma.replicator;
 
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Optional;
 
 import javax.crypto.SecretKey;
@@ -23,6 +24,7 @@ import org.slf4j.LoggerFactory;
 import com.google.common.base.Preconditions;
 import com.google.common.io.BaseEncoding;
 
+import edu.stonybrook.kurma.cloud.KvsFacade;
 import edu.stonybrook.kurma.config.IGatewayConfig;
 import edu.stonybrook.kurma.helpers.AttributesHelper;
 import edu.stonybrook.kurma.helpers.DirectoryHelper;
@@ -44,6 +46,7 @@ import edu.stonybrook.kurma.server.DirectoryHandler;
 import edu.stonybrook.kurma.server.FileBlock;
 import edu.stonybrook.kurma.server.FileHandler;
 import edu.stonybrook.kurma.server.VolumeHandler;
+import edu.stonybrook.kurma.util.BufferPool;
 import edu.stonybrook.kurma.util.EncryptThenAuthenticate;
 import edu.stonybrook.kurma.util.FileUtils;
 
@@ -66,10 +69,26 @@ public class ConflictResolver implements IConflictResolver {
     this.config = config;
   }
 
+  /**
+   * A local block that conflicts with a remote update of it.
+   */
+  private static class BlockConflict {
+    final FileBlock local;
+    final FileBlock remote;
+
+    BlockConflict(FileBlock local, FileBlock remote) {
+      this.local = local;
+      this.remote = remote;
+    }
+  }
+
   @Override
   public boolean resolveIfAnyUpdateFileConflict(VolumeHandler vh, UpdateFile uf, short remoteGwid)
       throws Exception {
     Iterator<Long> remoteVersionsIterator = uf.getNew_versionsIterator();
+    // remote timestamps are unknown if the remote gateway predates them
+    Iterator<Long> remoteTimestampsIterator =
+        uf.isSetNew_timestamps() ? uf.getNew_timestampsIterator() : null;
     boolean res = false;
     ObjectID oid = uf.getFile_oid();
     FileHandler fh = vh.getLoadedFile(oid);
@@ -79,16 +98,21 @@ public class ConflictResolver implements IConflictResolver {
       return ignoreMissingDependency();
     }
     LOGGER.debug("file size is {}", fh.getFileSize());
-    /* The caller of this lambda function holds the file and range lock */
+    List<BlockConflict> conflicts = new ArrayList<>();
+    /* The caller of these lambda functions holds the file and range lock */
     res = fh.iterBlockForConflictResolve(uf.getOffset(), uf.getLength(), uf.getNew_attrs(),
         (localFileBlock, gwid) -> {
           long localBlockVersion = localFileBlock.getVersion();
           long remoteBlockVersion = 0;
+          long remoteBlockTimestamp = 0;
           if (remoteVersionsIterator.hasNext()) {
             remoteBlockVersion = remoteVersionsIterator.next().intValue();
           } else {
             return false;
           }
+          if (remoteTimestampsIterator != null && remoteTimestampsIterator.hasNext()) {
+            remoteBlockTimestamp = remoteTimestampsIterator.next();
+          }
           long offset = localFileBlock.getOffset();
 
           /*
@@ -97,41 +121,16 @@ public class ConflictResolver implements IConflictResolver {
            */
           if (!((remoteBlockVersion > localBlockVersion) && (gwid == remoteGwid))) {
             updateConflictFound = true;
-            FileBlock remoteFileBlock =
-                new FileBlock(fh, offset, localFileBlock.getLength(), remoteBlockVersion,
-                    remoteGwid, ByteBuffer.wrap(new byte[localFileBlock.getLength()]), false);
-            /* Load block data from cloud to get its time stamp */
-            fh._loadBlockData(localFileBlock);
-            fh._loadBlockData(remoteFileBlock);
-
-            short localGatewayId = localFileBlock.getGateway();
-            long localBlockTimestamp = localFileBlock.getTimestamp();
-            long remoteBlockTimestamp = remoteFileBlock.getTimestamp();
-            short remoteGatewayId = remoteFileBlock.getGateway();
-
-            /*
-             * Select file block version which has latest time stamp, in case of same time stamp
-             * choose block for higher gateway number
-             */
-            if ((localBlockTimestamp < remoteBlockTimestamp)
-                || (localBlockTimestamp == remoteBlockTimestamp
-                    && localGatewayId < remoteGatewayId)) {
-              updateConflictResolved = fh._resolveBlockVersions(offset, localFileBlock.getLength(),
-                  remoteGwid, remoteBlockVersion, uf.getNew_attrs());
-              LOGGER.info("=======UPDATED BLOCK VERSION=====");
-              if (!updateConflictResolved) {
-                return false;
-              }
-            } else {
-              LOGGER.info("=======NO NEED TO UPDATE BLOCK VERSION=====");
-              updateConflictResolved = true;
-            }
+            FileBlock remoteFileBlock = new FileBlock(fh, offset, localFileBlock.getLength(),
+                remoteBlockVersion, remoteGwid);
+            remoteFileBlock.setTimestamp(remoteBlockTimestamp);
+            conflicts.add(new BlockConflict(localFileBlock, remoteFileBlock));
           } else {
             fh._resolveBlockVersions(offset, localFileBlock.getLength(), remoteGwid,
-                remoteBlockVersion, uf.getNew_attrs());
+                remoteBlockVersion, remoteBlockTimestamp, uf.getNew_attrs());
           }
           return true;
-        });
+        }, () -> resolveBlockConflicts(fh, conflicts, uf));
     if (updateConflictFound) {
       updateFileConflictCount++;
     }
@@ -142,6 +141,69 @@ public class ConflictResolver implements IConflictResolver {
     return res;
   }
 
+  /**
+   * Resolve conflicting blocks by their timestamps. Timestamps that are not known in the metadata
+   * are read from the additional data of the blocks, which are loaded from the clouds in parallel
+   * into pooled buffers that are released right after.
+   */
+  private boolean resolveBlockConflicts(FileHandler fh, List<BlockConflict> conflicts,
+      UpdateFile uf) {
+    List<FileBlock> unknown = new ArrayList<>();
+    for (BlockConflict c : conflicts) {
+      // file holes have nothing in the clouds
+      if (c.local.getTimestamp() == 0 && !c.local.isHole()) {
+        unknown.add(c.local);
+      }
+      if (c.remote.getTimestamp() == 0 && !c.remote.isHole()) {
+        unknown.add(c.remote);
+      }
+    }
+    if (!unknown.isEmpty()) {
+      LOGGER.info("loading {} blocks of {} conflicts to get their timestamps", unknown.size(),
+          conflicts.size());
+      BufferPool bufferPool = KvsFacade.getBufferPool();
+      for (FileBlock block : unknown) {
+        block.setValue(bufferPool.allocate(block.getLength()));
+        block.getValue().mark();
+      }
+      try {
+        fh._loadBlocksData(unknown);
+      } finally {
+        // only the timestamps are needed
+        for (FileBlock block : unknown) {
+          bufferPool.release(block.getValue());
+          block.setValue(null);
+        }
+      }
+    }
+
+    for (BlockConflict c : conflicts) {
+      short localGatewayId = c.local.getGateway();
+      long localBlockTimestamp = c.local.getTimestamp();
+      long remoteBlockTimestamp = c.remote.getTimestamp();
+      short remoteGatewayId = c.remote.getGateway();
+
+      /*
+       * Select file block version which has latest time stamp, in case of same time stamp choose
+       * block for higher gateway number
+       */
+      if ((localBlockTimestamp < remoteBlockTimestamp)
+          || (localBlockTimestamp == remoteBlockTimestamp && localGatewayId < remoteGatewayId)) {
+        updateConflictResolved = fh._resolveBlockVersions(c.remote.getOffset(),
+            c.remote.getLength(), remoteGatewayId, c.remote.getVersion(), remoteBlockTimestamp,
+            uf.getNew_attrs());
+        LOGGER.info("=======UPDATED BLOCK VERSION=====");
+        if (!updateConflictResolved) {
+          return false;
+        }
+      } else {
+        LOGGER.info("=======NO NEED TO UPDATE BLOCK VERSION=====");
+        updateConflictResolved = true;
+      }
+    }
+    return true;
+  }
+
   @Override
   public boolean resolveIfAnyCreateDirConflict(VolumeHandler vh, short gwid, CreateDir cd) {
     Directory dir = cd.getDir();
@@ -93,6 +93,17 @@ public class GatewayMessageBuilder {
     return gm;
   }
 
+  /**
+   * Build a file update that also carries the write timestamps of the blocks, which lets the
+   * receivers resolve conflicts without reading the blocks.
+   */
+  public GatewayMessage buildFileUpdate(String volumeId, ObjectID oid, long offset, long length,
+      List<Long> newVersions, List<Long> newTimestamps, ObjectAttributes attrs) {
+    GatewayMessage gm = buildFileUpdate(volumeId, oid, offset, length, newVersions, attrs);
+    gm.getOp().getUpdate_file().setNew_timestamps(newTimestamps);
+    return gm;
+  }
+
   public GatewayMessage buildAttributeSet(String volumeId, ObjectID oid, ObjectAttributes oldAttrs,
       ObjectAttributes newAttrs) {
     GatewayMessage gm = newMessage(OperationType.SET_ATTRIBUTES);
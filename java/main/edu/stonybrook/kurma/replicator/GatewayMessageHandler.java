@@ -11,10 +11,9 @@
 package edu.stonybrook.kurma.replicator;
 
 import java.util.concurrent.Callable;
-import java.util.concurrent.CompletionService;
-import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hedwig.client.api.MessageHandler;
 import org.apache.hedwig.protocol.PubSubProtocol.Message;
@@ -25,7 +24,6 @@ import org.slf4j.LoggerFactory;
 import com.google.protobuf.ByteString;
 
 import edu.stonybrook.kurma.helpers.GatewayHelper;
-import edu.stonybrook.kurma.helpers.HedwigMessageHelper;
 import edu.stonybrook.kurma.helpers.ObjectIdHelper;
 import edu.stonybrook.kurma.message.CreateDir;
 import edu.stonybrook.kurma.message.CreateFile;
@@ -37,6 +35,7 @@ import edu.stonybrook.kurma.message.SetAttributes;
 import edu.stonybrook.kurma.message.UnlinkFile;
 import edu.stonybrook.kurma.message.UpdateFile;
 import edu.stonybrook.kurma.meta.VolumeInfo;
+import edu.stonybrook.kurma.replicator.GatewayMessageManager.PendingMessage;
 import edu.stonybrook.kurma.server.KurmaHandler;
 import edu.stonybrook.kurma.server.VolumeHandler;
 
@@ -50,13 +49,12 @@ public final class GatewayMessageHandler implements MessageHandler {
   private static final Logger LOGGER = LoggerFactory.getLogger(GatewayMessageHandler.class);
   public static final String ROOT_REPLICATOR_ID = "__KURMA_REPLICATOR__";
   private final KurmaHandler kurmaHandler;
-  private int successCount = 0;
-  private int receivedMsgCount = 0;
+  private final AtomicInteger successCount = new AtomicInteger(0);
+  private final AtomicInteger receivedMsgCount = new AtomicInteger(0);
   private int replicationProcessDelay = 0;
 
   private final GatewayMessageManager messageManager;
   private ExecutorService executor;
-  private CompletionService<Message> completeService;
 
   public GatewayMessageHandler(KurmaHandler kh, int nthreads) throws Exception {
     this(kh, 0, nthreads);
@@ -68,38 +66,39 @@ public final class GatewayMessageHandler implements MessageHandler {
     this.replicationProcessDelay = replicationProcessDelay;
     this.messageManager = new GatewayMessageManager();
     this.executor = Executors.newFixedThreadPool(nthreads);
-    this.completeService = new ExecutorCompletionService<Message>(executor);
   }
 
+  /**
+   * Submit a worker for every message that is ready to be handled.
+   */
+  private void dispatchReadyMessages() {
+    PendingMessage pm;
+    while ((pm = messageManager.poll()) != null) {
+      executor.submit(new MessageHandleWorker(pm));
+    }
+  }
+
+  /**
+   * Handle a message that holds all its locks in the GatewayMessageManager.
+   */
   private class MessageHandleWorker implements Callable<Message> {
-    Callback<Void> callback;
-    Object context;
+    private final PendingMessage pm;
 
-    public MessageHandleWorker(Callback<Void> cb, Object context) {
-      this.callback = cb;
-      this.context = context;
+    public MessageHandleWorker(PendingMessage pm) {
+      this.pm = pm;
     }
 
     @Override
     public Message call() throws Exception {
-      Message msg = null;
-      synchronized (messageManager) {
-        while (true) {
-          msg = messageManager.pollMessage();
-          if (msg == null) {
-            messageManager.wait();
-          } else {
-            break;
-          }
-        }
-      }
-
+      Message msg = pm.getMessage();
+      Callback<Void> callback = pm.getCallback();
+      Object context = pm.getContext();
       boolean failed = false;
-      GatewayMessage message = HedwigMessageHelper.fromHedwigMessage(msg);
+      GatewayMessage message = pm.getGatewayMessage();
       try {
         Thread.sleep(replicationProcessDelay);
-        if (handle(message)) {
-          successCount++;
+        if (message != null && handle(message)) {
+          successCount.incrementAndGet();
           LOGGER.debug("gateway message processed");
         } else {
           failed = true;
@@ -117,15 +116,12 @@ public final class GatewayMessageHandler implements MessageHandler {
 
       if (failed) {
         LOGGER.error("gateway message {} {} processing failed, terminating system",
-            msg.getMsgId().getLocalComponent(), message.getTimestamp());
+            msg.getMsgId().getLocalComponent(), message == null ? 0 : message.getTimestamp());
         System.exit(1);
       }
 
-      synchronized (messageManager) {
-        messageManager.endMessage(msg);
-        if (!messageManager.isEmpty()) {
-          messageManager.notify();
-        }
+      if (messageManager.endMessage(pm)) {
+        dispatchReadyMessages();
       }
       return msg;
     }
@@ -135,12 +131,9 @@ public final class GatewayMessageHandler implements MessageHandler {
   public void deliver(ByteString topic, ByteString subscriberId, Message msg,
       Callback<Void> callback, Object context) {
     LOGGER.debug("new gateway message recevied: {}", msg.getMsgId().getLocalComponent());
-    synchronized (messageManager) {
-      receivedMsgCount++;
-      messageManager.putMessage(msg);
-      completeService.submit(new MessageHandleWorker(callback, context));
-      messageManager.notify();
-    }
+    // a batch is unpacked into its GatewayMessages, each of which is ordered by its own LockKeys
+    receivedMsgCount.addAndGet(messageManager.putMessages(msg, callback, context).size());
+    dispatchReadyMessages();
   }
 
   protected boolean createDirectory(GatewayMessage gm, CreateDir cd) {
@@ -193,7 +186,11 @@ public final class GatewayMessageHandler implements MessageHandler {
     VolumeHandler volumeHandler = kurmaHandler.getVolumeHandler(gm.getVolumeid());
     LOGGER.debug("Gateway {}: rename {} to {}", GatewayHelper.nameOf(gm.getGwid()),
         rn.getSrc_name(), rn.getDst_name());
-    return kurmaHandler.getConflictResolver().resolveIfAnyRenameConflict(volumeHandler, rn);
+    boolean res = kurmaHandler.getConflictResolver().resolveIfAnyRenameConflict(volumeHandler, rn);
+    // the DirectoryHandlers have done this unless conflict resolution changed the names
+    volumeHandler.invalidateDentry(rn.getSrc_dir_oid(), rn.getSrc_name());
+    volumeHandler.invalidateDentry(rn.getDst_dir_oid(), rn.getDst_name());
+    return res;
   }
 
   protected boolean setAttrs(GatewayMessage gm, SetAttributes sa) {
@@ -205,7 +202,10 @@ public final class GatewayMessageHandler implements MessageHandler {
 
   protected boolean unlinkFile(GatewayMessage gm, UnlinkFile uf) {
     VolumeHandler volumeHandler = kurmaHandler.getVolumeHandler(gm.getVolumeid());
-    return kurmaHandler.getConflictResolver().resolveIfAnyUnlinkFileConflict(volumeHandler, uf);
+    boolean res =
+        kurmaHandler.getConflictResolver().resolveIfAnyUnlinkFileConflict(volumeHandler, uf);
+    volumeHandler.invalidateDentry(uf.getParent_oid(), uf.getName());
+    return res;
   }
 
   protected boolean updateFile(GatewayMessage gm, UpdateFile uf) {
@@ -284,20 +284,20 @@ public final class GatewayMessageHandler implements MessageHandler {
   }
 
   public int getSuccessCount() {
-    return successCount;
+    return successCount.get();
   }
 
   public int getReceivedMsgCount() {
-    return receivedMsgCount;
+    return receivedMsgCount.get();
   }
 
   /* Used for testing purpose */
   public void setSuccessCount(int count) {
-    successCount = count;
+    successCount.set(count);
   }
 
   /* Used for testing purpose */
   public void setReceivedMsgCount(int count) {
-    receivedMsgCount = count;
+    receivedMsgCount.set(count);
   }
 }
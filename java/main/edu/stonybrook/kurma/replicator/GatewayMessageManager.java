@@ -10,13 +10,19 @@
  */
 package edu.stonybrook.kurma.replicator;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.hedwig.exceptions.PubSubException;
 import org.apache.hedwig.protocol.PubSubProtocol.Message;
+import org.apache.hedwig.util.Callback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,8 +55,12 @@ import edu.stonybrook.kurma.message.UpdateFile;
  * For rename operations across different directories, this manager use the per-volume lock of the
  * involved volume.
  *
- * Member methods of this class are NOT thread-safe; external synchronization is needed for multiple
- * threads.
+ * Each message is decoded once when it is put. Every LockKey has a FIFO queue of the messages
+ * that need it, and the head of the queue holds the lock. A message is ready to be handled once it
+ * is at the head of all its queues, so both putting and ending a message cost O(number of its
+ * LockKeys) instead of a scan of all pending messages.
+ *
+ * Member methods of this class are thread-safe.
  *
  * @author mchen
  *
@@ -58,48 +68,70 @@ import edu.stonybrook.kurma.message.UpdateFile;
 public class GatewayMessageManager {
   private static final Logger LOGGER = LoggerFactory.getLogger(GatewayMessageManager.class);
 
-  class PendingMessage {
-    public PendingMessage(Message msg) {
+  public static class PendingMessage {
+    private final Message msg;
+    private final GatewayMessage gm;
+    private final List<LockKey> lockKeys;
+    private final Callback<Void> callback;
+    private final Object context;
+    /**
+     * Number of LockKeys whose queues have other messages ahead of this one.
+     */
+    private int blockers = 0;
+
+    PendingMessage(Message msg, GatewayMessage gm, List<LockKey> lockKeys,
+        Callback<Void> callback, Object context) {
       this.msg = msg;
-      checked = false;
+      this.gm = gm;
+      this.lockKeys = lockKeys;
+      this.callback = callback;
+      this.context = context;
     }
 
     public Message getMessage() {
       return msg;
     }
 
-    public void setChecked() {
-      checked = true;
+    /**
+     * @return the decoded message, or null if the message could not be decoded.
+     */
+    public GatewayMessage getGatewayMessage() {
+      return gm;
+    }
+
+    public List<LockKey> getLockKeys() {
+      return lockKeys;
     }
 
-    public boolean isChecked() {
-      return checked;
+    public Callback<Void> getCallback() {
+      return callback;
     }
 
-    private Message msg;
-    /**
-     * Has the related lock been checked? If yes, this message will be in "checkedMessages".
-     */
-    private boolean checked;
+    public Object getContext() {
+      return context;
+    }
   }
 
   /**
-   * A list of received messages waiting to be handled.
+   * Messages waiting for each LockKey. The first element of the queue holds the lock. When it is
+   * ended, the lock passes to the next element.
    */
-  private List<PendingMessage> pendingMessages;
+  private final Map<LockKey, ArrayDeque<PendingMessage>> lockQueues = new HashMap<>();
 
   /**
-   * A map of messages whose locks have been checked. For a lock key "lk", the first element of the
-   * corresponding list, i.e., checkedMessages[lk], holds the lock. When the first element pops out
-   * of the list, the lock is released and the following element in the list automatically acquires
-   * the lock.
+   * Messages holding all their locks, in the order they became ready.
    */
-  private Map<LockKey, List<Message>> checkedMessages;
+  private final ArrayDeque<PendingMessage> readyMessages = new ArrayDeque<>();
 
-  public GatewayMessageManager() {
-    pendingMessages = new LinkedList<PendingMessage>();
-    checkedMessages = new HashMap<LockKey, List<Message>>();
-  }
+  /**
+   * Messages returned by pollMessage() but not ended yet.
+   */
+  private final Map<Message, PendingMessage> runningMessages = new IdentityHashMap<>();
+
+  /**
+   * Number of messages put but not ended yet.
+   */
+  private int size = 0;
 
   /**
    * Return whether there is any pending message in this manager, including messages that could not
@@ -107,30 +139,149 @@ public class GatewayMessageManager {
    *
    * @return true if not empty.
    */
-  public boolean isEmpty() {
-    return pendingMessages.isEmpty() && checkedMessages.isEmpty();
+  public synchronized boolean isEmpty() {
+    return size == 0;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Add a message (received from Hedwig) into this manager.
+   *
+   * @param msg The message to add.
+   */
+  public PendingMessage putMessage(Message msg) {
+    return putMessage(msg, null, null);
   }
 
   /**
    * Add a message (received from Hedwig) into this manager.
    *
    * @param msg The message to add.
+   * @param callback Hedwig callback to be notified once the message is handled
+   * @param context context of the callback
+   * @return the added message
    */
-  public void putMessage(Message msg) {
-    pendingMessages.add(new PendingMessage(msg));
+  public PendingMessage putMessage(Message msg, Callback<Void> callback, Object context) {
+    // decode outside of the lock
+    GatewayMessage gm = null;
+    try {
+      gm = HedwigMessageHelper.fromHedwigMessage(msg);
+    } catch (Exception e) {
+      LOGGER.error("could not decode message", e);
+    }
+    PendingMessage pm =
+        new PendingMessage(msg, gm, getLockKeyOfMessage(gm), callback, context);
+    synchronized (this) {
+      enqueue(pm);
+    }
+    return pm;
   }
 
   /**
-   * Return the list of files/directories that need to be locked when processing the specified
+   * Add a message (received from Hedwig) that may be a batch of GatewayMessages into this manager.
+   * The GatewayMessages of a batch are put in their order in the batch, and the Hedwig callback is
+   * notified once all of them are handled.
+   *
+   * The returned messages share the same Hedwig message, so they should be polled by poll() instead
+   * of pollMessage().
+   *
+   * @param msg The message to add.
+   * @param callback Hedwig callback to be notified once the message is handled
+   * @param context context of the callback
+   * @return the added messages
+   */
+  public List<PendingMessage> putMessages(Message msg, Callback<Void> callback, Object context) {
+    if (!HedwigMessageHelper.isBatch(msg)) {
+      return Collections.singletonList(putMessage(msg, callback, context));
+    }
+    List<GatewayMessage> gms = null;
+    try {
+      gms = HedwigMessageHelper.fromHedwigBatch(msg);
+    } catch (Exception e) {
+      LOGGER.error("could not decode message batch", e);
+    }
+    if (gms == null) {
+      // handled as one message that could not be decoded
+      gms = Collections.singletonList(null);
+    } else if (gms.isEmpty()) {
+      if (callback != null) {
+        callback.operationFinished(context, null);
+      }
+      return Collections.emptyList();
+    }
+    Callback<Void> batchCallback =
+        callback == null ? null : new BatchCallback(callback, gms.size());
+    List<PendingMessage> pms = new ArrayList<>(gms.size());
+    for (GatewayMessage gm : gms) {
+      pms.add(new PendingMessage(msg, gm, getLockKeyOfMessage(gm), batchCallback, context));
+    }
+    synchronized (this) {
+      for (PendingMessage pm : pms) {
+        enqueue(pm);
+      }
+    }
+    return pms;
+  }
+
+  /**
+   * Notify the callback of a Hedwig message once all GatewayMessages in it are finished.
+   */
+  private static class BatchCallback implements Callback<Void> {
+    private final Callback<Void> callback;
+    private final AtomicInteger remaining;
+
+    BatchCallback(Callback<Void> callback, int count) {
+      this.callback = callback;
+      this.remaining = new AtomicInteger(count);
+    }
+
+    @Override
+    public void operationFinished(Object context, Void result) {
+      if (remaining.decrementAndGet() == 0) {
+        callback.operationFinished(context, result);
+      }
+    }
+
+    @Override
+    public void operationFailed(Object context, PubSubException e) {
+      callback.operationFailed(context, e);
+    }
+  }
+
+  private void enqueue(PendingMessage pm) {
+    ++size;
+    for (LockKey lk : pm.lockKeys) {
+      ArrayDeque<PendingMessage> queue = lockQueues.get(lk);
+      if (queue == null) {
+        queue = new ArrayDeque<>();
+        lockQueues.put(lk, queue);
+      }
+      queue.add(pm);
+      if (queue.size() > 1) {
+        ++pm.blockers;
+      }
+    }
+    if (pm.blockers == 0) {
+      readyMessages.add(pm);
+    }
+  }
+
+  /**
+   * Return the distinct files/directories that need to be locked when processing the specified
    * message. Note the order of the list is should be consistent (parent first) to avoid deadlock.
    *
-   * @param msg
+   * @param gm
    * @return
    */
-  private List<LockKey> getLockKeyOfMessage(Message msg) {
-    List<LockKey> lockKeys = new LinkedList<>();
+  private static List<LockKey> getLockKeyOfMessage(GatewayMessage gm) {
+    if (gm == null) {
+      return Collections.emptyList();
+    }
+    List<LockKey> lockKeys = Collections.emptyList();
     try {
-      GatewayMessage gm = HedwigMessageHelper.fromHedwigMessage(msg);
       switch (gm.getOp_type()) {
         case ACK_MASTER:
         case CLAIM_MASTER:
@@ -171,75 +322,79 @@ public class GatewayMessageManager {
         case REMOVE_VOLUME:
         case RENOUNCE_MASTER:
         default:
-          LOGGER.error("operation %s not supported yet", gm.getOp_type());
+          LOGGER.error("operation {} not supported yet", gm.getOp_type());
           break;
       }
     } catch (Exception e) {
       LOGGER.error("could not get LockKey of message", e);
       e.printStackTrace();
     }
-    return lockKeys;
+    // a rename within a directory locks the directory only once
+    return lockKeys.size() > 1 ? new ArrayList<>(new LinkedHashSet<>(lockKeys)) : lockKeys;
   }
 
   /**
-   * Poll if there is a Message to handle.
+   * Poll if there is a message to handle.
    *
-   * @return the next Message to handle, or null if not available.
+   * @return the next message to handle, or null if not available.
    */
-  public Message pollMessage() {
-    Iterator<PendingMessage> it = pendingMessages.iterator();
-    while (it.hasNext()) {
-      PendingMessage pm = it.next();
-      boolean checked = pm.isChecked();
-      Message msg = pm.getMessage();
-
-      // check whether all locks are acquired
-      boolean allLocksAcquired = true;
-      List<LockKey> lockKeys = getLockKeyOfMessage(msg);
-      Iterator<LockKey> lkIt1 = lockKeys.iterator();
-      while (lkIt1.hasNext()) {
-        LockKey lk = lkIt1.next();
-        List<Message> msgList = checkedMessages.get(lk);
-        if (msgList == null) {
-          msgList = new LinkedList<Message>();
-          checkedMessages.put(lk, msgList);
-        }
-        if (!checked) {
-          msgList.add(msg);
-        }
-        if (msgList.get(0) != msg) {
-          allLocksAcquired = false;
-        }
-      }
-      pm.setChecked();
+  public synchronized PendingMessage poll() {
+    return readyMessages.poll();
+  }
 
-      if (allLocksAcquired) {
-        it.remove();
-        return msg;
-      }
+  /**
+   * Poll if there is a Message to handle. The returned Message should be ended by
+   * endMessage(Message).
+   *
+   * @return the next Message to handle, or null if not available.
+   */
+  public synchronized Message pollMessage() {
+    PendingMessage pm = readyMessages.poll();
+    if (pm == null) {
+      return null;
     }
-
-    return null;
+    runningMessages.put(pm.msg, pm);
+    return pm.msg;
   }
 
   /**
    * Mark the completion of the specified message.
    *
-   * @param msg The completed message.
+   * @param msg The completed message returned by pollMessage().
+   */
+  public synchronized void endMessage(Message msg) {
+    PendingMessage pm = runningMessages.remove(msg);
+    if (pm == null) {
+      LOGGER.error("message is not being processed: {}", msg.getMsgId());
+      return;
+    }
+    endMessage(pm);
+  }
+
+  /**
+   * Mark the completion of the specified message, which releases its locks.
+   *
+   * @param pm The completed message returned by poll().
+   * @return whether any message becomes ready to be handled.
    */
-  public void endMessage(Message msg) {
-    List<LockKey> lockKeys = getLockKeyOfMessage(msg);
-    Iterator<LockKey> it = lockKeys.iterator();
-    while (it.hasNext()) {
-      LockKey lk = it.next();
-      List<Message> msgList = checkedMessages.get(lk);
-      assert (msgList != null);
-      if (!msgList.remove(msg)) {
-        LOGGER.error("message does not exist: {}", lk);
+  public synchronized boolean endMessage(PendingMessage pm) {
+    boolean unblocked = false;
+    for (LockKey lk : pm.lockKeys) {
+      ArrayDeque<PendingMessage> queue = lockQueues.get(lk);
+      if (queue == null || queue.peek() != pm) {
+        LOGGER.error("message does not hold lock: {}", lk);
+        continue;
       }
-      if (msgList.isEmpty()) {
-        checkedMessages.remove(lk);
+      queue.poll();
+      PendingMessage next = queue.peek();
+      if (next == null) {
+        lockQueues.remove(lk);
+      } else if (--next.blockers == 0) {
+        readyMessages.add(next);
+        unblocked = true;
       }
     }
+    --size;
+    return unblocked;
   }
 }
@@ -10,6 +10,7 @@
  */
 package edu.stonybrook.kurma.replicator;
 
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hedwig.client.HedwigClient;
@@ -59,6 +60,8 @@ public final class KurmaReplicator implements IReplicator {
   private AtomicInteger sent = new AtomicInteger();
   private AtomicInteger failed = new AtomicInteger();
 
+  private final MessageBatcher batcher;
+
   public KurmaReplicator(IGatewayConfig gateway, HedwigClient hc, MessageHandler handler,
       ClientMessageFilter filter) throws Exception {
     this.gateway = gateway;
@@ -71,6 +74,8 @@ public final class KurmaReplicator implements IReplicator {
 
     this.handler = handler;
     this.filter = filter;
+    this.batcher = new MessageBatcher(gateway.getReplicationBatchDelay(),
+        gateway.getReplicationBatchSize(), this::publish);
 
     initPubSub();
   }
@@ -95,21 +100,50 @@ public final class KurmaReplicator implements IReplicator {
 
   @Override
   public boolean broadcast(GatewayMessage msg) {
-    publisher.asyncPublish(topic, HedwigMessageHelper.toHedwigMessage(msg), new Callback<Void>() {
-      @Override
-      public void operationFailed(Object context, PubSubException e) {
-        failed.incrementAndGet();
-        e.printStackTrace();
-      }
-
-      @Override
-      public void operationFinished(Object context, Void arg1) {
-        sent.incrementAndGet();
-      }
-    }, this);
+    batcher.add(msg);
     return true;
   }
 
+  /**
+   * Publish a batch of messages as one Hedwig message.
+   *
+   * @param messages the messages to publish
+   * @param count number of broadcast messages in the batch, which can be larger than the size of
+   *        the batch because of merged updates
+   */
+  private void publish(List<GatewayMessage> messages, int count) {
+    if (messages.size() > 1) {
+      LOGGER.debug("publishing {} messages in a batch", messages.size());
+    }
+    publisher.asyncPublish(topic, HedwigMessageHelper.toHedwigMessage(messages),
+        new Callback<Void>() {
+          @Override
+          public void operationFailed(Object context, PubSubException e) {
+            failed.addAndGet(count);
+            e.printStackTrace();
+          }
+
+          @Override
+          public void operationFinished(Object context, Void arg1) {
+            sent.addAndGet(count);
+          }
+        }, this);
+  }
+
+  /**
+   * Publish pending messages without waiting for the batch delay.
+   */
+  public void flush() {
+    batcher.flush();
+  }
+
+  /**
+   * Publish pending messages and stop batching. The Hedwig client should be closed afterwards.
+   */
+  public void close() {
+    batcher.shutdown();
+  }
+
   @Override
   public String getReplicationId() {
     // For now, let's use one single global replication ID, instead of
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.replicator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.stonybrook.kurma.message.GatewayMessage;
+import edu.stonybrook.kurma.message.OperationType;
+import edu.stonybrook.kurma.message.UpdateFile;
+import edu.stonybrook.kurma.meta.ObjectAttributes;
+
+/**
+ * Coalesce consecutive outgoing GatewayMessages into batches so that they can be published and
+ * compressed together.
+ *
+ * A batch is published once its oldest message has waited for the batch delay, or once its size
+ * reaches the cap. The size of a batch counts one for each message plus one for each block version
+ * the message carries. An UPDATE_FILE message is merged into the previous message of the batch if
+ * that one updates the adjacent range of the same file, which turns a large sequential write into a
+ * single update. Only the last message of a batch is considered for merging, so the messages are
+ * published in the order they were added.
+ *
+ * Batches are published by a single thread in the order they were formed.
+ *
+ * @author mchen
+ *
+ */
+public class MessageBatcher {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MessageBatcher.class);
+  private static final int SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+  private final long delayMs;
+  private final int maxSize;
+
+  /**
+   * Receives each batch and the number of messages added into it (before merging).
+   */
+  private final BiConsumer<List<GatewayMessage>, Integer> publisher;
+
+  private final ScheduledExecutorService executor;
+
+  private List<GatewayMessage> batch = new ArrayList<>();
+  private int batchSize = 0;
+  private int batchCount = 0;
+  // whether the last message of the batch is a merged copy owned by this batcher
+  private boolean tailMerged = false;
+  private ScheduledFuture<?> flushTask = null;
+
+  /**
+   * @param delayMs max milliseconds a message waits for others to join its batch; zero disables
+   *        batching
+   * @param maxSize cap of the size of a batch
+   * @param publisher publishes a batch given the number of messages added into it
+   */
+  public MessageBatcher(long delayMs, int maxSize,
+      BiConsumer<List<GatewayMessage>, Integer> publisher) {
+    this.delayMs = delayMs;
+    this.maxSize = maxSize;
+    this.publisher = publisher;
+    if (isEnabled()) {
+      executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "replication-batcher");
+        t.setDaemon(true);
+        return t;
+      });
+    } else {
+      executor = null;
+    }
+  }
+
+  public boolean isEnabled() {
+    return delayMs > 0 && maxSize > 1;
+  }
+
+  public void add(GatewayMessage msg) {
+    if (!isEnabled()) {
+      publisher.accept(Collections.singletonList(msg), 1);
+      return;
+    }
+    synchronized (this) {
+      if (executor.isShutdown()) {
+        publisher.accept(Collections.singletonList(msg), 1);
+        return;
+      }
+      int last = batch.size() - 1;
+      GatewayMessage merged = last < 0 ? null : merge(batch.get(last), msg, tailMerged);
+      if (merged != null) {
+        batch.set(last, merged);
+        tailMerged = true;
+      } else {
+        batch.add(msg);
+        tailMerged = false;
+      }
+      batchSize += sizeOf(msg);
+      ++batchCount;
+      if (batchSize >= maxSize) {
+        submit();
+      } else if (flushTask == null) {
+        flushTask = executor.schedule(this::flush, delayMs, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Publish the pending batch, if any, without waiting for the batch delay.
+   */
+  public synchronized void flush() {
+    if (!batch.isEmpty()) {
+      submit();
+    }
+  }
+
+  /**
+   * Publish the pending batch and wait for the publishing thread to finish. Messages added
+   * afterwards are published by the caller's thread.
+   */
+  public void shutdown() {
+    if (!isEnabled()) {
+      return;
+    }
+    synchronized (this) {
+      flush();
+      executor.shutdown();
+    }
+    try {
+      if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        LOGGER.warn("timed out publishing pending messages");
+      }
+    } catch (InterruptedException e) {
+      LOGGER.warn("interrupted while publishing pending messages");
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Hand over the current batch to the publishing thread. The caller holds the lock, so batches are
+   * queued in the order they are formed.
+   */
+  private void submit() {
+    final List<GatewayMessage> messages = batch;
+    final int count = batchCount;
+    batch = new ArrayList<>();
+    batchSize = 0;
+    batchCount = 0;
+    tailMerged = false;
+    if (flushTask != null) {
+      flushTask.cancel(false);
+      flushTask = null;
+    }
+    executor.execute(() -> publisher.accept(messages, count));
+  }
+
+  static int sizeOf(GatewayMessage msg) {
+    if (msg.getOp_type() == OperationType.UPDATE_FILE && msg.isSetOp()) {
+      return 1 + msg.getOp().getUpdate_file().getNew_versionsSize();
+    }
+    return 1;
+  }
+
+  /**
+   * Merge two UPDATE_FILE messages if the second one updates the range that immediately follows the
+   * range of the first one. The receiver consumes one new version for every block overlapping the
+   * range, so the ranges are merged only if they meet at a block boundary.
+   *
+   * @param prev the earlier message
+   * @param next the later message
+   * @param inPlace whether prev can be modified
+   * @return the merged message, or null if the two cannot be merged
+   */
+  static GatewayMessage merge(GatewayMessage prev, GatewayMessage next, boolean inPlace) {
+    if (prev.getOp_type() != OperationType.UPDATE_FILE
+        || next.getOp_type() != OperationType.UPDATE_FILE || prev.getGwid() != next.getGwid()
+        || prev.getFlags() != next.getFlags()
+        || !Objects.equals(prev.getVolumeid(), next.getVolumeid())) {
+      return null;
+    }
+    UpdateFile uf1 = prev.getOp().getUpdate_file();
+    UpdateFile uf2 = next.getOp().getUpdate_file();
+    if (!uf1.isSetFile_oid() || !uf1.getFile_oid().equals(uf2.getFile_oid())
+        || !uf1.isSetNew_attrs() || !uf2.isSetNew_attrs()) {
+      return null;
+    }
+    ObjectAttributes attrs = uf2.getNew_attrs();
+    if (!attrs.isSetBlock_shift() || !uf1.getNew_attrs().isSetBlock_shift()
+        || attrs.getBlock_shift() != uf1.getNew_attrs().getBlock_shift()) {
+      return null;
+    }
+    int blockShift = attrs.getBlock_shift();
+    long end = uf1.getOffset() + uf1.getLength();
+    if (end != uf2.getOffset() || (end & ((1L << blockShift) - 1)) != 0
+        || uf1.getNew_versionsSize() != countBlocks(uf1, blockShift)
+        || uf2.getNew_versionsSize() != countBlocks(uf2, blockShift)
+        || uf1.isSetNew_timestamps() != uf2.isSetNew_timestamps()) {
+      return null;
+    }
+
+    GatewayMessage merged = prev;
+    UpdateFile uf = uf1;
+    if (!inPlace) {
+      uf = new UpdateFile();
+      uf.setFile_oid(uf1.getFile_oid());
+      uf.setOffset(uf1.getOffset());
+      uf.setNew_versions(new ArrayList<>(uf1.getNew_versions()));
+      if (uf1.isSetNew_timestamps()) {
+        uf.setNew_timestamps(new ArrayList<>(uf1.getNew_timestamps()));
+      }
+      merged = new GatewayMessage(prev.getGwid(), prev.getVolumeid(), prev.getTimestamp(),
+          prev.getFlags(), prev.getOp_type(), KurmaOperations.newOperation(uf),
+          prev.getSeq_number());
+    }
+    uf.setLength(uf1.getLength() + uf2.getLength());
+    uf.getNew_versions().addAll(uf2.getNew_versions());
+    if (uf2.isSetNew_timestamps()) {
+      uf.getNew_timestamps().addAll(uf2.getNew_timestamps());
+    }
+    // the attributes of the later update supersede those of the earlier one
+    uf.setNew_attrs(attrs);
+    merged.setTimestamp(next.getTimestamp());
+    return merged;
+  }
+
+  private static long countBlocks(UpdateFile uf, int blockShift) {
+    if (uf.getLength() <= 0) {
+      return 0;
+    }
+    long first = uf.getOffset() >> blockShift;
+    long last = (uf.getOffset() + uf.getLength() - 1) >> blockShift;
+    return last - first + 1;
+  }
+}
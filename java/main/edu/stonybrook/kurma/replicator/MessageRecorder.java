@@ -25,7 +25,7 @@ import edu.stonybrook.kurma.message.GatewayMessage;
 
 public class MessageRecorder implements MessageHandler {
   private final static Logger LOGGER = LoggerFactory.getLogger(MessageRecorder.class);
-  private final LinkedBlockingQueue<Message> messages = new LinkedBlockingQueue<>();
+  private final LinkedBlockingQueue<GatewayMessage> messages = new LinkedBlockingQueue<>();
 
   @Override
   public void deliver(ByteString topic, ByteString subscriberId, Message msg,
@@ -33,10 +33,16 @@ public class MessageRecorder implements MessageHandler {
     new Thread(new Runnable() {
       @Override
       public void run() {
-        if (messages.offer(msg)) {
-          LOGGER.debug("a new message received");
-        } else {
-          LOGGER.error("failed to insert message");
+        try {
+          for (GatewayMessage gm : HedwigMessageHelper.fromHedwigBatch(msg)) {
+            if (messages.offer(gm)) {
+              LOGGER.debug("a new message received");
+            } else {
+              LOGGER.error("failed to insert message");
+            }
+          }
+        } catch (Exception e) {
+          LOGGER.error("could not decode message", e);
         }
       }
     }).start();
@@ -48,8 +54,7 @@ public class MessageRecorder implements MessageHandler {
   }
 
   public GatewayMessage popMessage() throws Exception {
-    Message msg = messages.take();
-    return HedwigMessageHelper.fromHedwigMessage(msg);
+    return messages.take();
   }
 
 }
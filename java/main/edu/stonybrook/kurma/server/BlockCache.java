@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+import edu.stonybrook.kurma.meta.ObjectID;
+
+/**
+ * A bounded cache of decrypted block data that sits in front of BlockExecutor reads.
+ *
+ * Blocks are identified by the same (oid, offset, version, gateway) tuple that BlockKeyGenerator
+ * hashes into cloud keys. Because the version is part of the key, a cached block can never be
+ * served after its version is bumped; explicit invalidation only releases the memory early.
+ */
+public class BlockCache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(BlockCache.class);
+
+  private final Cache<BlockId, byte[]> cache;
+
+  private final long capacity;
+
+  private final AtomicLong bytes = new AtomicLong(0);
+
+  static final class BlockId {
+    private final ObjectID oid;
+    private final long offset;
+    private final long version;
+    private final short gateway;
+
+    BlockId(ObjectID oid, long offset, long version, short gateway) {
+      this.oid = oid;
+      this.offset = offset;
+      this.version = version;
+      this.gateway = gateway;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(oid, offset, version, gateway);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof BlockId)) {
+        return false;
+      }
+      BlockId other = (BlockId) obj;
+      return offset == other.offset && version == other.version && gateway == other.gateway
+          && oid.equals(other.oid);
+    }
+  }
+
+  /**
+   * @param capacity max number of bytes of block data to be cached; zero disables the cache.
+   */
+  public BlockCache(long capacity) {
+    this.capacity = capacity;
+    if (capacity <= 0) {
+      cache = null;
+      return;
+    }
+    RemovalListener<BlockId, byte[]> listener = new RemovalListener<BlockId, byte[]>() {
+      @Override
+      public void onRemoval(RemovalNotification<BlockId, byte[]> notification) {
+        bytes.addAndGet(-notification.getValue().length);
+      }
+    };
+    Weigher<BlockId, byte[]> weigher = new Weigher<BlockId, byte[]>() {
+      @Override
+      public int weigh(BlockId key, byte[] value) {
+        return value.length;
+      }
+    };
+    cache = CacheBuilder.newBuilder().maximumWeight(capacity).weigher(weigher)
+        .removalListener(listener).recordStats().build();
+  }
+
+  public boolean isEnabled() {
+    return cache != null;
+  }
+
+  static BlockId idOf(FileBlock block) {
+    return new BlockId(block.getFileHandler().getOid(), block.getOffset(), block.getVersion(),
+        block.getGateway());
+  }
+
+  public byte[] get(ObjectID oid, long offset, long version, short gateway) {
+    return cache == null ? null : cache.getIfPresent(new BlockId(oid, offset, version, gateway));
+  }
+
+  /**
+   * Check whether a block is cached without affecting the cache statistics.
+   */
+  public boolean contains(ObjectID oid, long offset, long version, short gateway) {
+    return cache != null && cache.asMap().containsKey(new BlockId(oid, offset, version, gateway));
+  }
+
+  public void put(ObjectID oid, long offset, long version, short gateway, byte[] data) {
+    if (cache != null) {
+      bytes.addAndGet(data.length);
+      cache.put(new BlockId(oid, offset, version, gateway), data);
+    }
+  }
+
+  public void invalidate(ObjectID oid, long offset, long version, short gateway) {
+    if (cache != null) {
+      cache.invalidate(new BlockId(oid, offset, version, gateway));
+    }
+  }
+
+  /**
+   * Fill blocks from the cache.
+   *
+   * @param blocks blocks whose value buffers are to be filled
+   * @return blocks that are not found in the cache and need to be read from the clouds
+   */
+  public List<FileBlock> load(List<FileBlock> blocks) {
+    if (cache == null) {
+      return blocks;
+    }
+    List<FileBlock> misses = new ArrayList<>(blocks.size());
+    for (FileBlock block : blocks) {
+      byte[] data = block.isHole() ? null : cache.getIfPresent(idOf(block));
+      if (data == null || data.length != block.getLength()) {
+        misses.add(block);
+        continue;
+      }
+      ByteBuffer dst = block.getValue().duplicate();
+      dst.reset();
+      dst.put(data);
+      block.setLoaded(true);
+    }
+    LOGGER.debug("{} of {} blocks found in block cache", blocks.size() - misses.size(),
+        blocks.size());
+    return misses;
+  }
+
+  /**
+   * Save the decrypted data of loaded blocks into the cache. File holes are ignored.
+   */
+  public void store(Collection<FileBlock> blocks) {
+    if (cache == null) {
+      return;
+    }
+    for (FileBlock block : blocks) {
+      if (block.isHole() || !block.isLoaded()) {
+        continue;
+      }
+      ByteBuffer src = block.getValue().duplicate();
+      src.reset();
+      byte[] data = new byte[block.getLength()];
+      src.get(data);
+      bytes.addAndGet(data.length);
+      cache.put(idOf(block), data);
+    }
+  }
+
+  public void invalidateAll(Collection<FileBlock> blocks) {
+    if (cache == null) {
+      return;
+    }
+    for (FileBlock block : blocks) {
+      cache.invalidate(idOf(block));
+    }
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return number of bytes of block data currently cached.
+   */
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  public CacheStats getStats() {
+    return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+  }
+}
@@ -15,11 +15,15 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,16 +35,26 @@ public class BlockExecutor {
   private static final Logger LOGGER = LoggerFactory.getLogger(BlockExecutor.class);
 
   public static final int THREAD_POOL_SIZE = 16;
+  public static final int PREFETCH_THREAD_POOL_SIZE = 4;
+  public static final int PREFETCH_QUEUE_SIZE = 64;
   public static final int TIME_OUT_SECONDS = 300;
 
   private ExecutorService executor;
 
+  /**
+   * Background readers, separated from "executor" so that read-ahead never delays foreground
+   * requests. Its queue is bounded so that read-ahead is dropped when the clouds cannot keep up.
+   */
+  private ThreadPoolExecutor prefetcher;
+
   public enum ActionType {
     READ, WRITE, DELETE
   };
 
   public BlockExecutor() {
     executor = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+    prefetcher = new ThreadPoolExecutor(PREFETCH_THREAD_POOL_SIZE, PREFETCH_THREAD_POOL_SIZE, 0L,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(PREFETCH_QUEUE_SIZE));
   }
 
   private Callable<Entry<Boolean, FileBlock>> createAction(FileBlock block,
@@ -107,6 +121,68 @@ public class BlockExecutor {
     return execute(blocks, ae, kvs, ActionType.READ, TIME_OUT_SECONDS);
   }
 
+  /**
+   * Whether the background readers are too busy to take more read-ahead.
+   */
+  public boolean isPrefetcherSaturated() {
+    return prefetcher.getQueue().remainingCapacity() == 0;
+  }
+
+  /**
+   * Read blocks in the background without waiting for them. Blocks that cannot be queued because
+   * the background readers are saturated or shut down are dropped.
+   *
+   * @param onLoaded called with each block that is successfully read
+   * @param onDone called with each block once it is read, failed, dropped, or discarded by
+   *        {@link #shutdownPrefetcher()}, so that the caller can release its buffer
+   */
+  public void prefetch(List<FileBlock> blocks, AuthenticatedEncryption ae, KvsFacade kvs,
+      Consumer<FileBlock> onLoaded, Consumer<FileBlock> onDone) {
+    for (FileBlock block : blocks) {
+      try {
+        prefetcher.execute(new Prefetch(block, ae, kvs, onLoaded, onDone));
+      } catch (RejectedExecutionException e) {
+        LOGGER.debug("dropped read-ahead of {}", block);
+        onDone.accept(block);
+      }
+    }
+  }
+
+  private static class Prefetch implements Runnable {
+    private final FileBlock block;
+    private final AuthenticatedEncryption ae;
+    private final KvsFacade kvs;
+    private final Consumer<FileBlock> onLoaded;
+    private final Consumer<FileBlock> onDone;
+
+    Prefetch(FileBlock block, AuthenticatedEncryption ae, KvsFacade kvs,
+        Consumer<FileBlock> onLoaded, Consumer<FileBlock> onDone) {
+      this.block = block;
+      this.ae = ae;
+      this.kvs = kvs;
+      this.onLoaded = onLoaded;
+      this.onDone = onDone;
+    }
+
+    @Override
+    public void run() {
+      try {
+        Entry<Boolean, FileBlock> res = new BlockReader(block, ae, kvs).call();
+        if (res.getKey()) {
+          onLoaded.accept(res.getValue());
+        }
+      } catch (Exception e) {
+        LOGGER.debug("failed to prefetch {}", block, e);
+      } finally {
+        onDone.accept(block);
+      }
+    }
+
+    void discard() {
+      onDone.accept(block);
+    }
+  }
+
   public boolean write(List<FileBlock> blocks, AuthenticatedEncryption ae, KvsFacade kvs) {
     return execute(blocks, ae, kvs, ActionType.WRITE, TIME_OUT_SECONDS);
   }
@@ -131,4 +207,15 @@ public class BlockExecutor {
     }
     return res;
   }
+
+  /**
+   * Stop the background readers when the volume goes away. Queued read-ahead is discarded, and
+   * read-ahead in progress is interrupted. The foreground executor is left running because the
+   * garbage collector keeps using it.
+   */
+  public void shutdownPrefetcher() {
+    for (Runnable r : prefetcher.shutdownNow()) {
+      ((Prefetch) r).discard();
+    }
+  }
 }
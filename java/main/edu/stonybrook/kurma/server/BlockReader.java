@@ -43,8 +43,9 @@ public class BlockReader implements Callable<Entry<Boolean, FileBlock>> {
     if (!block.isHole()) {
       try {
         String key = new String(BaseEncoding.base64Url().encode(block.getKey()));
+        ByteBuffer ad = ByteBuffer.allocate(FileBlock.ADDITIONAL_DATA_LENGTH);
         ByteBuffer value = kvs.get(key, (k, v) -> {
-          ByteBuffer ad = ByteBuffer.allocate(FileBlock.ADDITIONAL_DATA_LENGTH);
+          ad.clear();
           ad.mark();
           try {
             block.resetValueBuffer();
@@ -63,6 +64,8 @@ public class BlockReader implements Callable<Entry<Boolean, FileBlock>> {
         }
         LOGGER.debug("finish reading none-hole {}: {}", block,
             (value == null ? "null" : LoggingUtils.hash(value)));
+        // The ciphertext has been decrypted into the block by the validator.
+        KvsFacade.getBufferPool().release(value);
       } catch (Exception e) {
         LOGGER.error("BlockReader failed", e);
         return new AbstractMap.SimpleEntry<Boolean, FileBlock>(false, block);
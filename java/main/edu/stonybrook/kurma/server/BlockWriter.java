@@ -38,25 +38,48 @@ public class BlockWriter implements Callable<Entry<Boolean, FileBlock>> {
     this.kvs = kvs;
   }
 
-  @Override
-  public Entry<Boolean, FileBlock> call() throws Exception {
-    int encryptedSize =
-        aeCipher.getEncryptOutputLength(block.getLength() + FileBlock.ADDITIONAL_DATA_LENGTH);
+  /**
+   * Allocate a buffer to hold "size" bytes of encrypted data to be put into the facade.
+   */
+  public static ByteBuffer allocateCipherBuffer(KvsFacade kvs, int size) {
     byte[] cipherBuffer = null;
     if (kvs instanceof SecretSharingFacade) {
       SecretSharingFacade ssf = (SecretSharingFacade) kvs;
-      cipherBuffer = new byte[ssf.getSecretSharingCodec().getAlignedSecretSize(encryptedSize)];
+      cipherBuffer = new byte[ssf.getSecretSharingCodec().getAlignedSecretSize(size)];
     } else {
-      cipherBuffer = new byte[encryptedSize];
+      cipherBuffer = new byte[size];
     }
-    ByteBuffer encrypted = ByteBuffer.wrap(cipherBuffer, 0, encryptedSize);
+    return ByteBuffer.wrap(cipherBuffer, 0, size);
+  }
+
+  public String getBlockKey() {
+    return new String(BaseEncoding.base64Url().encode(block.getKey()));
+  }
+
+  /**
+   * Encrypt the block.
+   *
+   * @return the encrypted block, which is ready to be put into the facade
+   * @throws Exception
+   */
+  public ByteBuffer encrypt() throws Exception {
+    int encryptedSize =
+        aeCipher.getEncryptOutputLength(block.getLength() + FileBlock.ADDITIONAL_DATA_LENGTH);
+    ByteBuffer encrypted = allocateCipherBuffer(kvs, encryptedSize);
     ByteBuffer ad = ByteBuffer.wrap(block.getAdditionalData());
+    // Encrypt a duplicate so that the block value can be encrypted again, e.g., when a staged
+    // write falls back to write-through.
+    aeCipher.authenticatedEncrypt(block.getValue().duplicate(), ad, block.getIv(), encrypted);
+    encrypted.rewind();
+    return encrypted;
+  }
+
+  @Override
+  public Entry<Boolean, FileBlock> call() throws Exception {
     try {
-      aeCipher.authenticatedEncrypt(block.getValue(), ad, block.getIv(), encrypted);
-      String key = new String(BaseEncoding.base64Url().encode(block.getKey()));
-      encrypted.rewind();
-      kvs.put(key, encrypted);
-      LOGGER.debug("finish writing {}: {}", block, LoggingUtils.hash(cipherBuffer));
+      ByteBuffer encrypted = encrypt();
+      kvs.put(getBlockKey(), encrypted);
+      LOGGER.debug("finish writing {}: {}", block, LoggingUtils.hash(encrypted.array()));
     } catch (Exception e) {
       LOGGER.error("BlockWriter failed", e);
       return new AbstractMap.SimpleEntry<Boolean, FileBlock>(false, block);
@@ -15,8 +15,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.NavigableSet;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -39,12 +41,14 @@ import edu.stonybrook.kurma.helpers.DirectoryHelper;
 import edu.stonybrook.kurma.helpers.ObjectIdHelper;
 import edu.stonybrook.kurma.helpers.TWrapper;
 import edu.stonybrook.kurma.meta.DirEntry;
+import edu.stonybrook.kurma.meta.DirShard;
 import edu.stonybrook.kurma.meta.Directory;
 import edu.stonybrook.kurma.meta.KeyMap;
 import edu.stonybrook.kurma.meta.ObjectAttributes;
 import edu.stonybrook.kurma.meta.ObjectID;
 import edu.stonybrook.kurma.transaction.KurmaTransaction;
 import edu.stonybrook.kurma.transaction.ZkClient;
+import edu.stonybrook.kurma.util.ThriftUtils;
 
 public class DirectoryHandler extends AbstractHandler<Directory> {
   private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryHandler.class);
@@ -54,8 +58,24 @@ public class DirectoryHandler extends AbstractHandler<Directory> {
 
   private final IGatewayConfig config;
 
+  public static final String SHARD_PREFIX = "SHARD.";
+
   private AtomicReference<ConcurrentHashMap<String, DirEntry>> children;
 
+  // Persistent entries of a sharded directory, indexed by shardOf(name); empty if the entries
+  // are kept in the directory znode. Guarded by wrapper.
+  private List<TWrapper<DirShard>> shards = new ArrayList<>();
+
+  // Shards merged back into the directory znode whose znodes are to be deleted by the next
+  // persist. Guarded by wrapper.
+  private List<TWrapper<DirShard>> mergedShards = new ArrayList<>();
+
+  // Names of the children in order, updated along with children for paged listings.
+  private volatile ConcurrentSkipListSet<String> childNames = new ConcurrentSkipListSet<>();
+
+  // Bumped after every change of children; used to validate the dentries cached in VolumeHandler.
+  private final AtomicLong childrenVersion = new AtomicLong(0);
+
   /*
    * We want to allow simultaneous operations on directory only if those operations are from local
    * gateway. We want remote operation on dir executed exclusively to avoid race condition described
@@ -168,6 +188,7 @@ public class DirectoryHandler extends AbstractHandler<Directory> {
       synchronized (wrapper) {
         wrapper.read(zkClient);
         assert (ObjectIdHelper.equals(oldOid, getOid()));
+        _loadShards();
         _refreshChildren();
       }
     } catch (CuratorException e) {
@@ -191,7 +212,7 @@ public class DirectoryHandler extends AbstractHandler<Directory> {
     DirLockHolder lock = lockDirRead();
     try {
       synchronized (wrapper) {
-        wrapper.persist(zkClient, false);
+        _persist();
       }
     } catch (Exception e) {
       LOGGER.error("could not save directory", e);
@@ -217,6 +238,15 @@ public class DirectoryHandler extends AbstractHandler<Directory> {
           return false;
         }
         KurmaTransaction txn = zkClient.newTransaction();
+        for (TWrapper<DirShard> shard : shards) {
+          if (shard.isExist()) {
+            shard.delete(txn);
+          }
+        }
+        for (TWrapper<DirShard> shard : mergedShards) {
+          shard.delete(txn);
+        }
+        mergedShards.clear();
         res = wrapper.delete(txn);
         zkClient.submitTransaction(txn);
         volumeHandler.decrementObjectCount();
@@ -459,20 +489,18 @@ public class DirectoryHandler extends AbstractHandler<Directory> {
         LOGGER.warn("{} already exists in directory '{}'", name, get().name);
         break;
       }
+      childNames.add(name);
+      _childChanged(name);
 
       LOGGER.info("adding {} into directory {}: {}", name, get().getOid(),
           children.get().hashCode());
       try {
         synchronized (wrapper) {
           // update metadata in ZK
-          if (!update().isSetEntries()) {
-            update().setEntries(new ArrayList<DirEntry>());
-          }
-          update().entries.add(dentry);
+          _addEntry(dentry);
           get().attrs.nlinks += 1;
           _updateTimestamps();
-          // wrapper.write(client);
-          res = wrapper.write(txn);
+          res = _persist(txn);
         }
       } catch (Exception e) {
         // TODO Try removing this, try existing unit tests
@@ -586,7 +614,7 @@ public class DirectoryHandler extends AbstractHandler<Directory> {
       long start = System.nanoTime();
       // TODO Should we sync entire block?
       synchronized (wrapper) {
-        wrapper.persist(zkClient, false);
+        _persist();
       }
 
       _collectChildEntry(dentry);
@@ -654,19 +682,21 @@ public class DirectoryHandler extends AbstractHandler<Directory> {
    * @return The old entry associated with the name if any; otherwise, return null.
    */
   private DirEntry _putChildEntry(String name, DirEntry newEntry) {
-    Directory dir = update();
     DirEntry oldEntry = children.get().put(name, newEntry);
+    _childChanged(name);
     if (oldEntry != null) {
       if (ObjectIdHelper.isDirectory(oldEntry.getOid())
           && volumeHandler.getDirectoryHandler(oldEntry.getOid()).getChildrenCount() > 0) {
         children.get().put(name, oldEntry);
+        _childChanged(name);
         return null;
       }
-      dir.entries.remove(oldEntry);
+      _removeEntry(oldEntry);
     } else {
+      childNames.add(name);
       update().attrs.nlinks += 1;
     }
-    dir.entries.add(newEntry);
+    _addEntry(newEntry);
     _updateTimestamps();
     return oldEntry;
   }
@@ -681,10 +711,10 @@ public class DirectoryHandler extends AbstractHandler<Directory> {
   private DirEntry _removeChildEntry(String name) {
     DirEntry oldEntry = children.get().remove(name);
     if (oldEntry != null) {
-      Directory dir = update();
-      // AlgorithmUtils.unorderedRemove(dir.entries, oldEntry);
-      dir.entries.remove(oldEntry);
-      dir.attrs.nlinks -= 1;
+      childNames.remove(name);
+      _childChanged(name);
+      _removeEntry(oldEntry);
+      update().attrs.nlinks -= 1;
       _updateTimestamps();
     }
     return oldEntry;
@@ -824,11 +854,11 @@ public class DirectoryHandler extends AbstractHandler<Directory> {
       // TODO Verify location of sync block
       synchronized (wrapper) {
         if (this == dstDh) {
-          wrapper.persist(zkClient, false);
+          _persist();
         } else {
           Preconditions.checkState(!ObjectIdHelper.equals(get().oid, dstDh.get().oid));
           KurmaTransaction txn = zkClient.newTransaction();
-          if (wrapper.write(txn) && dstDh.wrapper.write(txn)) {
+          if (_persist(txn) && dstDh._persist(txn)) {
             zkClient.submitTransaction(txn);
           } else {
             throw new CuratorException("cannot update directory after renaming file");
@@ -890,9 +920,45 @@ public class DirectoryHandler extends AbstractHandler<Directory> {
     return entries;
   }
 
-  public DirEntry lookup(String name) {
-    // Hold read lock
+  /**
+   * List a page of children in the order of their names.
+   *
+   * The cursor is the name of the last entry of the previous page, so paging is stable under
+   * concurrent changes: entries that exist during the whole listing are returned exactly once.
+   *
+   * @param cookie name of the last entry of the previous page; null or empty to start from the
+   *        beginning
+   * @param maxEntries max number of entries in the page
+   * @return children whose names are greater than the cookie
+   */
+  public List<DirEntry> list(String cookie, int maxEntries) {
+    List<DirEntry> page = new ArrayList<>();
     DirLockHolder lock = lockDirRead();
+    try {
+      NavigableSet<String> names = childNames;
+      if (cookie != null && !cookie.isEmpty()) {
+        names = names.tailSet(cookie, false);
+      }
+      ConcurrentHashMap<String, DirEntry> entries = children.get();
+      for (String name : names) {
+        if (page.size() >= maxEntries) {
+          break;
+        }
+        DirEntry entry = entries.get(name);
+        if (entry != null) {
+          page.add(entry);
+        }
+      }
+    } finally {
+      lock.release();
+    }
+    return page;
+  }
+
+  /**
+   * Look up a child by name. A found child is also cached in the dentry cache of the volume.
+   */
+  public DirEntry lookup(String name) {
     if (".".equals(name)) {
       DirEntry dentry = new DirEntry();
       dentry.setName(name);
@@ -907,24 +973,218 @@ public class DirectoryHandler extends AbstractHandler<Directory> {
       dentry.setTimestamp(get().getAttrs().getCreate_time());
       return dentry;
     }
+    long version = childrenVersion.get();
+    // Hold read lock
+    DirLockHolder lock = lockDirRead();
     DirEntry dirEntry = children.get().get(name);
     lock.release();
+    if (dirEntry != null) {
+      volumeHandler.cacheDentry(getOid(), dirEntry);
+      // A change racing with the lookup may have invalidated the entry before we cached it.
+      if (childrenVersion.get() != version) {
+        volumeHandler.invalidateDentry(getOid(), name);
+      }
+    }
     return dirEntry;
   }
 
+  /**
+   * @return a number that changes whenever a child is added, removed, or replaced.
+   */
+  public long getChildrenVersion() {
+    return childrenVersion.get();
+  }
+
+  /**
+   * Called after the child of the given name is changed in children. The version has to be bumped
+   * before the cached lookup results are invalidated for the checks of lookups to be race-free.
+   */
+  private void _childChanged(String name) {
+    childrenVersion.incrementAndGet();
+    volumeHandler.invalidateDentry(getOid(), name);
+    volumeHandler.invalidateNegativeObject(getOid(), name);
+  }
+
   private void _refreshChildren() {
     Preconditions.checkNotNull(get().entries);
     ConcurrentHashMap<String, DirEntry> newChildren = new ConcurrentHashMap<>();
     for (DirEntry entry : get().entries) {
       newChildren.put(entry.name, entry);
     }
-    children.set(newChildren);
+    for (TWrapper<DirShard> shard : shards) {
+      for (DirEntry entry : shard.get().entries) {
+        newChildren.put(entry.name, entry);
+      }
+    }
+    ConcurrentHashMap<String, DirEntry> oldChildren = children.getAndSet(newChildren);
+    childNames = new ConcurrentSkipListSet<>(newChildren.keySet());
+    childrenVersion.incrementAndGet();
+    for (String name : oldChildren.keySet()) {
+      volumeHandler.invalidateDentry(getOid(), name);
+    }
+    for (String name : newChildren.keySet()) {
+      volumeHandler.invalidateDentry(getOid(), name);
+    }
   }
 
   @Override
   public List<String> getSubpaths() {
-    // Directory does not have any subpath, so we return an empty list.
-    return new ArrayList<String>();
+    List<String> subpaths = new ArrayList<>();
+    int nshards;
+    synchronized (wrapper) {
+      nshards = get().getNshards();
+    }
+    for (int i = 0; i < nshards; ++i) {
+      subpaths.add(getShardZpath(i));
+    }
+    return subpaths;
+  }
+
+  public String getShardZpath(int index) {
+    return String.format("%s/%s%04d", getZpath(), SHARD_PREFIX, index);
+  }
+
+  public boolean isSharded() {
+    synchronized (wrapper) {
+      return !shards.isEmpty();
+    }
+  }
+
+  static int shardOf(String name, int nshards) {
+    return Math.floorMod(name.hashCode(), nshards);
+  }
+
+  private TWrapper<DirShard> newShard(int index, boolean isNew) {
+    DirShard shard = new DirShard();
+    shard.setEntries(new ArrayList<DirEntry>());
+    return new TWrapper<>(getShardZpath(index), shard, config.compressMetadata(), !isNew);
+  }
+
+  /**
+   * Add an entry to the persistent metadata: the directory znode of a small directory, or the
+   * shard the name hashes to. A directory growing beyond the threshold is split into shards.
+   */
+  private void _addEntry(DirEntry dentry) {
+    synchronized (wrapper) {
+      if (!shards.isEmpty()) {
+        shards.get(shardOf(dentry.getName(), shards.size())).update().entries.add(dentry);
+        return;
+      }
+      if (!update().isSetEntries()) {
+        update().setEntries(new ArrayList<DirEntry>());
+      }
+      update().entries.add(dentry);
+      if (get().entries.size() > config.getDirectoryShardThreshold()) {
+        _splitIntoShards();
+      }
+    }
+  }
+
+  /**
+   * Remove an entry from the persistent metadata. A sharded directory shrinking to half of the
+   * threshold is merged back into the directory znode.
+   */
+  private void _removeEntry(DirEntry dentry) {
+    synchronized (wrapper) {
+      if (shards.isEmpty()) {
+        update().entries.remove(dentry);
+      } else {
+        shards.get(shardOf(dentry.getName(), shards.size())).update().entries.remove(dentry);
+        _mergeShardsIfSmall();
+      }
+    }
+  }
+
+  /**
+   * Merge the shards back into the directory znode once they hold no more than half of the
+   * threshold, so that a directory hovering around the threshold is not split and merged back
+   * over and over. The caller should hold the wrapper lock.
+   */
+  private void _mergeShardsIfSmall() {
+    int n = 0;
+    for (TWrapper<DirShard> shard : shards) {
+      n += shard.get().entries.size();
+    }
+    if (n > config.getDirectoryShardThreshold() / 2) {
+      return;
+    }
+    LOGGER.info("merging {} shards of directory {} with {} entries", shards.size(), getOid(), n);
+    List<DirEntry> entries = new ArrayList<>(n);
+    for (TWrapper<DirShard> shard : shards) {
+      entries.addAll(shard.get().entries);
+      if (shard.isExist()) {
+        mergedShards.add(shard);
+      }
+    }
+    shards = new ArrayList<>();
+    update().setEntries(entries);
+    update().unsetNshards();
+  }
+
+  private void _splitIntoShards() {
+    int nshards = config.getDirectoryShards();
+    LOGGER.info("splitting directory {} with {} entries into {} shards", getOid(),
+        get().entries.size(), nshards);
+    for (int i = 0; i < nshards; ++i) {
+      TWrapper<DirShard> shard = newShard(i, true);
+      shard.setDirty(true);
+      shards.add(shard);
+    }
+    for (DirEntry dentry : get().entries) {
+      shards.get(shardOf(dentry.getName(), nshards)).get().entries.add(dentry);
+    }
+    update().setEntries(new ArrayList<DirEntry>());
+    update().setNshards(nshards);
+  }
+
+  /**
+   * Read all shards of a sharded directory in parallel. The caller should hold the wrapper lock.
+   */
+  private void _loadShards() throws CuratorException {
+    shards = new ArrayList<>();
+    int nshards = get().getNshards();
+    if (nshards <= 0) {
+      return;
+    }
+    List<String> zpaths = getSubpaths();
+    try {
+      byte[][] data = zkClient.readAll(zpaths);
+      for (int i = 0; i < nshards; ++i) {
+        TWrapper<DirShard> shard = newShard(i, false);
+        ThriftUtils.decode(data[i], shard.get(), config.compressMetadata());
+        shards.add(shard);
+      }
+    } catch (Exception e) {
+      shards = new ArrayList<>();
+      if (e instanceof KeeperException.NoNodeException) {
+        throw new NoZNodeException(((KeeperException) e).getPath(), e);
+      }
+      throw new CuratorException(String.format("could not read shards of %s", getZpath()), e);
+    }
+  }
+
+  /**
+   * Add the directory znode and the changed shards into the transaction. The caller should hold
+   * the wrapper lock.
+   */
+  private boolean _persist(KurmaTransaction txn) throws CuratorException {
+    // delete merged shards first in case the directory has been split again since
+    for (TWrapper<DirShard> shard : mergedShards) {
+      shard.delete(txn);
+    }
+    mergedShards.clear();
+    boolean res = wrapper.persist(txn);
+    for (TWrapper<DirShard> shard : shards) {
+      if (res && shard.isDirty()) {
+        res = shard.persist(txn);
+      }
+    }
+    return res;
+  }
+
+  private boolean _persist() throws CuratorException {
+    KurmaTransaction txn = zkClient.newTransaction();
+    return _persist(txn) && zkClient.submitTransaction(txn);
   }
 
   public VolumeHandler getVolumeHandler() {
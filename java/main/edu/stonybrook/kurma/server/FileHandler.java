@@ -13,26 +13,31 @@ package edu.stonybrook.kurma.server;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
+import org.apache.curator.utils.ZKPaths;
 import org.apache.zookeeper.KeeperException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,6 +49,7 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.cache.RemovalCause;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
 
 import edu.stonybrook.kurma.KurmaException.CuratorException;
 import edu.stonybrook.kurma.KurmaException.NoZNodeException;
@@ -51,13 +57,13 @@ import edu.stonybrook.kurma.cloud.KvsFacade;
 import edu.stonybrook.kurma.cloud.KvsManager;
 import edu.stonybrook.kurma.config.IGatewayConfig;
 import edu.stonybrook.kurma.helpers.AttributesHelper;
+import edu.stonybrook.kurma.helpers.BlockMapWrapper;
 import edu.stonybrook.kurma.helpers.BlockMapHelper;
 import edu.stonybrook.kurma.helpers.FileHelper;
 import edu.stonybrook.kurma.helpers.KeyMapHelper;
 import edu.stonybrook.kurma.helpers.ObjectIdHelper;
 import edu.stonybrook.kurma.helpers.SnapshotHelper;
 import edu.stonybrook.kurma.helpers.TWrapper;
-import edu.stonybrook.kurma.meta.BlockMap;
 import edu.stonybrook.kurma.meta.DirEntry;
 import edu.stonybrook.kurma.meta.File;
 import edu.stonybrook.kurma.meta.KeyMap;
@@ -68,10 +74,11 @@ import edu.stonybrook.kurma.transaction.KurmaTransaction;
 import edu.stonybrook.kurma.transaction.ZkClient;
 import edu.stonybrook.kurma.util.AlgorithmUtils;
 import edu.stonybrook.kurma.util.AuthenticatedEncryption;
+import edu.stonybrook.kurma.util.BufferPool;
 import edu.stonybrook.kurma.util.EncryptThenAuthenticate;
 import edu.stonybrook.kurma.util.FileUtils;
 import edu.stonybrook.kurma.util.LoggingUtils;
-import edu.stonybrook.kurma.util.RangeLock;
+import edu.stonybrook.kurma.util.StripedRangeLock;
 import edu.stonybrook.kurma.util.ThriftUtils;
 
 public class FileHandler extends AbstractHandler<File> {
@@ -87,11 +94,12 @@ public class FileHandler extends AbstractHandler<File> {
   public static final int MAX_BLOCK_MAP_LEN_SHIFT = 16;
 
   /**
-   * Max number of BlockMaps to be cached.
+   * Min weight of a cached BlockMap, so that the number of cached BlockMaps is bounded even if they
+   * are small.
    *
-   * We should limit the concurrent threads to access no more than this number of BlockMaps.
+   * We should limit the concurrent threads to access no more than the number of cached BlockMaps.
    */
-  public static final int BLOCK_MAP_CACHE_SIZE = 8;
+  public static final int MIN_BLOCK_MAP_WEIGHT = 1024;
 
   /**
    * Min/Max block size shift.
@@ -99,6 +107,11 @@ public class FileHandler extends AbstractHandler<File> {
   public static final int MIN_BLOCK_SHIFT = 16; // 64KB
   public static final int MAX_BLOCK_SHIFT = 20; // 1MB
 
+  /**
+   * Number of stripes of the range lock; ranges are striped by the min block size.
+   */
+  private static final int RANGE_LOCK_STRIPES = 64;
+
   private ZkClient zkClient = null;
 
   // Each file opener should take a refcount.
@@ -107,7 +120,7 @@ public class FileHandler extends AbstractHandler<File> {
   /**
    * The blockmap that is currently cached. TODO use in combination with curator's NodeCache?
    */
-  private LoadingCache<Long, TWrapper<BlockMap>> blockMaps;
+  private LoadingCache<Long, BlockMapWrapper> blockMaps;
 
   private BlockKeyGenerator blockKeyGen = null;
 
@@ -129,6 +142,29 @@ public class FileHandler extends AbstractHandler<File> {
 
   private BlockExecutor blockExecutor;
 
+  private BlockCache blockCache;
+
+  private ReadAheadWindow readAhead;
+
+  private WriteBackManager writeBack;
+
+  /**
+   * Completes when all blocks of this file that have been staged for write-back are uploaded.
+   */
+  private final AtomicReference<CompletableFuture<Void>> flushed =
+      new AtomicReference<>(CompletableFuture.completedFuture(null));
+
+  /**
+   * Actions waiting for staged blocks to be uploaded, in the order they are to be run.
+   */
+  private final ArrayDeque<Entry<CompletableFuture<Void>, Runnable>> flushActions =
+      new ArrayDeque<>();
+
+  /**
+   * Whether a thread is running flushed actions; protected by flushActions.
+   */
+  private boolean runningFlushActions = false;
+
   public class SnapshotInfo {
     public String name;
     public String description;
@@ -157,9 +193,13 @@ public class FileHandler extends AbstractHandler<File> {
   /**
    * Protects the address space of this file, and the version numbers of the BlockMaps. To avoid
    * deadlock, @rangeLock should be taken before @rwlock in cases where both locks need to be taken.
-   * Also protect the snapshot data blocks.
+   * Also protect the snapshot data blocks. Range locks are owned by threads and must be released
+   * by the thread that took them. Disjoint ranges may share stripes, and stripes cannot be
+   * upgraded from read to write, so a thread must take all the ranges it needs in one call and
+   * must not wait for another range while holding one.
    */
-  private final RangeLock rangeLock = new RangeLock();
+  private final StripedRangeLock rangeLock =
+      new StripedRangeLock(MIN_BLOCK_SHIFT, RANGE_LOCK_STRIPES);
 
   public FileHandler(ObjectID oid, VolumeHandler vh) {
     Preconditions.checkArgument(ObjectIdHelper.isFile(oid));
@@ -169,6 +209,10 @@ public class FileHandler extends AbstractHandler<File> {
     this.zkClient = volumeHandler.getZkClient();
     this.config = vh.getConfig();
     this.blockExecutor = vh.getBlockExecutor();
+    this.blockCache = vh.getBlockCache();
+    this.readAhead =
+        new ReadAheadWindow(blockCache.isEnabled() ? config.getReadAheadMaxBlocks() : 0);
+    this.writeBack = vh.getWriteBackManager();
     this.kvsFacade = vh.getConfig().getDefaultKvsFacade();
 
     setBlockShift(config.getBlockShift());
@@ -177,43 +221,28 @@ public class FileHandler extends AbstractHandler<File> {
   }
 
   private RangeLockHolder lockReadRange(long offset, long length) {
-    synchronized (rangeLock) {
-      while (!rangeLock.lockRead(offset, offset + length)) {
-        try {
-          rangeLock.wait();
-        } catch (InterruptedException e) {
-          LOGGER.debug("waiting for ReadRangeLock is interrupted", e);
-        }
-      }
-    }
+    rangeLock.lockRead(offset, offset + length);
     return new RangeLockHolder(offset, length, true);
   }
 
+  /**
+   * Take the read lock of the range only if it is immediately available.
+   */
+  private boolean tryLockReadRange(long offset, long length) {
+    return rangeLock.tryLockRead(offset, offset + length);
+  }
+
   private void unlockReadRange(long offset, long length) {
-    synchronized (rangeLock) {
-      rangeLock.unlockRead(offset, offset + length);
-      rangeLock.notify();
-    }
+    rangeLock.unlockRead(offset, offset + length);
   }
 
   private RangeLockHolder lockWriteRange(long offset, long length) {
-    synchronized (rangeLock) {
-      while (!rangeLock.lockWrite(offset, offset + length)) {
-        try {
-          rangeLock.wait();
-        } catch (InterruptedException e) {
-          LOGGER.debug("waiting for WriteRangeLock is interrupted", e);
-        }
-      }
-    }
+    rangeLock.lockWrite(offset, offset + length);
     return new RangeLockHolder(offset, length, false);
   }
 
   private void unlockWriteRange(long offset, long length) {
-    synchronized (rangeLock) {
-      rangeLock.unlockWrite(offset, offset + length);
-      rangeLock.notify();
-    }
+    rangeLock.unlockWrite(offset, offset + length);
   }
 
   class RangeLockHolder {
@@ -304,20 +333,20 @@ public class FileHandler extends AbstractHandler<File> {
   }
 
   private void initBlockMapCache() {
-    CacheLoader<Long, TWrapper<BlockMap>> loader = new CacheLoader<Long, TWrapper<BlockMap>>() {
+    CacheLoader<Long, BlockMapWrapper> loader = new CacheLoader<Long, BlockMapWrapper>() {
       @Override
-      public TWrapper<BlockMap> load(Long offset) throws Exception {
-        TWrapper<BlockMap> bm = new TWrapper<BlockMap>(getBlockMapZpath(offset), new BlockMap());
+      public BlockMapWrapper load(Long index) throws Exception {
+        BlockMapWrapper bm = new BlockMapWrapper(getBlockMapZpathByIndex(index));
         bm.read(zkClient);
         return bm;
       }
     };
 
-    RemovalListener<Long, TWrapper<BlockMap>> listener =
-        new RemovalListener<Long, TWrapper<BlockMap>>() {
+    RemovalListener<Long, BlockMapWrapper> listener =
+        new RemovalListener<Long, BlockMapWrapper>() {
           @Override
-          public void onRemoval(RemovalNotification<Long, TWrapper<BlockMap>> notification) {
-            TWrapper<BlockMap> blockMap = notification.getValue();
+          public void onRemoval(RemovalNotification<Long, BlockMapWrapper> notification) {
+            BlockMapWrapper blockMap = notification.getValue();
             try {
               if (notification.getCause() == RemovalCause.SIZE
                   || notification.getCause() == RemovalCause.COLLECTED
@@ -332,8 +361,18 @@ public class FileHandler extends AbstractHandler<File> {
           }
         };
 
-    blockMaps = CacheBuilder.newBuilder().maximumSize(BLOCK_MAP_CACHE_SIZE)
-        .removalListener(listener).build(loader);
+    // Weigh BlockMaps by their in-memory entries so that the number of cached BlockMaps adapts to
+    // the working set: many sequentially written BlockMaps of a few runs each, or a few
+    // fragmented ones.
+    Weigher<Long, BlockMapWrapper> weigher = new Weigher<Long, BlockMapWrapper>() {
+      @Override
+      public int weigh(Long index, BlockMapWrapper bm) {
+        return Integer.max(bm.getFootprint(), MIN_BLOCK_MAP_WEIGHT);
+      }
+    };
+
+    blockMaps = CacheBuilder.newBuilder().maximumWeight(config.getBlockMapCacheSize())
+        .weigher(weigher).removalListener(listener).build(loader);
   }
 
   public boolean create(ObjectID parentOid, String name, ObjectAttributes attrs) {
@@ -401,7 +440,7 @@ public class FileHandler extends AbstractHandler<File> {
       res = wrapper.create(txn);
       _createFileKey(fileKey, keymap, txn);
 
-      TWrapper<BlockMap> bmWrapper = addNewBlockMap(0L);
+      BlockMapWrapper bmWrapper = addNewBlockMap(0L);
       blockMaps.put(0L, bmWrapper);
       bmWrapper.create(txn);
 
@@ -439,6 +478,14 @@ public class FileHandler extends AbstractHandler<File> {
     // RangeLockHolder rangeLockHolder = lockWriteRange(0, getFileSize());
     FileLockHolder fileLockHolder = lockFileWrite();
     try {
+      // read the key map in parallel with the file main znode
+      TWrapper<KeyMap> kmWrapper = null;
+      CompletableFuture<Boolean> kmRead = null;
+      if (config.useKeyMap()) {
+        kmWrapper = new TWrapper<>(getKeyMapZpath(), new KeyMap(), false, true);
+        kmRead = kmWrapper.readAsync(zkClient);
+      }
+
       // load file main znode
       ObjectID oldOid = getOid();
       if (!wrapper.read(zkClient)) {
@@ -449,7 +496,7 @@ public class FileHandler extends AbstractHandler<File> {
         setBlockShift(get().attrs.block_shift);
 
         // load the key file and snapshots
-        res = loadKey() && _loadSnapshots();
+        res = loadKey(kmWrapper, kmRead) && _loadSnapshots();
 
         setKvsFacade(FileUtils.getFileKvsFacade(get(), volumeHandler.getFacadeManager()));
         setLoaded(res);
@@ -508,16 +555,12 @@ public class FileHandler extends AbstractHandler<File> {
       // writes
       for (String sn : snapshotNames) {
         Snapshot snapshot = SnapshotHelper.readSnapshot(zkClient, getSnapshotZpath(sn));
-        Iterator<Long> ver_it = snapshot.getBlocks().getVersionsIterator();
-        Iterator<Short> gw_it = snapshot.getBlocks().getLast_modifierIterator();
-        int limit = java.lang.Math.min(snapshot.getBlocks().getVersionsSize(), nblocks);
-        for (int i = 0; i < limit; ++i) {
-          Entry<Long, Short> ver_gw = _getBlockVersion(i, false);
-          Long ver = ver_it.next();
-          Short gw = gw_it.next();
-          if (ver.equals(ver_gw.getKey()) && gw.equals(ver_gw.getValue())) {
-            snapshotBlocks.set(i);
-          }
+        // a snapshot saves only the first BlockMap (see _takeSnapshot), so only its blocks can be
+        // shared with the snapshot
+        BlockMapWrapper current = _getBlockMap(0, false);
+        if (current != null) {
+          current.markSameBlocks(new BlockMapWrapper(getBlockMapZpath(0), snapshot.getBlocks()),
+              nblocks, snapshotBlocks, true);
         }
         SnapshotInfo info = new SnapshotInfo();
         info.name = sn;
@@ -530,7 +573,7 @@ public class FileHandler extends AbstractHandler<File> {
         snapshotsById.put(snapshot.getId(), info);
         maxSnapshotId = Math.max(maxSnapshotId, snapshot.getId());
       }
-    } catch (CuratorException e) {
+    } catch (CuratorException | ExecutionException e) {
       e.printStackTrace();
       LOGGER.error("Failed to load snapshots", e);
       return false;
@@ -546,12 +589,7 @@ public class FileHandler extends AbstractHandler<File> {
       if (isDirty()) {
         wrapper.write(txn);
       }
-      for (long l = getBlockMapCount() - 1; l >= 0; --l) {
-        TWrapper<BlockMap> bm = blockMaps.getIfPresent(l);
-        if (bm != null && bm.isDirty()) {
-          bm.persist(txn);
-        }
-      }
+      _persistDirtyBlockMaps(txn);
       zkClient.submitTransaction(txn);
     } catch (Exception e) {
       LOGGER.error("could not flush dirty data to ZK", e);
@@ -605,12 +643,14 @@ public class FileHandler extends AbstractHandler<File> {
     return fileKey;
   }
 
-  private boolean loadKey() {
+  /**
+   * @param kmWrapper the key map being read by kmRead if key maps are used; null otherwise
+   */
+  private boolean loadKey(TWrapper<KeyMap> kmWrapper, CompletableFuture<Boolean> kmRead) {
     try {
       SecretKey fileKey = null;
-      if (config.useKeyMap()) {
-        TWrapper<KeyMap> kmWrapper = new TWrapper<>(getKeyMapZpath(), new KeyMap(), false, true);
-        kmWrapper.read(zkClient);
+      if (kmWrapper != null) {
+        zkClient.await(kmRead);
         fileKey = KeyMapHelper.readKeyMap(kmWrapper.get(), config);
       } else {
         fileKey = new SecretKeySpec(wrapper.get().getKey(), EncryptThenAuthenticate.ENCRYPT_ALGORITHM);
@@ -643,24 +683,23 @@ public class FileHandler extends AbstractHandler<File> {
       if (snapshots != null && !snapshots.isEmpty()) {
         for (String sn : snapshots.keySet()) {
           Snapshot snapshot = SnapshotHelper.readSnapshot(zkClient, getSnapshotZpath(sn));
-          Iterator<Long> ver_it = snapshot.getBlocks().getVersionsIterator();
-          Iterator<Short> gw_it = snapshot.getBlocks().getLast_modifierIterator();
-          for (long l = 0; ver_it.hasNext(); ++l) {
-            Long ver = ver_it.next();
-            Short gw = gw_it.next();
-            blocks.add(new FileBlock(this, l << blockShift, blockSize, ver, gw));
+          BlockMapWrapper saved = new BlockMapWrapper(getBlockMapZpath(0), snapshot.getBlocks());
+          for (int i = 0; i < saved.size(); ++i) {
+            blocks.add(new FileBlock(this, (i + 0L) << blockShift, blockSize, saved.getVersion(i),
+                saved.getModifier(i)));
           }
           txn.delete(getSnapshotZpath(sn));
         }
         txn.delete(getSnapshotZpath(null));
       }
 
-      for (int i = 0; i < getBlockMapCount(); ++i) {
-        txn.delete(getBlockMapZpath((1L << blockMapShift) * i));
+      for (String zpath : listBlockMapZpaths()) {
+        txn.delete(zpath);
       }
+      blockMaps.invalidateAll();
 
       LOGGER.info("DELETION: collecting old blocks {}", blocks);
-      volumeHandler.getGarbageCollector().collectBlocks(blocks);
+      _discardBlocks(blocks);
       volumeHandler.decrementObjectCount();
 
       txn.delete(getKeyMapZpath());
@@ -681,13 +720,11 @@ public class FileHandler extends AbstractHandler<File> {
     return Long.numberOfTrailingZeros(n) >= blockShift;
   }
 
-  private TWrapper<BlockMap> addNewBlockMap(long offset) {
+  private BlockMapWrapper addNewBlockMap(long offset) {
     long bmOffset = offset >> blockMapShift;
-    TWrapper<BlockMap> bmWrapper = new TWrapper<BlockMap>(getBlockMapZpath(offset), new BlockMap(), true, false);
-    BlockMap bm = bmWrapper.update();
-    bm.setVersions(new ArrayList<Long>());
-    bm.setLast_modifier(new ArrayList<Short>());
-    bm.offset = bmOffset << MAX_BLOCK_MAP_LEN_SHIFT;
+    BlockMapWrapper bmWrapper =
+        new BlockMapWrapper(getBlockMapZpathByIndex(bmOffset), bmOffset << blockMapShift);
+    bmWrapper.setDirty(true);
     blockMaps.put(bmOffset, bmWrapper);
     return bmWrapper;
   }
@@ -699,10 +736,10 @@ public class FileHandler extends AbstractHandler<File> {
    * @return BlockMap contains the block
    * @throws ExecutionException
    */
-  public TWrapper<BlockMap> _getBlockMap(long offset, boolean createIfNotExist)
+  public BlockMapWrapper _getBlockMap(long offset, boolean createIfNotExist)
       throws ExecutionException {
     long bmOffset = offset >> blockMapShift;
-    TWrapper<BlockMap> bmWrapper = null;
+    BlockMapWrapper bmWrapper = null;
     try {
       bmWrapper = blockMaps.get(bmOffset);
     } catch (ExecutionException e) {
@@ -723,35 +760,41 @@ public class FileHandler extends AbstractHandler<File> {
   }
 
   /**
-   * Save both file attributes and block maps to Zookeeper.
+   * Save both file attributes and block maps to Zookeeper. The changes are journaled right away,
+   * but committed into ZooKeeper only after the blocks staged for write-back so far are uploaded,
+   * so that ZooKeeper never refers to blocks that are not in the clouds.
    *
    * @throws Exception
    */
   private void _saveToZk() throws Exception {
-    try {
-      if (!get().isSetKvs_type()) {
-        File f = update();
-        f.setKvs_type(kvsFacade.getKvsType());
-        f.setKvs_ids(KvsManager.kvsListToString(kvsFacade.getKvsList()));
-      }
-      KurmaTransaction txn = zkClient.newTransaction();
-      TWrapper<BlockMap> bmWrapper = _getBlockMap(0L, true);
-      if (wrapper.write(txn) && bmWrapper.persist(txn)) {
-        zkClient.submitTransaction(txn);
-      } else {
-        throw new CuratorException("cannot save to ZK");
-      }
-    } catch (Exception e) {
-      if (e.getCause() instanceof KeeperException.NoNodeException) {
-        KurmaTransaction txn = zkClient.newTransaction();
-        TWrapper<BlockMap> bmWrapper = _getBlockMap(0L, true);
-        if (wrapper.write(txn) && bmWrapper.create(txn)) {
-          zkClient.submitTransaction(txn);
-        }
-      } else {
-        throw e;
+    if (!get().isSetKvs_type()) {
+      File f = update();
+      f.setKvs_type(kvsFacade.getKvsType());
+      f.setKvs_ids(KvsManager.kvsListToString(kvsFacade.getKvsList()));
+    }
+    KurmaTransaction txn = zkClient.newTransaction();
+    CompletableFuture<Void> uploaded = flushed.get();
+    if (!uploaded.isDone()) {
+      txn.commitAfter(uploaded);
+    }
+    if (wrapper.write(txn) && _persistDirtyBlockMaps(txn)) {
+      zkClient.submitTransaction(txn);
+    } else {
+      throw new CuratorException("cannot save to ZK");
+    }
+  }
+
+  /**
+   * Add the cached BlockMaps that have been changed to the transaction. A BlockMap whose znode
+   * does not exist yet is created.
+   */
+  private boolean _persistDirtyBlockMaps(KurmaTransaction txn) throws CuratorException {
+    for (BlockMapWrapper bm : blockMaps.asMap().values()) {
+      if (bm.isDirty() && !bm.persist(txn)) {
+        return false;
       }
     }
+    return true;
   }
 
   public boolean save() {
@@ -796,12 +839,9 @@ public class FileHandler extends AbstractHandler<File> {
     long blkBeg = begin >> blockShift;
     long blkEnd = (validEnd - 1) >> blockShift;
     List<FileBlock> blocks = new ArrayList<FileBlock>((int) (blkEnd - blkBeg + 1));
-    for (long i = blkBeg; i <= blkEnd; ++i) {
-      if (excludeSnapshot && snapshotBlocks != null && snapshotBlocks.get((int) i)) {
-        continue;
-      }
+    for (long i = blkBeg; i <= blkEnd;) {
       long offset = (i << blockShift);
-      TWrapper<BlockMap> bm = null;
+      BlockMapWrapper bm = null;
       try {
         bm = _getBlockMap(offset, false);
       } catch (ExecutionException e) {
@@ -810,9 +850,21 @@ public class FileHandler extends AbstractHandler<File> {
         System.exit(1);
       }
       int index = getBlockMapIndex(offset);
-      long ver = bm.get().getVersions().get(index);
-      short gw = bm.get().getLast_modifier().get(index);
-      blocks.add(new FileBlock(this, offset, blockSize, ver, gw));
+      long ver = 0;
+      short gw = 0;
+      long n = 1;
+      if (index < bm.size()) {
+        // blocks of the same run share the version of block i
+        ver = bm.getVersion(index);
+        gw = bm.getModifier(index);
+        n = Long.min(bm.getRunEnd(index) - index, blkEnd + 1 - i);
+      }
+      for (long runEnd = i + n; i < runEnd; ++i) {
+        if (excludeSnapshot && snapshotBlocks != null && snapshotBlocks.get((int) i)) {
+          continue;
+        }
+        blocks.add(new FileBlock(this, i << blockShift, blockSize, ver, gw));
+      }
     }
     return blocks;
   }
@@ -827,14 +879,14 @@ public class FileHandler extends AbstractHandler<File> {
   }
 
   private Entry<Long, Short> _getBlockVersion(long offset, boolean createIfNotExist) {
-    Long version = 0l;
-    Short gw = 0;
+    long version = 0;
+    short gw = 0;
     try {
-      TWrapper<BlockMap> bm = _getBlockMap(offset, createIfNotExist);
+      BlockMapWrapper bm = _getBlockMap(offset, createIfNotExist);
       int i = getBlockMapIndex(offset);
-      if (bm.get().versions != null && bm.get().versions.size() > i) {
-        version = bm.get().versions.get(i);
-        gw = bm.get().last_modifier.get(i);
+      if (bm.size() > i) {
+        version = bm.getVersion(i);
+        gw = bm.getModifier(i);
       }
       if (version < 0 && createIfNotExist) {
         version ^= (1L << 63);
@@ -930,10 +982,18 @@ public class FileHandler extends AbstractHandler<File> {
 
         List<FileBlock> blocks =
             _breakBufferIntoBlocks(offset, length, datasize, ByteBuffer.wrap(buffer), false);
-        if (!blockExecutor.read(blocks, aeCipher, kvsFacade)) {
+        if (!_loadBlocks(blocks)) {
           LOGGER.error("read failed {}", ObjectIdHelper.getShortId(getOid()));
           return null;
         }
+
+        if (readAhead.isEnabled()) {
+          Entry<Long, Long> ahead = readAhead.onRead(offset, length, blockShift,
+              ReadAheadWindow.getReadLatency(kvsFacade), datasize);
+          if (ahead != null) {
+            _readAhead(ahead.getKey(), ahead.getValue());
+          }
+        }
       }
 
       rwlock.writeLock().lock();
@@ -958,6 +1018,130 @@ public class FileHandler extends AbstractHandler<File> {
     return null;
   }
 
+  /**
+   * Prefetch the blocks in [begin, end) into the block cache in the background. The caller should
+   * NOT hold the file lock. Nothing is prefetched if any part of the range is being written.
+   *
+   * @param begin start offset of the range to prefetch
+   * @param end end offset of the range to prefetch, which should not exceed the data size
+   */
+  private void _readAhead(long begin, long end) {
+    if (blockExecutor.isPrefetcherSaturated()) {
+      LOGGER.debug("skip read-ahead of [{}, {}) because the prefetcher is saturated", begin, end);
+      return;
+    }
+    begin = roundDown(begin);
+    if (!tryLockReadRange(begin, end - begin)) {
+      LOGGER.debug("skip read-ahead of [{}, {}) that is being written", begin, end);
+      return;
+    }
+    List<FileBlock> blocks = new ArrayList<FileBlock>();
+    BufferPool bufferPool = KvsFacade.getBufferPool();
+    try {
+      for (long off = begin; off < end; off += blockSize) {
+        Entry<Long, Short> pair = _getBlockVersion(off, false);
+        long version = pair.getKey();
+        short gw = pair.getValue();
+        if (version <= 0 || blockCache.contains(getOid(), off, version, gw)
+            || writeBack.contains(getOid(), off, version, gw)) {
+          continue;
+        }
+        int len = (int) Long.min(blockSize, end - off);
+        blocks.add(new FileBlock(this, off, len, version, gw, bufferPool.allocate(len), false));
+      }
+    } finally {
+      unlockReadRange(begin, end - begin);
+    }
+    if (!blocks.isEmpty()) {
+      LOGGER.debug("{}: reading ahead {} blocks at {}", this, blocks.size(), begin);
+      // the block cache keeps its own copy, so the buffer is released whatever the outcome
+      blockExecutor.prefetch(blocks, aeCipher, kvsFacade,
+          block -> blockCache.store(Collections.singletonList(block)),
+          block -> bufferPool.release(block.getValue()));
+    }
+  }
+
+  /**
+   * Load blocks from the block cache, the write-back staging area, or the clouds, in that order.
+   */
+  private boolean _loadBlocks(List<FileBlock> blocks) {
+    List<FileBlock> misses = writeBack.load(blockCache.load(blocks));
+    if (misses.isEmpty()) {
+      return true;
+    }
+    if (!blockExecutor.read(misses, aeCipher, kvsFacade)) {
+      return false;
+    }
+    blockCache.store(misses);
+    return true;
+  }
+
+  /**
+   * Release blocks that are no longer used by the file.
+   */
+  private void _discardBlocks(Collection<FileBlock> blocks) {
+    blockCache.invalidateAll(blocks);
+    writeBack.discard(blocks);
+    volumeHandler.getGarbageCollector().collectBlocks(blocks);
+  }
+
+  /**
+   * Upload blocks to the clouds, or stage them in the write-back journal if possible.
+   */
+  private boolean _writeBlocks(List<FileBlock> blocks) {
+    CompletableFuture<Void> staged = writeBack.stage(blocks, aeCipher, kvsFacade);
+    if (staged != null) {
+      flushed.updateAndGet(f -> f.isDone() ? staged : CompletableFuture.allOf(f, staged));
+      return true;
+    }
+    return blockExecutor.write(blocks, aeCipher, kvsFacade);
+  }
+
+  /**
+   * Run an action once all blocks written so far are uploaded to the clouds. Actions run in the
+   * order they are registered; an action runs immediately if there is neither a block waiting to
+   * be uploaded nor an earlier action waiting to run.
+   */
+  public void whenFlushed(Runnable action) {
+    CompletableFuture<Void> f = flushed.get();
+    synchronized (flushActions) {
+      flushActions.add(new AbstractMap.SimpleEntry<>(f, action));
+    }
+    f.whenComplete((r, e) -> _runFlushActions());
+  }
+
+  /**
+   * Run flushed actions at the head of the queue. CompletableFuture runs dependent actions in no
+   * particular order, so actions are not chained onto the futures directly. Actions run outside
+   * the queue lock, by one thread at a time so that they stay in order; a thread that finds
+   * another one running leaves the newly flushed actions to it.
+   */
+  private void _runFlushActions() {
+    List<Runnable> actions = new ArrayList<>();
+    while (true) {
+      synchronized (flushActions) {
+        if (actions.isEmpty() && runningFlushActions) {
+          return;
+        }
+        actions.clear();
+        while (!flushActions.isEmpty() && flushActions.peek().getKey().isDone()) {
+          actions.add(flushActions.poll().getValue());
+        }
+        runningFlushActions = !actions.isEmpty();
+        if (!runningFlushActions) {
+          return;
+        }
+      }
+      for (Runnable action : actions) {
+        try {
+          action.run();
+        } catch (RuntimeException e) {
+          LOGGER.error("failed to run flushed action of " + this, e);
+        }
+      }
+    }
+  }
+
   public boolean write(long offset, ByteBuffer data) {
     return write(offset, data, Optional.empty());
   }
@@ -974,74 +1158,35 @@ public class FileHandler extends AbstractHandler<File> {
   }
 
   /**
-   * Update the version number and last_modifier in the BlockMap. Called as a result of update by
-   * remote gateways.
-   *
-   * TODO restrict write to a single blockmap?
-   *
-   * TODO add journaling of the version updates, which might lose upon crash
-   *
-   * @param offset block-aligned offset in bytes
-   * @param length length of the range to be update (in bytes)
-   * @param gwid GatewayId of the last_modifier
-   * @param newVersions new versions of the update blocks
-   * @throws Exception
+   * @param timestamp write timestamp of the new versions, or zero if unknown
    */
-  public boolean updateBlockVersions(long offset, long length, short gwid,
-      List<Long> newVersions, ObjectAttributes attrs) throws Exception {
-    // We need to enlarge the file size if any block is beyond the size of the file.
-    LOGGER.debug("update block version from gateway replicator: {} {}+", offset, length);
-    boolean res = false;
-    long newFileSize = offset + length;
-    Entry<FileLockHolder, RangeLockHolder> locks = lockForTruncate(newFileSize);
-    RangeLockHolder rangeLockHolder = locks.getValue();
-    FileLockHolder fileLockHolder = locks.getKey();
-    try {
-      if (newFileSize > _getFileSize()) {
-        assert (newFileSize == attrs.getFilesize());
-        // enlarge file size
-        _setDataSize(newFileSize);
-        res = _truncate(newFileSize, true);
-        _updateTimestampsFromRemote(attrs);
-      }
-      if (res) {
-        fileLockHolder.release();
-        _updateBlockVersions(offset, length, gwid, Optional.of(newVersions), true);
-        res = true;
-      }
-    } finally {
-      rangeLockHolder.release();
-      // duplicate release is fine.
-      fileLockHolder.release();
-    }
-    return res;
-  }
-
-  private int _updateBlockVersions(long offset, long length, short gwid,
+  private int _updateBlockVersions(long offset, long length, short gwid, long timestamp,
       Optional<List<Long>> newVersions, boolean createBlockMapIfNotExist) throws Exception {
     AtomicInteger newBlocks = new AtomicInteger(0);
     List<FileBlock> oldBlocks = new ArrayList<FileBlock>();
-    _iterBlocks(offset, length, createBlockMapIfNotExist, (bm, i) -> {
-      int len = bm.versions.size();
-      assert (i < len);
-      Entry<Long, Short> old = BlockMapHelper.incrementVersion(bm, i, gwid);
-      if (old.getKey() > 0) {
-        // Only GC blocks that are not used by any snapshots
-        if (snapshotBlocks == null || i >= snapshotBlocks.size() || !snapshotBlocks.get(i)) {
-          oldBlocks.add(new FileBlock(this, ((i + 0L) << blockShift), blockSize, old.getKey(),
-              old.getValue()));
+    _iterRuns(offset, length, createBlockMapIfNotExist, (bm, begin, end) -> {
+      assert (end <= bm.size());
+      Entry<Long, Short> old =
+          BlockMapHelper.incrementVersions(bm, begin, end, gwid, timestamp);
+      for (int i = begin; i < end; ++i) {
+        if (old.getKey() > 0) {
+          // Only GC blocks that are not used by any snapshots
+          if (snapshotBlocks == null || i >= snapshotBlocks.size() || !snapshotBlocks.get(i)) {
+            oldBlocks.add(new FileBlock(this, ((i + 0L) << blockShift), blockSize, old.getKey(),
+                old.getValue()));
+          }
+        } else {
+          newBlocks.incrementAndGet();
         }
-      } else {
-        newBlocks.incrementAndGet();
+        newVersions.ifPresent(l -> l.add(old.getKey() + 1));
       }
-      if (snapshotBlocks != null && i < snapshotBlocks.size()) {
-        snapshotBlocks.clear(i);
+      if (snapshotBlocks != null) {
+        snapshotBlocks.clear(begin, end);
       }
-      newVersions.ifPresent(l -> l.add(old.getKey() + 1));
       return true;
     });
     LOGGER.info("collecting old blocks {}", oldBlocks);
-    volumeHandler.getGarbageCollector().collectBlocks(oldBlocks);
+    _discardBlocks(oldBlocks);
     return newBlocks.get();
   }
 
@@ -1052,13 +1197,14 @@ public class FileHandler extends AbstractHandler<File> {
    * @param offset block-aligned offset in bytes
    * @param length length of the range to be update (in bytes)
    * @param gwid GatewayId of the last_modifier
-   * @param newVersions new versions of the update blocks
+   * @param newVersion new version of the update blocks
+   * @param timestamp write timestamp of the new version, or zero if unknown
    * @throws Exception
    */
   public boolean _resolveBlockVersions(long offset, long length, short gwid, Long newVersion,
-      ObjectAttributes attrs) {
+      long timestamp, ObjectAttributes attrs) {
     try {
-      _updateBlockVersionToResolveConflict(offset, length, gwid, newVersion, true);
+      _updateBlockVersionToResolveConflict(offset, length, gwid, newVersion, timestamp, true);
       _updateTimestampsFromRemote(attrs);
     } catch (Exception e) {
       LOGGER.error("Unable to update block versions" + e);
@@ -1067,57 +1213,102 @@ public class FileHandler extends AbstractHandler<File> {
   }
 
   private void _updateBlockVersionToResolveConflict(long offset, long length, short gwid,
-      Long newVersion, boolean createBlockMapIfNotExist) throws Exception {
+      Long newVersion, long timestamp, boolean createBlockMapIfNotExist) throws Exception {
     List<FileBlock> oldBlocks = new ArrayList<FileBlock>(1);
     _iterBlocks(offset, length, createBlockMapIfNotExist, (bm, i) -> {
-      int len = bm.versions.size();
-      assert (i < len);
-      Entry<Long, Short> old = BlockMapHelper.updateBlock(bm, i, gwid, newVersion);
+      assert (i < bm.size());
+      Entry<Long, Short> old = BlockMapHelper.updateBlock(bm, i, gwid, newVersion, timestamp);
       oldBlocks.add(new FileBlock(this, offset, blockSize, old.getKey(), old.getValue()));
       return true;
     });
-    volumeHandler.getGarbageCollector().collectBlocks(oldBlocks);
+    _discardBlocks(oldBlocks);
   }
 
   private void _initializeBlockVersions(long offset, long length, short gwid,
       Optional<List<Long>> newVersions) throws Exception {
-    _iterBlocks(offset, length, true, (bm, i) -> {
-      int len = bm.versions.size();
-      assert (len >= i);
-      if (len > i) {
-        long v = bm.versions.get(i);
+    _iterRuns(offset, length, true, (bm, begin, end) -> {
+      int len = bm.size();
+      assert (len >= begin);
+      if (len > begin) {
+        long v = bm.getVersion(begin);
         if (v > 0) {
           final long nv = v ^ (1L << 63);
-          LOGGER.debug("set version of block {} from {} to {}", i, v, nv);
-          bm.versions.set(i, nv);
-          bm.last_modifier.set(i, gwid);
-          newVersions.ifPresent(l -> l.set(i, nv));
+          LOGGER.debug("set version of blocks [{}, {}) from {} to {}", begin, end, v, nv);
+          bm.setBlocks(begin, end, nv, gwid);
+          newVersions.ifPresent(l -> setAll(l, begin, end, nv));
         } else if (v == 0) {
-          newVersions.ifPresent(l -> l.set(i, 0L));
+          newVersions.ifPresent(l -> setAll(l, begin, end, 0L));
         }
-      } else { // len == i
-        assert (len == i);
+      } else { // len == begin
+        assert (len == begin && end == begin + 1);
         // extend the block version array if necessary
-        bm.versions.add(0L);
-        bm.last_modifier.add(gwid);
-        bm.length = bm.versions.size();
+        bm.addBlock(0L, gwid);
         newVersions.ifPresent(l -> l.add(0L));
       }
       return true;
     });
   }
 
+  private static void setAll(List<Long> list, int begin, int end, long value) {
+    for (int i = begin; i < end; ++i) {
+      list.set(i, value);
+    }
+  }
+
   private void _iterBlocks(long offset, long length, boolean createBlockMapIfNotExist,
-      BiFunction<BlockMap, Integer, Boolean> fn) throws Exception {
+      BiFunction<BlockMapWrapper, Integer, Boolean> fn) throws Exception {
+    _iterRuns(offset, length, createBlockMapIfNotExist, (bm, begin, end) -> {
+      for (int i = begin; i < end; ++i) {
+        if (!fn.apply(bm, i)) {
+          return false;
+        }
+      }
+      return true;
+    });
+  }
+
+  /**
+   * A function applied to a range of blocks in a BlockMap.
+   */
+  @FunctionalInterface
+  private interface RunFunction {
+    /**
+     * @param bm the BlockMap of the blocks
+     * @param begin index of the first block
+     * @param end exclusive index of the last block
+     * @return whether to continue the iteration
+     */
+    boolean apply(BlockMapWrapper bm, int begin, int end);
+  }
+
+  /**
+   * Iterate the blocks in [offset, offset + length) by runs, which are ranges of blocks with the
+   * same version, modifier, and timestamp in their BlockMap. A block beyond the end of its BlockMap
+   * is a run of its own.
+   */
+  private void _iterRuns(long offset, long length, boolean createBlockMapIfNotExist,
+      RunFunction fn) throws Exception {
     for (long end = offset + length; offset < end;) {
-      TWrapper<BlockMap> bmWrapper = _getBlockMap(offset, createBlockMapIfNotExist);
-      BlockMap bm = bmWrapper.update();
-      long bmEnd = bm.getOffset() + (1L << blockMapShift);
+      BlockMapWrapper bm = _getBlockMap(offset, createBlockMapIfNotExist);
+      bm.setDirty(true);
+      long bmIndex = offset >> blockMapShift;
+      long bmEnd = (bmIndex + 1) << blockMapShift;
+      int oldFootprint = bm.getFootprint();
       int i = getBlockMapIndex(offset); // index into the block map
-      for (long itEnd = Long.min(bmEnd, end); offset < itEnd; offset += blockSize) {
-        if (!fn.apply(bm, i++)) {
-          return;
-        }
+      int itEnd = i + (int) ((Long.min(bmEnd, end) - offset + blockSize - 1) >> blockShift);
+      boolean more = true;
+      while (more && i < itEnd) {
+        int runEnd = i < bm.size() ? Integer.min(bm.getRunEnd(i), itEnd) : i + 1;
+        more = fn.apply(bm, i, runEnd);
+        offset += (long) (runEnd - i) << blockShift;
+        i = runEnd;
+      }
+      if (bm.getFootprint() != oldFootprint) {
+        // re-weigh the changed BlockMap
+        blockMaps.put(bmIndex, bm);
+      }
+      if (!more) {
+        return;
       }
     }
   }
@@ -1134,6 +1325,17 @@ public class FileHandler extends AbstractHandler<File> {
    */
   public boolean iterBlockForConflictResolve(long offset, long length, ObjectAttributes attrs,
       BiFunction<FileBlock, Short, Boolean> fn) throws Exception {
+    return iterBlockForConflictResolve(offset, length, attrs, fn, () -> true);
+  }
+
+  /**
+   * Same as above, but also call onFinish after all blocks are iterated and before the locks are
+   * released. The local blocks passed to fn carry their timestamps in the BlockMap (zero if
+   * unknown) but no buffers, so that fn can defer reading blocks from the clouds to onFinish, and
+   * read them all in parallel.
+   */
+  public boolean iterBlockForConflictResolve(long offset, long length, ObjectAttributes attrs,
+      BiFunction<FileBlock, Short, Boolean> fn, Supplier<Boolean> onFinish) throws Exception {
     RangeLockHolder rangeLockHolder = null;
     FileLockHolder fileLockHolder = null;
     long newFileSize = offset + length;
@@ -1164,20 +1366,16 @@ public class FileHandler extends AbstractHandler<File> {
         fileLockHolder.release();
       }
       _iterBlocks(offset, length, true, (bm, i) -> {
-        FileBlock fb = null;
-        Entry<Long, Short> blockEntry = BlockMapHelper.getBlockEntry(bm, i);
-        long localBlockVersion = blockEntry.getKey();
-        short gwid = blockEntry.getValue();
-        if (localBlockVersion != 0) {
-          fb = new FileBlock(this, i * blockSize, blockSize, localBlockVersion, gwid,
-              ByteBuffer.wrap(new byte[blockSize]), false);
-        } else {
-          // if block version is zero than we will not read it as it
-          // is considered as file hole
-          fb = new FileBlock(this, i * blockSize, blockSize, localBlockVersion, gwid);
-        }
+        long localBlockVersion = bm.getVersion(i);
+        short gwid = bm.getModifier(i);
+        // a block of version zero is a file hole
+        FileBlock fb = new FileBlock(this, i * blockSize, blockSize, localBlockVersion, gwid);
+        fb.setTimestamp(bm.getTimestamp(i));
         return fn.apply(fb, gwid);
       });
+      if (!onFinish.get()) {
+        return false;
+      }
     } catch (Exception e) {
       LOGGER.error(String.format("Unable to set file size"), e);
       return false;
@@ -1201,14 +1399,37 @@ public class FileHandler extends AbstractHandler<File> {
    *        returns true in case of successful read operation, else false
    */
   public boolean _loadBlockData(FileBlock fb) {
-    if (!blockExecutor.read(Collections.singletonList(fb), aeCipher, kvsFacade)) {
-      LOGGER.error("Unable to read block for conflict detection");
+    return _loadBlocksData(Collections.singletonList(fb));
+  }
+
+  /**
+   * Read the given blocks from the clouds in parallel, used to get the timestamps of conflicting
+   * blocks that are unknown in the metadata.
+   */
+  public boolean _loadBlocksData(List<FileBlock> blocks) {
+    if (blocks.isEmpty()) {
+      return true;
+    }
+    if (!blockExecutor.read(blocks, aeCipher, kvsFacade)) {
+      LOGGER.error("Unable to read blocks for conflict detection");
       return false;
     }
     return true;
   }
 
   public boolean write(long offset, ByteBuffer data, Optional<List<Long>> newVersions) {
+    return write(offset, data, System.currentTimeMillis(), newVersions);
+  }
+
+  /**
+   * Write data at a block-aligned offset.
+   *
+   * @param timestamp write timestamp shared by all written blocks, which is saved in both the
+   *        additional data of the blocks and the BlockMap
+   * @param newVersions if present, receives the new versions of the written blocks
+   */
+  public boolean write(long offset, ByteBuffer data, long timestamp,
+      Optional<List<Long>> newVersions) {
     Preconditions.checkArgument(isBlockAligned(offset));
     boolean res = true;
     int length = data.remaining();
@@ -1219,10 +1440,23 @@ public class FileHandler extends AbstractHandler<File> {
           LoggingUtils.hash(data));
     }
 
-    RangeLockHolder rangeLockHolder = lockWriteRange(offset, length);
-    /* in case we need to fill any file hole */
-    RangeLockHolder holeLockHolder = new RangeLockHolder();
-    FileLockHolder fileLockHolder = lockFileWrite();
+    // In case we need to fill the hole in an unaligned tail, the tail block is locked together with
+    // the written range in one call.
+    long lower = offset;
+    RangeLockHolder rangeLockHolder;
+    FileLockHolder fileLockHolder;
+    while (true) {
+      rangeLockHolder = lockWriteRange(lower, offset + length - lower);
+      fileLockHolder = lockFileWrite();
+      long tail = _getTailToFill(offset);
+      if (tail >= lower) {
+        break;
+      }
+      // The tail is not covered by the range lock; retry with it.
+      fileLockHolder.release();
+      rangeLockHolder.release();
+      lower = tail;
+    }
 
     try {
       long oldFileSize = _getFileSize();
@@ -1249,14 +1483,13 @@ public class FileHandler extends AbstractHandler<File> {
         LOGGER.debug("updating unaligned tail at {}", offset);
         int len = (int) (oldDataSize % blockSize);
         long off = oldDataSize - len;
-        holeLockHolder = lockWriteRange(off, blockSize);
         long ver = _getBlockVersion(off, false).getKey();
         if (ver != 0) {
           FileBlock oldTailBlock = new FileBlock(this, off, blockSize, ver, config.getGatewayId(),
               ByteBuffer.allocate(blockSize), false);
           List<FileBlock> tmp = new ArrayList<>();
           tmp.add(oldTailBlock);
-          if (!blockExecutor.read(tmp, aeCipher, kvsFacade)) {
+          if (!_loadBlocks(tmp)) {
             LOGGER.error("failed to read old tail with hole: {}", oldTailBlock);
             return false;
           }
@@ -1270,7 +1503,10 @@ public class FileHandler extends AbstractHandler<File> {
         }
       }
 
-      res = blockExecutor.write(blocks, aeCipher, kvsFacade);
+      for (FileBlock block : blocks) {
+        block.setTimestamp(timestamp);
+      }
+      res = _writeBlocks(blocks);
       if (!res) {
         for (FileBlock block : blocks) {
           if (block.getOperationResult()) {
@@ -1287,11 +1523,11 @@ public class FileHandler extends AbstractHandler<File> {
       if (updateTail) {
         LOGGER.info("updating version of unaligned tail");
         _updateBlockVersions(oldDataSize & ~(blockSize - 1), blockSize, config.getGatewayId(),
-            Optional.empty(), false);
+            timestamp, Optional.empty(), false);
       }
 
-      int newBlocks =
-          _updateBlockVersions(offset, length, config.getGatewayId(), newVersions, false);
+      int newBlocks = _updateBlockVersions(offset, length, config.getGatewayId(), timestamp,
+          newVersions, false);
       fileLockHolder = lockFileWrite();
       AttributesHelper.addBlocks(update().getAttrs(), newBlocks);
       AttributesHelper.updateModifyTime(update().getAttrs());
@@ -1303,13 +1539,24 @@ public class FileHandler extends AbstractHandler<File> {
       res = false;
     } finally {
       fileLockHolder.release();
-      holeLockHolder.release();
       rangeLockHolder.release();
     }
 
     return res;
   }
 
+  /**
+   * Get the start of the unaligned tail block whose hole needs to be zero-filled by a write at the
+   * given offset, or the offset itself if there is none. The caller should hold the file lock.
+   */
+  private long _getTailToFill(long offset) {
+    long dataSize = _getDataSize();
+    if (offset > dataSize && !isBlockAligned(dataSize)) {
+      return roundDown(dataSize);
+    }
+    return offset;
+  }
+
   /**
    * Grab the locks needed to truncate file size to the specified new size.
    *
@@ -1408,7 +1655,7 @@ public class FileHandler extends AbstractHandler<File> {
       }
 
       if (oldSize > filesize) {
-        volumeHandler.getGarbageCollector().collectBlocks(truncatedBlocks);
+        _discardBlocks(truncatedBlocks);
       } else if (oldSize < filesize) {
         // Initialize blockMap and version number.
         long sz = roundUp(oldSize);
@@ -1534,8 +1781,11 @@ public class FileHandler extends AbstractHandler<File> {
 
   public String getBlockMapZpath(long offset) {
     long bi = offset >> blockShift;
-    long i = bi >> MAX_BLOCK_MAP_LEN_SHIFT;
-    return String.format("%s/%s%08d", getZpath(), BLOCKMAP_PREFIX, i);
+    return getBlockMapZpathByIndex(bi >> MAX_BLOCK_MAP_LEN_SHIFT);
+  }
+
+  public String getBlockMapZpathByIndex(long index) {
+    return String.format("%s/%s%08d", getZpath(), BLOCKMAP_PREFIX, index);
   }
 
   public byte[] getBlockKey(long offsetInFile, long version, short creator) {
@@ -1632,15 +1882,33 @@ public class FileHandler extends AbstractHandler<File> {
   public List<String> getSubpaths() {
     ArrayList<String> subpaths = new ArrayList<>();
     subpaths.add(getKeyMapZpath());
-    int count = getBlockMapCount();
-    for (int i = 1; i <= count; ++i) {
-      subpaths.add(String.format("%s/%s%08d", getZpath(), BLOCKMAP_PREFIX, i));
+    try {
+      subpaths.addAll(listBlockMapZpaths());
+    } catch (Exception e) {
+      LOGGER.error("failed to list BlockMaps of " + this, e);
     }
     return subpaths;
   }
 
-  public int getBlockMapCount() {
-    return (int) ((getFile().attrs.nblocks + MAX_BLOCK_MAP_LENGTH - 1) >> MAX_BLOCK_MAP_LEN_SHIFT);
+  /**
+   * List the zpaths of the BlockMaps saved in ZooKeeper. Only dirty BlockMaps are saved, so their
+   * indices may have gaps.
+   */
+  private List<String> listBlockMapZpaths() throws Exception {
+    zkClient.flush();
+    List<String> zpaths = new ArrayList<>();
+    List<String> children;
+    try {
+      children = zkClient.getCuratorClient().getChildren().forPath(getZpath());
+    } catch (KeeperException.NoNodeException e) {
+      return zpaths;
+    }
+    for (String child : children) {
+      if (child.startsWith(BLOCKMAP_PREFIX)) {
+        zpaths.add(ZKPaths.makePath(getZpath(), child));
+      }
+    }
+    return zpaths;
   }
 
   public boolean isLoaded() {
@@ -1700,8 +1968,9 @@ public class FileHandler extends AbstractHandler<File> {
     int ssid = _getNextSnapshotId();
     Snapshot snapshot = new Snapshot();
     snapshot.setSaved_file(getFile());
-    // TODO support files with multiple BlockMaps
-    snapshot.setBlocks(_getBlockMap(0, false).get());
+    Preconditions.checkState(_getFileSize() <= (1L << blockMapShift),
+        "snapshots of files with multiple BlockMaps are not supported");
+    snapshot.setBlocks(_getBlockMap(0, false).toBlockMap());
     long ts = System.currentTimeMillis();
     snapshot.setCreate_time(ts);
     snapshot.setUpdate_time(ts);
@@ -1812,7 +2081,8 @@ public class FileHandler extends AbstractHandler<File> {
 
     // Set block maps.
     // TODO support multiple block maps
-    TWrapper<BlockMap> blockMapWrapper = new TWrapper<>(getBlockMapZpath(0), snapshot.getBlocks());
+    BlockMapWrapper blockMapWrapper =
+        new BlockMapWrapper(getBlockMapZpath(0), snapshot.getBlocks());
     KurmaTransaction txn = zkClient.newTransaction();
     if (wrapper.write(txn) && blockMapWrapper.write(txn)) {
       zkClient.submitTransaction(txn);
@@ -1920,22 +2190,18 @@ public class FileHandler extends AbstractHandler<File> {
       // Load the snapshot data blocks and find out which of them need to
       // be deleted.
       Snapshot target = SnapshotHelper.readSnapshot(zkClient, getSnapshotZpath(name));
-      int blkcnt = target.getBlocks().getVersionsSize();
+      BlockMapWrapper targetBlocks =
+          new BlockMapWrapper(getBlockMapZpath(0), target.getBlocks());
+      int blkcnt = targetBlocks.size();
       BitSet blocksToDelete = new BitSet(blkcnt);
       blocksToDelete.set(0, blkcnt);
 
       // Mark out the blocks used by the current file content
       // TODO Make it work for multiple block maps
       long limit = Long.min(blkcnt, ((_getFileSize() + (1 << blockShift) - 1) >> blockShift));
-      Iterator<Long> ver_it = target.getBlocks().getVersionsIterator();
-      Iterator<Short> gw_it = target.getBlocks().getLast_modifierIterator();
-      for (long i = 0; i < limit; ++i) {
-        Entry<Long, Short> ver_gw = _getBlockVersion(i << blockShift, false);
-        Long ver = ver_it.next();
-        Short gw = gw_it.next();
-        if (ver.equals(ver_gw.getKey()) && gw.equals(ver_gw.getValue())) {
-          blocksToDelete.clear((int) i);
-        }
+      BlockMapWrapper current = _getBlockMap(0, false);
+      if (current != null) {
+        targetBlocks.markSameBlocks(current, (int) limit, blocksToDelete, false);
       }
 
       // Mark out the blocks used by other snapshots
@@ -1951,26 +2217,16 @@ public class FileHandler extends AbstractHandler<File> {
             continue; // ignore the target snapshot itself
           }
           Snapshot snapshot = SnapshotHelper.readSnapshot(zkClient, getSnapshotZpath(sn));
-          ver_it = target.getBlocks().getVersionsIterator();
-          gw_it = target.getBlocks().getLast_modifierIterator();
-          Iterator<Long> ver_it2 = snapshot.getBlocks().getVersionsIterator();
-          Iterator<Short> gw_it2 = snapshot.getBlocks().getLast_modifierIterator();
-          for (int i = 0; i < Math.min(blkcnt, snapshot.getBlocks().getVersionsSize()); ++i) {
-            Long ver = ver_it.next();
-            Short gw = gw_it.next();
-            Long ver2 = ver_it2.next();
-            Short gw2 = gw_it2.next();
-            if (ver.equals(ver2) && gw.equals(gw2)) {
-              blocksToDelete.clear(i);
-            }
-          }
+          targetBlocks.markSameBlocks(
+              new BlockMapWrapper(getBlockMapZpath(0), snapshot.getBlocks()), blkcnt,
+              blocksToDelete, false);
         }
       }
 
       List<FileBlock> gcBlocks = new ArrayList<>();
       for (int i = blocksToDelete.nextSetBit(0); i >= 0; i = blocksToDelete.nextSetBit(i + 1)) {
         gcBlocks.add(new FileBlock(this, (i + 0L) << blockShift, blockSize,
-            target.getBlocks().getVersions().get(i), target.getBlocks().getLast_modifier().get(i)));
+            targetBlocks.getVersion(i), targetBlocks.getModifier(i)));
       }
       volumeHandler.getGarbageCollector().collectBlocks(gcBlocks);
 
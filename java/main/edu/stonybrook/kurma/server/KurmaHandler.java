@@ -136,6 +136,7 @@ public class KurmaHandler {
     try {
       // TODO remove all directories, files, and data blocks
       volumes.remove(volumeId);
+      vh.shutdown();
       vh.delete();
     } catch (Exception e) {
       LOGGER.error(e.getMessage());
@@ -24,13 +24,11 @@ import org.apache.curator.test.TestingServer;
 import org.apache.hedwig.client.HedwigClient;
 import org.apache.hedwig.client.api.MessageHandler;
 import org.apache.thrift.server.TServer;
-import org.apache.thrift.server.TThreadPoolServer;
-import org.apache.thrift.transport.TServerSocket;
-import org.apache.thrift.transport.TServerTransport;
 import org.apache.thrift.transport.TTransportException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.stonybrook.kurma.cloud.KvsFacade;
 import edu.stonybrook.kurma.config.GatewayConfig;
 import edu.stonybrook.kurma.config.IGatewayConfig;
 import edu.stonybrook.kurma.fs.KurmaService;
@@ -42,10 +40,14 @@ import edu.stonybrook.kurma.replicator.GatewayMessageHandler;
 import edu.stonybrook.kurma.replicator.IReplicator;
 import edu.stonybrook.kurma.replicator.KurmaReplicator;
 import edu.stonybrook.kurma.replicator.NullReplicator;
+import edu.stonybrook.kurma.util.BufferPool;
+import edu.stonybrook.kurma.util.MetadataCodec;
 
 public class KurmaServer {
   private final static int SESSION_RECLAIM_INTERVAL = 5000;
 
+  public final static int SERVER_PORT = 9091;
+
   private final static Logger LOGGER = LoggerFactory.getLogger(KurmaServer.class);
 
   public static KurmaServiceHandler handler;
@@ -80,6 +82,9 @@ public class KurmaServer {
     IGatewayConfig config = null;
     try {
       config = new GatewayConfig(GatewayConfig.KURMA_DEFAULT_CONFIG_FILE);
+      KvsFacade.setBufferPool(new BufferPool(config.getBufferPoolSize()));
+      MetadataCodec.setDefault(MetadataCodec.parse(config.getMetadataCodec()),
+          config.getMetadataRawThreshold());
       CuratorFramework client = buildClient(connectString);
       GarbageCollector gc = new DefaultCollector(client, config);
       ConflictResolver conflictResolver = new ConflictResolver(config);
@@ -92,7 +97,13 @@ public class KurmaServer {
         MessageHandler mh = new GatewayMessageHandler(kh, config.getReplicationThreads());
         HedwigClient hc = new HedwigClient(config.getHedwigConfig());
         GatewayMessageFilter gmf = new GatewayMessageFilter(config.getLocalGateway().getId());
-        replicator = new KurmaReplicator(config, hc, mh, gmf);
+        KurmaReplicator kr = new KurmaReplicator(config, hc, mh, gmf);
+        // publish messages still pending in the batcher before exiting
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+          kr.close();
+          hc.close();
+        }));
+        replicator = kr;
       }
       handler = new KurmaServiceHandler(kh, sm, config, replicator);
 
@@ -102,20 +113,12 @@ public class KurmaServer {
       System.exit(1);
     }
 
-    // final int maxWorkerThreads = config.getMaxServerThreads();
-    // final int requestTimeoutSeconds = config.getRequestTimeoutSeconds();
-
+    final IGatewayConfig serverConfig = config;
     Thread serverThread = new Thread(new Runnable() {
       @Override
       public void run() {
         try {
-          TServerTransport serverTransport = new TServerSocket(9091);
-          TThreadPoolServer.Args args = new TThreadPoolServer.Args(serverTransport);
-          // args = args.maxWorkerThreads(maxWorkerThreads);
-          // args = args.requestTimeoutUnit(TimeUnit.SECONDS);
-          // args = args.requestTimeout(requestTimeoutSeconds);
-
-          TServer server = new TThreadPoolServer(args.processor(processor));
+          TServer server = ThriftServerFactory.newServer(serverConfig, processor, SERVER_PORT);
           server.serve();
         } catch (TTransportException e) {
           LOGGER.error("failed to start ThriftServer", e);
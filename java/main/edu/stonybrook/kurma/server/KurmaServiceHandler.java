@@ -17,6 +17,7 @@ import java.nio.ByteBuffer;
 import java.util.AbstractMap;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Optional;
@@ -26,7 +27,12 @@ import org.apache.thrift.TException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.CacheStats;
+
+import edu.stonybrook.kurma.cloud.KvsFacade;
 import edu.stonybrook.kurma.config.IGatewayConfig;
+import edu.stonybrook.kurma.fs.CompoundOp;
+import edu.stonybrook.kurma.fs.CompoundOpType;
 import edu.stonybrook.kurma.fs.DynamicInfo;
 import edu.stonybrook.kurma.fs.KurmaError;
 import edu.stonybrook.kurma.fs.KurmaResult;
@@ -39,6 +45,7 @@ import edu.stonybrook.kurma.helpers.KurmaResultHelper;
 import edu.stonybrook.kurma.helpers.ObjectIdHelper;
 import edu.stonybrook.kurma.helpers.StatusHelper;
 import edu.stonybrook.kurma.helpers.VolumeInfoHelper;
+import edu.stonybrook.kurma.message.GatewayMessage;
 import edu.stonybrook.kurma.meta.DirEntry;
 import edu.stonybrook.kurma.meta.ObjectAttributes;
 import edu.stonybrook.kurma.meta.ObjectID;
@@ -46,11 +53,22 @@ import edu.stonybrook.kurma.meta.VolumeInfo;
 import edu.stonybrook.kurma.replicator.GatewayMessageBuilder;
 import edu.stonybrook.kurma.replicator.IReplicator;
 import edu.stonybrook.kurma.server.FileHandler.SnapshotInfo;
+import edu.stonybrook.kurma.util.BufferPool;
 import edu.stonybrook.kurma.util.LoggingUtils;
 
 public class KurmaServiceHandler implements KurmaService.Iface {
   private static final Logger LOGGER = LoggerFactory.getLogger(KurmaServiceHandler.class);
 
+  /**
+   * Max number of directory entries returned by one listdir_page call.
+   */
+  public static final int MAX_LISTDIR_PAGE_ENTRIES = 4096;
+
+  /**
+   * Max number of sub-operations in one compound call.
+   */
+  public static final int MAX_COMPOUND_OPS = 64;
+
   private KurmaHandler kurmaHandler;
   private SessionManager sessionManager;
   private final IGatewayConfig config;
@@ -134,9 +152,12 @@ public class KurmaServiceHandler implements KurmaService.Iface {
   @Override
   public KurmaResult open(ByteBuffer sessionid, ObjectID file_oid, OpenFlags flags)
       throws TException {
+    return open(sessionManager.getSession(sessionid), file_oid, flags);
+  }
+
+  private KurmaResult open(KurmaSession session, ObjectID file_oid, OpenFlags flags) {
     LOGGER.info("opening file '{}' with flags {}", file_oid, flags);
     long start = System.currentTimeMillis();
-    KurmaSession session = sessionManager.getSession(sessionid);
     KurmaResult kr = KurmaResultHelper.newResult();
     if (session == null) {
       kr.status = StatusHelper.SESSION_NOT_EXIST;
@@ -159,9 +180,12 @@ public class KurmaServiceHandler implements KurmaService.Iface {
 
   @Override
   public KurmaResult close(ByteBuffer sessionid, ObjectID file_oid) throws TException {
+    return close(sessionManager.getSession(sessionid), file_oid);
+  }
+
+  private KurmaResult close(KurmaSession session, ObjectID file_oid) {
     LOGGER.info("closing file {}", file_oid);
     long start = System.currentTimeMillis();
-    KurmaSession session = sessionManager.getSession(sessionid);
     KurmaResult kr = KurmaResultHelper.newResult();
     if (session == null) {
       kr.status = StatusHelper.SESSION_NOT_EXIST;
@@ -204,10 +228,14 @@ public class KurmaServiceHandler implements KurmaService.Iface {
   @Override
   public KurmaResult create(ByteBuffer sessionid, ObjectID dir_oid, String name,
       ObjectAttributes attrs) throws TException {
+    return create(sessionManager.getSession(sessionid), dir_oid, name, attrs);
+  }
+
+  private KurmaResult create(KurmaSession session, ObjectID dir_oid, String name,
+      ObjectAttributes attrs) {
     LOGGER.info("creating file '{}' under '{}'", name, dir_oid);
     long start = System.currentTimeMillis();
     KurmaResult kr = KurmaResultHelper.newResult();
-    KurmaSession session = sessionManager.getSession(sessionid);
     if (session == null) {
       kr.status = StatusHelper.SESSION_NOT_EXIST;
       return kr;
@@ -238,7 +266,6 @@ public class KurmaServiceHandler implements KurmaService.Iface {
     }
 
     vh.addFileHandler(newFh);
-    vh.invalidateNegativeObject(dir_oid, name);
 
     LOGGER.info("file '{}' created under '{}' at Gateway-{}", name, dir_oid,
         vh.getConfig().getGatewayName());
@@ -263,9 +290,13 @@ public class KurmaServiceHandler implements KurmaService.Iface {
   @Override
   public KurmaResult mkdir(ByteBuffer sessionid, ObjectID dir_oid, String name,
       ObjectAttributes attrs) throws TException {
+    return mkdir(sessionManager.getSession(sessionid), dir_oid, name, attrs);
+  }
+
+  private KurmaResult mkdir(KurmaSession session, ObjectID dir_oid, String name,
+      ObjectAttributes attrs) {
     LOGGER.info("creating new directory '{}' under '{}'", name, dir_oid);
     KurmaResult kr = KurmaResultHelper.newResult();
-    KurmaSession session = sessionManager.getSession(sessionid);
     if (session == null) {
       kr.status = StatusHelper.SESSION_NOT_EXIST;
       return kr;
@@ -285,7 +316,6 @@ public class KurmaServiceHandler implements KurmaService.Iface {
       return kr;
     }
 
-    vh.invalidateNegativeObject(dir_oid, name);
     // Replicate only if no-replication bit is not set
     if (!AttributesHelper.isNoReplicationSet(newDh.getAttrsRef())) {
       replicator.broadcast(messageBuilder.buildDirCreation(vh.getVolumeId(), newDh.get()));
@@ -300,56 +330,48 @@ public class KurmaServiceHandler implements KurmaService.Iface {
 
   @Override
   public KurmaResult lookup(ByteBuffer sessionid, ObjectID dir_oid, String path) throws TException {
+    return lookup(sessionManager.getSession(sessionid), dir_oid, path);
+  }
+
+  private KurmaResult lookup(KurmaSession session, ObjectID dir_oid, String path) {
     LOGGER.info("lookup '{}' under '{}'", path, dir_oid);
     KurmaResult kr = KurmaResultHelper.newResult();
     long start = System.currentTimeMillis();
-    KurmaSession session = sessionManager.getSession(sessionid);
     if (session == null) {
       kr.status = StatusHelper.SESSION_NOT_EXIST;
       return kr;
     }
 
     VolumeHandler vh = session.getVolumeHandler();
-    if (vh.isNegative(dir_oid, path)) {
-      kr.status = StatusHelper.notFound("'%s' not found under %s", path, dir_oid);
-      return kr;
+    ObjectID dirOid = dir_oid;
+    if (path.startsWith("/") || (dirOid.id.id1 == 0 && dirOid.id.id2 == 0)) {
+      dirOid = vh.getRootDirectory().getOid();
     }
 
-    DirectoryHandler dh = null;
-    if (path.charAt(0) == '/') {
-      dh = vh.getRootDirectory();
-      path = path.substring(1);
-    } else {
-      dh = useDirectory(vh, dir_oid, kr);
-    }
-
-    if (dh == null) {
-      kr.status = StatusHelper.notFound("directory '%s' does not exist", dir_oid);
-      return kr;
+    DirEntry de = null;
+    for (String name : path.split("/")) {
+      if (name.isEmpty()) {
+        continue;
+      }
+      if (de != null) {
+        if (!ObjectIdHelper.isDirectory(de.getOid())) {
+          kr.status = StatusHelper.newStatus(KurmaError.NOT_DIRECTORY, "'%s' is not a directory",
+              de.getName());
+          return kr;
+        }
+        dirOid = de.getOid();
+      }
+      de = lookupComponent(vh, dirOid, name, kr);
+      if (de == null) {
+        return kr;
+      }
     }
-
-    // TODO Make it efficient by not using deep copy of attr
-    long oldTimestamp = dh.getAttrsCopy().getChange_time();
-    DirEntry de = dh.lookup(path);
     if (de == null) {
-      // TODO Make it efficient by not using deep copy of attr
-      long newTimestamp = dh.getAttrsCopy().getChange_time();
-      if (newTimestamp == oldTimestamp) {
-        // We need this check to avoid the race condition when an object
-        // named
-        // "path" is added between "lookup" and "cacheLookupNotFound".
-        // This
-        // check is not perfect because the timestamp is in millisecond
-        // and
-        // cannot prevent racing file creation happened within a
-        // millisecond.
-        // However, our benchmarks show operations on ZK has latency
-        // more than
-        // one millisecond.
-        vh.cacheLookupNotFound(dir_oid, path);
+      // an empty path, or a path of only '/', refers to the directory itself
+      de = lookupComponent(vh, dirOid, ".", kr);
+      if (de == null) {
+        return kr;
       }
-      kr.status = StatusHelper.notFound("'%s' not found in %s", path, dh.getName());
-      return kr;
     }
 
     List<DirEntry> entries = new ArrayList<DirEntry>(1);
@@ -363,12 +385,53 @@ public class KurmaServiceHandler implements KurmaService.Iface {
     return kr;
   }
 
+  /**
+   * Look up a single path component, consulting the dentry and negative caches of the volume
+   * before loading the directory.
+   *
+   * @return the entry found, or null with the error status set in kr.
+   */
+  private DirEntry lookupComponent(VolumeHandler vh, ObjectID dirOid, String name,
+      KurmaResult kr) {
+    if (vh.isNegative(dirOid, name)) {
+      kr.status = StatusHelper.notFound("'%s' not found under %s", name, dirOid);
+      return null;
+    }
+
+    DirEntry de = vh.getCachedDentry(dirOid, name);
+    if (de != null) {
+      return de;
+    }
+
+    DirectoryHandler dh = useDirectory(vh, dirOid, kr);
+    if (dh == null) {
+      kr.status = StatusHelper.notFound("directory '%s' does not exist", dirOid);
+      return null;
+    }
+
+    long version = dh.getChildrenVersion();
+    de = dh.lookup(name);
+    if (de == null) {
+      vh.cacheLookupNotFound(dirOid, name);
+      // We need this check to avoid the race condition when an object named "name" is added
+      // between "lookup" and "cacheLookupNotFound".
+      if (dh.getChildrenVersion() != version) {
+        vh.invalidateNegativeObject(dirOid, name);
+      }
+      kr.status = StatusHelper.notFound("'%s' not found in %s", name, dh.getName());
+    }
+    return de;
+  }
+
   @Override
   public KurmaResult read(ByteBuffer sessionid, ObjectID file_oid, long offset, int length)
       throws TException {
+    return read(sessionManager.getSession(sessionid), file_oid, offset, length);
+  }
+
+  private KurmaResult read(KurmaSession session, ObjectID file_oid, long offset, int length) {
     LOGGER.info("reading {} bytes from file '{}' at {}", length, file_oid, offset);
     long start = System.currentTimeMillis();
-    KurmaSession session = sessionManager.getSession(sessionid);
     KurmaResult kr = KurmaResultHelper.newResult();
     if (session == null) {
       kr.status = StatusHelper.SESSION_NOT_EXIST;
@@ -403,9 +466,12 @@ public class KurmaServiceHandler implements KurmaService.Iface {
   @Override
   public KurmaResult write(ByteBuffer sessionid, ObjectID file_oid, long offset, ByteBuffer data)
       throws TException {
+    return write(sessionManager.getSession(sessionid), file_oid, offset, data);
+  }
+
+  private KurmaResult write(KurmaSession session, ObjectID file_oid, long offset, ByteBuffer data) {
     LOGGER.info("writing {} bytes to file '{}' at {}", data.remaining(), file_oid, offset);
     long start = System.currentTimeMillis();
-    KurmaSession session = sessionManager.getSession(sessionid);
     KurmaResult kr = KurmaResultHelper.newResult();
     if (session == null) {
       kr.status = StatusHelper.SESSION_NOT_EXIST;
@@ -422,7 +488,8 @@ public class KurmaServiceHandler implements KurmaService.Iface {
     int length = data.remaining();
     int nblocks = (length + fh.getBlockSize() - 1) >> fh.getBlockShift();
     List<Long> newVersions = new ArrayList<>(nblocks);
-    if (!fh.write(offset, data, Optional.of(newVersions))) {
+    long timestamp = System.currentTimeMillis();
+    if (!fh.write(offset, data, timestamp, Optional.of(newVersions))) {
       kr.status = StatusHelper.zkError("could not write to file: %s", fh.getName());
       LOGGER.error(kr.status.getErrmsg());
       return kr;
@@ -430,10 +497,16 @@ public class KurmaServiceHandler implements KurmaService.Iface {
 
     ObjectAttributes newAttrs = fh.getAttrsCopy();
 
-    // Replicate only if no-replication bit is not set
+    // Replicate only if no-replication bit is not set. Remote gateways are told about the new
+    // blocks only after they are uploaded, which may happen later in write-back mode.
     if (!AttributesHelper.isNoReplicationSet(newAttrs)) {
-      replicator.broadcast(messageBuilder.buildFileUpdate(session.getVolumeHandler().getVolumeId(),
-          file_oid, offset, length, newVersions, newAttrs));
+      // all blocks of a write share the same timestamp
+      List<Long> newTimestamps =
+          new ArrayList<>(Collections.nCopies(newVersions.size(), timestamp));
+      GatewayMessage update = messageBuilder.buildFileUpdate(
+          session.getVolumeHandler().getVolumeId(), file_oid, offset, length, newVersions,
+          newTimestamps, newAttrs);
+      fh.whenFlushed(() -> replicator.broadcast(update));
     }
 
     kr.setNew_attrs(newAttrs);
@@ -474,6 +547,54 @@ public class KurmaServiceHandler implements KurmaService.Iface {
     return kr;
   }
 
+  @Override
+  public KurmaResult listdir_page(ByteBuffer sessionid, ObjectID dir_oid, String cookie,
+      int max_entries, boolean with_attrs) throws TException {
+    return listdir_page(sessionManager.getSession(sessionid), dir_oid, cookie, max_entries,
+        with_attrs);
+  }
+
+  private KurmaResult listdir_page(KurmaSession session, ObjectID dir_oid, String cookie,
+      int max_entries, boolean with_attrs) {
+    LOGGER.info("listing directory '{}' after '{}'", dir_oid, cookie);
+    KurmaResult kr = KurmaResultHelper.newResult();
+    if (session == null) {
+      kr.status = StatusHelper.SESSION_NOT_EXIST;
+      return kr;
+    }
+
+    VolumeHandler vh = session.getVolumeHandler();
+    DirectoryHandler dh = useDirectory(vh, dir_oid, kr);
+    if (dh == null) {
+      return kr;
+    }
+
+    int limit = max_entries <= 0 ? MAX_LISTDIR_PAGE_ENTRIES
+        : Integer.min(max_entries, MAX_LISTDIR_PAGE_ENTRIES);
+    // ask for one more entry to find out whether there is a next page
+    List<DirEntry> entries = dh.list(cookie, limit + 1);
+    if (entries.size() > limit) {
+      entries = entries.subList(0, limit);
+      kr.setNext_cookie(entries.get(limit - 1).getName());
+    }
+
+    if (with_attrs) {
+      List<ObjectAttributes> attrs = new ArrayList<>(entries.size());
+      KurmaResult childResult = KurmaResultHelper.newResult();
+      for (DirEntry entry : entries) {
+        ObjectAttributes a = loadAttributes(vh, entry.getOid(), childResult);
+        // Keep dir_attrs aligned with dir_data: a child removed since the listing started gets
+        // attributes with no field set.
+        attrs.add(a == null ? new ObjectAttributes() : a);
+      }
+      kr.setDir_attrs(attrs);
+    }
+
+    kr.setDir_data(entries);
+    kr.setNew_attrs(dh.getAttrsCopy());
+    return kr;
+  }
+
   private ObjectAttributes loadAttributes(VolumeHandler vh, ObjectID oid, KurmaResult kr) {
     ObjectAttributes attrs = null;
     if (ObjectIdHelper.isDirectory(oid)) {
@@ -500,11 +621,94 @@ public class KurmaServiceHandler implements KurmaService.Iface {
     return attrs;
   }
 
+  @Override
+  public List<KurmaResult> compound(ByteBuffer sessionid, List<CompoundOp> ops)
+      throws TException {
+    LOGGER.info("compound of {} operations", ops.size());
+    List<KurmaResult> results = new ArrayList<>(ops.size());
+    KurmaSession session = sessionManager.getSession(sessionid);
+    if (session == null) {
+      KurmaResult kr = KurmaResultHelper.newResult();
+      kr.status = StatusHelper.SESSION_NOT_EXIST;
+      results.add(kr);
+      return results;
+    }
+    if (ops.size() > MAX_COMPOUND_OPS) {
+      KurmaResult kr = KurmaResultHelper.newResult();
+      kr.status = StatusHelper.newStatus(KurmaError.INVALID_OPERATION,
+          "%d operations exceed the limit of %d", ops.size(), MAX_COMPOUND_OPS);
+      results.add(kr);
+      return results;
+    }
+
+    // oid of the previous result, used by operations without an oid
+    ObjectID current = null;
+    for (CompoundOp op : ops) {
+      ObjectID oid = op.isSetOid() ? op.getOid() : current;
+      KurmaResult kr = runCompoundOp(session, op, oid);
+      results.add(kr);
+      if (!StatusHelper.isOk(kr.getStatus())) {
+        LOGGER.info("compound stopped at failed {}: {}", op.getOp_type(), kr.getStatus());
+        break;
+      }
+      current = kr.isSetOid() ? kr.getOid() : oid;
+    }
+    return results;
+  }
+
+  private KurmaResult runCompoundOp(KurmaSession session, CompoundOp op, ObjectID oid) {
+    CompoundOpType type = op.getOp_type();
+    boolean needsName = type == CompoundOpType.LOOKUP || type == CompoundOpType.CREATE
+        || type == CompoundOpType.MKDIR || type == CompoundOpType.UNLINK;
+    boolean needsAttrs = type == CompoundOpType.SETATTRS || type == CompoundOpType.CREATE
+        || type == CompoundOpType.MKDIR;
+    if (type == null || oid == null || (needsName && !op.isSetName())
+        || (needsAttrs && !op.isSetAttrs()) || (type == CompoundOpType.OPEN && !op.isSetFlags())
+        || (type == CompoundOpType.WRITE && !op.isSetData())) {
+      KurmaResult kr = KurmaResultHelper.newResult();
+      kr.status = StatusHelper.newStatus(KurmaError.INVALID_OPERATION,
+          "missing arguments of compound operation %s", type);
+      return kr;
+    }
+    switch (type) {
+      case LOOKUP:
+        return lookup(session, oid, op.getName());
+      case GETATTRS:
+        return getattrs(session, oid);
+      case SETATTRS:
+        return setattrs(session, oid, op.getAttrs());
+      case CREATE:
+        return create(session, oid, op.getName(), op.getAttrs());
+      case MKDIR:
+        return mkdir(session, oid, op.getName(), op.getAttrs());
+      case OPEN:
+        return open(session, oid, op.getFlags());
+      case CLOSE:
+        return close(session, oid);
+      case READ:
+        return read(session, oid, op.getOffset(), op.getLength());
+      case WRITE:
+        return write(session, oid, op.getOffset(), op.bufferForData());
+      case UNLINK:
+        return unlink(session, oid, op.getName());
+      case LISTDIR:
+        return listdir_page(session, oid, op.getName(), op.getLength(), op.isWith_attrs());
+      default:
+        KurmaResult kr = KurmaResultHelper.newResult();
+        kr.status = StatusHelper.newStatus(KurmaError.INVALID_OPERATION,
+            "unsupported compound operation %s", type);
+        return kr;
+    }
+  }
+
   @Override
   public KurmaResult getattrs(ByteBuffer sessionid, ObjectID oid) throws TException {
+    return getattrs(sessionManager.getSession(sessionid), oid);
+  }
+
+  private KurmaResult getattrs(KurmaSession session, ObjectID oid) {
     LOGGER.info("getattr of '{}'", oid);
     KurmaResult kr = KurmaResultHelper.newResult();
-    KurmaSession session = sessionManager.getSession(sessionid);
     if (session == null) {
       kr.status = StatusHelper.SESSION_NOT_EXIST;
       return kr;
@@ -530,10 +734,13 @@ public class KurmaServiceHandler implements KurmaService.Iface {
   @Override
   public KurmaResult setattrs(ByteBuffer sessionid, ObjectID oid, ObjectAttributes attrs)
       throws TException {
+    return setattrs(sessionManager.getSession(sessionid), oid, attrs);
+  }
+
+  private KurmaResult setattrs(KurmaSession session, ObjectID oid, ObjectAttributes attrs) {
     LOGGER.info("setattr of '{}' to {}", oid, attrs);
     boolean isNoReplicationBitSet = false;
     KurmaResult kr = KurmaResultHelper.newResult();
-    KurmaSession session = sessionManager.getSession(sessionid);
     if (session == null) {
       kr.status = StatusHelper.SESSION_NOT_EXIST;
       return kr;
@@ -667,7 +874,6 @@ public class KurmaServiceHandler implements KurmaService.Iface {
       return kr;
     }
 
-    vh.invalidateNegativeObject(dst_dir_oid, dst_name);
     if (!isNoReplicationBitSet) {
       replicator.broadcast(messageBuilder.buildRename(vh.getVolumeId(), src_dir_oid, res.getKey(),
           src_name, dst_dir_oid, dst_name));
@@ -681,12 +887,15 @@ public class KurmaServiceHandler implements KurmaService.Iface {
 
   @Override
   public KurmaResult unlink(ByteBuffer sessionid, ObjectID dir_oid, String name) throws TException {
+    return unlink(sessionManager.getSession(sessionid), dir_oid, name);
+  }
+
+  private KurmaResult unlink(KurmaSession session, ObjectID dir_oid, String name) {
     LOGGER.info("unlink '{}' from '{}'", name, dir_oid);
     boolean isNoReplicationBitSet = false;
     boolean isDirectory = false;
     ObjectID childOid = null;
     KurmaResult kr = KurmaResultHelper.newResult();
-    KurmaSession session = sessionManager.getSession(sessionid);
     if (session == null) {
       kr.status = StatusHelper.SESSION_NOT_EXIST;
       return kr;
@@ -906,6 +1115,17 @@ public class KurmaServiceHandler implements KurmaService.Iface {
     try {
       dinfo.setBytes(vh.getConfig().getDefaultKvsFacade().getBytesUsed());
       dinfo.setFiles(vh.getObjectCount());
+      BlockCache blockCache = vh.getBlockCache();
+      CacheStats stats = blockCache.getStats();
+      dinfo.setBlock_cache_hits(stats.hitCount());
+      dinfo.setBlock_cache_misses(stats.missCount());
+      dinfo.setBlock_cache_bytes(blockCache.getBytes());
+      dinfo.setBlock_cache_evictions(stats.evictionCount());
+      dinfo.setWrite_back_bytes(vh.getWriteBackManager().getBytes());
+      BufferPool bufferPool = KvsFacade.getBufferPool();
+      dinfo.setBuffer_pool_hits(bufferPool.getHitCount());
+      dinfo.setBuffer_pool_misses(bufferPool.getMissCount());
+      dinfo.setBuffer_pool_bytes(bufferPool.getPooledBytes());
     } catch (IOException e) {
       LOGGER.error("failed to get the bytes used", e);
     }
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.server;
+
+import java.util.AbstractMap;
+import java.util.Map.Entry;
+
+import edu.stonybrook.kurma.cloud.Kvs;
+import edu.stonybrook.kurma.cloud.KvsFacade;
+import edu.stonybrook.kurma.util.AlgorithmUtils;
+
+/**
+ * Sequential-access detector and adaptive read-ahead window of an open file.
+ *
+ * The window doubles on every sequential read and collapses on a random one. Its upper bound is
+ * derived from the measured cloud read latency: the slower the clouds, the more blocks we keep in
+ * flight ahead of the reader.
+ */
+public class ReadAheadWindow {
+  /**
+   * Every this many milliseconds of cloud read latency allow one more block of read-ahead.
+   */
+  public static final int LATENCY_PER_BLOCK_MS = 20;
+
+  private final int maxBlocks;
+
+  // offset where the next sequential read is expected
+  private long nextOffset = 0;
+  // end of the range that has already been prefetched
+  private long prefetchedEnd = 0;
+  // current window size in blocks
+  private int window = 0;
+
+  /**
+   * @param maxBlocks max number of blocks to read ahead; zero disables read-ahead.
+   */
+  public ReadAheadWindow(int maxBlocks) {
+    this.maxBlocks = maxBlocks;
+  }
+
+  public boolean isEnabled() {
+    return maxBlocks > 0;
+  }
+
+  /**
+   * Get the expected read latency of a facade, which is the latency of its fastest enabled KVS.
+   */
+  public static double getReadLatency(KvsFacade facade) {
+    double latency = Double.MAX_VALUE;
+    for (Kvs kvs : facade.getKvsList()) {
+      if (kvs.isEnabled()) {
+        latency = Math.min(latency, kvs.getReadLatency());
+      }
+    }
+    return latency == Double.MAX_VALUE ? 0 : latency;
+  }
+
+  /**
+   * Get the window limit given the measured read latency.
+   *
+   * @param latencyMs expected cloud read latency in milliseconds
+   * @return max number of blocks to read ahead
+   */
+  public int getWindowLimit(double latencyMs) {
+    int blocks = (int) Math.ceil(latencyMs / LATENCY_PER_BLOCK_MS);
+    return AlgorithmUtils.clamp(blocks, 1, Math.max(1, maxBlocks));
+  }
+
+  public synchronized int getWindow() {
+    return window;
+  }
+
+  /**
+   * Record a read and decide what to prefetch.
+   *
+   * @param offset offset of the read
+   * @param length length of the read
+   * @param blockShift block shift of the file
+   * @param latencyMs expected cloud read latency in milliseconds
+   * @param limit the range to prefetch will not go beyond this offset (e.g., file size)
+   * @return the range [begin, end) to prefetch, or null if nothing should be prefetched
+   */
+  public synchronized Entry<Long, Long> onRead(long offset, int length, int blockShift,
+      double latencyMs, long limit) {
+    if (maxBlocks <= 0) {
+      return null;
+    }
+    long end = offset + length;
+    if (offset != nextOffset) {
+      // random access; start over
+      window = 0;
+      nextOffset = end;
+      prefetchedEnd = end;
+      return null;
+    }
+    nextOffset = end;
+    window = Integer.min(window == 0 ? 1 : window * 2, getWindowLimit(latencyMs));
+
+    long begin = Long.max(prefetchedEnd, end);
+    long prefetchEnd = Long.min(end + ((long) window << blockShift), limit);
+    if (begin >= prefetchEnd) {
+      return null;
+    }
+    prefetchedEnd = prefetchEnd;
+    return new AbstractMap.SimpleEntry<>(begin, prefetchEnd);
+  }
+}
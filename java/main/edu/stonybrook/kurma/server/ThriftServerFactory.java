@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.server.TThreadedSelectorServer;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.stonybrook.kurma.config.IGatewayConfig;
+
+/**
+ * Build the Thrift server that serves KurmaService according to IGatewayConfig.getServerMode().
+ *
+ * In the "threadpool" mode, every connection pins a worker thread for its whole lifetime, so the
+ * number of threads cannot be bounded without refusing FSAL connections. In the "selector" mode,
+ * connections are multiplexed over a few selector threads and only in-progress calls occupy one
+ * of the getMaxServerThreads() workers; clients have to use TFramedTransport.
+ */
+public class ThriftServerFactory {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ThriftServerFactory.class);
+
+  public static final String THREAD_POOL_MODE = "threadpool";
+  public static final String SELECTOR_MODE = "selector";
+
+  public static TServer newServer(IGatewayConfig config, TProcessor processor, int port)
+      throws TTransportException {
+    String mode = config.getServerMode();
+    if (SELECTOR_MODE.equals(mode)) {
+      return newSelectorServer(processor, port, config.getSelectorThreads(),
+          config.getMaxServerThreads(), config.getRequestTimeoutSeconds());
+    }
+    if (!THREAD_POOL_MODE.equals(mode)) {
+      LOGGER.warn("unknown server mode '{}'; using '{}'", mode, THREAD_POOL_MODE);
+    }
+    return newThreadPoolServer(processor, port, config.getRequestTimeoutSeconds());
+  }
+
+  public static TServer newThreadPoolServer(TProcessor processor, int port,
+      int requestTimeoutSeconds) throws TTransportException {
+    TThreadPoolServer.Args args = new TThreadPoolServer.Args(new TServerSocket(port));
+    // How long to retry handing a new connection to the pool before dropping it.
+    args.requestTimeoutUnit(TimeUnit.SECONDS).requestTimeout(requestTimeoutSeconds);
+    LOGGER.info("serving KurmaService at port {} with a thread per connection", port);
+    return new TThreadPoolServer(args.processor(processor));
+  }
+
+  public static TServer newSelectorServer(TProcessor processor, int port, int selectorThreads,
+      int workerThreads, int requestTimeoutSeconds) throws TTransportException {
+    TThreadedSelectorServer.Args args =
+        new TThreadedSelectorServer.Args(new TNonblockingServerSocket(port));
+    args.selectorThreads(selectorThreads);
+    args.executorService(newWorkerPool(workerThreads));
+    // Wait this long for in-progress calls when the server is stopped.
+    args.stopTimeoutVal = requestTimeoutSeconds;
+    args.stopTimeoutUnit = TimeUnit.SECONDS;
+    LOGGER.info("serving KurmaService at port {} with {} selectors and {} workers", port,
+        selectorThreads, workerThreads);
+    return new TThreadedSelectorServer(args.processor(processor));
+  }
+
+  private static ExecutorService newWorkerPool(int nthreads) {
+    final AtomicInteger count = new AtomicInteger(0);
+    return Executors.newFixedThreadPool(nthreads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "kurma-rpc-" + count.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+}
@@ -48,6 +48,7 @@ import edu.stonybrook.kurma.helpers.TWrapper;
 import edu.stonybrook.kurma.journal.JournalManager;
 import edu.stonybrook.kurma.journal.MetaJournal;
 import edu.stonybrook.kurma.message.GatewayMessage;
+import edu.stonybrook.kurma.meta.DirEntry;
 import edu.stonybrook.kurma.meta.Int128;
 import edu.stonybrook.kurma.meta.KeyMap;
 import edu.stonybrook.kurma.meta.ObjectAttributes;
@@ -68,6 +69,9 @@ public class VolumeHandler extends AbstractHandler<VolumeInfo> {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(VolumeHandler.class);
   private BlockExecutor blockExecutor;
+  private BlockCache blockCache;
+
+  private WriteBackManager writeBack;
   private TWrapper<Int128> ids;
 
   private InTransactionZnodes zkCache = new InTransactionZnodes();
@@ -117,11 +121,19 @@ public class VolumeHandler extends AbstractHandler<VolumeInfo> {
    */
   private Cache<java.util.Map.Entry<ObjectID, String>, Boolean> negativeObjects;
 
+  /**
+   * Positive counterpart of negativeObjects: the DirEntry of an existing child keyed by the pair of
+   * parent directory id and child name, so that path walks do not need to load every directory on
+   * the path. DirectoryHandler invalidates an entry whenever the child changes.
+   */
+  private Cache<java.util.Map.Entry<ObjectID, String>, DirEntry> dentries;
+
   public VolumeHandler(VolumeInfo vi, String zpath, CuratorFramework client, GarbageCollector gc,
       IGatewayConfig config, BlockExecutor blockExecutor) throws NoSuchAlgorithmException, IOException {
     setWrapper(new TWrapper<>(zpath, vi));
     this.config = config;
     this.blockExecutor = blockExecutor;
+    this.blockCache = new BlockCache(config.getBlockCacheSize());
     ids = new TWrapper<>(getIdCursorZpath(), new Int128(), false, true);
     garbageCollector = gc;
     garbageCollector.setBlockExecutor(blockExecutor);
@@ -131,7 +143,8 @@ public class VolumeHandler extends AbstractHandler<VolumeInfo> {
     journalManager = new JournalManager(journalDir, config.getJournalCleanFrequency());
     transactionManager = new KurmaTransactionManager(client,
         journalManager.getMetaJournal(), config.getTransactionCommitInterval(),
-        config.getTransactionCommitCount());
+        config.getTransactionCommitCount(), config.getTransactionCommitBytes(),
+        config.getTransactionCommitDelayUs(), config.getTransactionCommitters());
     zkClient = new ZkClient(client, transactionManager, zkCache);
 
     RemovalListener<ObjectID, Optional<DirectoryHandler>> dirEvictListener =
@@ -220,6 +233,7 @@ public class VolumeHandler extends AbstractHandler<VolumeInfo> {
         .removalListener(fileEvictListener).build(fileLoader);
 
     negativeObjects = CacheBuilder.newBuilder().maximumSize(config.getNegativeCacheSize()).build();
+    dentries = CacheBuilder.newBuilder().maximumSize(config.getDentryCacheSize()).build();
 
     objectCount = new AtomicLong(0);
 
@@ -231,6 +245,14 @@ public class VolumeHandler extends AbstractHandler<VolumeInfo> {
       System.exit(1);
     }
 
+    // Upload blocks that were acknowledged but not uploaded before the last shutdown. Blocks
+    // that still cannot be uploaded stay in the journal till the next start.
+    if (journalManager.getWriteBackJournal().redoOldRecords(this) < 0) {
+      LOGGER.error("failed to redo old write-back records");
+    }
+    writeBack = new WriteBackManager(config.getWriteBackBufferSize(),
+        journalManager.getWriteBackJournal(), garbageCollector);
+
   }
 
   public FacadeManager getFacadeManager() {
@@ -270,6 +292,16 @@ public class VolumeHandler extends AbstractHandler<VolumeInfo> {
     return wrapper.delete(zkClient, true);
   }
 
+  /**
+   * Stop the background workers of this volume.
+   */
+  public void shutdown() {
+    blockExecutor.shutdownPrefetcher();
+    if (writeBack != null) {
+      writeBack.shutdown();
+    }
+  }
+
   public boolean load() throws Exception {
     LOGGER.info("loading volume {} from Zookepper at Gateway-{}",
         get().id, config.getGatewayName());
@@ -460,6 +492,18 @@ public class VolumeHandler extends AbstractHandler<VolumeInfo> {
     return blockExecutor;
   }
 
+  public BlockCache getBlockCache() {
+    return blockCache;
+  }
+
+  public WriteBackManager getWriteBackManager() {
+    return writeBack;
+  }
+
+  public void setWriteBackManager(WriteBackManager writeBack) {
+    this.writeBack = writeBack;
+  }
+
   public FileHandler getLoadedFile(ObjectID oid) {
     FileHandler fh = null;
     try {
@@ -533,6 +577,18 @@ public class VolumeHandler extends AbstractHandler<VolumeInfo> {
         .getIfPresent(new AbstractMap.SimpleEntry<ObjectID, String>(oid, name)) != null;
   }
 
+  public void cacheDentry(ObjectID dirOid, DirEntry dentry) {
+    dentries.put(new AbstractMap.SimpleEntry<ObjectID, String>(dirOid, dentry.getName()), dentry);
+  }
+
+  public DirEntry getCachedDentry(ObjectID dirOid, String name) {
+    return dentries.getIfPresent(new AbstractMap.SimpleEntry<ObjectID, String>(dirOid, name));
+  }
+
+  public void invalidateDentry(ObjectID dirOid, String name) {
+    dentries.invalidate(new AbstractMap.SimpleEntry<ObjectID, String>(dirOid, name));
+  }
+
   public long incrementObjectCount() {
     return objectCount.incrementAndGet();
   }
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.stonybrook.kurma.cloud.KvsFacade;
+import edu.stonybrook.kurma.cloud.KvsManager;
+import edu.stonybrook.kurma.gc.GarbageCollector;
+import edu.stonybrook.kurma.journal.WriteBackJournal;
+import edu.stonybrook.kurma.meta.ObjectID;
+import edu.stonybrook.kurma.records.WriteBackJournalRecord;
+import edu.stonybrook.kurma.server.BlockCache.BlockId;
+import edu.stonybrook.kurma.util.AuthenticatedEncryption;
+import journal.io.api.Location;
+
+/**
+ * Write-back staging area of a volume.
+ *
+ * Written blocks are encrypted and appended to a local WriteBackJournal, and the write is
+ * acknowledged once the journal is synced. Flusher threads then upload the journaled ciphertext to
+ * the clouds in the background, retrying failed uploads with backoff capped at
+ * MAX_RETRY_DELAY_SECONDS till they succeed. Until a block is uploaded, its decrypted data is kept
+ * in memory so that reads never go to the clouds for it. Blocks that are not uploaded at shutdown
+ * stay in the journal, which is replayed on the next start.
+ */
+public class WriteBackManager {
+  private static final Logger LOGGER = LoggerFactory.getLogger(WriteBackManager.class);
+
+  public static final int FLUSHER_THREAD_POOL_SIZE = 4;
+  public static final int MAX_RETRY_DELAY_SECONDS = 60;
+  // retries after which every failure is logged as an error
+  public static final int MAX_UPLOAD_RETRIES = 10;
+
+  private final long capacity;
+
+  private final WriteBackJournal journal;
+
+  private final GarbageCollector garbageCollector;
+
+  private final ConcurrentHashMap<BlockId, StagedBlock> staged = new ConcurrentHashMap<>();
+
+  private final AtomicLong bytes = new AtomicLong(0);
+
+  private final ScheduledThreadPoolExecutor flusher;
+
+  private static final class StagedBlock {
+    private final byte[] data; // decrypted data
+    private final Location location;
+
+    StagedBlock(byte[] data, Location location) {
+      this.data = data;
+      this.location = location;
+    }
+  }
+
+  /**
+   * @param capacity max number of bytes that can be staged; zero disables write-back.
+   * @param journal journal where the staged blocks are persisted
+   * @param gc collector of blocks that are overwritten while being uploaded
+   */
+  public WriteBackManager(long capacity, WriteBackJournal journal, GarbageCollector gc) {
+    this.capacity = capacity;
+    this.journal = journal;
+    this.garbageCollector = gc;
+    if (capacity > 0) {
+      flusher = new ScheduledThreadPoolExecutor(FLUSHER_THREAD_POOL_SIZE);
+      // pending retries are dropped at shutdown; their blocks are uploaded when the journal is
+      // replayed
+      flusher.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    } else {
+      flusher = null;
+    }
+  }
+
+  public boolean isEnabled() {
+    return flusher != null;
+  }
+
+  /**
+   * Reserve room for "length" more bytes. Concurrent writers may not overcommit the capacity
+   * because the check and the reservation are one atomic step.
+   *
+   * @return whether the room is reserved
+   */
+  private boolean reserve(long length) {
+    long used;
+    do {
+      used = bytes.get();
+      if (used + length > capacity) {
+        return false;
+      }
+    } while (!bytes.compareAndSet(used, used + length));
+    return true;
+  }
+
+  /**
+   * Encrypt and journal blocks, and schedule them to be uploaded. The blocks are NOT staged if
+   * there is no room for all of them or any of them cannot be journaled.
+   *
+   * @param blocks loaded blocks to be written
+   * @return a future that completes when all the blocks are uploaded or discarded; null if the
+   *         blocks cannot be staged
+   */
+  public CompletableFuture<Void> stage(List<FileBlock> blocks, AuthenticatedEncryption ae,
+      KvsFacade kvs) {
+    if (!isEnabled()) {
+      return null;
+    }
+    long length = 0;
+    for (FileBlock block : blocks) {
+      length += block.getLength();
+    }
+    if (!reserve(length)) {
+      LOGGER.debug("no room to stage {} bytes", length);
+      return null;
+    }
+    List<Location> locations = new ArrayList<>(blocks.size());
+    List<byte[]> plaintexts = new ArrayList<>(blocks.size());
+    String kvsIds = KvsManager.kvsListToString(kvs.getKvsList());
+    try {
+      for (int i = 0; i < blocks.size(); ++i) {
+        FileBlock block = blocks.get(i);
+        // keep a copy of the plaintext to serve reads until the block is uploaded
+        ByteBuffer src = block.getValue().duplicate();
+        byte[] data = new byte[block.getLength()];
+        src.get(data);
+        plaintexts.add(data);
+
+        BlockWriter writer = new BlockWriter(block, ae, kvs);
+        ByteBuffer encrypted = writer.encrypt();
+        byte[] cipher = new byte[encrypted.remaining()];
+        encrypted.get(cipher);
+        WriteBackJournalRecord record = new WriteBackJournalRecord(block.getGateway(),
+            block.getFileHandler().getOid(), block.getOffset(), block.getVersion(),
+            block.getLength(), kvs.getKvsType(), kvsIds, writer.getBlockKey(),
+            ByteBuffer.wrap(cipher));
+        // Syncing the last record also syncs all records before it.
+        Location location = journal.write(record, i == blocks.size() - 1);
+        if (location == null) {
+          throw new Exception("could not journal " + block);
+        }
+        locations.add(location);
+      }
+    } catch (Exception e) {
+      LOGGER.error("could not stage blocks", e);
+      locations.forEach(journal::delete);
+      bytes.addAndGet(-length);
+      return null;
+    }
+
+    List<CompletableFuture<Void>> futures = new ArrayList<>(blocks.size());
+    for (int i = 0; i < blocks.size(); ++i) {
+      FileBlock block = blocks.get(i);
+      byte[] data = plaintexts.get(i);
+      // the room of the block has been reserved
+      staged.put(BlockCache.idOf(block), new StagedBlock(data, locations.get(i)));
+      CompletableFuture<Void> future = new CompletableFuture<>();
+      flusher.submit(() -> flush(block, kvs, future, 0));
+      futures.add(future);
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+  }
+
+  private void flush(FileBlock block, KvsFacade kvs, CompletableFuture<Void> future,
+      int retries) {
+    BlockId id = BlockCache.idOf(block);
+    StagedBlock staging = staged.get(id);
+    if (staging == null) {
+      LOGGER.debug("skip uploading discarded {}", block);
+      future.complete(null);
+      return;
+    }
+    boolean uploaded = false;
+    try {
+      // upload the ciphertext in the journal instead of encrypting the block again
+      uploaded = WriteBackJournal.upload(journal.read(staging.location), kvs);
+    } catch (Exception e) {
+      LOGGER.error("could not upload " + block, e);
+    }
+    if (!uploaded) {
+      long delay = Long.min(1L << Integer.min(retries, 16), MAX_RETRY_DELAY_SECONDS);
+      if (retries >= MAX_UPLOAD_RETRIES) {
+        LOGGER.error("still cannot upload {} after {} retries; retry in {} seconds", block,
+            retries, delay);
+      } else {
+        LOGGER.warn("retry uploading {} in {} seconds", block, delay);
+      }
+      try {
+        flusher.schedule(() -> flush(block, kvs, future, retries + 1), delay, TimeUnit.SECONDS);
+      } catch (RejectedExecutionException e) {
+        LOGGER.info("stop uploading {} at shutdown; it stays in the journal", block);
+      }
+      return;
+    }
+    StagedBlock sb = staged.remove(id);
+    if (sb == null) {
+      // The block was overwritten while being uploaded; collect it again because the garbage
+      // collector may have deleted it before it reached the clouds.
+      garbageCollector.collectBlocks(Collections.singletonList(block));
+    } else {
+      bytes.addAndGet(-sb.data.length);
+      journal.delete(sb.location);
+    }
+    future.complete(null);
+  }
+
+  /**
+   * Fill blocks from the staging area.
+   *
+   * @param blocks blocks whose value buffers are to be filled
+   * @return blocks that are not staged
+   */
+  public List<FileBlock> load(List<FileBlock> blocks) {
+    if (staged.isEmpty()) {
+      return blocks;
+    }
+    List<FileBlock> misses = new ArrayList<>(blocks.size());
+    for (FileBlock block : blocks) {
+      StagedBlock sb = block.isHole() ? null : staged.get(BlockCache.idOf(block));
+      if (sb == null || sb.data.length > block.getLength()) {
+        misses.add(block);
+        continue;
+      }
+      ByteBuffer dst = block.getValue().duplicate();
+      dst.reset();
+      dst.put(sb.data);
+      block.setLoaded(true);
+    }
+    return misses;
+  }
+
+  public boolean contains(ObjectID oid, long offset, long version, short gateway) {
+    return staged.containsKey(new BlockId(oid, offset, version, gateway));
+  }
+
+  /**
+   * Stop uploading blocks that are no longer used, for example, because they are overwritten.
+   */
+  public void discard(Collection<FileBlock> blocks) {
+    if (staged.isEmpty()) {
+      return;
+    }
+    for (FileBlock block : blocks) {
+      StagedBlock sb = staged.remove(BlockCache.idOf(block));
+      if (sb != null) {
+        bytes.addAndGet(-sb.data.length);
+        journal.delete(sb.location);
+      }
+    }
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return number of bytes of block data waiting to be uploaded.
+   */
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  public int getBlockCount() {
+    return staged.size();
+  }
+
+  public void shutdown() {
+    if (flusher != null) {
+      flusher.shutdown();
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.transaction.CuratorTransactionResult;
+import org.apache.curator.framework.api.transaction.OperationType;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.stonybrook.kurma.records.ZKOperationType;
+
+/**
+ * Non-blocking ZooKeeper operations that complete CompletableFutures from ZooKeeper callbacks
+ * instead of holding a thread for every request in flight.
+ *
+ * Reads and existence checks use Curator's inBackground(), which also retries on connection loss.
+ * Curator 2 cannot run transactions in the background, so multi-op commits go to the ZooKeeper
+ * handle directly; multi(client, operations, retries) resubmits them after a backoff on connection
+ * loss.
+ */
+public class AsyncCurator {
+  private static final Logger LOGGER = LoggerFactory.getLogger(AsyncCurator.class);
+
+  /**
+   * Milliseconds to wait before resubmitting a multi-op for the first time; the wait doubles for
+   * each following retry.
+   */
+  static final long MULTI_RETRY_BASE_MS = 100;
+
+  private static final ScheduledExecutorService retryScheduler =
+      Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "async-curator-retry");
+        t.setDaemon(true);
+        return t;
+      });
+
+  private static <T> void complete(CompletableFuture<T> future, CuratorEvent event, T value) {
+    if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+      future.complete(value);
+    } else {
+      future.completeExceptionally(
+          KeeperException.create(KeeperException.Code.get(event.getResultCode()), event.getPath()));
+    }
+  }
+
+  private static void copyStat(Stat from, Stat to) {
+    to.setCzxid(from.getCzxid());
+    to.setMzxid(from.getMzxid());
+    to.setCtime(from.getCtime());
+    to.setMtime(from.getMtime());
+    to.setVersion(from.getVersion());
+    to.setCversion(from.getCversion());
+    to.setAversion(from.getAversion());
+    to.setEphemeralOwner(from.getEphemeralOwner());
+    to.setDataLength(from.getDataLength());
+    to.setNumChildren(from.getNumChildren());
+    to.setPzxid(from.getPzxid());
+  }
+
+  /**
+   * Read the data of a znode.
+   *
+   * @param zkStat if not null, the stat of the znode is stored in it before the future completes
+   */
+  public static CompletableFuture<byte[]> getData(CuratorFramework client, String zpath,
+      Stat zkStat) {
+    CompletableFuture<byte[]> future = new CompletableFuture<>();
+    try {
+      client.getData().inBackground(new BackgroundCallback() {
+        @Override
+        public void processResult(CuratorFramework c, CuratorEvent event) throws Exception {
+          if (zkStat != null && event.getStat() != null) {
+            copyStat(event.getStat(), zkStat);
+          }
+          complete(future, event, event.getData());
+        }
+      }).forPath(zpath);
+    } catch (Exception e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  public static CompletableFuture<Boolean> checkExists(CuratorFramework client, String zpath) {
+    CompletableFuture<Boolean> future = new CompletableFuture<>();
+    try {
+      client.checkExists().inBackground(new BackgroundCallback() {
+        @Override
+        public void processResult(CuratorFramework c, CuratorEvent event) throws Exception {
+          if (event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+            future.complete(false);
+          } else {
+            complete(future, event, true);
+          }
+        }
+      }).forPath(zpath);
+    } catch (Exception e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Commit CREATE, UPDATE, and REMOVE operations atomically in one multi-op; other operations are
+   * ignored.
+   *
+   * @return results of the committed operations in order
+   */
+  public static CompletableFuture<List<CuratorTransactionResult>> multi(CuratorFramework client,
+      List<OperationInfo> operations) {
+    CompletableFuture<List<CuratorTransactionResult>> future = new CompletableFuture<>();
+    String namespace = client.getNamespace();
+    List<Op> ops = new ArrayList<>(operations.size());
+    List<OperationInfo> committed = new ArrayList<>(operations.size());
+    for (OperationInfo op : operations) {
+      String zpath = ZKPaths.fixForNamespace(namespace, op.getPath());
+      if (op.getType().equals(ZKOperationType.CREATE)) {
+        ops.add(Op.create(zpath, op.getData(), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+            CreateMode.PERSISTENT));
+      } else if (op.getType().equals(ZKOperationType.REMOVE)) {
+        ops.add(Op.delete(zpath, -1));
+      } else if (op.getType().equals(ZKOperationType.UPDATE)) {
+        ops.add(Op.setData(zpath, op.getData(), -1));
+      } else {
+        continue;
+      }
+      committed.add(op);
+    }
+    if (ops.isEmpty()) {
+      future.complete(new ArrayList<>());
+      return future;
+    }
+
+    AsyncCallback.MultiCallback cb = new AsyncCallback.MultiCallback() {
+      @Override
+      public void processResult(int rc, String path, Object ctx, List<OpResult> opResults) {
+        if (rc != KeeperException.Code.OK.intValue()) {
+          future.completeExceptionally(
+              KeeperException.create(KeeperException.Code.get(rc), firstErrorPath(committed,
+                  opResults)));
+          return;
+        }
+        List<CuratorTransactionResult> results = new ArrayList<>(committed.size());
+        for (int i = 0; i < committed.size(); ++i) {
+          results.add(toCuratorResult(committed.get(i), opResults.get(i)));
+        }
+        future.complete(results);
+      }
+    };
+    try {
+      client.getZookeeperClient().getZooKeeper().multi(ops, cb, null);
+    } catch (Exception e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Same as multi(client, operations), but resubmits the multi-op up to retries times after an
+   * exponential backoff if the connection is lost. No thread is held while waiting to retry.
+   *
+   * A lost connection does not tell whether the multi-op has been applied, so a retry may fail
+   * because of the effects of its previous attempt.
+   */
+  public static CompletableFuture<List<CuratorTransactionResult>> multi(CuratorFramework client,
+      List<OperationInfo> operations, int retries) {
+    CompletableFuture<List<CuratorTransactionResult>> future = new CompletableFuture<>();
+    multi(client, operations, 0, retries, future);
+    return future;
+  }
+
+  private static void multi(CuratorFramework client, List<OperationInfo> operations, int attempt,
+      int retries, CompletableFuture<List<CuratorTransactionResult>> future) {
+    multi(client, operations).whenComplete((results, error) -> {
+      if (error instanceof CompletionException) {
+        error = error.getCause();
+      }
+      if (error == null) {
+        future.complete(results);
+      } else if (error instanceof KeeperException.ConnectionLossException && attempt < retries) {
+        long delayMs = MULTI_RETRY_BASE_MS << attempt;
+        LOGGER.warn("multi-op lost connection; retrying in {} ms", delayMs);
+        retryScheduler.schedule(() -> multi(client, operations, attempt + 1, retries, future),
+            delayMs, TimeUnit.MILLISECONDS);
+      } else {
+        future.completeExceptionally(error);
+      }
+    });
+  }
+
+  private static String firstErrorPath(List<OperationInfo> ops, List<OpResult> opResults) {
+    if (opResults != null) {
+      for (int i = 0; i < opResults.size() && i < ops.size(); ++i) {
+        OpResult r = opResults.get(i);
+        if (r instanceof OpResult.ErrorResult
+            && ((OpResult.ErrorResult) r).getErr() != KeeperException.Code.OK.intValue()) {
+          return ops.get(i).getPath();
+        }
+      }
+    }
+    return null;
+  }
+
+  private static CuratorTransactionResult toCuratorResult(OperationInfo op, OpResult r) {
+    if (op.getType().equals(ZKOperationType.CREATE)) {
+      return new CuratorTransactionResult(OperationType.CREATE, op.getPath(), op.getPath(), null);
+    } else if (op.getType().equals(ZKOperationType.REMOVE)) {
+      return new CuratorTransactionResult(OperationType.DELETE, op.getPath(), null, null);
+    }
+    Stat stat = r instanceof OpResult.SetDataResult ? ((OpResult.SetDataResult) r).getStat() : null;
+    return new CuratorTransactionResult(OperationType.SET_DATA, op.getPath(), null, stat);
+  }
+}
@@ -10,8 +10,7 @@
  */
 package edu.stonybrook.kurma.transaction;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,41 +19,119 @@ import edu.stonybrook.kurma.util.LoggingUtils;
 
 /**
  * A Cache of all changes to znodes that have made but not written back to
- * ZooKeeper.  It is thread-safe.
+ * ZooKeeper.  It is thread-safe and lock-free for readers.
  *
+ * A deleted znode is kept as a tombstone so that its stale data is not served. Every change can
+ * be tagged with an owner, usually its OperationInfo, so that it is evicted as soon as the change
+ * is committed unless a later change of the same znode has replaced it. The tagged changes of a
+ * znode are stacked, so that reverting a failed change exposes the previous uncommitted one.
  *
  * @author mchen
  *
  */
 public class InTransactionZnodes {
   private static Logger LOGGER = LoggerFactory.getLogger(InTransactionZnodes.class);
-  private HashMap<String, byte[]> znodes = new HashMap<>();
-  private HashSet<String> deleted = new HashSet<>();
 
-  public synchronized byte[] put(String zpath, byte[] data) {
-    LOGGER.trace("put {}: {}", zpath, LoggingUtils.hash(data));
-    deleted.remove(zpath);
-    return znodes.put(zpath, data);
+  private static final class Change {
+    final byte[] data; // null for tombstones
+    final Object owner;
+    final Change previous; // the older uncommitted change, if any
+
+    Change(byte[] data, Object owner, Change previous) {
+      this.data = data;
+      this.owner = owner;
+      // an untagged change is never evicted, so nothing below it can be exposed again
+      this.previous = owner == null ? null : previous;
+    }
   }
 
-  public synchronized byte[] get(String zpath) {
-    byte[] data = null;
-    if (!deleted.contains(zpath)) {
-      data = znodes.getOrDefault(zpath, null);
+  private final ConcurrentHashMap<String, Change> znodes = new ConcurrentHashMap<>();
+
+  public byte[] put(String zpath, byte[] data) {
+    return put(zpath, data, null);
+  }
+
+  public byte[] put(String zpath, byte[] data, Object owner) {
+    LOGGER.trace("put {}: {}", zpath, LoggingUtils.hash(data));
+    // a znode created with null data is still there, unlike a tombstone
+    byte[] value = data == null ? new byte[0] : data;
+    Change old = znodes.get(zpath);
+    while (!replace(zpath, old, new Change(value, owner, old))) {
+      old = znodes.get(zpath);
     }
+    return old == null ? null : old.data;
+  }
+
+  public byte[] get(String zpath) {
+    Change change = znodes.get(zpath);
+    byte[] data = change == null ? null : change.data;
     LOGGER.trace("get {}: {}", zpath, LoggingUtils.hash(data));
     return data;
   }
 
-  public synchronized byte[] delete(String zpath) {
-    byte[] oldData = znodes.remove(zpath);
-    deleted.add(zpath);
+  /**
+   * @return whether the znode has been deleted by a change not committed yet.
+   */
+  public boolean isDeleted(String zpath) {
+    Change change = znodes.get(zpath);
+    return change != null && change.data == null;
+  }
+
+  public byte[] delete(String zpath) {
+    return delete(zpath, null);
+  }
+
+  public byte[] delete(String zpath, Object owner) {
+    Change old = znodes.get(zpath);
+    while (!replace(zpath, old, new Change(null, owner, old))) {
+      old = znodes.get(zpath);
+    }
     LOGGER.trace("deleted {}", zpath);
-    return oldData;
+    return old == null ? null : old.data;
+  }
+
+  private boolean replace(String zpath, Change old, Change change) {
+    return old == null ? znodes.putIfAbsent(zpath, change) == null
+        : znodes.replace(zpath, old, change);
+  }
+
+  /**
+   * Evict the change of a znode made by the given owner once it has been committed, together
+   * with the older changes it supersedes. Later changes of the znode are kept.
+   */
+  public void evict(String zpath, Object owner) {
+    znodes.computeIfPresent(zpath, (k, change) -> remove(change, owner, true));
+  }
+
+  /**
+   * Revert the change of a znode made by the given owner because it failed to be submitted. The
+   * previous uncommitted change, if any, is served again unless a later change has replaced it.
+   */
+  public void revert(String zpath, Object owner) {
+    znodes.computeIfPresent(zpath, (k, change) -> remove(change, owner, false));
+  }
+
+  /**
+   * @return the stack of changes without the one made by the owner, and also without the older
+   *         ones if withOlder is set. The stack is returned as is if owner made no change.
+   */
+  private static Change remove(Change change, Object owner, boolean withOlder) {
+    if (change == null) {
+      return null;
+    }
+    if (change.owner == owner) {
+      return withOlder ? null : change.previous;
+    }
+    Change previous = remove(change.previous, owner, withOlder);
+    return previous == change.previous ? change
+        : new Change(change.data, change.owner, previous);
+  }
+
+  public int size() {
+    return znodes.size();
   }
 
-  public synchronized void clear() {
+  public void clear() {
     znodes.clear();
-    deleted.clear();
   }
 }
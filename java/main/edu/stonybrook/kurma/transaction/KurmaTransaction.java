@@ -12,6 +12,7 @@ package edu.stonybrook.kurma.transaction;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import journal.io.api.Location;
 
@@ -32,6 +33,7 @@ public class KurmaTransaction {
   private MetaJournal journal;
   private final long transactionID;
   private boolean committed = false;
+  private CompletableFuture<?> precondition = null;
 
   public KurmaTransaction(MetaJournal journal, long transactionID) {
     operations = new ArrayList<OperationInfo>();
@@ -80,6 +82,22 @@ public class KurmaTransaction {
     return recordOperation(ZKOperationType.COMMIT, null, null);
   }
 
+  /**
+   * Do not commit the transaction into ZooKeeper before the given future completes, for example,
+   * before the blocks it refers to are uploaded. The transaction is still journaled when submitted,
+   * and its changes are visible through ZkClient till it is committed.
+   */
+  public void commitAfter(CompletableFuture<?> future) {
+    precondition = future;
+  }
+
+  /**
+   * @return the future the commit of this transaction waits for, or null if there is none
+   */
+  public CompletableFuture<?> getPrecondition() {
+    return precondition;
+  }
+
   public List<OperationInfo> getOperations() {
     return operations;
   }
@@ -15,9 +15,11 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.curator.framework.CuratorFramework;
@@ -25,12 +27,35 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import edu.stonybrook.kurma.journal.MetaJournal;
 import edu.stonybrook.kurma.records.ZKOperationType;
+import edu.stonybrook.kurma.util.Histogram;
 import edu.stonybrook.kurma.util.ZkUtils;
 
+/**
+ * Group commit of KurmaTransactions into ZooKeeper.
+ *
+ * Submitted transactions are staged and committed together by a TransactionCommitter when the
+ * staged operations reach commitThreshold, their data reach commitBytes, or the oldest of them has
+ * waited for commitDelayUs; otherwise, they are committed after being idle for commitInterval
+ * seconds. A transaction that would take a group beyond commitThreshold or commitBytes starts a
+ * new group, so that groups stay below ZooKeeper's request limit unless a single transaction is
+ * larger. At most maxCommitters committers are in flight: while the pipeline is full, a group
+ * grows till it is full, after which adding transactions blocks till a committer finishes. The
+ * block is bounded by MAX_BACKPRESSURE_MS because callers usually hold locks of files and
+ * directories, which a committer waiting for its preconditions may need; once it expires, the
+ * group is committed beyond maxCommitters.
+ * Committers touching the same zpaths are ordered by dependencies. A committer also waits for the
+ * preconditions of its transactions (see KurmaTransaction.commitAfter()).
+ *
+ * Committers are created under the manager lock but started outside it, so that building and
+ * issuing their multi-ops does not block staging.
+ */
 public class KurmaTransactionManager {
+  private static final int COMPLETION_THREADS = 2;
+  private static final long MAX_BACKPRESSURE_MS = 100;
   private AtomicLong transactionID;
   private int opCount = 0;
   private CuratorFramework client;
@@ -44,18 +69,54 @@ public class KurmaTransactionManager {
 
   private long stagingChangeTime;
   private List<KurmaTransaction> stagingTransactions = new ArrayList<>();
+  // zpaths of the staging transactions and the zpaths they depend on, maintained as
+  // transactions are added so that starting a committer does not rescan every operation
+  private HashSet<String> stagingZpaths = new HashSet<>();
+  private HashSet<String> stagingDepZpaths = new HashSet<>();
+  private long stagingBytes = 0;
+  // time in nanoseconds when the first of the staging transactions was added
+  private long stagingStartNanos;
 
-  private ExecutorService executors = Executors.newCachedThreadPool();
+  // Committers do not block while waiting for dependencies or ZooKeeper, so a few threads that
+  // run their completions can drive all committers in flight.
+  private ExecutorService executors = Executors.newFixedThreadPool(COMPLETION_THREADS,
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("kurma-txn-%d").build());
   private HashMap<Long, Future<TransactionCommitter>> commitResults = new HashMap<>();
   private MetaJournal journal;
   private int commitInterval;   // periodic auto-commit in seconds
   private int commitThreshold;
+  private long commitBytes;
+  private long commitDelayUs;   // zero disables the latency trigger
+  private int maxCommitters;
+
+  // changes of the committed transactions are evicted from it
+  private volatile InTransactionZnodes znodes = null;
+
+  private final Histogram batchSizes = new Histogram();
+  private final Histogram batchBytes = new Histogram();
+  private final Histogram commitLatencies = new Histogram();
 
   public KurmaTransactionManager(CuratorFramework client, MetaJournal journal, int interval, int threshold) {
+    this(client, journal, interval, threshold, Long.MAX_VALUE, 0, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param interval commit staging transactions after being idle for this many seconds
+   * @param threshold commit staging transactions once they have this many operations
+   * @param bytes commit staging transactions once their data have this many bytes
+   * @param delayUs commit staging transactions once the oldest has waited this many
+   *        microseconds; zero disables this trigger
+   * @param committers max number of committers in flight
+   */
+  public KurmaTransactionManager(CuratorFramework client, MetaJournal journal, int interval,
+      int threshold, long bytes, long delayUs, int committers) {
     this.client = client;
     this.journal = journal;
     this.commitInterval = interval;
     this.commitThreshold = threshold;
+    this.commitBytes = bytes;
+    this.commitDelayUs = delayUs;
+    this.maxCommitters = Math.max(1, committers);
     stagingChangeTime = System.currentTimeMillis();
     transactionID = new AtomicLong(0);
     startPeriodicCommiter();
@@ -96,39 +157,78 @@ public class KurmaTransactionManager {
     return res;
   }
 
-  protected synchronized void commitStagingTxnsIfNeeded() {
-    if (System.currentTimeMillis() - stagingChangeTime >= commitInterval * 1000) {
-      commitStagingTxns();
+  protected void commitStagingTxnsIfNeeded() {
+    TransactionCommitter committer = null;
+    synchronized (this) {
+      if (System.currentTimeMillis() - stagingChangeTime >= commitInterval * 1000) {
+        committer = takeStagingTxns();
+      } else if (isDelayExpired() && hasFreeCommitter()) {
+        committer = takeStagingTxns();
+      }
     }
+    startCommitter(committer);
   }
 
-  private synchronized void commitStagingTxns() {
-    if (stagingTransactions.isEmpty()) {
-      return;
-    }
+  private boolean isDelayExpired() {
+    return commitDelayUs > 0 && !stagingTransactions.isEmpty()
+        && System.nanoTime() - stagingStartNanos >= TimeUnit.MICROSECONDS.toNanos(commitDelayUs);
+  }
 
-    HashSet<String> stagingZpaths = new HashSet<>();
-    HashSet<String> depZpaths = new HashSet<>();
-    for (KurmaTransaction txn : stagingTransactions) {
-      for (OperationInfo op : txn.getOperations()) {
-        String zpath = op.getPath();
-        if (zpath == null) {
-          continue;
-        }
-        if (op.getType().equals(ZKOperationType.CREATE)) {
-          String parent = ZkUtils.getParentZpath(zpath);
-          if ("/".equals(parent)) {
-            depZpaths.add(parent);
-          }
-        }
-        stagingZpaths.add(zpath);
-        depZpaths.add(zpath);
+  private boolean isGroupFull() {
+    return opCount >= commitThreshold || stagingBytes >= commitBytes;
+  }
+
+  /**
+   * Whether adding a transaction with the given numbers of operations and bytes would take the
+   * staging group beyond its limits. An empty group takes any transaction.
+   */
+  private boolean wouldOverflow(int ops, long bytes) {
+    return !stagingTransactions.isEmpty()
+        && (opCount + ops > commitThreshold || stagingBytes + bytes > commitBytes);
+  }
+
+  private boolean hasFreeCommitter() {
+    return commitResults.size() < maxCommitters;
+  }
+
+  private static long sizeOf(KurmaTransaction txn) {
+    long bytes = 0;
+    for (OperationInfo op : txn.getOperations()) {
+      if (op.getPath() != null && op.getData() != null) {
+        bytes += op.getData().length;
       }
     }
+    return bytes;
+  }
+
+  private void startCommitter(TransactionCommitter committer) {
+    if (committer != null) {
+      committer.start(executors);
+    }
+  }
+
+  private void commitStagingTxns() {
+    TransactionCommitter committer;
+    synchronized (this) {
+      committer = takeStagingTxns();
+    }
+    startCommitter(committer);
+  }
+
+  /**
+   * Hand the staging transactions to a new committer, which is to be started by the caller after
+   * releasing the manager lock.
+   *
+   * @return the committer, or null if there is no staging transaction
+   */
+  private TransactionCommitter takeStagingTxns() {
+    if (stagingTransactions.isEmpty()) {
+      return null;
+    }
 
     HashSet<String> deps = new HashSet<>();
     int ndeps = 0;
-    for (String zp : depZpaths) {
+    for (String zp : stagingDepZpaths) {
       LinkedList<TransactionCommitter> committers = committingZpaths.get(zp);
       if (committers != null) {
         LOGGER.debug("Committer-{} depends on {} for {}",
@@ -138,12 +238,25 @@ public class KurmaTransactionManager {
       }
     }
 
+    List<CompletableFuture<?>> preconditions = new ArrayList<>();
+    for (KurmaTransaction txn : stagingTransactions) {
+      CompletableFuture<?> precondition = txn.getPrecondition();
+      if (precondition != null && !precondition.isDone()) {
+        preconditions.add(precondition);
+      }
+    }
+    ndeps += preconditions.size();
+
     TransactionCommitter committer = new TransactionCommitter(client, journal, this,
         stagingTransactions, stagingZpaths, ndeps);
 
     for (String dep : deps) {
       committingZpaths.get(dep).forEach(tc -> { tc.addDependant(committer); });
     }
+    // The committer is not started yet, so it cannot commit even if they are all done by now.
+    for (CompletableFuture<?> precondition : preconditions) {
+      precondition.whenComplete((r, e) -> committer.satifyDependency());
+    }
 
     for (String zp : stagingZpaths) {
       LinkedList<TransactionCommitter> committers = committingZpaths.get(zp);
@@ -156,34 +269,110 @@ public class KurmaTransactionManager {
       }
     }
 
-    commitResults.put(committer.getId(), executors.submit(committer));
+    commitResults.put(committer.getId(), committer.getResult());
     LOGGER.debug("staging transactions being committed by {}", committer);
+    batchSizes.record(opCount);
+    batchBytes.record(stagingBytes);
 
     stagingTransactions = new ArrayList<>();
+    stagingZpaths = new HashSet<>();
+    stagingDepZpaths = new HashSet<>();
     stagingChangeTime = System.currentTimeMillis();
+    stagingBytes = 0;
     opCount = 0;
+    return committer;
   }
 
-  public synchronized boolean addTransaction(KurmaTransaction txn) {
+  public boolean addTransaction(KurmaTransaction txn) {
     if (txn.isEmpty()) {
       return true;
     }
     Preconditions.checkArgument(txn.isCommited());
+    int ops = txn.getOperations().size();
+    long bytes = sizeOf(txn);
+    TransactionCommitter previous = null;
+    TransactionCommitter current = null;
+    try {
+      synchronized (this) {
+        // Start a new group instead of overflowing the staging one, and wait for a free
+        // committer if the pipeline is full.
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_BACKPRESSURE_MS);
+        while (wouldOverflow(ops, bytes)) {
+          long remainingNs = deadline - System.nanoTime();
+          if (hasFreeCommitter()) {
+            previous = takeStagingTxns();
+          } else if (remainingNs <= 0) {
+            LOGGER.warn("no free committer in {}ms; committing beyond {} committers",
+                MAX_BACKPRESSURE_MS, maxCommitters);
+            previous = takeStagingTxns();
+          } else {
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNs);
+          }
+        }
+        if (!stageTransaction(txn, ops, bytes)) {
+          return false;
+        }
+        if (isGroupFull() && hasFreeCommitter()) {
+          current = takeStagingTxns();
+        }
+      }
+    } catch (InterruptedException e) {
+      LOGGER.warn("interrupted while waiting for a free committer");
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      startCommitter(previous);
+      startCommitter(current);
+    }
+    return true;
+  }
+
+  private boolean stageTransaction(KurmaTransaction txn, int ops, long bytes) {
     if (!stagingTransactions.add(txn)) {
       return false;
     }
     stagingChangeTime = System.currentTimeMillis();
-    opCount += txn.getOperations().size();
-    if (opCount >= commitThreshold)
-      commitStagingTxns();
+    if (stagingTransactions.size() == 1) {
+      stagingStartNanos = System.nanoTime();
+      if (commitDelayUs > 0) {
+        tc.scheduleOnce(commitDelayUs, TimeUnit.MICROSECONDS);
+      }
+    }
+    for (OperationInfo op : txn.getOperations()) {
+      String zpath = op.getPath();
+      if (zpath == null) {
+        continue;
+      }
+      if (op.getType().equals(ZKOperationType.CREATE)) {
+        String parent = ZkUtils.getParentZpath(zpath);
+        if ("/".equals(parent)) {
+          stagingDepZpaths.add(parent);
+        }
+      }
+      stagingZpaths.add(zpath);
+      stagingDepZpaths.add(zpath);
+    }
+    stagingBytes += bytes;
+    opCount += ops;
     return true;
   }
 
-  public synchronized void finishCommit(TransactionCommitter committer) {
-    LOGGER.debug("committer finished");
+  public void finishCommit(TransactionCommitter committer) {
+    TransactionCommitter next = null;
+    synchronized (this) {
+      next = finishCommitLocked(committer);
+      // wake up transactions waiting for a free committer
+      notifyAll();
+    }
+    // Dependants may start their multi-ops right away, so they are notified outside the lock.
     for (TransactionCommitter dependant : committer.getDependants()) {
       dependant.satifyDependency();
     }
+    startCommitter(next);
+  }
+
+  private TransactionCommitter finishCommitLocked(TransactionCommitter committer) {
+    LOGGER.debug("committer finished");
     for (String p : committer.getZpaths()) {
       LinkedList<TransactionCommitter> dependants = committingZpaths.get(p);
       dependants.remove(committer);
@@ -193,7 +382,56 @@ public class KurmaTransactionManager {
     }
     // TODO deal with the results
     commitResults.remove(committer.getId());
+    commitLatencies.record(committer.getLatencyMicros());
     LOGGER.debug("Finish a commit; {} left", commitResults.size());
+    // start the group that has been waiting for a free slot in the pipeline
+    if (isGroupFull() || isDelayExpired()) {
+      return takeStagingTxns();
+    }
+    return null;
+  }
+
+  public void setInTransactionZnodes(InTransactionZnodes znodes) {
+    this.znodes = znodes;
+  }
+
+  /**
+   * Evict the changes of committed transactions from the in-transaction znodes, if any. It is
+   * called by committers without holding the manager lock.
+   */
+  void evictCommitted(List<KurmaTransaction> txns) {
+    InTransactionZnodes cache = znodes;
+    if (cache == null) {
+      return;
+    }
+    for (KurmaTransaction txn : txns) {
+      for (OperationInfo op : txn.getOperations()) {
+        if (op.getPath() != null) {
+          cache.evict(op.getPath(), op);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return histogram of the number of operations committed by each committer.
+   */
+  public Histogram getBatchSizeHistogram() {
+    return batchSizes;
+  }
+
+  /**
+   * @return histogram of the bytes of data committed by each committer.
+   */
+  public Histogram getBatchBytesHistogram() {
+    return batchBytes;
+  }
+
+  /**
+   * @return histogram of the microseconds taken by committers from creation to finish.
+   */
+  public Histogram getCommitLatencyHistogram() {
+    return commitLatencies;
   }
 
   public void startPeriodicCommiter() {
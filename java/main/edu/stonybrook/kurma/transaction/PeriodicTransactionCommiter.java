@@ -15,6 +15,7 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,22 +39,31 @@ public class PeriodicTransactionCommiter {
     this.period = period;
   }
 
-  public void startCleaner() {
-    final Runnable cleaner = new Runnable() {
-      @Override
-      public void run() {
-        LOGGER.trace("Commiting");
-        try {
-          manager.commitStagingTxnsIfNeeded();
-        } catch (Exception e) {
-          e.printStackTrace();
-        }
+  private final Runnable cleaner = new Runnable() {
+    @Override
+    public void run() {
+      LOGGER.trace("Commiting");
+      try {
+        manager.commitStagingTxnsIfNeeded();
+      } catch (Exception e) {
+        e.printStackTrace();
       }
-    };
+    }
+  };
+
+  public void startCleaner() {
     // there is an initial delay of 10 seconds
     cleanerHandle = scheduler.scheduleAtFixedRate(cleaner, period, period, SECONDS);
   }
 
+  /**
+   * Check the staging transactions once more after the given delay, in addition to the periodic
+   * checks. Used to commit a group when its latency budget expires.
+   */
+  public void scheduleOnce(long delay, TimeUnit unit) {
+    scheduler.schedule(cleaner, delay, unit);
+  }
+
   public void stopCleaner() {
     scheduler.schedule(new Runnable() {
       @Override
@@ -28,13 +28,18 @@ public interface ResultProcessor {
     try {
       txn.check();
       results = txn.commit().iterator();
-      for (ResultProcessor p : processors) {
-        if (p != null) {
-          p.process(null, results);
-        }
-      }
+      processAll(results, processors);
     } catch (Exception e) {
       throw new CuratorException("curator transaction failed", e);
     }
   }
+
+  public static void processAll(Iterator<CuratorTransactionResult> results,
+      List<ResultProcessor> processors) throws CuratorException {
+    for (ResultProcessor p : processors) {
+      if (p != null) {
+        p.process(null, results);
+      }
+    }
+  }
 }
@@ -14,15 +14,15 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import journal.io.api.Location;
 
 import org.apache.curator.framework.CuratorFramework;
-import org.apache.curator.framework.api.transaction.CuratorTransaction;
-import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,31 +32,48 @@ import edu.stonybrook.kurma.records.ZKOperationType;
 
 /**
  * Commit one or more metadata transactions into ZooKeeper.
+ *
+ * A committer does not occupy a thread while waiting: it is started by the manager, issues its
+ * multi-op asynchronously once all committers it depends on have finished, and finishes in a
+ * callback run by the manager's executor.
+ *
  * TODO: add merging and tests for merging
  * @author mchen
  *
  */
-public class TransactionCommitter implements Callable<TransactionCommitter> {
+public class TransactionCommitter {
   private static final Logger LOGGER = LoggerFactory.getLogger(TransactionCommitter.class);
+
+  /**
+   * Times to resubmit the multi-op of a commit after losing the connection to ZooKeeper.
+   */
+  static final int MULTI_RETRIES = 5;
+
   private CuratorFramework client;
   private MetaJournal journal;
 
   /**
-   * Number of TransactionCommitter this committer depends on.
+   * Number of TransactionCommitter this committer depends on, plus one until it is started.
    */
-  private CountDownLatch dependency;
+  private final AtomicInteger dependency;
 
   private final HashSet<String> zpaths;
   private KurmaTransactionManager manager;
   private List<KurmaTransaction> transactions;
+  private Executor executor;
+  private final CompletableFuture<TransactionCommitter> result = new CompletableFuture<>();
 
   private ConcurrentLinkedQueue<TransactionCommitter> dependants = new ConcurrentLinkedQueue<>();
 
-  private boolean finished = false;
-  private boolean success = false;
+  private volatile boolean finished = false;
+  private volatile boolean success = false;
+
+  private final long createdNanos = System.nanoTime();
+  private long finishedNanos = 0;
 
   private void setFinished(boolean success) {
     LOGGER.debug("{} finished", this);
+    this.finishedNanos = System.nanoTime();
     this.finished = true;
     this.success = success;
   }
@@ -74,13 +91,22 @@ public class TransactionCommitter implements Callable<TransactionCommitter> {
       final HashSet<String> zpaths, int dependCount) {
     this.client = client;
     this.journal = journal;
-    this.dependency = new CountDownLatch(dependCount);
+    this.dependency = new AtomicInteger(dependCount + 1);
     this.manager = manager;
     this.transactions = txns;
     this.zpaths = zpaths;
     LOGGER.debug("{} created with {} dependancy", toString(), dependCount);
   }
 
+  /**
+   * @return microseconds from the creation of this committer to its finish, including the time
+   *         waiting for the committers it depends on.
+   */
+  public long getLatencyMicros() {
+    long end = finished ? finishedNanos : System.nanoTime();
+    return (end - createdNanos) / 1000;
+  }
+
   public long getId() {
     return transactions.get(0).getTransactionID();
   }
@@ -91,11 +117,13 @@ public class TransactionCommitter implements Callable<TransactionCommitter> {
   }
 
   public void satifyDependency() {
-    dependency.countDown();
+    if (dependency.decrementAndGet() == 0) {
+      commit();
+    }
   }
 
   public long countDependency() {
-    return dependency.getCount();
+    return Math.max(0, dependency.get() - (executor == null ? 1 : 0));
   }
 
   public void addDependant(TransactionCommitter tc) {
@@ -106,53 +134,73 @@ public class TransactionCommitter implements Callable<TransactionCommitter> {
     return dependants;
   }
 
-  @Override
-  public TransactionCommitter call() throws Exception {
-    try {
-      LOGGER.debug("committing transactions by {}", toString());
-      HashSet<OperationInfo> skipUpdates = mergeUpdates();
-      dependency.await();
-      CuratorTransaction txn = client.inTransaction();
-      ArrayList<ResultProcessor> processors = new ArrayList<>();
-      ArrayList<Location> locations = new ArrayList<>();
-      for (KurmaTransaction kt : transactions) {
-        for (OperationInfo op : kt.getOperations()) {
-          if (skipUpdates.contains(op))
-            continue;
-          if (op.getType().equals(ZKOperationType.CREATE)) {
-            txn = txn.create().forPath(op.getPath(), op.getData()).and();
-            processors.add(op.getRp());
-          } else if (op.getType().equals(ZKOperationType.REMOVE)) {
-            txn = txn.delete().forPath(op.getPath()).and();
-            processors.add(op.getRp());
-          } else if (op.getType().equals(ZKOperationType.UPDATE)) {
-            txn = txn.setData().forPath(op.getPath(), op.getData()).and();
-            processors.add(op.getRp());
-          }
-        }
-        locations.addAll(kt.getJournalLocations());
-      }
-      if (txn instanceof CuratorTransactionFinal) {
-        ResultProcessor.commit((CuratorTransactionFinal)txn, processors);
+  /**
+   * Start committing once the committers this one depends on finish. Dependants should be added
+   * to those committers before this is called.
+   *
+   * @param executor runs the completion of the commit, which must not block the ZooKeeper event
+   *        thread
+   * @return a future completed after the commit finishes, successfully or not, and after the
+   *         manager has been notified
+   */
+  public CompletableFuture<TransactionCommitter> start(Executor executor) {
+    this.executor = executor;
+    satifyDependency();
+    return result;
+  }
+
+  /**
+   * @return the future returned by start()
+   */
+  public CompletableFuture<TransactionCommitter> getResult() {
+    return result;
+  }
+
+  private void commit() {
+    LOGGER.debug("committing transactions by {}", toString());
+    HashSet<OperationInfo> skipUpdates = mergeUpdates();
+    List<OperationInfo> ops = new ArrayList<>();
+    List<ResultProcessor> processors = new ArrayList<>();
+    for (KurmaTransaction kt : transactions) {
+      for (OperationInfo op : kt.getOperations()) {
+        if (skipUpdates.contains(op) || op.getType().equals(ZKOperationType.COMMIT))
+          continue;
+        ops.add(op);
+        processors.add(op.getRp());
       }
-      for (Location loc : locations) {
-        journal.delete(loc);
+    }
+    AsyncCurator.multi(client, ops, MULTI_RETRIES).handleAsync((results, error) -> {
+      if (error instanceof CompletionException) {
+        error = error.getCause();
       }
-      setFinished(true);
-    } catch (CuratorException e) {
-      LOGGER.error("CuratorTransaction failed to commit", e);
-      LOGGER.error("Committer-{} with {} KurmaTransactions:", getId(), transactions.size());
-      for (KurmaTransaction txn : transactions) {
-        LOGGER.error(txn.toString());
+      try {
+        if (error != null) {
+          throw new CuratorException("curator transaction failed", error);
+        } else {
+          ResultProcessor.processAll(results.iterator(), processors);
+        }
+        for (KurmaTransaction kt : transactions) {
+          for (Location loc : kt.getJournalLocations()) {
+            journal.delete(loc);
+          }
+        }
+        manager.evictCommitted(transactions);
+        setFinished(true);
+      } catch (CuratorException e) {
+        LOGGER.error("CuratorTransaction failed to commit", e);
+        LOGGER.error("Committer-{} with {} KurmaTransactions:", getId(), transactions.size());
+        for (KurmaTransaction txn : transactions) {
+          LOGGER.error(txn.toString());
+        }
+        setFinished(false);
+      } catch (Exception e) {
+        LOGGER.error("Unknown failure", e);
+        setFinished(false);
+      } finally {
+        manager.finishCommit(this);
       }
-      setFinished(false);
-    } catch (Exception e) {
-      LOGGER.error("Unknown failure", e);
-      setFinished(false);
-    } finally {
-      manager.finishCommit(this);
-    }
-    return this;
+      return this;
+    }, executor).whenComplete((tc, e) -> result.complete(this));
   }
 
   private HashSet<OperationInfo> mergeUpdates() {
@@ -10,8 +10,16 @@
  */
 package edu.stonybrook.kurma.transaction;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.data.Stat;
 
 import edu.stonybrook.kurma.records.ZKOperationType;
@@ -29,11 +37,15 @@ public class ZkClient {
     this.client = client;
     this.manager = manager;
     this.cache = cache;
+    manager.setInTransactionZnodes(cache);
   }
 
   public byte[] read(String zpath, Stat zkStat) throws Exception {
     byte[] data = cache.get(zpath);
     if (data == null) {
+      if (cache.isDeleted(zpath)) {
+        throw new KeeperException.NoNodeException(zpath);
+      }
       if (zkStat == null) {
         data = client.getData().forPath(zpath);
       } else {
@@ -43,6 +55,60 @@ public class ZkClient {
     return data;
   }
 
+  /**
+   * Read a znode without blocking; staged data that has not been committed is returned first.
+   *
+   * @param zkStat if not null, the stat of the znode is stored in it if read from ZK
+   */
+  public CompletableFuture<byte[]> readAsync(String zpath, Stat zkStat) {
+    byte[] data = cache.get(zpath);
+    if (data != null) {
+      return CompletableFuture.completedFuture(data);
+    }
+    if (cache.isDeleted(zpath)) {
+      CompletableFuture<byte[]> future = new CompletableFuture<>();
+      future.completeExceptionally(new KeeperException.NoNodeException(zpath));
+      return future;
+    }
+    return AsyncCurator.getData(client, zpath, zkStat);
+  }
+
+  /**
+   * Read multiple znodes with pipelined asynchronous requests instead of one round trip each.
+   *
+   * @param zpaths znodes to read
+   * @return data of the znodes in the same order
+   * @throws Exception the error of the first failed read, e.g., NoNodeException
+   */
+  public byte[][] readAll(List<String> zpaths) throws Exception {
+    List<CompletableFuture<byte[]>> futures = new ArrayList<>(zpaths.size());
+    for (String zpath : zpaths) {
+      futures.add(readAsync(zpath, null));
+    }
+    byte[][] results = new byte[zpaths.size()][];
+    for (int i = 0; i < results.length; ++i) {
+      results[i] = await(futures.get(i));
+    }
+    return results;
+  }
+
+  /**
+   * Wait for an asynchronous operation and rethrow its failure, e.g., NoNodeException.
+   */
+  public <T> T await(CompletableFuture<T> future) throws Exception {
+    try {
+      return future.get(client.getZookeeperClient().getConnectionTimeoutMs(),
+          TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw new KeeperException.OperationTimeoutException();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
   public void createRecursive(String zpath, byte[] data) throws Exception {
     client.create().creatingParentsIfNeeded().forPath(zpath, data);
   }
@@ -55,9 +121,22 @@ public class ZkClient {
     if (cache.get(zpath) != null) {
       return true;
     }
+    if (cache.isDeleted(zpath)) {
+      return false;
+    }
     return client.checkExists().forPath(zpath) != null;
   }
 
+  public CompletableFuture<Boolean> checkExistsAsync(String zpath) {
+    if (cache.get(zpath) != null) {
+      return CompletableFuture.completedFuture(true);
+    }
+    if (cache.isDeleted(zpath)) {
+      return CompletableFuture.completedFuture(false);
+    }
+    return AsyncCurator.checkExists(client, zpath);
+  }
+
   public void ensurePath(String zpath, boolean excludeLast) throws Exception {
     if (excludeLast) {
       zpath = ZKPaths.getPathAndNode(zpath).getPath();
@@ -95,15 +174,23 @@ public class ZkClient {
   }
 
   public boolean submitTransaction(KurmaTransaction txn) {
+    // The changes are cached before submission because the manager evicts them once committed,
+    // which may happen before submit() returns.
+    List<OperationInfo> ops = new ArrayList<>(txn.getOperations());
+    for (OperationInfo op : ops) {
+      if (ZKOperationType.CREATE.equals(op.getType())) {
+        cache.put(op.getPath(), op.getData(), op);
+      } else if (ZKOperationType.UPDATE.equals(op.getType())) {
+        cache.put(op.getPath(), op.getData(), op);
+      } else if (ZKOperationType.REMOVE.equals(op.getType())) {
+        cache.delete(op.getPath(), op);
+      }
+    }
     boolean res = manager.submit(txn);
-    if (res) {
-      for (OperationInfo op : txn.getOperations()) {
-        if (ZKOperationType.CREATE.equals(op.getType())) {
-          cache.put(op.getPath(), op.getData());
-        } else if (ZKOperationType.UPDATE.equals(op.getType())) {
-          cache.put(op.getPath(), op.getData());
-        } else if (ZKOperationType.REMOVE.equals(op.getType())) {
-          cache.delete(op.getPath());
+    if (!res) {
+      for (OperationInfo op : ops) {
+        if (op.getPath() != null) {
+          cache.revert(op.getPath(), op);
         }
       }
     }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of heap buffers in power-of-two size classes, used to recycle the large, short-lived
+ * buffers of the block data path.
+ *
+ * A buffer returned by {@link #allocate(int)} has exactly the requested capacity, but its backing
+ * array may be larger. Whoever owns a buffer may give it back with {@link #release(ByteBuffer)}
+ * once nobody else can reference its backing array; releasing a buffer twice, or releasing a
+ * buffer still in use, corrupts whoever gets it next. Buffers that are never released are simply
+ * garbage collected.
+ *
+ * Heap buffers are used instead of direct ones because the ciphers, codecs, and Thrift all work
+ * on backing arrays.
+ */
+public class BufferPool {
+  public static final int MIN_CLASS_SHIFT = 12; // 4KB
+  public static final int MAX_CLASS_SHIFT = 22; // 4MB
+
+  private final long capacity;
+  private final Queue<byte[]>[] classes;
+
+  private final AtomicLong pooledBytes = new AtomicLong(0);
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+  private final AtomicLong drops = new AtomicLong(0);
+
+  /**
+   * @param capacity max number of bytes of free buffers kept in the pool; zero disables pooling.
+   */
+  @SuppressWarnings("unchecked")
+  public BufferPool(long capacity) {
+    this.capacity = capacity;
+    classes = new Queue[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+    for (int i = 0; i < classes.length; ++i) {
+      classes[i] = new ConcurrentLinkedQueue<>();
+    }
+  }
+
+  public boolean isEnabled() {
+    return capacity > 0;
+  }
+
+  /**
+   * Get the index of the smallest size class that can hold size bytes, or -1 if size is too large.
+   */
+  static int classOf(int size) {
+    if (size <= (1 << MIN_CLASS_SHIFT)) {
+      return 0;
+    }
+    int shift = Integer.SIZE - Integer.numberOfLeadingZeros(size - 1);
+    return shift > MAX_CLASS_SHIFT ? -1 : shift - MIN_CLASS_SHIFT;
+  }
+
+  /**
+   * Allocate a heap buffer with position 0 and limit/capacity of size.
+   */
+  public ByteBuffer allocate(int size) {
+    int c = isEnabled() && size > 0 ? classOf(size) : -1;
+    if (c < 0) {
+      return ByteBuffer.allocate(size);
+    }
+    byte[] array = classes[c].poll();
+    if (array == null) {
+      misses.incrementAndGet();
+      array = new byte[1 << (c + MIN_CLASS_SHIFT)];
+    } else {
+      hits.incrementAndGet();
+      pooledBytes.addAndGet(-array.length);
+    }
+    return ByteBuffer.wrap(array, 0, size).slice();
+  }
+
+  /**
+   * Give the backing array of a buffer back to the pool. Buffers not backed by an array of a size
+   * class are ignored, so it is safe to release buffers that were not allocated from the pool as
+   * long as nobody else references them.
+   */
+  public void release(ByteBuffer buf) {
+    if (buf == null || !buf.hasArray() || !isEnabled()) {
+      return;
+    }
+    byte[] array = buf.array();
+    int c = classOf(array.length);
+    if (c < 0 || array.length != (1 << (c + MIN_CLASS_SHIFT))) {
+      return;
+    }
+    if (pooledBytes.addAndGet(array.length) > capacity) {
+      pooledBytes.addAndGet(-array.length);
+      drops.incrementAndGet();
+      return;
+    }
+    classes[c].offer(array);
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return number of bytes of free buffers currently in the pool.
+   */
+  public long getPooledBytes() {
+    return pooledBytes.get();
+  }
+
+  /**
+   * @return number of allocations served by recycled buffers.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of poolable allocations that had to allocate new buffers.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return number of released buffers dropped because the pool was full.
+   */
+  public long getDropCount() {
+    return drops.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("BufferPool [capacity=%d, pooled=%d, hits=%d, misses=%d, drops=%d]",
+        capacity, pooledBytes.get(), hits.get(), misses.get(), drops.get());
+  }
+}
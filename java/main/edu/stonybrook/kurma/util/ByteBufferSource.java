@@ -97,4 +97,22 @@ public class ByteBufferSource extends ByteSource {
     }
     return ByteBuffer.wrap(buf);
   }
+
+  /**
+   * Same as readPrefixedBuffer(stream) but the returned buffer is allocated from the pool.
+   */
+  public static ByteBuffer readPrefixedBuffer(InputStream stream, BufferPool pool)
+      throws IOException {
+    if (stream == null) {
+      return null;
+    }
+    int size = readPrefix(stream);
+    ByteBuffer buf = pool.allocate(size);
+    int bytes = ByteStreams.read(stream, buf.array(), buf.arrayOffset(), size);
+    if (bytes != size) {
+      pool.release(buf);
+      throw new IOException(String.format("expecting %d bytes but got only %d", size, bytes));
+    }
+    return buf;
+  }
 }
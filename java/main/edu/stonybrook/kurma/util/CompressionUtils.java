@@ -10,56 +10,115 @@
  */
 package edu.stonybrook.kurma.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
-
+/**
+ * Raw (nowrap) deflate streams. Deflaters and inflaters hold native memory and are expensive to
+ * create, so each thread reuses its own instances.
+ */
 public class CompressionUtils {
 
+  private static final byte[] PADDING = new byte[1];
+
+  private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+    @Override
+    protected Deflater initialValue() {
+      return new Deflater(Deflater.BEST_SPEED, true);
+    }
+  };
+
+  private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+    @Override
+    protected Inflater initialValue() {
+      return new Inflater(true);
+    }
+  };
+
   public static byte[] compress(byte[] data) {
-    ByteArrayOutputStream baos = null;
-    Deflater dfl = new Deflater(Deflater.BEST_SPEED, true);
-    dfl.setInput(data);
-    dfl.finish();
-    baos = new ByteArrayOutputStream();
-    byte[] tmp = new byte[4 * 1024];
+    return compress(data, 0, data.length);
+  }
+
+  /**
+   * Compress data[off, off + len) into an exactly sized array.
+   */
+  public static byte[] compress(byte[] data, int off, int len) {
+    // deflateBound() of zlib for raw streams
+    byte[] out = new byte[len + (len >> 12) + (len >> 14) + (len >> 25) + 13];
+    int n = deflate(data, off, len, out, 0, out.length);
+    if (n < 0) {
+      throw new IllegalStateException("deflate output exceeds its bound");
+    }
+    return Arrays.copyOf(out, n);
+  }
+
+  /**
+   * Compress data[off, off + len) into dst[dstOff, dstOff + maxLen).
+   *
+   * @return number of compressed bytes, or -1 if dst cannot hold the output
+   */
+  static int deflate(byte[] data, int off, int len, byte[] dst, int dstOff, int maxLen) {
+    Deflater dfl = DEFLATERS.get();
     try {
+      dfl.setInput(data, off, len);
+      dfl.finish();
+      int n = 0;
       while (!dfl.finished()) {
-        int size = dfl.deflate(tmp);
-        baos.write(tmp, 0, size);
-       // System.out.printf("calling compression utili\n");
+        if (n == maxLen) {
+          return -1;
+        }
+        n += dfl.deflate(dst, dstOff + n, maxLen - n);
       }
-    } catch (Exception ex) {
-      ex.printStackTrace();
-      return data;
+      return n;
     } finally {
-      try {
-        baos.close();
-      } catch (Exception ex) {
-        ex.printStackTrace();
-      }
+      dfl.reset();
     }
-    return baos.toByteArray();
   }
 
   public static byte[] decompress(byte[] data) throws IOException, DataFormatException {
-    Inflater inflater = new Inflater(true);
-    inflater.setInput(data);
+    return decompress(data, 0, data.length, -1);
+  }
 
-    ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length);
-    byte[] buffer = new byte[1024];
-    while (!inflater.finished()) {
-      int count = inflater.inflate(buffer);
-      outputStream.write(buffer, 0, count);
+  /**
+   * Decompress data[off, off + len).
+   *
+   * @param rawLength the length of the decompressed data, or -1 if unknown
+   */
+  static byte[] decompress(byte[] data, int off, int len, int rawLength)
+      throws DataFormatException {
+    Inflater inflater = INFLATERS.get();
+    try {
+      inflater.setInput(data, off, len);
+      byte[] out = new byte[rawLength >= 0 ? rawLength : Math.max(len * 4, 64)];
+      int n = 0;
+      boolean padded = false;
+      while (!inflater.finished()) {
+        if (n == out.length) {
+          if (rawLength >= 0) {
+            throw new DataFormatException("deflate stream does not end at " + rawLength);
+          }
+          out = Arrays.copyOf(out, out.length * 2);
+        }
+        int count = inflater.inflate(out, n, out.length - n);
+        if (count == 0 && inflater.needsInput() && !padded) {
+          // a nowrap Inflater may need an extra dummy byte to see the end of the stream
+          inflater.setInput(PADDING);
+          padded = true;
+        } else if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new DataFormatException("truncated deflate stream");
+        }
+        n += count;
+      }
+      if (rawLength >= 0 && n != rawLength) {
+        throw new DataFormatException(
+            String.format("decompressed %d bytes instead of %d", n, rawLength));
+      }
+      return n == out.length ? out : Arrays.copyOf(out, n);
+    } finally {
+      inflater.reset();
     }
-    outputStream.close();
-    byte[] output = outputStream.toByteArray();
-
-    inflater.end();
-
-    return output;
   }
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative long values, such as latencies or batch sizes.
+ *
+ * Values are counted in log-linear buckets: every power-of-two range is split into
+ * 2^SUB_BUCKET_BITS equal buckets, so a percentile is accurate to within 1/2^SUB_BUCKET_BITS of
+ * its value while the histogram stays a fixed array of a few hundred counters.
+ */
+public class Histogram {
+  static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int NUM_BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+  private final AtomicLong count = new AtomicLong(0);
+  private final AtomicLong sum = new AtomicLong(0);
+  private final AtomicLong max = new AtomicLong(0);
+
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * @return the largest value that falls into the given bucket.
+   */
+  static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lower + (1L << shift) - 1;
+  }
+
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    buckets.incrementAndGet(bucketOf(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long m = max.get();
+    while (value > m && !max.compareAndSet(m, value)) {
+      m = max.get();
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  /**
+   * Get the value below which the given percentage of recorded values fall.
+   *
+   * @param percentile in the range of (0, 100]
+   * @return the upper bound of the bucket of the percentile, or 0 if nothing is recorded.
+   */
+  public long getPercentile(double percentile) {
+    long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      seen += buckets.get(i);
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  public void reset() {
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      buckets.set(i, 0);
+    }
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d", getCount(), getMean(),
+        getPercentile(50), getPercentile(90), getPercentile(99), getMax());
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.util;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+/**
+ * Codecs of compact-encoded metadata saved in ZooKeeper and sent between gateways.
+ *
+ * Except for LEGACY, encoded data starts with a one-byte tag of its codec. Metadata written before
+ * the tags were introduced is a bare raw deflate stream, whose first byte holds the BFINAL bit and
+ * the two-bit BTYPE of the first deflate block in its lowest three bits. BTYPE 3 is reserved by
+ * RFC 1951, so all tags set both BTYPE bits and untagged data is decoded as a legacy stream.
+ *
+ * Tagged DEFLATE and LZ4 data keep the decompressed length as a 4-byte big-endian integer after
+ * the tag. Data shorter than the raw threshold, or data that does not shrink, is saved as RAW.
+ */
+public enum MetadataCodec {
+  /**
+   * Untagged deflate streams that can be read by gateways predating the codec tags.
+   */
+  LEGACY((byte) 0) {
+    @Override
+    byte[] compress(byte[] data, int len) {
+      return CompressionUtils.compress(data, 0, len);
+    }
+  },
+  RAW((byte) 0x0E) {
+    @Override
+    byte[] compress(byte[] data, int len) {
+      byte[] out = new byte[len + 1];
+      out[0] = tag;
+      System.arraycopy(data, 0, out, 1, len);
+      return out;
+    }
+  },
+  DEFLATE((byte) 0x16) {
+    @Override
+    byte[] compress(byte[] data, int len) {
+      // fall back to RAW if the deflate stream is not smaller than the data
+      byte[] out = new byte[HEADER_SIZE + len];
+      int n = CompressionUtils.deflate(data, 0, len, out, HEADER_SIZE, len);
+      return n < 0 ? RAW.compress(data, len) : withHeader(out, n, len);
+    }
+  },
+  LZ4((byte) 0x1E) {
+    @Override
+    byte[] compress(byte[] data, int len) {
+      LZ4Compressor compressor = LZ4_FACTORY.fastCompressor();
+      byte[] out = new byte[HEADER_SIZE + compressor.maxCompressedLength(len)];
+      int n = compressor.compress(data, 0, len, out, HEADER_SIZE);
+      return n >= len ? RAW.compress(data, len) : withHeader(out, n, len);
+    }
+  };
+
+  private static final int HEADER_SIZE = 5;
+
+  private static final int TAG_MASK = 0x06;
+
+  private static final LZ4Factory LZ4_FACTORY = LZ4Factory.fastestInstance();
+
+  private static volatile MetadataCodec defaultCodec = LEGACY;
+
+  private static volatile int rawThreshold = 64;
+
+  protected final byte tag;
+
+  private MetadataCodec(byte tag) {
+    this.tag = tag;
+  }
+
+  /**
+   * Encode data[0, len) with this codec into an exactly sized array.
+   */
+  abstract byte[] compress(byte[] data, int len);
+
+  byte[] withHeader(byte[] out, int compressedLength, int rawLength) {
+    out[0] = tag;
+    out[1] = (byte) (rawLength >>> 24);
+    out[2] = (byte) (rawLength >>> 16);
+    out[3] = (byte) (rawLength >>> 8);
+    out[4] = (byte) rawLength;
+    return Arrays.copyOf(out, HEADER_SIZE + compressedLength);
+  }
+
+  public static MetadataCodec getDefault() {
+    return defaultCodec;
+  }
+
+  /**
+   * Whether metadata should stay readable by gateways that predate the codec tags, which also
+   * predate run-length encoded BlockMaps. This holds whether or not the metadata is compressed.
+   */
+  public static boolean isLegacyCompatible() {
+    return defaultCodec == LEGACY;
+  }
+
+  public static int getRawThreshold() {
+    return rawThreshold;
+  }
+
+  /**
+   * Set the codec used by encode(). Gateways of a rolling upgrade should keep using LEGACY until
+   * all of them understand the tagged codecs.
+   *
+   * @param threshold data shorter than this many bytes are saved as RAW; ignored by LEGACY.
+   */
+  public static void setDefault(MetadataCodec codec, int threshold) {
+    defaultCodec = codec;
+    rawThreshold = threshold;
+  }
+
+  /**
+   * Parse a codec name such as "deflate" or "lz4".
+   */
+  public static MetadataCodec parse(String name) {
+    return valueOf(name.trim().toUpperCase());
+  }
+
+  public static boolean isTagged(byte[] data) {
+    return data.length > 0 && (data[0] & TAG_MASK) == TAG_MASK;
+  }
+
+  public static byte[] encode(byte[] data, int len) {
+    return encode(defaultCodec, data, len);
+  }
+
+  /**
+   * Encode data[0, len) with the given codec.
+   */
+  public static byte[] encode(MetadataCodec codec, byte[] data, int len) {
+    if (codec != LEGACY && len < rawThreshold) {
+      return RAW.compress(data, len);
+    }
+    return codec.compress(data, len);
+  }
+
+  /**
+   * Decode data encoded by any codec, including legacy streams.
+   */
+  public static byte[] decode(byte[] data) throws DataFormatException {
+    if (!isTagged(data)) {
+      return data.length == 0 ? data : CompressionUtils.decompress(data, 0, data.length, -1);
+    }
+    if (data[0] == RAW.tag) {
+      return Arrays.copyOfRange(data, 1, data.length);
+    }
+    if (data.length < HEADER_SIZE) {
+      throw new DataFormatException("truncated metadata header");
+    }
+    int rawLength = ((data[1] & 0xff) << 24) | ((data[2] & 0xff) << 16)
+        | ((data[3] & 0xff) << 8) | (data[4] & 0xff);
+    if (rawLength < 0) {
+      throw new DataFormatException("invalid metadata length " + rawLength);
+    }
+    if (data[0] == DEFLATE.tag) {
+      return CompressionUtils.decompress(data, HEADER_SIZE, data.length - HEADER_SIZE, rawLength);
+    }
+    if (data[0] == LZ4.tag) {
+      byte[] out = new byte[rawLength];
+      // metadata may come from remote gateways, so use the decompressor that checks bounds
+      LZ4SafeDecompressor decompressor = LZ4_FACTORY.safeDecompressor();
+      try {
+        int n = decompressor.decompress(data, HEADER_SIZE, data.length - HEADER_SIZE, out, 0,
+            rawLength);
+        if (n == rawLength) {
+          return out;
+        }
+      } catch (LZ4Exception e) {
+        // reported below
+      }
+      throw new DataFormatException("corrupted LZ4 metadata");
+    }
+    throw new DataFormatException(String.format("unknown metadata codec tag 0x%02x", data[0]));
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.util;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A thread-safe range lock that does not serialize lockers on a global monitor.
+ *
+ * The address space is divided into segments of (1 << segmentShift) bytes, and segments are mapped
+ * round-robin onto a fixed number of fair ReentrantReadWriteLocks (stripes). A range is locked by
+ * locking all stripes its segments map to. Ranges covering at least as many segments as there are
+ * stripes (e.g., the whole range) simply lock every stripe.
+ *
+ * Ranges in the same segment, or in segments sharing a stripe, conflict even if they do not
+ * overlap; callers should choose a segment size that matches their locking granularity.
+ *
+ * Unlike {@link RangeLock}, locks are owned by threads: a range must be unlocked by the thread that
+ * locked it, and a thread can re-lock a range it has already write-locked. A locker waiting for a
+ * range never holds part of it, so two lockers of multi-stripe ranges cannot deadlock each other.
+ * That holds only if a thread does not wait for a range while holding another one: disjoint ranges
+ * may share stripes, and a read-locked stripe cannot be upgraded, so a thread that needs several
+ * ranges should lock them in one call (e.g., the range spanning all of them).
+ */
+public class StripedRangeLock {
+  private final int segmentShift;
+  private final ReentrantReadWriteLock[] stripes;
+  private final int[] allStripes;
+
+  /**
+   * @param segmentShift log2 of the segment size
+   * @param nstripes number of stripes
+   */
+  public StripedRangeLock(int segmentShift, int nstripes) {
+    Preconditions.checkArgument(segmentShift >= 0 && segmentShift < Long.SIZE);
+    Preconditions.checkArgument(nstripes > 0);
+    this.segmentShift = segmentShift;
+    stripes = new ReentrantReadWriteLock[nstripes];
+    allStripes = new int[nstripes];
+    for (int i = 0; i < nstripes; ++i) {
+      stripes[i] = new ReentrantReadWriteLock(true);
+      allStripes[i] = i;
+    }
+  }
+
+  /**
+   * Get indices of the stripes covering [begin, end) in ascending order.
+   */
+  private int[] stripesOf(long begin, long end) {
+    long first = begin >>> segmentShift;
+    long last = (end - 1) >>> segmentShift;
+    if (last - first + 1 >= stripes.length) {
+      return allStripes;
+    }
+    int[] indices = new int[(int) (last - first + 1)];
+    for (int i = 0; i < indices.length; ++i) {
+      indices[i] = (int) ((first + i) % stripes.length);
+    }
+    if (indices.length > 1) {
+      Arrays.sort(indices);
+    }
+    return indices;
+  }
+
+  private Lock lockOf(int stripe, boolean forRead) {
+    return forRead ? stripes[stripe].readLock() : stripes[stripe].writeLock();
+  }
+
+  /**
+   * Try to lock all the stripes except "held", which is already locked by the caller.
+   *
+   * @return -1 if all stripes are locked; otherwise, the position of the first stripe that is not
+   *         immediately available, in which case no stripe (including "held") is locked on return.
+   */
+  private int tryLockAll(int[] indices, boolean forRead, int held) {
+    for (int i = 0; i < indices.length; ++i) {
+      if (i == held) {
+        continue;
+      }
+      if (!lockOf(indices[i], forRead).tryLock()) {
+        for (int j = 0; j < i; ++j) {
+          if (j != held) {
+            lockOf(indices[j], forRead).unlock();
+          }
+        }
+        if (held >= 0) {
+          lockOf(indices[held], forRead).unlock();
+        }
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void lock(long begin, long end, boolean forRead) {
+    if (begin >= end) {
+      return;
+    }
+    int[] indices = stripesOf(begin, end);
+    if (indices.length == 1) {
+      lockOf(indices[0], forRead).lock();
+      return;
+    }
+    int held = -1;
+    int busy;
+    while ((busy = tryLockAll(indices, forRead, held)) >= 0) {
+      // Wait for the busy stripe without holding any other stripe of this range.
+      lockOf(indices[busy], forRead).lock();
+      held = busy;
+    }
+  }
+
+  private boolean tryLock(long begin, long end, boolean forRead) {
+    return begin >= end || tryLockAll(stripesOf(begin, end), forRead, -1) < 0;
+  }
+
+  private void unlock(long begin, long end, boolean forRead) {
+    if (begin >= end) {
+      return;
+    }
+    int[] indices = stripesOf(begin, end);
+    for (int i = indices.length - 1; i >= 0; --i) {
+      lockOf(indices[i], forRead).unlock();
+    }
+  }
+
+  /**
+   * Lock [begin, end) for read, waiting until no writer holds any part of it.
+   */
+  public void lockRead(long begin, long end) {
+    lock(begin, end, true);
+  }
+
+  /**
+   * Lock [begin, end) for read only if it is immediately available.
+   */
+  public boolean tryLockRead(long begin, long end) {
+    return tryLock(begin, end, true);
+  }
+
+  public void unlockRead(long begin, long end) {
+    unlock(begin, end, true);
+  }
+
+  /**
+   * Lock [begin, end) for write, waiting until nobody else holds any part of it.
+   */
+  public void lockWrite(long begin, long end) {
+    lock(begin, end, false);
+  }
+
+  /**
+   * Lock [begin, end) for write only if it is immediately available.
+   */
+  public boolean tryLockWrite(long begin, long end) {
+    return tryLock(begin, end, false);
+  }
+
+  public void unlockWrite(long begin, long end) {
+    unlock(begin, end, false);
+  }
+
+  public void lockWholeRange(boolean forRead) {
+    lock(0, Long.MAX_VALUE, forRead);
+  }
+
+  public void unlockWholeRange(boolean forRead) {
+    unlock(0, Long.MAX_VALUE, forRead);
+  }
+
+  /**
+   * Check whether the segment containing pos is locked by anybody.
+   */
+  public boolean isLocked(long pos) {
+    ReentrantReadWriteLock lock = stripes[(int) ((pos >>> segmentShift) % stripes.length)];
+    return lock.isWriteLocked() || lock.getReadLockCount() > 0;
+  }
+}
@@ -10,6 +10,8 @@
  */
 package edu.stonybrook.kurma.util;
 
+import java.util.Arrays;
+
 import org.apache.thrift.TBase;
 import org.apache.thrift.TException;
 import org.apache.thrift.protocol.TBinaryProtocol;
@@ -31,13 +33,15 @@ public class ThriftUtils {
       e1.printStackTrace();
       return null;
     }
-    return compress ? CompressionUtils.compress(buffer.getArray()) : buffer.getArray();
+    // the array backing the buffer is usually larger than the encoded data
+    return compress ? MetadataCodec.encode(buffer.getArray(), buffer.length())
+        : Arrays.copyOf(buffer.getArray(), buffer.length());
   }
 
   @SuppressWarnings("rawtypes")
   public static boolean decode(byte[] data, TBase obj, boolean compress) throws Exception {
     TTransport xport =
-        new TMemoryInputTransport(compress ? CompressionUtils.decompress(data) : data);
+        new TMemoryInputTransport(compress ? MetadataCodec.decode(data) : data);
     TProtocol protocol = compress ? new TCompactProtocol(xport) : new TBinaryProtocol(xport);
     try {
       obj.read(protocol);
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.util;
+
+/**
+ * Passively collected statistics of transfers (e.g., reads or writes) to a cloud provider.
+ *
+ * Latencies of recent transfers are kept in a histogram that rolls over every WINDOW samples, so
+ * percentiles reflect recent traffic. A linear model of "time = latency + bytes / bandwidth" is
+ * fitted to the samples by exponentially weighted least squares, which lets us predict how long
+ * a transfer of a given size will take.
+ */
+public class TransferStats {
+  /**
+   * Number of samples after which the latency histogram rolls over.
+   */
+  static final int WINDOW = 1024;
+
+  /**
+   * Weight of the newest sample in the model.
+   */
+  static final double DECAY = 0.1;
+
+  /**
+   * The bandwidth is estimated only if transfer sizes vary by at least this ratio of their mean;
+   * otherwise we cannot tell latency and bandwidth apart.
+   */
+  static final double MIN_SIZE_VARIATION = 0.1;
+
+  private volatile Histogram current = new Histogram();
+  private volatile Histogram previous = new Histogram();
+
+  // exponentially weighted sums of weights, sizes, times, sizes^2, and sizes*times
+  private double w = 0;
+  private double sx = 0;
+  private double sy = 0;
+  private double sxx = 0;
+  private double sxy = 0;
+
+  private volatile long lastActiveTime = 0;
+
+  /**
+   * Record a completed transfer.
+   *
+   * @param bytes size of the transfer
+   * @param ms time spent by the transfer in milliseconds
+   */
+  public void record(long bytes, long ms) {
+    recordLatency(ms);
+    update(bytes, ms);
+    lastActiveTime = System.currentTimeMillis();
+  }
+
+  /**
+   * Record a failed or abandoned transfer as one of a typical size that took the given penalty
+   * time. Failures do not count as activity, so that a failing provider keeps being probed.
+   */
+  public void recordFailure(long penaltyMs) {
+    recordLatency(penaltyMs);
+    synchronized (this) {
+      update(w > 0 ? (long) (sx / w) : 0, penaltyMs);
+    }
+  }
+
+  private void recordLatency(long ms) {
+    Histogram h = current;
+    h.record(ms);
+    if (h.getCount() >= WINDOW) {
+      synchronized (this) {
+        if (current == h) {
+          previous = h;
+          current = new Histogram();
+        }
+      }
+    }
+  }
+
+  private synchronized void update(double x, double y) {
+    w = w * (1 - DECAY) + DECAY;
+    sx = sx * (1 - DECAY) + x * DECAY;
+    sy = sy * (1 - DECAY) + y * DECAY;
+    sxx = sxx * (1 - DECAY) + x * x * DECAY;
+    sxy = sxy * (1 - DECAY) + x * y * DECAY;
+  }
+
+  public long getCount() {
+    return previous.getCount() + current.getCount();
+  }
+
+  /**
+   * @return the latency percentile (e.g., 50, 95, 99) of recent transfers in milliseconds.
+   */
+  public long getPercentile(double percentile) {
+    Histogram h = current;
+    // use the previous window until the current one has enough samples
+    if (h.getCount() < WINDOW / 4 && previous.getCount() > h.getCount()) {
+      h = previous;
+    }
+    return h.getPercentile(percentile);
+  }
+
+  public long getLastActiveTime() {
+    return lastActiveTime;
+  }
+
+  /**
+   * @return the weighted mean size of recent transfers in bytes.
+   */
+  public synchronized double getMeanBytes() {
+    return w > 0 ? sx / w : 0;
+  }
+
+  /**
+   * @return time spent per byte in milliseconds, or 0 if unknown.
+   */
+  private double getSlope() {
+    if (w <= 0) {
+      return 0;
+    }
+    double mx = sx / w;
+    double var = sxx / w - mx * mx;
+    if (mx <= 0 || var < (MIN_SIZE_VARIATION * mx) * (MIN_SIZE_VARIATION * mx)) {
+      return 0;
+    }
+    return Math.max(0, (sxy / w - mx * sy / w) / var);
+  }
+
+  /**
+   * @return estimated bandwidth in bytes per millisecond, or 0 if unknown.
+   */
+  public synchronized double getBandwidth() {
+    double slope = getSlope();
+    return slope > 0 ? 1 / slope : 0;
+  }
+
+  /**
+   * Predict the time of transferring the given number of bytes.
+   *
+   * @return predicted time in milliseconds, or 0 if nothing has been recorded.
+   */
+  public synchronized double predict(long bytes) {
+    if (w <= 0) {
+      return 0;
+    }
+    double slope = getSlope();
+    double mx = sx / w;
+    double my = sy / w;
+    double latency = Math.max(0, my - slope * mx);
+    return latency + slope * bytes;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("count=%d p50=%d p95=%d p99=%d bandwidth=%.1fB/ms", getCount(),
+        getPercentile(50), getPercentile(95), getPercentile(99), getBandwidth());
+  }
+}
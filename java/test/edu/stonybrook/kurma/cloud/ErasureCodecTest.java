@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.cloud;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import edu.stonybrook.kurma.KurmaException.ErasureException;
+import edu.stonybrook.kurma.TestBase;
+
+public class ErasureCodecTest extends TestBase {
+  private static final int K = 4;
+  private static final int M = 2;
+
+  @Test
+  public void testSameChunksAsEcManager() throws Exception {
+    ErasureCodec codec = new ErasureCodec(K, M);
+    for (int size : new int[] {1, 1000, 4096, 65536, 65537}) {
+      ByteBuffer data = ByteBuffer.wrap(genRandomBytes(size));
+      assertEquals(EcManager.getBlockSize(size, K), codec.getChunkSize(size));
+      byte[][] expected = new EcManager().encode(data.duplicate(), K, M);
+      byte[][] chunks = codec.encode(data);
+      assertEquals(size, data.remaining());
+      for (int i = 0; i < K + M; ++i) {
+        assertArrayEquals(expected[i], chunks[i]);
+      }
+      codec.release(chunks);
+    }
+  }
+
+  @Test
+  public void testDecodeWithErasures() throws Exception {
+    ErasureCodec codec = new ErasureCodec(K, M);
+    int size = 65536 + 123;
+    ByteBuffer data = ByteBuffer.wrap(genRandomBytes(size));
+    for (int e1 = 0; e1 < K + M; ++e1) {
+      for (int e2 = e1; e2 < K + M; ++e2) {
+        byte[][] chunks = codec.encode(data);
+        chunks[e1] = null;
+        chunks[e2] = null;
+        assertEquals(data, codec.decode(chunks, size));
+      }
+    }
+  }
+
+  @Test(expected = ErasureException.class)
+  public void testTooManyErasures() throws Exception {
+    ErasureCodec codec = new ErasureCodec(K, M);
+    byte[][] chunks = codec.encode(ByteBuffer.wrap(genRandomBytes(4096)));
+    for (int i = 0; i <= M; ++i) {
+      chunks[i] = null;
+    }
+    codec.decode(chunks, 4096);
+  }
+
+  @Test
+  public void testChunksAreRecycled() throws Exception {
+    ErasureCodec codec = new ErasureCodec(K, M);
+    // a size not used by other tests, so the pool of this chunk size is empty
+    int size = 37 * 1024;
+    int chunkSize = codec.getChunkSize(size);
+    byte[][] chunks = codec.encode(ByteBuffer.wrap(genRandomBytes(size)));
+    byte[] last = chunks[K + M - 1];
+    codec.release(new byte[][] {last});
+    assertSame(last, codec.allocateChunk(chunkSize));
+  }
+}
@@ -10,6 +10,11 @@
  */
 package edu.stonybrook.kurma.cloud;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -18,6 +23,7 @@ import org.junit.Test;
 
 import edu.stonybrook.kurma.cloud.drivers.FileKvs;
 import edu.stonybrook.kurma.cloud.drivers.TransientKvs;
+import edu.stonybrook.kurma.util.RandomBuffer;
 
 public class ErasureFacadeTest {
   private int[] testKValues;
@@ -78,4 +84,40 @@ public class ErasureFacadeTest {
       kvsList.clear();
     }
   }
+
+  @Test
+  public void testHedgedReadAvoidsSlowProvider() throws Exception {
+    final int slowMs = 3000;
+    List<Kvs> kvsList = new ArrayList<>();
+    Kvs slowKvs = new TransientKvs("testHedgedRead0") {
+      @Override
+      public InputStream get(String key) {
+        try {
+          Thread.sleep(slowMs);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+        return super.get(key);
+      }
+    };
+    // The slow provider is among the k providers read first because the list is never sorted.
+    kvsList.add(slowKvs);
+    kvsList.add(new TransientKvs("testHedgedRead1"));
+    kvsList.add(new TransientKvs("testHedgedRead2"));
+    ErasureFacade facade = new ErasureFacade(2, 1, kvsList, Integer.MAX_VALUE);
+
+    ByteBuffer data = ByteBuffer.wrap(new RandomBuffer(8887).genRandomBytes(4096));
+    facade.put("hedged", data.duplicate());
+    long start = System.currentTimeMillis();
+    ByteBuffer out = facade.get("hedged", null);
+    long elapsed = System.currentTimeMillis() - start;
+    assertEquals(data, out);
+    assertTrue(elapsed < slowMs);
+    // the straggler is penalized by the time it kept us waiting
+    assertTrue(slowKvs.getReadStats().getPercentile(100) >= ErasureFacade.MIN_HEDGE_DELAY_MS / 2);
+    // but the cancelled read is not counted as a failure
+    Thread.sleep(200);
+    assertEquals(0, slowKvs.countRecentFailures());
+  }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.cloud;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.junit.Test;
+
+import edu.stonybrook.kurma.cloud.drivers.TransientKvs;
+
+public class KvsSorterTest {
+
+  @Test
+  public void testRankByPredictedReadTime() throws Exception {
+    Kvs nearby = new TransientKvs("nearby"); // low latency, low bandwidth
+    Kvs remote = new TransientKvs("remote"); // high latency, high bandwidth
+    for (int i = 0; i < 100; ++i) {
+      long bytes = (i % 4 + 1) * 64 * 1024;
+      nearby.logRead(bytes, 10 + bytes / 1024);
+      remote.logRead(bytes, 100 + bytes / 8192);
+    }
+    List<Kvs> kvsList = Arrays.asList(remote, nearby);
+    KvsSorter sorter = new KvsSorter(kvsList, 1, 0);
+
+    Entry<List<Kvs>, int[]> small = sorter.rank(4096);
+    assertEquals(Arrays.asList(nearby, remote), small.getKey());
+    assertArrayEquals(new int[] {1}, small.getValue());
+
+    Entry<List<Kvs>, int[]> large = sorter.rank(16 * 1024 * 1024);
+    assertEquals(Arrays.asList(remote, nearby), large.getKey());
+    assertArrayEquals(new int[] {0}, large.getValue());
+  }
+
+  @Test
+  public void testKvsWithoutStatsIsNotRankedFirst() throws Exception {
+    Kvs fast = new TransientKvs("fast");
+    Kvs medium = new TransientKvs("medium");
+    Kvs slow = new TransientKvs("slow");
+    Kvs unknown = new TransientKvs("unknown");
+    fast.logRead(4096, 1);
+    medium.logRead(4096, 10);
+    slow.logRead(4096, 100);
+    KvsSorter sorter = new KvsSorter(Arrays.asList(unknown, slow, medium, fast), 1, 0);
+    // the provider without stats is predicted to be as fast as the median one
+    assertEquals(Arrays.asList(fast, unknown, medium, slow), sorter.rank(4096).getKey());
+  }
+
+  @Test
+  public void testDisabledKvsGoesLast() throws Exception {
+    Kvs fast = new TransientKvs("fast");
+    Kvs slow = new TransientKvs("slow");
+    fast.logRead(4096, 1);
+    slow.logRead(4096, 100);
+    fast.setEnabled(false);
+    KvsSorter sorter = new KvsSorter(Arrays.asList(fast, slow), 1, 0);
+    Thread.sleep(10);
+    assertEquals(Arrays.asList(slow, fast), sorter.getKvsListAndErasures().getKey());
+  }
+}
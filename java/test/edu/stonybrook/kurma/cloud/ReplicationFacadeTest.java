@@ -11,7 +11,9 @@
 package edu.stonybrook.kurma.cloud;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
@@ -21,6 +23,7 @@ import org.junit.Test;
 import edu.stonybrook.kurma.cloud.drivers.FaultyKvs;
 import edu.stonybrook.kurma.cloud.drivers.FileKvs;
 import edu.stonybrook.kurma.cloud.drivers.TransientKvs;
+import edu.stonybrook.kurma.util.ByteBufferSource;
 
 public class ReplicationFacadeTest {
   private List<Kvs> kvsList = new ArrayList<>();
@@ -65,4 +68,44 @@ public class ReplicationFacadeTest {
     rf.put("aaa", ByteBuffer.wrap("bbb".getBytes()));
     assertEquals(ByteBuffer.wrap("bbb".getBytes()), rf.get("aaa", null));
   }
+
+  @Test
+  public void testHedgedReadAvoidsSlowProvider() throws Exception {
+    final int slowMs = 3000;
+    List<Kvs> kvs = new ArrayList<>();
+    Kvs slowKvs = new TransientKvs("testHedgedRead0") {
+      @Override
+      public InputStream get(String key) {
+        try {
+          Thread.sleep(slowMs);
+        } catch (InterruptedException e) {
+          return null;
+        }
+        return super.get(key);
+      }
+    };
+    // The slow replica is read first because the list is never sorted.
+    kvs.add(slowKvs);
+    kvs.add(new TransientKvs("testHedgedRead1"));
+    ReplicationFacade rf = new ReplicationFacade(kvs, Integer.MAX_VALUE);
+    rf.put("hedged", ByteBuffer.wrap("bbb".getBytes()));
+    long start = System.currentTimeMillis();
+    assertEquals(ByteBuffer.wrap("bbb".getBytes()), rf.get("hedged", null));
+    assertTrue(System.currentTimeMillis() - start < slowMs);
+  }
+
+  @Test
+  public void testInvalidReplicaIsSkipped() throws Exception {
+    List<Kvs> kvs = new ArrayList<>();
+    kvs.add(new TransientKvs("testInvalidReplica0"));
+    kvs.add(new TransientKvs("testInvalidReplica1"));
+    ReplicationFacade rf = new ReplicationFacade(kvs, Integer.MAX_VALUE);
+    ByteBuffer expected = ByteBuffer.wrap("bbb".getBytes());
+    rf.put("aaa", expected.duplicate());
+    // corrupt the first replica
+    ByteBuffer corrupted = ByteBuffer.wrap("ccc".getBytes());
+    KvsFacade.putValue(kvs.get(0), "aaa",
+        ByteBuffer.wrap(ByteBufferSource.getPrefixedByteSource(3, corrupted).read()));
+    assertEquals(expected, rf.get("aaa", (key, value) -> expected.equals(value)));
+  }
 }
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.Map.Entry;
+
+import org.junit.Test;
+
+import edu.stonybrook.kurma.meta.BlockMap;
+import edu.stonybrook.kurma.util.MetadataCodec;
+import edu.stonybrook.kurma.util.ThriftUtils;
+
+public class BlockMapWrapperTest {
+  private static final String ZPATH = "/file/BLOCKMAP00000000";
+
+  @Test
+  public void testAddAndUpdateBlocks() throws Exception {
+    BlockMapWrapper bm = new BlockMapWrapper(ZPATH, 0);
+    assertFalse(bm.isExist());
+    final int N = 1000;
+    for (int i = 0; i < N; ++i) {
+      bm.addBlock(i, (short) (i % 3));
+    }
+    assertTrue(bm.isDirty());
+    assertEquals(N, bm.size());
+    assertEquals(N, bm.get().getLength());
+    assertEquals(999, bm.getVersion(999));
+    assertEquals(0, bm.getModifier(999));
+
+    Entry<Long, Short> old = BlockMapHelper.incrementVersion(bm, 10, (short) 7);
+    assertEquals(10, old.getKey().longValue());
+    assertEquals(1, old.getValue().shortValue());
+    assertEquals(11, bm.getVersion(10));
+    assertEquals(7, bm.getModifier(10));
+
+    old = BlockMapHelper.updateBlock(bm, 20, (short) 8, 100);
+    assertEquals(20, old.getKey().longValue());
+    assertEquals(100, bm.getVersion(20));
+  }
+
+  @Test
+  public void testThriftConversion() throws Exception {
+    BlockMapWrapper bm = new BlockMapWrapper(ZPATH, 0);
+    for (int i = 0; i < 100; ++i) {
+      bm.addBlock(i * 2, (short) i);
+    }
+    // the in-memory BlockMap does not keep boxed lists
+    assertNull(bm.get().getVersions());
+
+    BlockMap decoded = new BlockMap();
+    ThriftUtils.decode(bm.getData(), decoded, bm.isCompress());
+    assertEquals(100, decoded.getVersionsSize());
+    assertEquals(100, decoded.getLength());
+    assertEquals(198, decoded.getVersions().get(99).longValue());
+    assertEquals(99, decoded.getLast_modifier().get(99).shortValue());
+
+    BlockMapWrapper copy = new BlockMapWrapper(ZPATH, decoded);
+    assertEquals(100, copy.size());
+    assertEquals(198, copy.getVersion(99));
+    assertEquals(99, copy.getModifier(99));
+    assertNull(copy.get().getVersions());
+    // the source BlockMap is left intact
+    assertEquals(100, decoded.getVersionsSize());
+  }
+
+  @Test
+  public void testSequentialBlocksAreOneRun() throws Exception {
+    BlockMapWrapper bm = new BlockMapWrapper(ZPATH, 0);
+    final int N = 65536;
+    for (int i = 0; i < N; ++i) {
+      bm.addBlock(1, (short) 1);
+    }
+    assertEquals(1, bm.getFootprint());
+    assertEquals(N, bm.getRunEnd(100));
+    // rewriting the file keeps a single run
+    for (int i = 0; i < N; i += 256) {
+      BlockMapHelper.incrementVersions(bm, i, i + 256, (short) 2);
+    }
+    assertEquals(1, bm.getRunCount());
+    assertEquals(2, bm.getVersion(N - 1));
+    assertEquals(2, bm.getModifier(0));
+
+    BlockMap decoded = new BlockMap();
+    MetadataCodec codec = MetadataCodec.getDefault();
+    int threshold = MetadataCodec.getRawThreshold();
+    try {
+      MetadataCodec.setDefault(MetadataCodec.DEFLATE, threshold);
+      ThriftUtils.decode(bm.getData(), decoded, bm.isCompress());
+    } finally {
+      MetadataCodec.setDefault(codec, threshold);
+    }
+    assertEquals(1, decoded.getVersionsSize());
+    assertEquals(N, decoded.getRun_lengths().get(0).intValue());
+    BlockMapWrapper copy = new BlockMapWrapper(ZPATH, decoded);
+    assertEquals(N, copy.size());
+    assertEquals(2, copy.getVersion(12345));
+    assertEquals(1, copy.getFootprint());
+  }
+
+  @Test
+  public void testSetBlocksSplitsAndMergesRuns() throws Exception {
+    BlockMapWrapper bm = new BlockMapWrapper(ZPATH, 0);
+    for (int i = 0; i < 100; ++i) {
+      bm.addBlock(1, (short) 1);
+    }
+    bm.setBlocks(10, 20, 2, (short) 1);
+    assertEquals(3, bm.getRunCount());
+    assertEquals(10, bm.getRunEnd(0));
+    assertEquals(20, bm.getRunEnd(15));
+    assertEquals(100, bm.getRunEnd(20));
+    assertEquals(2, bm.getVersion(19));
+    assertEquals(1, bm.getVersion(20));
+
+    // a run spanning two old runs
+    bm.setBlocks(15, 30, 3, (short) 2);
+    assertEquals(4, bm.getRunCount());
+    assertEquals(15, bm.getRunEnd(10));
+    assertEquals(30, bm.getRunEnd(15));
+
+    // restoring the blocks merges the runs back
+    bm.setBlocks(10, 30, 1, (short) 1);
+    assertEquals(1, bm.getRunCount());
+    assertEquals(100, bm.getRunEnd(0));
+  }
+
+  @Test
+  public void testFragmentedBlockMap() throws Exception {
+    BlockMapWrapper bm = new BlockMapWrapper(ZPATH, 0);
+    final int N = 4 * BlockMapWrapper.MAX_RUNS;
+    for (int i = 0; i < N; ++i) {
+      bm.addBlock(i / 2, (short) 0);
+    }
+    assertTrue(bm.isFragmented());
+    assertEquals(N, bm.getFootprint());
+    assertEquals(N / 2, bm.getRunCount());
+    assertEquals(12, bm.getRunEnd(10));
+    bm.setBlocks(0, N, 7, (short) 3);
+    assertEquals(1, bm.getRunCount());
+
+    BlockMapWrapper copy = new BlockMapWrapper(ZPATH, bm.toBlockMap());
+    assertFalse(copy.isFragmented());
+    assertEquals(7, copy.getVersion(N - 1));
+  }
+
+  @Test
+  public void testLegacyEncoding() throws Exception {
+    BlockMapWrapper bm = new BlockMapWrapper(ZPATH, 0);
+    for (int i = 0; i < 100; ++i) {
+      bm.addBlock(5, (short) 1);
+    }
+    MetadataCodec codec = MetadataCodec.getDefault();
+    int threshold = MetadataCodec.getRawThreshold();
+    try {
+      // gateways predating run lengths read only the plain lists
+      MetadataCodec.setDefault(MetadataCodec.LEGACY, threshold);
+      BlockMap legacy = bm.toBlockMap();
+      assertFalse(legacy.isSetRun_lengths());
+      assertEquals(100, legacy.getVersionsSize());
+      assertEquals(1, new BlockMapWrapper(ZPATH, legacy).getFootprint());
+    } finally {
+      MetadataCodec.setDefault(codec, threshold);
+    }
+  }
+
+  @Test
+  public void testMarkSameBlocks() throws Exception {
+    BlockMapWrapper bm = new BlockMapWrapper(ZPATH, 0);
+    for (int i = 0; i < 100; ++i) {
+      bm.addBlock(1, (short) 1);
+    }
+    BlockMapWrapper snapshot = new BlockMapWrapper(ZPATH, bm.toBlockMap());
+    bm.setBlocks(40, 60, 2, (short) 1);
+    bm.addBlock(1, (short) 1);
+
+    BitSet same = new BitSet();
+    bm.markSameBlocks(snapshot, Integer.MAX_VALUE, same, true);
+    assertEquals(80, same.cardinality());
+    assertEquals(40, same.nextClearBit(0));
+    assertEquals(60, same.nextSetBit(40));
+    assertEquals(100, same.length());
+
+    same.set(0, 100);
+    snapshot.markSameBlocks(bm, 50, same, false);
+    assertEquals(60, same.cardinality());
+  }
+
+  @Test
+  public void testTimestamps() throws Exception {
+    BlockMapWrapper bm = new BlockMapWrapper(ZPATH, 0);
+    for (int i = 0; i < 100; ++i) {
+      bm.addBlock(1, (short) 1);
+    }
+    assertEquals(0, bm.getTimestamp(50));
+    // unknown timestamps are not saved
+    assertFalse(bm.toBlockMap().isSetTimestamps());
+
+    // two writes of the same version at different times
+    BlockMapHelper.incrementVersions(bm, 0, 50, (short) 2, 1000);
+    BlockMapHelper.incrementVersions(bm, 50, 100, (short) 2, 2000);
+    assertEquals(2, bm.getRunCount());
+    assertEquals(50, bm.getRunEnd(0));
+    assertEquals(1000, bm.getTimestamp(49));
+    assertEquals(2000, bm.getTimestamp(50));
+
+    BlockMap thrift = bm.toBlockMap();
+    assertEquals(2, thrift.getTimestampsSize());
+    BlockMapWrapper copy = new BlockMapWrapper(ZPATH, thrift);
+    assertEquals(2, copy.getRunCount());
+    assertEquals(2000, copy.getTimestamp(99));
+
+    // the timestamp of a block updated without one becomes unknown
+    bm.setBlock(10, 3, (short) 2);
+    assertEquals(0, bm.getTimestamp(10));
+    assertEquals(1000, bm.getTimestamp(11));
+    BlockMapHelper.updateBlock(bm, 11, (short) 3, 3, 3000);
+    assertEquals(3000, bm.getTimestamp(11));
+  }
+}
@@ -11,20 +11,27 @@
 package edu.stonybrook.kurma.replicator;
 
 import static edu.stonybrook.kurma.helpers.HedwigMessageHelper.toHedwigMessage;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.SecretKey;
 
+import org.apache.hedwig.exceptions.PubSubException;
 import org.apache.hedwig.protocol.PubSubProtocol.Message;
+import org.apache.hedwig.util.Callback;
 import org.junit.Before;
 import org.junit.Test;
 
 import edu.stonybrook.kurma.config.GatewayConfig;
 import edu.stonybrook.kurma.config.IGatewayConfig;
+import edu.stonybrook.kurma.helpers.HedwigMessageHelper;
 import edu.stonybrook.kurma.helpers.Int128Helper;
 import edu.stonybrook.kurma.helpers.ObjectIdHelper;
 import edu.stonybrook.kurma.message.GatewayMessage;
@@ -32,6 +39,7 @@ import edu.stonybrook.kurma.meta.Directory;
 import edu.stonybrook.kurma.meta.File;
 import edu.stonybrook.kurma.meta.KeyMap;
 import edu.stonybrook.kurma.meta.ObjectID;
+import edu.stonybrook.kurma.replicator.GatewayMessageManager.PendingMessage;
 import edu.stonybrook.kurma.util.KurmaKeyGenerator;
 
 public class GatewayMessageManagerTest {
@@ -59,6 +67,10 @@ public class GatewayMessageManagerTest {
   }
 
   private Message buildCreateDirMessage(String volId, int parentId, int dirId) {
+    return toHedwigMessage(buildCreateDir(volId, parentId, dirId));
+  }
+
+  private GatewayMessage buildCreateDir(String volId, int parentId, int dirId) {
     short gwid = gatewayConfig.getGatewayId();
     Directory dir = new Directory();
     ObjectID parentOid = getDirOidFromInt(parentId);
@@ -66,7 +78,7 @@ public class GatewayMessageManagerTest {
     dir.setOid(ObjectIdHelper.newDirectoryOid(Int128Helper.newId(dirId, OID_MAJOR), gwid));
     GatewayMessage gm = messageBuilder.buildDirCreation("volume1", dir);
     gm.setVolumeid(volId);
-    return toHedwigMessage(gm);
+    return gm;
   }
 
   private Message buildCreateFileMessage(String volId, int parentId, int fileId,
@@ -210,4 +222,90 @@ public class GatewayMessageManagerTest {
     manager.endMessage(fileRenameMsg);
     assertTrue(manager.isEmpty());
   }
+
+  @Test
+  public void testLockKeysAreDecodedOnce() throws Exception {
+    GatewayMessageManager manager = new GatewayMessageManager();
+    // renaming within a directory locks the directory once
+    PendingMessage rename =
+        manager.putMessage(buildRenameMessage("volume1", 1, 2, "foo", 1, "bar"));
+    assertEquals(2, rename.getLockKeys().size());
+    assertTrue(rename.getGatewayMessage().getOp().isSetRename());
+    assertTrue(rename == manager.poll());
+    assertFalse(manager.endMessage(rename));
+    assertTrue(manager.isEmpty());
+  }
+
+  @Test
+  public void testBacklogIsDispatchedInOrder() {
+    final int N = 1000;
+    GatewayMessageManager manager = new GatewayMessageManager();
+    PendingMessage[] chain = new PendingMessage[N];
+    for (int i = 0; i < N; ++i) {
+      // each directory is created in the previous one
+      chain[i] = manager.putMessage(buildCreateDirMessage("volume1", 100 + i, 101 + i));
+      // unrelated messages are ready right away
+      manager.putMessage(buildCreateDirMessage("other" + i, 100 + i, 101 + i));
+    }
+    assertEquals(2 * N, manager.size());
+    assertTrue(chain[0] == manager.poll());
+    for (int i = 0; i < N; ++i) {
+      assertEquals("other" + i, manager.poll().getGatewayMessage().getVolumeid());
+    }
+    assertNull(manager.poll());
+    for (int i = 0; i < N - 1; ++i) {
+      assertTrue(manager.endMessage(chain[i]));
+      assertTrue(chain[i + 1] == manager.poll());
+      assertNull(manager.poll());
+    }
+    assertFalse(manager.endMessage(chain[N - 1]));
+    assertEquals(N, manager.size());
+  }
+
+  @Test
+  public void testBatchIsUnpackedInOrder() {
+    List<GatewayMessage> gms = new ArrayList<>();
+    for (int i = 0; i < 3; ++i) {
+      // each directory is created in the previous one
+      gms.add(buildCreateDir("volume1", 100 + i, 101 + i));
+    }
+    gms.add(buildCreateDir("other", 100, 101));
+    Message batch = toHedwigMessage(gms);
+    assertTrue(HedwigMessageHelper.isBatch(batch));
+
+    final AtomicInteger finished = new AtomicInteger(0);
+    Callback<Void> callback = new Callback<Void>() {
+      @Override
+      public void operationFinished(Object context, Void result) {
+        finished.incrementAndGet();
+      }
+
+      @Override
+      public void operationFailed(Object context, PubSubException e) {}
+    };
+    GatewayMessageManager manager = new GatewayMessageManager();
+    List<PendingMessage> pms = manager.putMessages(batch, callback, null);
+    assertEquals(4, pms.size());
+    assertEquals(4, manager.size());
+    assertTrue(pms.get(0) == manager.poll());
+    assertTrue(pms.get(3) == manager.poll());
+    assertNull(manager.poll());
+    for (int i = 0; i < 4; ++i) {
+      assertEquals(gms.get(i), pms.get(i).getGatewayMessage());
+    }
+
+    assertFalse(manager.endMessage(pms.get(3)));
+    pms.get(3).getCallback().operationFinished(null, null);
+    for (int i = 0; i < 3; ++i) {
+      assertEquals(0, finished.get());
+      assertEquals(i < 2, manager.endMessage(pms.get(i)));
+      pms.get(i).getCallback().operationFinished(null, null);
+      if (i < 2) {
+        assertTrue(pms.get(i + 1) == manager.poll());
+      }
+    }
+    // the Hedwig message is acknowledged once after all messages in it are handled
+    assertEquals(1, finished.get());
+    assertTrue(manager.isEmpty());
+  }
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.replicator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.stonybrook.kurma.config.GatewayConfig;
+import edu.stonybrook.kurma.config.IGatewayConfig;
+import edu.stonybrook.kurma.helpers.Int128Helper;
+import edu.stonybrook.kurma.helpers.ObjectIdHelper;
+import edu.stonybrook.kurma.message.GatewayMessage;
+import edu.stonybrook.kurma.message.OperationType;
+import edu.stonybrook.kurma.message.UpdateFile;
+import edu.stonybrook.kurma.meta.ObjectAttributes;
+import edu.stonybrook.kurma.meta.ObjectID;
+
+public class MessageBatcherTest {
+  private static final int SHIFT = 16;
+  private static final int BLOCKSIZE = 1 << SHIFT;
+
+  private IGatewayConfig gatewayConfig;
+  private GatewayMessageBuilder messageBuilder;
+  private final LinkedBlockingQueue<List<GatewayMessage>> batches = new LinkedBlockingQueue<>();
+  private int published = 0;
+
+  @Before
+  public void setUp() throws Exception {
+    gatewayConfig = new GatewayConfig(GatewayConfig.KURMA_TEST_CONFIG_FILE);
+    messageBuilder = new GatewayMessageBuilder(gatewayConfig);
+  }
+
+  private ObjectID fileOid(int id) {
+    return ObjectIdHelper.newFileOid(Int128Helper.newId(id, 2222), gatewayConfig.getGatewayId());
+  }
+
+  private GatewayMessage buildUpdate(int fileId, long offset, long length, Long... versions) {
+    ObjectAttributes attrs = new ObjectAttributes();
+    attrs.setBlock_shift(SHIFT);
+    attrs.setFilesize(offset + length);
+    return messageBuilder.buildFileUpdate("volume1", fileOid(fileId), offset, length,
+        new ArrayList<>(Arrays.asList(versions)), attrs);
+  }
+
+  private void publish(List<GatewayMessage> batch, int count) {
+    published += count;
+    batches.add(batch);
+  }
+
+  @Test
+  public void testMergeAdjacentUpdates() {
+    GatewayMessage m1 = buildUpdate(1, 0, 2 * BLOCKSIZE, 1L, 1L);
+    GatewayMessage m2 = buildUpdate(1, 2 * BLOCKSIZE, 100, 3L);
+    GatewayMessage merged = MessageBatcher.merge(m1, m2, false);
+    UpdateFile uf = merged.getOp().getUpdate_file();
+    assertEquals(0, uf.getOffset());
+    assertEquals(2 * BLOCKSIZE + 100, uf.getLength());
+    assertEquals(Arrays.asList(1L, 1L, 3L), uf.getNew_versions());
+    assertEquals(2 * BLOCKSIZE + 100, uf.getNew_attrs().getFilesize());
+    assertEquals(m1.getSeq_number(), merged.getSeq_number());
+    // the original message is not changed
+    assertEquals(2, m1.getOp().getUpdate_file().getNew_versionsSize());
+    assertEquals(2 * BLOCKSIZE, m1.getOp().getUpdate_file().getLength());
+  }
+
+  @Test
+  public void testMergeTimestamps() {
+    GatewayMessage m1 = buildUpdate(1, 0, BLOCKSIZE, 1L);
+    m1.getOp().getUpdate_file().setNew_timestamps(new ArrayList<>(Arrays.asList(1000L)));
+    GatewayMessage m2 = buildUpdate(1, BLOCKSIZE, BLOCKSIZE, 1L);
+    // updates with and without timestamps are not merged
+    assertNull(MessageBatcher.merge(m1, m2, false));
+    m2.getOp().getUpdate_file().setNew_timestamps(new ArrayList<>(Arrays.asList(2000L)));
+    UpdateFile uf = MessageBatcher.merge(m1, m2, false).getOp().getUpdate_file();
+    assertEquals(Arrays.asList(1000L, 2000L), uf.getNew_timestamps());
+  }
+
+  @Test
+  public void testUnmergeableUpdates() {
+    GatewayMessage m1 = buildUpdate(1, 0, 100, 1L);
+    // not aligned to block boundary
+    assertNull(MessageBatcher.merge(m1, buildUpdate(1, 100, 100, 1L), false));
+    GatewayMessage m2 = buildUpdate(1, 0, BLOCKSIZE, 1L);
+    // different file
+    assertNull(MessageBatcher.merge(m2, buildUpdate(2, BLOCKSIZE, 100, 1L), false));
+    // not adjacent
+    assertNull(MessageBatcher.merge(m2, buildUpdate(1, 2 * BLOCKSIZE, 100, 1L), false));
+    // different operations
+    GatewayMessage setattr = messageBuilder.buildAttributeSet("volume1", fileOid(1),
+        new ObjectAttributes(), new ObjectAttributes());
+    assertNull(MessageBatcher.merge(m2, setattr, false));
+    assertNull(MessageBatcher.merge(setattr, m2, false));
+  }
+
+  @Test
+  public void testSequentialWritesAreCoalesced() throws Exception {
+    final int N = 100;
+    // the batch is published by flush() rather than the long delay
+    MessageBatcher batcher = new MessageBatcher(60000, 1 << 20, this::publish);
+    for (int i = 0; i < N; ++i) {
+      batcher.add(buildUpdate(1, i * BLOCKSIZE, BLOCKSIZE, (long) i));
+    }
+    batcher.flush();
+    List<GatewayMessage> batch = batches.poll(1, TimeUnit.SECONDS);
+    assertEquals(1, batch.size());
+    assertEquals(N, published);
+    UpdateFile uf = batch.get(0).getOp().getUpdate_file();
+    assertEquals(N * BLOCKSIZE, uf.getLength());
+    for (int i = 0; i < N; ++i) {
+      assertEquals(i, uf.getNew_versions().get(i).longValue());
+    }
+  }
+
+  @Test
+  public void testShutdownPublishesPendingMessages() throws Exception {
+    MessageBatcher batcher = new MessageBatcher(60000, 1 << 20, this::publish);
+    batcher.add(buildUpdate(1, 0, BLOCKSIZE, 1L));
+    batcher.add(buildUpdate(2, 0, BLOCKSIZE, 2L));
+    batcher.shutdown();
+    // the pending batch is published before shutdown() returns
+    assertEquals(1, batches.size());
+    assertEquals(2, published);
+    // messages added afterwards are published right away
+    batcher.add(buildUpdate(3, 0, BLOCKSIZE, 3L));
+    assertEquals(2, batches.size());
+    assertEquals(3, published);
+  }
+
+  @Test
+  public void testBatchesKeepOrder() throws Exception {
+    final int N = 100;
+    // each update counts 2 and each batch holds at most 5 messages
+    MessageBatcher batcher = new MessageBatcher(10, 10, this::publish);
+    for (int i = 0; i < N; ++i) {
+      batcher.add(buildUpdate(i, 0, BLOCKSIZE, 1L));
+    }
+    List<GatewayMessage> received = new ArrayList<>();
+    while (received.size() < N) {
+      List<GatewayMessage> batch = batches.poll(1, TimeUnit.SECONDS);
+      assertTrue(batch.size() <= 5);
+      received.addAll(batch);
+    }
+    for (int i = 0; i < N; ++i) {
+      assertEquals(fileOid(i), received.get(i).getOp().getUpdate_file().getFile_oid());
+    }
+    assertEquals(N, published);
+  }
+
+  @Test
+  public void testBatchIsPublishedAfterDelay() throws Exception {
+    MessageBatcher batcher = new MessageBatcher(10, 1 << 20, this::publish);
+    GatewayMessage gm = buildUpdate(1, 0, BLOCKSIZE, 1L);
+    batcher.add(gm);
+    List<GatewayMessage> batch = batches.poll(1, TimeUnit.SECONDS);
+    assertEquals(1, batch.size());
+    assertTrue(gm == batch.get(0));
+    assertEquals(OperationType.UPDATE_FILE, batch.get(0).getOp_type());
+  }
+
+  @Test
+  public void testDisabledBatcher() throws Exception {
+    MessageBatcher batcher = new MessageBatcher(0, 1 << 20, this::publish);
+    batcher.add(buildUpdate(1, 0, BLOCKSIZE, 1L));
+    batcher.add(buildUpdate(1, BLOCKSIZE, BLOCKSIZE, 2L));
+    // published right away without merging
+    assertEquals(2, batches.size());
+    assertEquals(2, published);
+  }
+}
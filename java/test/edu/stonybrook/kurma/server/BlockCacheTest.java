@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import edu.stonybrook.kurma.TestBase;
+import edu.stonybrook.kurma.helpers.GatewayHelper;
+import edu.stonybrook.kurma.helpers.Int128Helper;
+import edu.stonybrook.kurma.helpers.ObjectIdHelper;
+import edu.stonybrook.kurma.meta.ObjectID;
+
+public class BlockCacheTest extends TestBase {
+  private static final int BLOCKSIZE = 64 * 1024;
+
+  private final short gwid = GatewayHelper.valueOf("ny");
+  private final ObjectID oid = ObjectIdHelper.newFileOid(Int128Helper.newId(12, 34), gwid);
+
+  @Test
+  public void testBasics() throws Exception {
+    BlockCache cache = new BlockCache(16 * BLOCKSIZE);
+    assertTrue(cache.isEnabled());
+    byte[] data = genRandomBytes(BLOCKSIZE);
+    cache.put(oid, 0, 1, gwid, data);
+    assertArrayEquals(data, cache.get(oid, 0, 1, gwid));
+    assertEquals(BLOCKSIZE, cache.getBytes());
+
+    // a different version, offset, or gateway is a different block
+    assertNull(cache.get(oid, 0, 2, gwid));
+    assertNull(cache.get(oid, BLOCKSIZE, 1, gwid));
+    assertNull(cache.get(oid, 0, 1, (short) (gwid + 1)));
+    assertEquals(1, cache.getStats().hitCount());
+    assertEquals(3, cache.getStats().missCount());
+
+    cache.invalidate(oid, 0, 1, gwid);
+    assertNull(cache.get(oid, 0, 1, gwid));
+    assertEquals(0, cache.getBytes());
+  }
+
+  @Test
+  public void testEvictionByWeight() throws Exception {
+    BlockCache cache = new BlockCache(4 * BLOCKSIZE);
+    for (int i = 0; i < 16; ++i) {
+      cache.put(oid, i * BLOCKSIZE, 1, gwid, genRandomBytes(BLOCKSIZE));
+    }
+    assertTrue(cache.getBytes() <= 4 * BLOCKSIZE);
+    assertTrue(cache.getStats().evictionCount() >= 12);
+  }
+
+  @Test
+  public void testDisabledCache() throws Exception {
+    BlockCache cache = new BlockCache(0);
+    assertFalse(cache.isEnabled());
+    cache.put(oid, 0, 1, gwid, genRandomBytes(BLOCKSIZE));
+    assertNull(cache.get(oid, 0, 1, gwid));
+    assertEquals(0, cache.getBytes());
+  }
+}
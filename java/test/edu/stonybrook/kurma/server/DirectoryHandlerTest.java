@@ -67,6 +67,85 @@ public class DirectoryHandlerTest extends TestBase {
     assertTrue(entries.size() >= 1);
   }
 
+  @Test
+  public void testListPagesStableUnderChanges() throws Exception {
+    DirectoryHandler dh = addChildDirectory(vh, rootDh, "testListPagesStableUnderChanges");
+    for (int i = 0; i < 10; ++i) {
+      addChildFile(vh, dh, String.format("f%02d", i));
+    }
+
+    List<DirEntry> page = dh.list(null, 4);
+    assertEquals(4, page.size());
+    assertEquals("f00", page.get(0).getName());
+    assertEquals("f03", page.get(3).getName());
+
+    // changes before the cursor do not shift the following pages
+    dh.removeChild("f01");
+    addChildFile(vh, dh, "a00");
+    page = dh.list("f03", 4);
+    assertEquals(4, page.size());
+    assertEquals("f04", page.get(0).getName());
+    assertEquals("f07", page.get(3).getName());
+
+    // changes after the cursor are visible
+    addChildFile(vh, dh, "f10");
+    page = dh.list("f07", 4);
+    assertEquals(3, page.size());
+    assertEquals("f10", page.get(2).getName());
+    assertTrue(dh.list("f10", 4).isEmpty());
+  }
+
+  @Test
+  public void testShardedDirectory() throws Exception {
+    DirectoryHandler dh = addChildDirectory(vh, rootDh, "testShardedDirectory");
+    int threshold = vh.getConfig().getDirectoryShardThreshold();
+    int n = threshold * 2;
+    for (int i = 0; i < threshold; ++i) {
+      addChildFile(vh, dh, "f" + i);
+    }
+    assertFalse(dh.isSharded());
+    for (int i = threshold; i < n; ++i) {
+      addChildFile(vh, dh, "f" + i);
+    }
+    assertTrue(dh.isSharded());
+    assertEquals(vh.getConfig().getDirectoryShards(), dh.getSubpaths().size());
+    assertNotNull(dh.removeChild("f0"));
+
+    DirectoryHandler loaded = new DirectoryHandler(dh.getOid(), vh);
+    assertTrue(loaded.load());
+    assertTrue(loaded.isSharded());
+    assertEquals(n - 1, loaded.getChildrenCount());
+    assertNull(loaded.lookup("f0"));
+    for (int i = 1; i < n; ++i) {
+      assertEquals(dh.lookup("f" + i).getOid(), loaded.lookup("f" + i).getOid());
+    }
+  }
+
+  @Test
+  public void testShrunkDirectoryIsMerged() throws Exception {
+    DirectoryHandler dh = addChildDirectory(vh, rootDh, "testShrunkDirectoryIsMerged");
+    int threshold = vh.getConfig().getDirectoryShardThreshold();
+    int n = threshold + 1;
+    for (int i = 0; i < n; ++i) {
+      addChildFile(vh, dh, "f" + i);
+    }
+    assertTrue(dh.isSharded());
+    int remaining = threshold / 2;
+    for (int i = remaining; i < n; ++i) {
+      assertNotNull(dh.removeChild("f" + i));
+    }
+    assertFalse(dh.isSharded());
+    assertTrue(dh.getSubpaths().isEmpty());
+
+    DirectoryHandler loaded = new DirectoryHandler(dh.getOid(), vh);
+    assertTrue(loaded.load());
+    assertFalse(loaded.isSharded());
+    assertEquals(remaining, loaded.getChildrenCount());
+    for (int i = 0; i < remaining; ++i) {
+      assertEquals(dh.lookup("f" + i).getOid(), loaded.lookup("f" + i).getOid());
+    }
+  }
+
   @Test
   public void testRenameInSameDirectory() throws Exception {
     String oldName = "testRenameInSameDirectory1";
@@ -10,20 +10,26 @@
  */
 package edu.stonybrook.kurma.server;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.nio.ByteBuffer;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.zookeeper.data.Stat;
 import org.junit.AfterClass;
@@ -37,6 +43,7 @@ import edu.stonybrook.kurma.Repeat;
 import edu.stonybrook.kurma.TestBase;
 import edu.stonybrook.kurma.config.IGatewayConfig;
 import edu.stonybrook.kurma.helpers.AttributesHelper;
+import edu.stonybrook.kurma.journal.WriteBackJournal;
 import edu.stonybrook.kurma.meta.DirEntry;
 import edu.stonybrook.kurma.meta.ObjectAttributes;
 import edu.stonybrook.kurma.meta.ObjectID;
@@ -363,6 +370,126 @@ public class FileHandlerTest extends TestBase {
     assertEquals((1 << myBlockShift), fh.getBlockSize());
   }
 
+  private VolumeHandler newWriteBackVolumeHandler() throws Exception {
+    IGatewayConfig myconfig = Mockito.spy(vh.getConfig());
+    Mockito.doReturn(64L << 20).when(myconfig).getWriteBackBufferSize();
+    Mockito.doReturn(0L).when(myconfig).getBlockCacheSize();
+    return new VolumeHandler(vh.getVolumeInfo(), vh.getZpath(),
+        vh.getZkClient().getCuratorClient(),
+        vh.getGarbageCollector(), myconfig, new BlockExecutor());
+  }
+
+  @Test
+  public void testWriteBack() throws Exception {
+    VolumeHandler vh2 = newWriteBackVolumeHandler();
+    assertTrue(vh2.getWriteBackManager().isEnabled());
+    FileHandler fh = new FileHandler(vh.newFileOid(), vh2);
+    fh.create(rootDh.getOid(), "testWriteBack", AttributesHelper.newFileAttributes());
+
+    final int LEN = 4 * 64 * 1024;
+    byte[] data = genRandomBytes(LEN);
+    assertTrue(fh.write(0, ByteBuffer.wrap(data)));
+    // staged blocks are readable before they are uploaded
+    assertArrayEquals(data, fh.read(0, LEN).getKey().array());
+
+    CountDownLatch flushed = new CountDownLatch(1);
+    fh.whenFlushed(flushed::countDown);
+    assertTrue(flushed.await(60, TimeUnit.SECONDS));
+    assertEquals(0, vh2.getWriteBackManager().getBytes());
+    assertArrayEquals(data, fh.read(0, LEN).getKey().array());
+  }
+
+  @Test
+  public void testWriteBackFallsBackToWriteThroughOnJournalFailure() throws Exception {
+    VolumeHandler vh2 = newWriteBackVolumeHandler();
+    WriteBackJournal journal = Mockito.spy(vh2.getJournalManager().getWriteBackJournal());
+    // journaling fails at the second block
+    Mockito.doCallRealMethod().doReturn(null).when(journal).write(Mockito.any(),
+        Mockito.anyBoolean());
+    vh2.setWriteBackManager(new WriteBackManager(64L << 20, journal, vh2.getGarbageCollector()));
+    FileHandler fh = new FileHandler(vh.newFileOid(), vh2);
+    fh.create(rootDh.getOid(), "testWriteBackJournalFailure",
+        AttributesHelper.newFileAttributes());
+
+    final int LEN = 4 * 64 * 1024;
+    byte[] data = genRandomBytes(LEN);
+    assertTrue(fh.write(0, ByteBuffer.wrap(data)));
+    // nothing is staged, so the data must have been written through to the clouds
+    assertEquals(0, vh2.getWriteBackManager().getBlockCount());
+    assertArrayEquals(data, fh.read(0, LEN).getKey().array());
+  }
+
+  @Test
+  public void testWriteBackRunsFlushedActionsInOrder() throws Exception {
+    VolumeHandler vh2 = newWriteBackVolumeHandler();
+    FileHandler fh = new FileHandler(vh.newFileOid(), vh2);
+    fh.create(rootDh.getOid(), "testWriteBackRunsFlushedActionsInOrder",
+        AttributesHelper.newFileAttributes());
+
+    final int LEN = 4 * 64 * 1024;
+    // two concurrent writes whose blocks are staged together
+    Thread[] writers = new Thread[2];
+    AtomicInteger written = new AtomicInteger(0);
+    for (int i = 0; i < writers.length; ++i) {
+      final long offset = i * LEN;
+      final ByteBuffer data = genRandomBuffer(LEN);
+      writers[i] = new Thread(() -> {
+        if (fh.write(offset, data)) {
+          written.incrementAndGet();
+        }
+      });
+      writers[i].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    assertEquals(writers.length, written.get());
+
+    final int N = 16;
+    List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch flushed = new CountDownLatch(N);
+    for (int i = 0; i < N; ++i) {
+      final int n = i;
+      fh.whenFlushed(() -> {
+        order.add(n);
+        flushed.countDown();
+      });
+    }
+    assertTrue(flushed.await(60, TimeUnit.SECONDS));
+    for (int i = 0; i < N; ++i) {
+      assertEquals(i, order.get(i).intValue());
+    }
+  }
+
+  @Test
+  public void testWriteToSecondBlockMap() throws Exception {
+    FileHandler fh = createFileWith64KBlockSize("testWriteToSecondBlockMap");
+    final int LEN = 64 * 1024;
+    long offset = ((long) FileHandler.MAX_BLOCK_MAP_LENGTH) * LEN;
+    byte[] data = genRandomBytes(LEN);
+    assertTrue(fh.write(offset, ByteBuffer.wrap(data)));
+    assertEquals(1, fh.getBlockVersion(offset).getKey().intValue());
+    assertEquals(0, fh.getBlockVersion(offset - LEN).getKey().intValue());
+    assertTrue(zkClient.checkExists(fh.getBlockMapZpath(offset)));
+    assertArrayEquals(data, fh.read(offset, LEN).getKey().array());
+  }
+
+  @Test
+  public void testDeleteRemovesBlockMapsAfterGaps() throws Exception {
+    FileHandler fh = createFileWith64KBlockSize("testDeleteRemovesBlockMapsAfterGaps");
+    final int LEN = 64 * 1024;
+    // only the third BlockMap is written
+    long offset = 2L * FileHandler.MAX_BLOCK_MAP_LENGTH * LEN;
+    assertTrue(fh.write(offset, ByteBuffer.wrap(genRandomBytes(LEN))));
+    String zpath = fh.getBlockMapZpath(offset);
+    assertTrue(fh.getSubpaths().contains(zpath));
+    assertFalse(fh.getSubpaths().contains(fh.getBlockMapZpath(offset / 2)));
+
+    assertTrue(fh.delete());
+    zkClient.flush();
+    assertNull(client.checkExists().forPath(zpath));
+  }
+
   @Test
   public void testWriteCanAppendFile() throws Exception {
     FileHandler fh = createFileUnderRoot("testWriteCanAppendFile1");
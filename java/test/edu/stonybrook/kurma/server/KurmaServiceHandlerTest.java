@@ -42,6 +42,8 @@ import org.slf4j.LoggerFactory;
 import com.google.common.collect.Lists;
 
 import edu.stonybrook.kurma.TestBase;
+import edu.stonybrook.kurma.fs.CompoundOp;
+import edu.stonybrook.kurma.fs.CompoundOpType;
 import edu.stonybrook.kurma.fs.DynamicInfo;
 import edu.stonybrook.kurma.fs.KurmaError;
 import edu.stonybrook.kurma.fs.KurmaResult;
@@ -513,6 +515,108 @@ public class KurmaServiceHandlerTest extends TestBase {
     assertEquals(OperationType.CREATE_DIR, recorder.popMessage().op_type);
   }
 
+  @Test
+  public void testListDirPages() throws Exception {
+    setRandomSeed(1067);
+    ByteBuffer sessionId = createSession();
+    KurmaResult kr = service.mkdir(sessionId, getImplicitRootOid(), "listPageTestDir",
+        AttributesHelper.newDirAttributes());
+    assertTrue(StatusHelper.isOk(kr.getStatus()));
+    ObjectID dirOid = kr.getOid();
+    assertEquals(OperationType.CREATE_DIR, recorder.popMessage().op_type);
+
+    ByteBuffer data = genRandomBuffer(4096);
+    for (int i = 1; i <= 5; ++i) {
+      createFile(sessionId, dirOid, "file" + i, data.duplicate());
+    }
+
+    List<String> names = new ArrayList<>();
+    String cookie = "";
+    int pages = 0;
+    do {
+      kr = service.listdir_page(sessionId, dirOid, cookie, 2, true);
+      assertTrue(StatusHelper.isOk(kr.getStatus()));
+      assertEquals(kr.dir_data.size(), kr.dir_attrs.size());
+      for (int i = 0; i < kr.dir_data.size(); ++i) {
+        names.add(kr.dir_data.get(i).getName());
+        assertEquals(4096, kr.dir_attrs.get(i).getFilesize());
+      }
+      cookie = kr.getNext_cookie();
+      ++pages;
+    } while (kr.isSetNext_cookie());
+    assertEquals(3, pages);
+    assertEquals(Lists.newArrayList("file1", "file2", "file3", "file4", "file5"), names);
+  }
+
+  @Test
+  public void testLookupMultiComponentPath() throws Exception {
+    setRandomSeed(1091);
+    ByteBuffer sessionId = createSession();
+    KurmaResult kr = service.mkdir(sessionId, getImplicitRootOid(), "lookupPathDir1",
+        AttributesHelper.newDirAttributes());
+    assertTrue(StatusHelper.isOk(kr.getStatus()));
+    assertEquals(OperationType.CREATE_DIR, recorder.popMessage().op_type);
+    kr = service.mkdir(sessionId, kr.getOid(), "dir2", AttributesHelper.newDirAttributes());
+    assertTrue(StatusHelper.isOk(kr.getStatus()));
+    ObjectID dir2Oid = kr.getOid();
+    assertEquals(OperationType.CREATE_DIR, recorder.popMessage().op_type);
+    ObjectID oid = createFile(sessionId, dir2Oid, "file3", genRandomBuffer(4096));
+
+    kr = service.lookup(sessionId, getImplicitRootOid(), "lookupPathDir1/dir2/file3");
+    assertTrue(StatusHelper.isOk(kr.getStatus()));
+    assertEquals(oid, kr.getOid());
+    assertEquals("file3", kr.getDir_data().get(0).getName());
+    assertEquals(4096, kr.getNew_attrs().getFilesize());
+
+    // again from the root, now served by the dentry cache
+    kr = service.lookup(sessionId, dir2Oid, "/lookupPathDir1//dir2/file3");
+    assertTrue(StatusHelper.isOk(kr.getStatus()));
+    assertEquals(oid, kr.getOid());
+
+    kr = service.lookup(sessionId, getImplicitRootOid(), "lookupPathDir1/dir2/file3/x");
+    assertEquals(KurmaError.NOT_DIRECTORY.getValue(), kr.getStatus().getErrcode());
+    kr = service.lookup(sessionId, getImplicitRootOid(), "lookupPathDir1/nonexist/file3");
+    assertEquals(KurmaError.OBJECT_NOT_FOUND.getValue(), kr.getStatus().getErrcode());
+
+    // the cached dentry goes away with the file
+    kr = service.unlink(sessionId, dir2Oid, "file3");
+    assertTrue(StatusHelper.isOk(kr.getStatus()));
+    kr = service.lookup(sessionId, getImplicitRootOid(), "lookupPathDir1/dir2/file3");
+    assertEquals(KurmaError.OBJECT_NOT_FOUND.getValue(), kr.getStatus().getErrcode());
+  }
+
+  @Test
+  public void testCompoundChainsObjectIds() throws Exception {
+    setRandomSeed(1087);
+    ByteBuffer sessionId = createSession();
+    int mode = 0b0111101000;
+    ObjectAttributes newAttrs = new ObjectAttributes();
+    newAttrs.setMode(mode);
+
+    List<CompoundOp> ops = new ArrayList<>();
+    ops.add(new CompoundOp(CompoundOpType.CREATE).setOid(getImplicitRootOid())
+        .setName("testCompound1").setAttrs(AttributesHelper.newFileAttributes()));
+    // the following operations use the oid of the created file
+    ops.add(new CompoundOp(CompoundOpType.SETATTRS).setAttrs(newAttrs));
+    ops.add(new CompoundOp(CompoundOpType.GETATTRS));
+    List<KurmaResult> results = service.compound(sessionId, ops);
+    assertEquals(3, results.size());
+    for (KurmaResult kr : results) {
+      assertTrue(StatusHelper.isOk(kr.getStatus()));
+    }
+    assertTrue(ObjectIdHelper.isFile(results.get(0).getOid()));
+    assertEquals(mode, results.get(2).getNew_attrs().getMode());
+
+    ops.clear();
+    ops.add(new CompoundOp(CompoundOpType.LOOKUP).setOid(getImplicitRootOid())
+        .setName("testCompoundNonExist"));
+    ops.add(new CompoundOp(CompoundOpType.GETATTRS));
+    results = service.compound(sessionId, ops);
+    // stopped at the failed lookup
+    assertEquals(1, results.size());
+    assertEquals(KurmaError.OBJECT_NOT_FOUND.getValue(), results.get(0).getStatus().getErrcode());
+  }
+
   @Test
   public void testUnlinkDirectory() throws Exception {
     setRandomSeed(1069);
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Map.Entry;
+
+import org.junit.Test;
+
+public class ReadAheadWindowTest {
+  private static final int SHIFT = 16;
+  private static final int BLOCKSIZE = 1 << SHIFT;
+  private static final long FILESIZE = 1L << 30;
+
+  @Test
+  public void testWindowGrowsWithSequentialReads() {
+    ReadAheadWindow ra = new ReadAheadWindow(8);
+    double latency = 1000; // slow clouds allow the max window
+    Entry<Long, Long> r = ra.onRead(0, BLOCKSIZE, SHIFT, latency, FILESIZE);
+    assertEquals(1, ra.getWindow());
+    assertEquals(BLOCKSIZE, r.getKey().longValue());
+    assertEquals(2 * BLOCKSIZE, r.getValue().longValue());
+
+    r = ra.onRead(BLOCKSIZE, BLOCKSIZE, SHIFT, latency, FILESIZE);
+    assertEquals(2, ra.getWindow());
+    // blocks already prefetched are not prefetched again
+    assertEquals(2 * BLOCKSIZE, r.getKey().longValue());
+    assertEquals(4 * BLOCKSIZE, r.getValue().longValue());
+
+    for (int i = 2; i < 10; ++i) {
+      ra.onRead(i * BLOCKSIZE, BLOCKSIZE, SHIFT, latency, FILESIZE);
+    }
+    assertEquals(8, ra.getWindow());
+  }
+
+  @Test
+  public void testRandomReadResetsWindow() {
+    ReadAheadWindow ra = new ReadAheadWindow(8);
+    ra.onRead(0, BLOCKSIZE, SHIFT, 1000, FILESIZE);
+    ra.onRead(BLOCKSIZE, BLOCKSIZE, SHIFT, 1000, FILESIZE);
+    assertNull(ra.onRead(100 * BLOCKSIZE, BLOCKSIZE, SHIFT, 1000, FILESIZE));
+    assertEquals(0, ra.getWindow());
+    // sequential again after the random read
+    Entry<Long, Long> r = ra.onRead(101 * BLOCKSIZE, BLOCKSIZE, SHIFT, 1000, FILESIZE);
+    assertEquals(102L * BLOCKSIZE, r.getKey().longValue());
+  }
+
+  @Test
+  public void testWindowLimitedByLatency() {
+    ReadAheadWindow ra = new ReadAheadWindow(8);
+    assertEquals(1, ra.getWindowLimit(0));
+    assertEquals(2, ra.getWindowLimit(2 * ReadAheadWindow.LATENCY_PER_BLOCK_MS));
+    assertEquals(8, ra.getWindowLimit(100 * ReadAheadWindow.LATENCY_PER_BLOCK_MS));
+    for (int i = 0; i < 10; ++i) {
+      ra.onRead(i * BLOCKSIZE, BLOCKSIZE, SHIFT, 2 * ReadAheadWindow.LATENCY_PER_BLOCK_MS,
+          FILESIZE);
+    }
+    assertEquals(2, ra.getWindow());
+  }
+
+  @Test
+  public void testNoReadAheadBeyondLimit() {
+    ReadAheadWindow ra = new ReadAheadWindow(8);
+    assertNull(ra.onRead(0, BLOCKSIZE, SHIFT, 1000, BLOCKSIZE));
+    assertNull(new ReadAheadWindow(0).onRead(0, BLOCKSIZE, SHIFT, 1000, FILESIZE));
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import edu.stonybrook.kurma.fs.KurmaResult;
+import edu.stonybrook.kurma.fs.KurmaService;
+import edu.stonybrook.kurma.helpers.KurmaResultHelper;
+
+public class ThriftServerFactoryTest {
+  private static final int CLIENTS = 8;
+  private static final int WORKERS = 2;
+
+  private static int getFreePort() throws Exception {
+    try (ServerSocket s = new ServerSocket(0)) {
+      return s.getLocalPort();
+    }
+  }
+
+  private static void waitUntilServing(TServer server) throws InterruptedException {
+    for (int i = 0; i < 100 && !server.isServing(); ++i) {
+      Thread.sleep(50);
+    }
+    assertTrue(server.isServing());
+  }
+
+  @Test
+  public void testSelectorServerMultiplexesClientsOverFewWorkers() throws Exception {
+    KurmaService.Iface iface = Mockito.mock(KurmaService.Iface.class);
+    Mockito.when(iface.renew_session(Mockito.any(ByteBuffer.class)))
+        .thenAnswer(new Answer<KurmaResult>() {
+          @Override
+          public KurmaResult answer(InvocationOnMock invocation) throws Throwable {
+            Thread.sleep(10);
+            return KurmaResultHelper.newResult();
+          }
+        });
+
+    int port = getFreePort();
+    final TServer server = ThriftServerFactory.newSelectorServer(
+        new KurmaService.Processor<KurmaService.Iface>(iface), port, 2, WORKERS, 1);
+    Thread serverThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        server.serve();
+      }
+    });
+    serverThread.start();
+    waitUntilServing(server);
+
+    // more open connections than worker threads
+    ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int i = 0; i < CLIENTS; ++i) {
+      futures.add(clients.submit(() -> {
+        TTransport transport = new TFramedTransport(new TSocket("localhost", port));
+        transport.open();
+        try {
+          KurmaService.Client client = new KurmaService.Client(new TBinaryProtocol(transport));
+          int ok = 0;
+          for (int j = 0; j < 10; ++j) {
+            if (client.renew_session(ByteBuffer.wrap(new byte[8])).getStatus().getErrcode() == 0) {
+              ++ok;
+            }
+          }
+          return ok;
+        } finally {
+          transport.close();
+        }
+      }));
+    }
+    for (Future<Integer> f : futures) {
+      assertEquals(10, f.get(30, TimeUnit.SECONDS).intValue());
+    }
+    clients.shutdown();
+    server.stop();
+    serverThread.join(10000);
+    Mockito.verify(iface, Mockito.times(CLIENTS * 10)).renew_session(Mockito.any(ByteBuffer.class));
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.transaction;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.curator.framework.api.transaction.CuratorTransactionResult;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.stonybrook.kurma.TestBase;
+import edu.stonybrook.kurma.records.ZKOperationType;
+
+public class AsyncCuratorTest extends TestBase {
+
+  @BeforeClass
+  public static void setUpBeforeClass() throws Exception {
+    startTestServer(DUMMY_GARBAGE_COLLECTOR);
+  }
+
+  @AfterClass
+  public static void tearDownAfterClass() throws Exception {
+    closeTestServer();
+  }
+
+  private static OperationInfo newOp(ZKOperationType type, String zpath, byte[] data) {
+    return new OperationInfo(type, zpath, System.currentTimeMillis(), null, data);
+  }
+
+  @Test
+  public void testReadAndCheckExists() throws Exception {
+    final String zpath = "/testAsyncCuratorRead";
+    client.create().forPath(zpath, "data".getBytes());
+    Stat stat = new Stat();
+    assertArrayEquals("data".getBytes(), AsyncCurator.getData(client, zpath, stat).get());
+    assertEquals(4, stat.getDataLength());
+    assertTrue(AsyncCurator.checkExists(client, zpath).get());
+    assertFalse(AsyncCurator.checkExists(client, zpath + "-nonexist").get());
+
+    try {
+      AsyncCurator.getData(client, zpath + "-nonexist", null).get();
+      fail("reading non-existing znode should fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof KeeperException.NoNodeException);
+    }
+  }
+
+  @Test
+  public void testMulti() throws Exception {
+    final String zpath = "/testAsyncCuratorMulti";
+    List<OperationInfo> ops = new ArrayList<>();
+    ops.add(newOp(ZKOperationType.CREATE, zpath, "1".getBytes()));
+    ops.add(newOp(ZKOperationType.UPDATE, zpath, "2".getBytes()));
+    ops.add(newOp(ZKOperationType.COMMIT, null, null));
+    List<CuratorTransactionResult> results = AsyncCurator.multi(client, ops).get();
+    assertEquals(2, results.size());
+    assertEquals(zpath, results.get(0).getForPath());
+    assertEquals(1, results.get(1).getResultStat().getVersion());
+    assertArrayEquals("2".getBytes(), client.getData().forPath(zpath));
+
+    // all or nothing
+    ops.clear();
+    ops.add(newOp(ZKOperationType.REMOVE, zpath, null));
+    ops.add(newOp(ZKOperationType.UPDATE, zpath + "-nonexist", "3".getBytes()));
+    CompletableFuture<List<CuratorTransactionResult>> future = AsyncCurator.multi(client, ops);
+    try {
+      future.get();
+      fail("multi-op with a failed operation should fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof KeeperException);
+    }
+    assertTrue(client.checkExists().forPath(zpath) != null);
+  }
+
+  @Test
+  public void testMultiRetriesOnConnectionLoss() throws Exception {
+    final String zpath = "/testAsyncCuratorMultiRetry";
+    List<OperationInfo> ops = new ArrayList<>();
+    ops.add(newOp(ZKOperationType.CREATE, zpath, "1".getBytes()));
+    CompletableFuture<List<CuratorTransactionResult>> future;
+    server.stop();
+    try {
+      future = AsyncCurator.multi(client, ops, 8);
+      Thread.sleep(4 * AsyncCurator.MULTI_RETRY_BASE_MS);
+      assertFalse(future.isDone());
+    } finally {
+      server.restart();
+    }
+    // resubmitted after the server is back
+    assertEquals(1, future.get().size());
+    assertArrayEquals("1".getBytes(), client.getData().forPath(zpath));
+  }
+}
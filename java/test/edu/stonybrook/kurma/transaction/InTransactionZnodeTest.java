@@ -48,6 +48,61 @@ public class InTransactionZnodeTest extends TestBase {
     assert (Arrays.equals(znodes.get(zpath), data));
   }
 
+  @Test
+  public void testTombstone() {
+    InTransactionZnodes znodes = new InTransactionZnodes();
+    final String zpath = "/testTombstone";
+    assert (!znodes.isDeleted(zpath));
+    znodes.delete(zpath);
+    assert (znodes.isDeleted(zpath));
+    znodes.put(zpath, null);
+    assert (!znodes.isDeleted(zpath));
+    assert (znodes.get(zpath).length == 0);
+  }
+
+  @Test
+  public void testEvictionByOwner() {
+    InTransactionZnodes znodes = new InTransactionZnodes();
+    final String zpath = "/testEvictionByOwner";
+    Object owner1 = new Object();
+    Object owner2 = new Object();
+    znodes.put(zpath, "1".getBytes(), owner1);
+    znodes.put(zpath, "2".getBytes(), owner2);
+    // the change by owner1 has been replaced
+    znodes.evict(zpath, owner1);
+    assert (Arrays.equals(znodes.get(zpath), "2".getBytes()));
+    znodes.evict(zpath, owner2);
+    assert (znodes.get(zpath) == null);
+    assert (znodes.size() == 0);
+
+    znodes.delete(zpath, owner1);
+    znodes.evict(zpath, owner1);
+    assert (!znodes.isDeleted(zpath));
+  }
+
+  @Test
+  public void testRevertExposesPreviousChange() {
+    InTransactionZnodes znodes = new InTransactionZnodes();
+    final String zpath = "/testRevertExposesPreviousChange";
+    Object owner1 = new Object();
+    Object owner2 = new Object();
+    Object owner3 = new Object();
+    znodes.put(zpath, "1".getBytes(), owner1);
+    znodes.put(zpath, "2".getBytes(), owner2);
+    znodes.revert(zpath, owner2);
+    assert (Arrays.equals(znodes.get(zpath), "1".getBytes()));
+
+    znodes.delete(zpath, owner2);
+    znodes.put(zpath, "3".getBytes(), owner3);
+    // the reverted deletion in the middle does not hide the latest change
+    znodes.revert(zpath, owner2);
+    assert (Arrays.equals(znodes.get(zpath), "3".getBytes()));
+    znodes.revert(zpath, owner3);
+    assert (Arrays.equals(znodes.get(zpath), "1".getBytes()));
+    znodes.evict(zpath, owner1);
+    assert (znodes.size() == 0);
+  }
+
   @Test
   public void testConcurrentOperations() throws Exception {
     InTransactionZnodes znodes = new InTransactionZnodes();
@@ -10,7 +10,14 @@
  */
 package edu.stonybrook.kurma.transaction;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 
 import org.junit.AfterClass;
@@ -107,6 +114,121 @@ public class KurmaTransactionManagerTest extends TestBase{
     assert(Arrays.equals("data".getBytes(), readData));
   }
 
+  @Test
+  public void testGroupCommitTriggers() throws Exception {
+    // neither the interval nor the operation count can trigger a commit in this test
+    KurmaTransactionManager manager = new KurmaTransactionManager(
+        vh.getZkClient().getCuratorClient(), vh.getMetaJournal(), 1000000, 1000000, 1000, 0, 1);
+    KurmaTransaction txn = manager.getNewTransaction();
+    txn.create("/testGroupCommitTriggers-1", new byte[600]);
+    manager.submit(txn);
+    assertEquals(0, manager.getBatchSizeHistogram().getCount());
+    txn = manager.getNewTransaction();
+    txn.create("/testGroupCommitTriggers-2", new byte[600]);
+    manager.submit(txn);
+    // triggered by size; the second transaction starts a new group instead of overflowing
+    assertEquals(1, manager.getBatchSizeHistogram().getCount());
+    manager.flush();
+    assertEquals(2, manager.getCommitLatencyHistogram().getCount());
+    assertNotNull(client.checkExists().forPath("/testGroupCommitTriggers-2"));
+    manager.stop();
+
+    manager = new KurmaTransactionManager(vh.getZkClient().getCuratorClient(),
+        vh.getMetaJournal(), 1000000, 1000000, 1000000, 500, 1);
+    txn = manager.getNewTransaction();
+    txn.create("/testGroupCommitTriggers-3", null);
+    manager.submit(txn);
+    // triggered by the latency budget
+    for (int i = 0; i < 100 && client.checkExists().forPath("/testGroupCommitTriggers-3") == null;
+        ++i) {
+      Thread.sleep(10);
+    }
+    assertNotNull(client.checkExists().forPath("/testGroupCommitTriggers-3"));
+    assertEquals(1, manager.getBatchSizeHistogram().getCount());
+    manager.stop();
+  }
+
+  @Test
+  public void testCommitWaitsForPrecondition() throws Exception {
+    // the transaction fills a group, so its committer is created right away
+    KurmaTransactionManager manager = new KurmaTransactionManager(
+        vh.getZkClient().getCuratorClient(), vh.getMetaJournal(), 1000000, 1, Long.MAX_VALUE, 0, 1);
+    CompletableFuture<Void> uploaded = new CompletableFuture<>();
+    KurmaTransaction txn = manager.getNewTransaction();
+    txn.create("/testCommitWaitsForPrecondition", null);
+    txn.commitAfter(uploaded);
+    manager.submit(txn);
+    assertEquals(1, manager.getBatchSizeHistogram().getCount());
+    Thread.sleep(200);
+    assertNull(client.checkExists().forPath("/testCommitWaitsForPrecondition"));
+    assertFalse(manager.allCommitted());
+
+    uploaded.complete(null);
+    manager.flush();
+    assertNotNull(client.checkExists().forPath("/testCommitWaitsForPrecondition"));
+    manager.stop();
+  }
+
+  @Test
+  public void testBackpressureIsBounded() throws Exception {
+    // the only committer waits for the upload, and each transaction fills a group
+    KurmaTransactionManager manager = new KurmaTransactionManager(
+        vh.getZkClient().getCuratorClient(), vh.getMetaJournal(), 1000000, 1, Long.MAX_VALUE, 0, 1);
+    CompletableFuture<Void> uploaded = new CompletableFuture<>();
+    KurmaTransaction txn = manager.getNewTransaction();
+    txn.create("/testBackpressureIsBounded-0", null);
+    txn.commitAfter(uploaded);
+    manager.submit(txn);
+    for (int i = 1; i <= 2; ++i) {
+      txn = manager.getNewTransaction();
+      txn.create("/testBackpressureIsBounded-" + i, null);
+      manager.submit(txn);
+    }
+    // the third transaction stops waiting for the committer and pushes out the second
+    assertEquals(2, manager.getBatchSizeHistogram().getCount());
+
+    uploaded.complete(null);
+    manager.flush();
+    for (int i = 0; i <= 2; ++i) {
+      assertNotNull(client.checkExists().forPath("/testBackpressureIsBounded-" + i));
+    }
+    manager.stop();
+  }
+
+  @Test
+  public void testGroupsStayWithinBytesWhenPipelineIsFull() throws Exception {
+    final long commitBytes = 1000;
+    final int N = 50;
+    KurmaTransactionManager manager = new KurmaTransactionManager(
+        vh.getZkClient().getCuratorClient(), vh.getMetaJournal(), 1000000, 1000000, commitBytes,
+        0, 1);
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; ++t) {
+      final int tid = t;
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < N; ++i) {
+          KurmaTransaction txn = manager.getNewTransaction();
+          txn.create(String.format("/testGroupsStayWithinBytes-%d-%d", tid, i), new byte[300]);
+          manager.submit(txn);
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    manager.flush();
+    assertTrue(manager.getBatchBytesHistogram().getMax() <= commitBytes);
+    assertTrue(manager.getBatchSizeHistogram().getCount() >= threads.length * N / 3);
+    for (int t = 0; t < threads.length; ++t) {
+      for (int i = 0; i < N; ++i) {
+        assertNotNull(client.checkExists()
+            .forPath(String.format("/testGroupsStayWithinBytes-%d-%d", t, i)));
+      }
+    }
+    manager.stop();
+  }
+
   @Test
   public void testLargeCommitThenSmall() throws Exception {
     FileHandler fh = null;
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+  @Test
+  public void testSizeClasses() {
+    assertEquals(0, BufferPool.classOf(1));
+    assertEquals(0, BufferPool.classOf(4096));
+    assertEquals(1, BufferPool.classOf(4097));
+    assertEquals(BufferPool.MAX_CLASS_SHIFT - BufferPool.MIN_CLASS_SHIFT,
+        BufferPool.classOf(1 << BufferPool.MAX_CLASS_SHIFT));
+    assertEquals(-1, BufferPool.classOf((1 << BufferPool.MAX_CLASS_SHIFT) + 1));
+  }
+
+  @Test
+  public void testBuffersAreRecycled() {
+    BufferPool pool = new BufferPool(1 << 20);
+    ByteBuffer buf = pool.allocate(5000);
+    assertEquals(0, buf.position());
+    assertEquals(5000, buf.limit());
+    assertEquals(5000, buf.capacity());
+    assertEquals(8192, buf.array().length);
+    assertEquals(1, pool.getMissCount());
+
+    pool.release(buf);
+    assertEquals(8192, pool.getPooledBytes());
+    ByteBuffer buf2 = pool.allocate(6000);
+    assertSame(buf.array(), buf2.array());
+    assertEquals(6000, buf2.remaining());
+    assertEquals(1, pool.getHitCount());
+    assertEquals(0, pool.getPooledBytes());
+  }
+
+  @Test
+  public void testPoolIsBounded() {
+    BufferPool pool = new BufferPool(8192);
+    ByteBuffer b1 = pool.allocate(8192);
+    ByteBuffer b2 = pool.allocate(8192);
+    pool.release(b1);
+    pool.release(b2);
+    assertEquals(8192, pool.getPooledBytes());
+    assertEquals(1, pool.getDropCount());
+  }
+
+  @Test
+  public void testForeignBuffersAreIgnored() {
+    BufferPool pool = new BufferPool(1 << 20);
+    pool.release(ByteBuffer.allocate(5000));
+    pool.release(ByteBuffer.allocateDirect(4096));
+    pool.release(null);
+    assertEquals(0, pool.getPooledBytes());
+    // too large to be pooled
+    ByteBuffer large = pool.allocate((1 << BufferPool.MAX_CLASS_SHIFT) + 1);
+    assertEquals(large.capacity(), large.array().length);
+    assertEquals(0, pool.getMissCount());
+  }
+
+  @Test
+  public void testDisabledPool() {
+    BufferPool pool = new BufferPool(0);
+    ByteBuffer buf = pool.allocate(4096);
+    pool.release(buf);
+    assertEquals(0, pool.getPooledBytes());
+    assertEquals(0, pool.getMissCount());
+  }
+}
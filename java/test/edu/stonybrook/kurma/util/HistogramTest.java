@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+  @Test
+  public void testBuckets() {
+    for (long v : new long[] {0, 1, 7, 8, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE}) {
+      int bucket = Histogram.bucketOf(v);
+      assertTrue(v <= Histogram.upperBoundOf(bucket));
+      if (bucket > 0) {
+        assertTrue(v > Histogram.upperBoundOf(bucket - 1));
+      }
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+    Histogram h = new Histogram();
+    assertEquals(0, h.getPercentile(50));
+    for (int i = 1; i <= 1000; ++i) {
+      h.record(i);
+    }
+    assertEquals(1000, h.getCount());
+    assertEquals(1000, h.getMax());
+    assertEquals(500.5, h.getMean(), 0.001);
+    long p50 = h.getPercentile(50);
+    assertTrue(p50 >= 500 && p50 <= 500 * (1 + 1.0 / (1 << Histogram.SUB_BUCKET_BITS)));
+    long p99 = h.getPercentile(99);
+    assertTrue(p99 >= 990 && p99 <= 1000);
+    assertEquals(1000, h.getPercentile(100));
+
+    h.reset();
+    assertEquals(0, h.getCount());
+    assertEquals(0, h.getPercentile(99));
+  }
+}
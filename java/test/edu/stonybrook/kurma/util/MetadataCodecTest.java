@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+import edu.stonybrook.kurma.meta.VolumeInfo;
+
+public class MetadataCodecTest {
+  private Random random = new Random(1907);
+
+  private byte[] genCompressible(int length) {
+    ByteBuffer data = ByteBuffer.allocate(length);
+    while (data.remaining() >= 4) {
+      data.putInt(random.nextInt(128));
+    }
+    return data.array();
+  }
+
+  // how metadata was compressed before the codec tags
+  private static byte[] deflateLegacy(byte[] data) {
+    Deflater dfl = new Deflater(Deflater.BEST_SPEED, true);
+    dfl.setInput(data);
+    dfl.finish();
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    byte[] tmp = new byte[4 * 1024];
+    while (!dfl.finished()) {
+      baos.write(tmp, 0, dfl.deflate(tmp));
+    }
+    dfl.end();
+    return baos.toByteArray();
+  }
+
+  @Test
+  public void testRoundTripOfAllCodecs() throws Exception {
+    for (MetadataCodec codec : MetadataCodec.values()) {
+      for (int length : new int[] {0, 1, 63, 64, 4096, 100000}) {
+        byte[] data = genCompressible(length);
+        byte[] encoded = MetadataCodec.encode(codec, data, data.length);
+        assertArrayEquals(codec + " " + length, data, MetadataCodec.decode(encoded));
+        assertEquals(codec != MetadataCodec.LEGACY, MetadataCodec.isTagged(encoded));
+      }
+    }
+  }
+
+  @Test
+  public void testEncodeOnlyPrefix() throws Exception {
+    byte[] data = genCompressible(8192);
+    for (MetadataCodec codec : MetadataCodec.values()) {
+      byte[] encoded = MetadataCodec.encode(codec, data, 1000);
+      assertArrayEquals(Arrays.copyOf(data, 1000), MetadataCodec.decode(encoded));
+    }
+  }
+
+  @Test
+  public void testLegacyDataIsNeverTagged() throws Exception {
+    for (int i = 0; i < 1000; ++i) {
+      byte[] data = new byte[random.nextInt(2048)];
+      if (i % 2 == 0) {
+        random.nextBytes(data);
+      } else {
+        data = genCompressible(data.length);
+      }
+      byte[] legacy = deflateLegacy(data);
+      assertFalse(MetadataCodec.isTagged(legacy));
+      assertArrayEquals(data, MetadataCodec.decode(legacy));
+    }
+  }
+
+  @Test
+  public void testSmallAndIncompressibleDataSavedRaw() throws Exception {
+    byte[] small = genCompressible(MetadataCodec.getRawThreshold() - 1);
+    byte[] encoded = MetadataCodec.encode(MetadataCodec.LZ4, small, small.length);
+    assertEquals(small.length + 1, encoded.length);
+
+    byte[] noise = new byte[4096];
+    random.nextBytes(noise);
+    for (MetadataCodec codec : new MetadataCodec[] {MetadataCodec.DEFLATE, MetadataCodec.LZ4}) {
+      encoded = MetadataCodec.encode(codec, noise, noise.length);
+      assertEquals(noise.length + 1, encoded.length);
+      assertArrayEquals(noise, MetadataCodec.decode(encoded));
+    }
+  }
+
+  @Test
+  public void testCompressedDataIsSmaller() throws Exception {
+    byte[] data = genCompressible(65536);
+    for (MetadataCodec codec : new MetadataCodec[] {MetadataCodec.DEFLATE, MetadataCodec.LZ4}) {
+      assertTrue(MetadataCodec.encode(codec, data, data.length).length < data.length);
+    }
+  }
+
+  @Test(expected = DataFormatException.class)
+  public void testTruncatedData() throws Exception {
+    byte[] data = genCompressible(4096);
+    byte[] encoded = MetadataCodec.encode(MetadataCodec.LZ4, data, data.length);
+    MetadataCodec.decode(Arrays.copyOf(encoded, encoded.length / 2));
+  }
+
+  @Test
+  public void testThriftObjectsWithEveryDefaultCodec() throws Exception {
+    VolumeInfo vi = new VolumeInfo();
+    vi.id = "codecVolume";
+    vi.create_time = 2018;
+    MetadataCodec saved = MetadataCodec.getDefault();
+    int threshold = MetadataCodec.getRawThreshold();
+    try {
+      for (MetadataCodec codec : MetadataCodec.values()) {
+        MetadataCodec.setDefault(codec, 0);
+        byte[] data = ThriftUtils.encodeCompact(vi);
+        VolumeInfo vi2 = new VolumeInfo();
+        ThriftUtils.decodeCompact(data, vi2);
+        assertEquals(vi, vi2);
+      }
+    } finally {
+      MetadataCodec.setDefault(saved, threshold);
+    }
+  }
+}
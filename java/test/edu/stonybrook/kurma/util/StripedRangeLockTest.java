@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class StripedRangeLockTest {
+  private static final int SHIFT = 4;
+  private static final int SEGMENT = 1 << SHIFT;
+
+  private boolean tryLockInOtherThread(StripedRangeLock lock, long begin, long end,
+      boolean forRead) throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      return executor.submit(() -> {
+        boolean locked = forRead ? lock.tryLockRead(begin, end) : lock.tryLockWrite(begin, end);
+        if (locked) {
+          if (forRead) {
+            lock.unlockRead(begin, end);
+          } else {
+            lock.unlockWrite(begin, end);
+          }
+        }
+        return locked;
+      }).get();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testNonOverlappingLocks() throws Exception {
+    StripedRangeLock lock = new StripedRangeLock(SHIFT, 16);
+    lock.lockRead(0, SEGMENT);
+    lock.lockRead(SEGMENT, 2 * SEGMENT);
+    lock.lockWrite(4 * SEGMENT, 5 * SEGMENT);
+
+    assertTrue(lock.isLocked(0));
+    assertTrue(lock.isLocked(SEGMENT));
+    assertFalse(lock.isLocked(2 * SEGMENT));
+    assertTrue(lock.isLocked(4 * SEGMENT));
+    assertFalse(lock.isLocked(5 * SEGMENT));
+    assertTrue(tryLockInOtherThread(lock, 2 * SEGMENT, 4 * SEGMENT, false));
+
+    lock.unlockRead(0, SEGMENT);
+    lock.unlockRead(SEGMENT, 2 * SEGMENT);
+    lock.unlockWrite(4 * SEGMENT, 5 * SEGMENT);
+
+    assertFalse(lock.isLocked(0));
+    assertFalse(lock.isLocked(SEGMENT));
+    assertFalse(lock.isLocked(4 * SEGMENT));
+  }
+
+  @Test
+  public void testReadLocksCanOverlap() throws Exception {
+    StripedRangeLock lock = new StripedRangeLock(SHIFT, 16);
+    lock.lockRead(0, 2 * SEGMENT);
+    assertTrue(tryLockInOtherThread(lock, SEGMENT, 3 * SEGMENT, true));
+    assertFalse(tryLockInOtherThread(lock, SEGMENT, 3 * SEGMENT, false));
+    assertTrue(tryLockInOtherThread(lock, 2 * SEGMENT, 3 * SEGMENT, false));
+    lock.unlockRead(0, 2 * SEGMENT);
+    assertTrue(tryLockInOtherThread(lock, SEGMENT, 3 * SEGMENT, false));
+  }
+
+  @Test
+  public void testWriteLockExcludesOthers() throws Exception {
+    StripedRangeLock lock = new StripedRangeLock(SHIFT, 16);
+    lock.lockWrite(SEGMENT, 3 * SEGMENT);
+    assertFalse(tryLockInOtherThread(lock, 0, 2 * SEGMENT, true));
+    assertFalse(tryLockInOtherThread(lock, 2 * SEGMENT, 4 * SEGMENT, false));
+    assertTrue(tryLockInOtherThread(lock, 3 * SEGMENT, 4 * SEGMENT, false));
+    lock.unlockWrite(SEGMENT, 3 * SEGMENT);
+    assertTrue(tryLockInOtherThread(lock, 0, 4 * SEGMENT, false));
+  }
+
+  @Test
+  public void testWholeRange() throws Exception {
+    StripedRangeLock lock = new StripedRangeLock(SHIFT, 16);
+    lock.lockWholeRange(false);
+    assertTrue(lock.isLocked(0));
+    assertTrue(lock.isLocked(Long.MAX_VALUE - 1));
+    assertFalse(tryLockInOtherThread(lock, 1000 * SEGMENT, 1001 * SEGMENT, true));
+    lock.unlockWholeRange(false);
+    assertFalse(lock.isLocked(0));
+
+    lock.lockRead(1000 * SEGMENT, 1001 * SEGMENT);
+    assertFalse(tryLockInOtherThread(lock, 0, Long.MAX_VALUE, false));
+    assertTrue(tryLockInOtherThread(lock, 0, Long.MAX_VALUE, true));
+    lock.unlockRead(1000 * SEGMENT, 1001 * SEGMENT);
+  }
+
+  @Test
+  public void testEmptyRangeIsNoop() throws Exception {
+    StripedRangeLock lock = new StripedRangeLock(SHIFT, 16);
+    lock.lockWrite(SEGMENT, SEGMENT);
+    assertFalse(lock.isLocked(SEGMENT));
+    lock.unlockWrite(SEGMENT, SEGMENT);
+  }
+
+  @Test
+  public void testWritersAreMutuallyExclusive() throws Exception {
+    final int nthreads = 8;
+    final int loops = 1000;
+    StripedRangeLock lock = new StripedRangeLock(SHIFT, 4);
+    AtomicInteger inside = new AtomicInteger(0);
+    AtomicInteger violations = new AtomicInteger(0);
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+    Future<?>[] futures = new Future<?>[nthreads];
+    for (int t = 0; t < nthreads; ++t) {
+      // Every range covers segment 3, but they span different sets of stripes.
+      final long begin = (t % 4) * SEGMENT;
+      final long end = (4 + t) * SEGMENT;
+      futures[t] = executor.submit(() -> {
+        start.await();
+        for (int i = 0; i < loops; ++i) {
+          lock.lockWrite(begin, end);
+          if (inside.incrementAndGet() != 1) {
+            violations.incrementAndGet();
+          }
+          inside.decrementAndGet();
+          lock.unlockWrite(begin, end);
+        }
+        return null;
+      });
+    }
+    start.countDown();
+    for (Future<?> f : futures) {
+      f.get(60, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+    assertEquals(0, violations.get());
+    assertFalse(lock.isLocked(3 * SEGMENT));
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2013-2018 Ming Chen
+ * Copyright (C) 2016-2016 Praveen Kumar Morampudi
+ * Copyright (C) 2016-2016 Harshkumar Patel
+ * Copyright (C) 2017-2017 Rushabh Shah
+ * Copyright (C) 2013-2018 Erez Zadok
+ * Copyright (c) 2013-2018 Stony Brook University
+ * Copyright (c) 2013-2018 The Research Foundation for SUNY
+ * This file is released under the GPL.
+ */
+package edu.stonybrook.kurma.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TransferStatsTest {
+
+  @Test
+  public void testPredictLatencyAndBandwidth() {
+    TransferStats stats = new TransferStats();
+    assertEquals(0, stats.predict(1000), 0.001);
+    // 20ms latency and 100 bytes per ms
+    for (int i = 0; i < 100; ++i) {
+      long bytes = (i % 4 + 1) * 10000;
+      stats.record(bytes, 20 + bytes / 100);
+    }
+    assertEquals(100, stats.getBandwidth(), 1);
+    assertEquals(20, stats.predict(0), 1);
+    assertEquals(1020, stats.predict(100000), 5);
+    assertTrue(stats.getLastActiveTime() > 0);
+  }
+
+  @Test
+  public void testBandwidthUnknownForUniformSizes() {
+    TransferStats stats = new TransferStats();
+    for (int i = 0; i < 100; ++i) {
+      stats.record(4096, 50);
+    }
+    assertEquals(0, stats.getBandwidth(), 0.001);
+    assertEquals(50, stats.predict(4096), 0.001);
+    assertEquals(50, stats.getPercentile(99));
+  }
+
+  @Test
+  public void testFailuresArePenalizedButNotActive() {
+    TransferStats stats = new TransferStats();
+    stats.recordFailure(60000);
+    assertEquals(0, stats.getLastActiveTime());
+    assertEquals(60000, stats.predict(4096), 0.001);
+    assertEquals(60000, stats.getPercentile(50));
+  }
+
+  @Test
+  public void testPercentilesRollOver() {
+    TransferStats stats = new TransferStats();
+    for (int i = 0; i < TransferStats.WINDOW; ++i) {
+      stats.record(4096, 1000);
+    }
+    for (int i = 0; i < TransferStats.WINDOW / 2; ++i) {
+      stats.record(4096, 10);
+    }
+    // only recent samples count
+    assertEquals(10, stats.getPercentile(99));
+  }
+}
@@ -68,6 +68,7 @@ struct UpdateFile {
   3: i64 length;
   4: list<i64> new_versions;
   5: Namespace.ObjectAttributes new_attrs;
+  6: optional list<i64> new_timestamps;   // write timestamps of the blocks
 }
 
 // change file attributes and info
@@ -204,4 +205,10 @@ struct GatewayMessage {
   7: i64 seq_number;
 }
 
+// Consecutive messages of one gateway published together as one Hedwig
+// message, which is marked by the BATCH header property.
+struct GatewayMessageBatch {
+  1: list<GatewayMessage> messages;
+}
+
 // vim:sw=2:ts=2:sts=2:tw=80:expandtab:cinoptions=>2,(0\:0:
@@ -16,6 +16,19 @@ struct GarbageBlockJournalRecord {
   10: optional i64 last_response_time;
 }
 
+// An encrypted block staged locally in write-back mode and not yet uploaded.
+struct WriteBackJournalRecord {
+  1: Namespace.GatewayID gwid;
+  2: Namespace.ObjectID oid;
+  3: i64 offset;
+  4: i64 block_version;
+  5: i32 length;
+  6: string kvs_type;
+  7: string kvs_ids;
+  8: string block_key;
+  9: binary data;
+}
+
 enum ZKOperationType {
   CREATE;
   REMOVE;
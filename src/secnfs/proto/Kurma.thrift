@@ -35,6 +35,17 @@ struct OpenOwner {
 struct DynamicInfo {
   1: i64 bytes;
   2: i64 files;
+  // statistics of the gateway-side cache of decrypted blocks
+  3: optional i64 block_cache_hits;
+  4: optional i64 block_cache_misses;
+  5: optional i64 block_cache_bytes;
+  6: optional i64 block_cache_evictions;
+  // bytes of written blocks waiting to be uploaded in write-back mode
+  7: optional i64 write_back_bytes;
+  // statistics of the pool of block data buffers
+  8: optional i64 buffer_pool_hits;
+  9: optional i64 buffer_pool_misses;
+  10: optional i64 buffer_pool_bytes;
 }
 
 enum KurmaError {
@@ -79,6 +90,48 @@ struct KurmaResult {
   11: optional i64 snapshot_time;
   
   12: optional DynamicInfo dynamic_info;
+
+  // result of listdir_page(): cookie of the next page, unset after the last
+  // page; and attributes of the entries in dir_data if requested.
+  13: optional string next_cookie;
+  14: optional list<Namespace.ObjectAttributes> dir_attrs;
+}
+
+enum CompoundOpType {
+  LOOKUP = 1;
+  GETATTRS = 2;
+  SETATTRS = 3;
+  CREATE = 4;
+  MKDIR = 5;
+  OPEN = 6;
+  CLOSE = 7;
+  READ = 8;
+  WRITE = 9;
+  UNLINK = 10;
+  LISTDIR = 11;
+}
+
+// A sub-operation of compound().  Each field is used as the argument of the
+// same name of the single operation; fields not used by the operation are
+// ignored:
+//   LOOKUP(oid, name)    GETATTRS(oid)           SETATTRS(oid, attrs)
+//   CREATE(oid, name, attrs)    MKDIR(oid, name, attrs)
+//   OPEN(oid, flags)     CLOSE(oid)
+//   READ(oid, offset, length)   WRITE(oid, offset, data)
+//   UNLINK(oid, name)    LISTDIR(oid, name as cookie, length as max_entries,
+//                                with_attrs)
+struct CompoundOp {
+  1: CompoundOpType op_type;
+  // If unset, the oid of the previous sub-operation's result is used, e.g.,
+  // the oid found by LOOKUP or created by CREATE.
+  2: optional Namespace.ObjectID oid;
+  3: optional string name;
+  4: optional Namespace.ObjectAttributes attrs;
+  5: optional OpenFlags flags;
+  6: optional i64 offset;
+  7: optional i32 length;
+  8: optional binary data;
+  9: optional bool with_attrs;
 }
 
 enum VolumeFormatFlags {
@@ -145,7 +198,9 @@ service KurmaService {
   );
 
   // If dir_oid is unset, i.e., id1 == id2 == 0, then the root dir will be
-  // used as parent directory.
+  // used as parent directory.  The path may have multiple components, such as
+  // "a/b/c", which are resolved in one call; a path starting with '/' is
+  // resolved from the root dir.  dir_data has the entry of the last component.
   KurmaResult lookup(
       1: binary sessionid,
       2: Namespace.ObjectID dir_oid,
@@ -173,6 +228,28 @@ service KurmaService {
       2: Namespace.ObjectID dir_oid,
   );
 
+  // List at most max_entries entries of a directory in the order of their
+  // names, starting after the entry named by cookie (empty for the first
+  // page).  Pass the returned next_cookie to get the next page.  If
+  // with_attrs is set, attributes of the returned entries are returned in
+  // dir_attrs (readdirplus), one per entry of dir_data; attributes of an
+  // entry removed during the listing have no field set.
+  KurmaResult listdir_page(
+      1: binary sessionid,
+      2: Namespace.ObjectID dir_oid,
+      3: string cookie,
+      4: i32 max_entries,
+      5: bool with_attrs,
+  );
+
+  // Run sub-operations in order in one round trip and return their results.
+  // Execution stops after the first failed sub-operation, whose result is the
+  // last one returned.
+  list<KurmaResult> compound(
+      1: binary sessionid,
+      2: list<CompoundOp> ops,
+  );
+
   KurmaResult getattrs(
       1: binary sessionid,
       2: Namespace.ObjectID oid,
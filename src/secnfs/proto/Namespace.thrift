@@ -150,10 +150,23 @@ struct Directory {
 
   4: ObjectAttributes attrs;
 
+  // Entries of small directories. Entries of directories with nshards set
+  // are kept in DirShards instead.
   5: list<DirEntry> entries;
 
   // version vector of directory content
   6: list<GatewayVersion> vv;
+
+  // number of DirShards the entries are hash-partitioned into
+  7: optional i32 nshards;
+}
+
+// A hash partition of the entries of a large directory, so that adding or
+// removing an entry rewrites only one shard.
+//
+// Znode path: <directory-znode>/SHARD.<index>
+struct DirShard {
+  1: list<DirEntry> entries;
 }
 
 // The file contains the file key encrypted by each gateway's public key.
@@ -183,9 +196,6 @@ struct BlockMap {
   2: i64 length;
 
   // compressed array of versions; 0 versions mean file holes
-  //
-  // TODO: check if zlib compression is efficient enough, otherwise we need a
-  // purpose-built compression algorithm.
   3: list<i64> versions;
 
   // The ID of the gateway that makes the latest change to the block (the one
@@ -200,6 +210,18 @@ struct BlockMap {
   4: list<i16> last_modifier;
 
   5: CRC crc;
+
+  // If set, the BlockMap is run-length encoded: "versions[i]" and
+  // "last_modifier[i]" are shared by the next "run_lengths[i]" blocks.
+  // Sequentially written files have only a few runs per BlockMap.  Gateways
+  // that predate this field cannot read run-length encoded BlockMaps.
+  6: optional list<i32> run_lengths;
+
+  // Write timestamps of the blocks, which are the same as the timestamps in
+  // the additional data of the blocks in the clouds, so that conflicting
+  // updates can be resolved without reading the blocks.  It is encoded in the
+  // same way as "versions"; 0 means unknown.
+  7: optional list<i64> timestamps;
 }
 
 // Represents a file.  Using TZlibTransport, which has internal checksum.